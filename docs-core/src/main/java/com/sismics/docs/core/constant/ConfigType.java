@@ -10,6 +10,17 @@ public enum ConfigType {
      * Lucene directory storage type.
      */
     LUCENE_DIRECTORY_STORAGE,
+
+    /**
+     * Index search filters (ACL, tags, dates...) in Lucene.
+     */
+    LUCENE_INDEXED_FILTERS,
+
+    /**
+     * Store the file contents in Lucene, instead of reading them from the database for highlighting.
+     */
+    LUCENE_STORED_CONTENT,
+
     /**
      * Theme configuration.
      */
@@ -30,6 +30,16 @@ public class Constants {
      */
     public static final int DEFAULT_BCRYPT_WORK = 10;
 
+    /**
+     * Default maximum delay before committing the Lucene index, in milliseconds.
+     */
+    public static final long DEFAULT_LUCENE_COMMIT_INTERVAL = 1000;
+
+    /**
+     * Default number of Lucene index writes triggering a commit.
+     */
+    public static final int DEFAULT_LUCENE_COMMIT_SIZE = 1000;
+
     /**
      * Guest user ID.
      */
@@ -83,6 +93,116 @@ public class Constants {
      */
     public static final String BCRYPT_WORK_ENV = "DOCS_BCRYPT_WORK";
 
+    /**
+     * Maximum delay before committing the Lucene index environment variable (0 to commit every write).
+     */
+    public static final String LUCENE_COMMIT_INTERVAL_ENV = "DOCS_LUCENE_COMMIT_INTERVAL";
+
+    /**
+     * Number of Lucene index writes triggering a commit environment variable (0 to disable).
+     */
+    public static final String LUCENE_COMMIT_SIZE_ENV = "DOCS_LUCENE_COMMIT_SIZE";
+
+    /**
+     * Number of index rebuild workers environment variable.
+     */
+    public static final String REINDEX_THREADS_ENV = "DOCS_REINDEX_THREADS";
+
+    /**
+     * Address of the index server environment variable (host:port, unset for the embedded index).
+     */
+    public static final String INDEX_SERVER_ENV = "DOCS_INDEX_SERVER";
+
+    /**
+     * Secret shared by the index server and its clients environment variable.
+     */
+    public static final String INDEX_SERVER_SECRET_ENV = "DOCS_INDEX_SERVER_SECRET";
+
+    /**
+     * Number of workers filling the size and content hash of the files stored without them environment variable.
+     */
+    public static final String FILE_SIZE_THREADS_ENV = "DOCS_FILE_SIZE_THREADS";
+
+    /**
+     * Number of file processing workers environment variable.
+     */
+    public static final String FILE_PROCESSING_THREADS_ENV = "DOCS_FILE_PROCESSING_THREADS";
+
+    /**
+     * Maximum number of queued interactive file processings environment variable.
+     */
+    public static final String FILE_PROCESSING_INTERACTIVE_QUEUE_ENV = "DOCS_FILE_PROCESSING_INTERACTIVE_QUEUE";
+
+    /**
+     * Maximum number of queued bulk file processings environment variable.
+     */
+    public static final String FILE_PROCESSING_BULK_QUEUE_ENV = "DOCS_FILE_PROCESSING_BULK_QUEUE";
+
+    /**
+     * Number of pages of a PDF file OCR-ized in parallel environment variable.
+     */
+    public static final String OCR_PAGE_THREADS_ENV = "DOCS_OCR_PAGE_THREADS";
+
+    /**
+     * Maximum number of tesseract processes running at the same time environment variable.
+     */
+    public static final String OCR_CONCURRENCY_ENV = "DOCS_OCR_CONCURRENCY";
+
+    /**
+     * OCR engine environment variable ("batch" to share tesseract processes between images, "process" for a process per image).
+     */
+    public static final String OCR_ENGINE_ENV = "DOCS_OCR_ENGINE";
+
+    /**
+     * Maximum number of images OCR-ized by a tesseract process environment variable.
+     */
+    public static final String OCR_BATCH_SIZE_ENV = "DOCS_OCR_BATCH_SIZE";
+
+    /**
+     * Maximum size in bytes of the file processing cache environment variable (0 to disable).
+     */
+    public static final String PROCESSING_CACHE_SIZE_ENV = "DOCS_PROCESSING_CACHE_SIZE";
+
+    /**
+     * Store the new files as deduplicated blobs environment variable ("true" to enable).
+     */
+    public static final String STORAGE_DEDUPLICATION_ENV = "DOCS_STORAGE_DEDUPLICATION";
+
+    /**
+     * URL of the S3-compatible object storage environment variable (unset for the local storage directory).
+     */
+    public static final String STORAGE_S3_ENDPOINT_ENV = "DOCS_STORAGE_S3_ENDPOINT";
+
+    /**
+     * S3 bucket environment variable.
+     */
+    public static final String STORAGE_S3_BUCKET_ENV = "DOCS_STORAGE_S3_BUCKET";
+
+    /**
+     * S3 region environment variable.
+     */
+    public static final String STORAGE_S3_REGION_ENV = "DOCS_STORAGE_S3_REGION";
+
+    /**
+     * S3 access key environment variable.
+     */
+    public static final String STORAGE_S3_ACCESS_KEY_ENV = "DOCS_STORAGE_S3_ACCESS_KEY";
+
+    /**
+     * S3 secret key environment variable.
+     */
+    public static final String STORAGE_S3_SECRET_KEY_ENV = "DOCS_STORAGE_S3_SECRET_KEY";
+
+    /**
+     * Size in bytes of the parts of the S3 multipart uploads environment variable.
+     */
+    public static final String STORAGE_S3_PART_SIZE_ENV = "DOCS_STORAGE_S3_PART_SIZE";
+
+    /**
+     * Number of S3 parts uploaded in parallel environment variable.
+     */
+    public static final String STORAGE_S3_PART_THREADS_ENV = "DOCS_STORAGE_S3_PART_THREADS";
+
     /**
      * Expiration time of the password recovery in hours.
      */
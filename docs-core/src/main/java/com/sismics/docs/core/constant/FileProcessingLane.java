@@ -0,0 +1,18 @@
+package com.sismics.docs.core.constant;
+
+/**
+ * File processing lane.
+ *
+ * @author bgamard
+ */
+public enum FileProcessingLane {
+    /**
+     * Files uploaded by a user waiting for the result.
+     */
+    INTERACTIVE,
+
+    /**
+     * Files imported or reprocessed in bulk (inbox, routing actions, reprocessing).
+     */
+    BULK
+}
@@ -13,8 +13,13 @@ import com.sismics.util.context.ThreadLocalContext;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.Query;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -149,6 +154,34 @@ public class AclDao {
         return q.getResultList().size() > 0;
     }
 
+    /**
+     * Returns the targets having read access on some documents, directly or through their tags.
+     *
+     * @param documentIds Documents IDs
+     * @return Set of target IDs per document ID
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Set<String>> getReadTargetIdsByDocumentsIds(Collection<String> documentIds) {
+        Map<String, Set<String>> result = new HashMap<>();
+        if (documentIds.isEmpty()) {
+            return result;
+        }
+
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        StringBuilder sb = new StringBuilder("select a.ACL_SOURCEID_C, a.ACL_TARGETID_C from T_ACL a ");
+        sb.append(" where a.ACL_SOURCEID_C in (:documentIdList) and a.ACL_PERM_C = 'READ' and a.ACL_DELETEDATE_D is null ");
+        sb.append(" union ");
+        sb.append(" select dt.DOT_IDDOCUMENT_C, a.ACL_TARGETID_C from T_ACL a, T_DOCUMENT_TAG dt ");
+        sb.append(" where a.ACL_SOURCEID_C = dt.DOT_IDTAG_C and dt.DOT_IDDOCUMENT_C in (:documentIdList) and dt.DOT_DELETEDATE_D is null ");
+        sb.append(" and a.ACL_PERM_C = 'READ' and a.ACL_DELETEDATE_D is null ");
+        Query q = em.createNativeQuery(sb.toString());
+        q.setParameter("documentIdList", documentIds);
+        for (Object[] o : (List<Object[]>) q.getResultList()) {
+            result.computeIfAbsent((String) o[0], k -> new HashSet<>()).add((String) o[1]);
+        }
+        return result;
+    }
+
     /**
      * Delete an ACL.
      *
@@ -1,6 +1,7 @@
 package com.sismics.docs.core.dao;
 
 import com.sismics.docs.core.model.jpa.AuthenticationToken;
+import com.sismics.docs.core.util.PrincipalCache;
 import com.sismics.util.context.ThreadLocalContext;
 import org.joda.time.DateTime;
 
@@ -54,6 +55,7 @@ public class AuthenticationTokenDao {
         AuthenticationToken authenticationToken = em.find(AuthenticationToken.class, authenticationTokenId);
         if (authenticationToken != null) {
             em.remove(authenticationToken);
+            ThreadLocalContext.get().addAfterCommit(() -> PrincipalCache.invalidate(authenticationTokenId));
         } else {
             throw new Exception("Token not found: " + authenticationTokenId);
         }
@@ -76,6 +78,7 @@ public class AuthenticationTokenDao {
         q.setParameter("longLasted", false);
         q.setParameter("minDate", DateTime.now().minusDays(1).toDate());
         q.executeUpdate();
+        ThreadLocalContext.get().addAfterCommit(() -> PrincipalCache.invalidateUser(userId));
     }
 
     /**
@@ -121,5 +124,6 @@ public class AuthenticationTokenDao {
         q.setParameter("userId", userId);
         q.setParameter("id", id);
         q.executeUpdate();
+        ThreadLocalContext.get().addAfterCommit(() -> PrincipalCache.invalidateUser(userId));
     }
 }
@@ -1,37 +1,87 @@
 package com.sismics.docs.core.dao;
 
+import com.google.common.collect.MapMaker;
 import com.sismics.docs.core.constant.ConfigType;
 import com.sismics.docs.core.model.jpa.Config;
 import com.sismics.util.context.ThreadLocalContext;
 
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.FlushModeType;
 import jakarta.persistence.NoResultException;
+import jakarta.persistence.Query;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Configuration parameter DAO.
- * 
+ * The parameters are cached, the cache being cleared when the configuration version stamp changes,
+ * which is checked at most every few seconds, so that an update made by another node is seen.
+ *
  * @author jtremeaux
  */
 public class ConfigDao {
+    /**
+     * ID of the configuration version stamp, changed on each update.
+     */
+    private static final String CONFIG_VERSION_ID = "CONFIG_VERSION";
+
+    /**
+     * Interval between two checks of the configuration version stamp, in milliseconds.
+     */
+    private static final long VERSION_CHECK_INTERVAL = 5000;
+
+    /**
+     * Cached configuration parameters, empty if undefined.
+     */
+    private static final Map<ConfigType, Optional<Config>> configCache = new ConcurrentHashMap<>();
+
+    /**
+     * Configuration version stamp of the cached parameters.
+     */
+    private static volatile String cachedVersion;
+
+    /**
+     * Timestamp of the last check of the configuration version stamp.
+     */
+    private static volatile long lastVersionCheck;
+
+    /**
+     * Entity managers having updated the configuration, which read it without the cache until their end.
+     */
+    private static final Set<EntityManager> writerSet = Collections.newSetFromMap(new MapMaker().weakKeys().makeMap());
+
     /**
      * Gets a configuration parameter by its ID.
-     * 
+     *
      * @param id Configuration parameter ID
      * @return Configuration parameter
      */
     public Config getById(ConfigType id) {
         EntityManager em = ThreadLocalContext.get().getEntityManager();
-        
+
         // Prevents from getting parameters outside of a transactional context (e.g. jUnit)
         if (em == null) {
             return null;
         }
-        
-        try {
-            return em.find(Config.class, id);
-        } catch (NoResultException e) {
-            return null;
+
+        // Uncommitted parameters are not cached
+        if (writerSet.contains(em)) {
+            return find(em, id);
         }
+
+        checkVersion(em);
+        Optional<Config> config = configCache.get(id);
+        if (config == null) {
+            config = Optional.ofNullable(find(em, id)).map(ConfigDao::copy);
+            configCache.put(id, config);
+        }
+        return config.map(ConfigDao::copy).orElse(null);
     }
 
     /**
@@ -42,7 +92,8 @@ public class ConfigDao {
      */
     public void update(ConfigType id, String value) {
         EntityManager em = ThreadLocalContext.get().getEntityManager();
-        Config config = getById(id);
+        writerSet.add(em);
+        Config config = find(em, id);
         if (config == null) {
             config = new Config();
             config.setId(id);
@@ -51,5 +102,72 @@ public class ConfigDao {
         } else {
             config.setValue(value);
         }
+
+        // Invalidate the parameter locally, and on the other nodes through the version stamp
+        configCache.remove(id);
+        Query q = em.createNativeQuery("update T_CONFIG set CFG_VALUE_C = :version where CFG_ID_C = :id");
+        q.setParameter("version", UUID.randomUUID().toString());
+        q.setParameter("id", CONFIG_VERSION_ID);
+        q.executeUpdate();
+    }
+
+    /**
+     * Clear the cache if the configuration version stamp has changed since the last check.
+     *
+     * @param em Entity manager
+     */
+    private void checkVersion(EntityManager em) {
+        long now = System.currentTimeMillis();
+        if (now - lastVersionCheck < VERSION_CHECK_INTERVAL) {
+            return;
+        }
+        lastVersionCheck = now;
+
+        Query q = em.createNativeQuery("select CFG_VALUE_C from T_CONFIG where CFG_ID_C = :id");
+        q.setParameter("id", CONFIG_VERSION_ID);
+        q.setFlushMode(FlushModeType.COMMIT);
+        @SuppressWarnings("unchecked")
+        List<String> versionList = q.getResultList();
+        String version = versionList.isEmpty() ? null : versionList.get(0);
+        if (!Objects.equals(version, cachedVersion)) {
+            configCache.clear();
+            cachedVersion = version;
+        }
+    }
+
+    /**
+     * Clear the cache (for unit testing).
+     */
+    static void invalidateCache() {
+        configCache.clear();
+        lastVersionCheck = 0;
+    }
+
+    /**
+     * Gets a configuration parameter from the database.
+     *
+     * @param em Entity manager
+     * @param id Configuration parameter ID
+     * @return Configuration parameter
+     */
+    private static Config find(EntityManager em, ConfigType id) {
+        try {
+            return em.find(Config.class, id);
+        } catch (NoResultException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a detached copy of a configuration parameter.
+     *
+     * @param config Configuration parameter
+     * @return Copy
+     */
+    private static Config copy(Config config) {
+        Config copy = new Config();
+        copy.setId(config.getId());
+        copy.setValue(config.getValue());
+        return copy;
     }
 }
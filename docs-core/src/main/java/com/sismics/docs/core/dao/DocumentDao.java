@@ -13,7 +13,9 @@ import jakarta.persistence.Query;
 import jakarta.persistence.TypedQuery;
 import java.sql.Timestamp;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -45,16 +47,16 @@ public class DocumentDao {
     }
     
     /**
-     * Returns the list of all active documents.
+     * Returns a page of active documents ordered by ID, using keyset pagination.
      *
-     * @param offset Offset
+     * @param lastId ID of the last document of the previous page, null for the first page
      * @param limit Limit
      * @return List of documents
      */
-    public List<Document> findAll(int offset, int limit) {
+    public List<Document> findAllAfter(String lastId, int limit) {
         EntityManager em = ThreadLocalContext.get().getEntityManager();
-        TypedQuery<Document> q = em.createQuery("select d from Document d where d.deleteDate is null", Document.class);
-        q.setFirstResult(offset);
+        TypedQuery<Document> q = em.createQuery("select d from Document d where d.id > :lastId and d.deleteDate is null order by d.id", Document.class);
+        q.setParameter("lastId", lastId == null ? "" : lastId);
         q.setMaxResults(limit);
         return q.getResultList();
     }
@@ -72,6 +74,19 @@ public class DocumentDao {
         return q.getResultList();
     }
     
+    /**
+     * Returns the list of all active documents linked to a tag.
+     *
+     * @param tagId Tag ID
+     * @return List of documents
+     */
+    public List<Document> findByTagId(String tagId) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        TypedQuery<Document> q = em.createQuery("select d from Document d, DocumentTag dt where dt.documentId = d.id and dt.tagId = :tagId and dt.deleteDate is null and d.deleteDate is null", Document.class);
+        q.setParameter("tagId", tagId);
+        return q.getResultList();
+    }
+    
     /**
      * Returns an active document with permission checking.
      * 
@@ -188,6 +203,24 @@ public class DocumentDao {
         }
     }
     
+    /**
+     * Returns the language of some documents.
+     *
+     * @param documentIds Documents IDs
+     * @return Language per document ID
+     */
+    public Map<String, String> getLanguagesByIds(Iterable<String> documentIds) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createQuery("select d.id, d.language from Document d where d.id in :documentIds");
+        q.setParameter("documentIds", documentIds);
+        Map<String, String> result = new HashMap<>();
+        q.getResultList().forEach(o -> {
+            Object[] resultLine = (Object[]) o;
+            result.put((String) resultLine[0], (String) resultLine[1]);
+        });
+        return result;
+    }
+
     /**
      * Update a document and log the action.
      * 
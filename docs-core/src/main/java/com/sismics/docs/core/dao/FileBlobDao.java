@@ -0,0 +1,91 @@
+package com.sismics.docs.core.dao;
+
+import com.sismics.docs.core.model.jpa.FileBlob;
+import com.sismics.util.context.ThreadLocalContext;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Query;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Deduplicated file content DAO.
+ * The reference counts are updated in place, locking the blob until the end of the transaction,
+ * so that a blob is never deleted while a concurrent transaction references it.
+ * Blobs not referenced anymore are only deleted by the storage cleaning.
+ *
+ * @author bgamard
+ */
+public class FileBlobDao {
+    /**
+     * Creates a new blob, referenced once.
+     *
+     * @param fileBlob Blob
+     */
+    public void create(FileBlob fileBlob) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        fileBlob.setReferenceCount(1L);
+        fileBlob.setCreateDate(new Date());
+        em.persist(fileBlob);
+    }
+
+    /**
+     * Returns a blob.
+     *
+     * @param id Blob ID
+     * @return Blob or null
+     */
+    public FileBlob getById(String id) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        return em.find(FileBlob.class, id);
+    }
+
+    /**
+     * Add a reference to an existing blob.
+     *
+     * @param id Blob ID
+     * @return True if the blob exists
+     */
+    public boolean addReference(String id) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("update T_FILE_BLOB set FBL_REFCOUNT_N = FBL_REFCOUNT_N + 1 where FBL_ID_C = :id");
+        q.setParameter("id", id);
+        return q.executeUpdate() > 0;
+    }
+
+    /**
+     * Remove a reference to a blob.
+     *
+     * @param id Blob ID
+     */
+    public void removeReference(String id) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("update T_FILE_BLOB set FBL_REFCOUNT_N = FBL_REFCOUNT_N - 1 where FBL_ID_C = :id");
+        q.setParameter("id", id);
+        q.executeUpdate();
+    }
+
+    /**
+     * Delete the blobs not referenced anymore.
+     * A blob referenced again by a concurrent transaction is kept.
+     *
+     * @return Number of deleted blobs
+     */
+    public int deleteUnreferenced() {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("delete from T_FILE_BLOB where FBL_REFCOUNT_N <= 0");
+        return q.executeUpdate();
+    }
+
+    /**
+     * Returns the IDs of all blobs.
+     *
+     * @return Blob IDs
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> findAllIds() {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("select FBL_ID_C from T_FILE_BLOB");
+        return q.getResultList();
+    }
+}
@@ -5,6 +5,7 @@ import com.sismics.docs.core.model.jpa.File;
 import com.sismics.docs.core.util.AuditLogUtil;
 import com.sismics.util.context.ThreadLocalContext;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
 import jakarta.persistence.NoResultException;
 import jakarta.persistence.Query;
 import jakarta.persistence.TypedQuery;
@@ -12,8 +13,10 @@ import jakarta.persistence.TypedQuery;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -58,6 +61,47 @@ public class FileDao {
         q.setMaxResults(limit);
         return q.getResultList();
     }
+
+    /**
+     * Returns a page of files ordered by ID, using keyset pagination.
+     *
+     * @param lastId ID of the last file of the previous page, null for the first page
+     * @param limit Limit
+     * @return List of files
+     */
+    public List<File> findAllAfter(String lastId, int limit) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        TypedQuery<File> q = em.createQuery("select f from File f where f.id > :lastId and f.deleteDate is null order by f.id", File.class);
+        q.setParameter("lastId", lastId == null ? "" : lastId);
+        q.setMaxResults(limit);
+        return q.getResultList();
+    }
+
+    /**
+     * Returns a page of the files not stored as a deduplicated blob, ordered by ID.
+     *
+     * @param lastId ID of the last file of the previous page, null for the first page
+     * @param limit Limit
+     * @return List of files
+     */
+    public List<File> findWithoutBlobAfter(String lastId, int limit) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        TypedQuery<File> q = em.createQuery("select f from File f where f.id > :lastId and f.blobId is null and f.deleteDate is null order by f.id", File.class);
+        q.setParameter("lastId", lastId == null ? "" : lastId);
+        q.setMaxResults(limit);
+        return q.getResultList();
+    }
+
+    /**
+     * Returns the number of files.
+     *
+     * @return Number of files
+     */
+    public long getFileCount() {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query query = em.createNativeQuery("select count(f.FIL_ID_C) from T_FILE f where f.FIL_DELETEDATE_D is null");
+        return ((Number) query.getSingleResult()).longValue();
+    }
     
     /**
      * Returns the list of all files from a user.
@@ -100,6 +144,28 @@ public class FileDao {
         }
     }
     
+    /**
+     * Returns a file, even deleted.
+     *
+     * @param id File ID
+     * @return File or null
+     */
+    public File getById(String id) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        return em.find(File.class, id);
+    }
+
+    /**
+     * Returns a file, even deleted, locked until the end of the transaction.
+     *
+     * @param id File ID
+     * @return File or null
+     */
+    public File getByIdForUpdate(String id) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        return em.find(File.class, id, LockModeType.PESSIMISTIC_WRITE);
+    }
+
     /**
      * Returns an active file.
      * 
@@ -168,6 +234,23 @@ public class FileDao {
         return file;
     }
 
+    /**
+     * Update the stored content of a file: its size, content hash and blob.
+     * The entity manager being cleared on each access, the file may be detached since it was read.
+     *
+     * @param file File
+     */
+    public void updateStorage(File file) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createQuery("update File f set f.size = :size, f.contentHash = :contentHash, f.blobId = :blobId, f.blobKey = :blobKey where f.id = :id");
+        q.setParameter("size", file.getSize());
+        q.setParameter("contentHash", file.getContentHash());
+        q.setParameter("blobId", file.getBlobId());
+        q.setParameter("blobKey", file.getBlobKey());
+        q.setParameter("id", file.getId());
+        q.executeUpdate();
+    }
+
     /**
      * Gets a file by its ID.
      * 
@@ -234,6 +317,42 @@ public class FileDao {
         return result;
     }
 
+    /**
+     * Get the MIME types of the files of some documents.
+     *
+     * @param documentIds Documents IDs
+     * @return Set of MIME types per document ID
+     */
+    public Map<String, Set<String>> getMimeTypesByDocumentsIds(Iterable<String> documentIds) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createQuery("select distinct f.documentId, f.mimeType from File f where f.documentId in :documentIds and f.deleteDate is null");
+        q.setParameter("documentIds", documentIds);
+        Map<String, Set<String>> result = new HashMap<>();
+        q.getResultList().forEach(o -> {
+            Object[] resultLine = (Object[]) o;
+            result.computeIfAbsent((String) resultLine[0], k -> new HashSet<>()).add((String) resultLine[1]);
+        });
+        return result;
+    }
+
+    /**
+     * Get the contents of some active files.
+     *
+     * @param ids Files IDs
+     * @return Content per file ID
+     */
+    public Map<String, String> getContentsByIds(Iterable<String> ids) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createQuery("select f.id, f.content from File f where f.id in :ids and f.deleteDate is null");
+        q.setParameter("ids", ids);
+        Map<String, String> result = new HashMap<>();
+        q.getResultList().forEach(o -> {
+            Object[] resultLine = (Object[]) o;
+            result.put((String) resultLine[0], (String) resultLine[1]);
+        });
+        return result;
+    }
+
     /**
      * Get all files from a version.
      *
@@ -247,11 +366,31 @@ public class FileDao {
         return q.getResultList();
     }
 
-    public List<File> getFilesWithUnknownSize(int limit) {
+    /**
+     * Returns the IDs of the active files without size or content hash, in ID order.
+     *
+     * @param lastId Last ID returned, null to start from the first file
+     * @param limit Maximum number of IDs
+     * @return File IDs
+     */
+    public List<String> findIdsToBackfillAfter(String lastId, int limit) {
         EntityManager em = ThreadLocalContext.get().getEntityManager();
-        TypedQuery<File> q = em.createQuery("select f from File f where f.size = :size and f.deleteDate is null order by f.order asc", File.class);
+        TypedQuery<String> q = em.createQuery("select f.id from File f where f.id > :lastId and (f.size = :size or f.contentHash is null) and f.deleteDate is null order by f.id", String.class);
+        q.setParameter("lastId", lastId == null ? "" : lastId);
         q.setParameter("size", File.UNKNOWN_SIZE);
         q.setMaxResults(limit);
         return q.getResultList();
     }
+
+    /**
+     * Returns the number of active files without size or content hash.
+     *
+     * @return Number of files
+     */
+    public long getToBackfillCount() {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        TypedQuery<Long> q = em.createQuery("select count(f) from File f where (f.size = :size or f.contentHash is null) and f.deleteDate is null", Long.class);
+        q.setParameter("size", File.UNKNOWN_SIZE);
+        return q.getSingleResult();
+    }
 }
@@ -7,6 +7,7 @@ import com.sismics.docs.core.dao.dto.GroupDto;
 import com.sismics.docs.core.model.jpa.Group;
 import com.sismics.docs.core.model.jpa.UserGroup;
 import com.sismics.docs.core.util.AuditLogUtil;
+import com.sismics.docs.core.util.PrincipalCache;
 import com.sismics.docs.core.util.jpa.QueryParam;
 import com.sismics.docs.core.util.jpa.QueryUtil;
 import com.sismics.docs.core.util.jpa.SortCriteria;
@@ -71,6 +72,12 @@ public class GroupDao {
         // Create the group
         EntityManager em = ThreadLocalContext.get().getEntityManager();
         em.persist(group);
+
+        // Link the group to its ancestors
+        insertAncestor(group.getId(), group.getId());
+        if (group.getParentId() != null) {
+            attachAncestors(group.getId(), group.getParentId());
+        }
         
         // Create audit log
         AuditLogUtil.create(group, AuditLogType.CREATE, userId);
@@ -107,9 +114,22 @@ public class GroupDao {
         q.setParameter("dateNow", dateNow);
         q.executeUpdate();
 
+        // Detach the subgroups, then the group itself, from the ancestors
+        q = em.createNativeQuery("select GRP_ID_C from T_GROUP where GRP_IDPARENT_C = :groupId and GRP_DELETEDATE_D is null");
+        q.setParameter("groupId", groupDb.getId());
+        @SuppressWarnings("unchecked")
+        List<String> childIdList = q.getResultList();
+        for (String childId : childIdList) {
+            detachAncestors(childId);
+        }
+        q = em.createNativeQuery("delete from T_GROUP_ANCESTOR where GAN_IDGROUP_C = :groupId or GAN_IDANCESTOR_C = :groupId");
+        q.setParameter("groupId", groupDb.getId());
+        q.executeUpdate();
+
         q = em.createQuery("update Group g set g.parentId = null where g.parentId = :groupId and g.deleteDate is null");
         q.setParameter("groupId", groupDb.getId());
         q.executeUpdate();
+        ThreadLocalContext.get().addAfterCommit(PrincipalCache::invalidateAll);
 
         // Create audit log
         AuditLogUtil.create(groupDb, AuditLogType.DELETE, userId);
@@ -128,6 +148,7 @@ public class GroupDao {
         // Create the user group
         EntityManager em = ThreadLocalContext.get().getEntityManager();
         em.persist(userGroup);
+        ThreadLocalContext.get().addAfterCommit(() -> PrincipalCache.invalidateUser(userGroup.getUserId()));
         
         return userGroup.getId();
     }
@@ -150,6 +171,7 @@ public class GroupDao {
         // Delete the user group
         Date dateNow = new Date();
         userGroupDb.setDeleteDate(dateNow);
+        ThreadLocalContext.get().addAfterCommit(() -> PrincipalCache.invalidateUser(userId));
     }
     
     /**
@@ -163,11 +185,20 @@ public class GroupDao {
         Map<String, Object> parameterMap = new HashMap<>();
         List<String> criteriaList = new ArrayList<>();
         
-        StringBuilder sb = new StringBuilder("select g.GRP_ID_C as c0, g.GRP_NAME_C as c1, g.GRP_IDPARENT_C as c2, gp.GRP_NAME_C as c3, g.GRP_IDROLE_C ");
-        if (criteria.getUserId() != null) {
-            sb.append(" , ug.UGP_ID_C ");
+        boolean recursive = criteria.getUserId() != null && criteria.isRecursive();
+        StringBuilder sb = new StringBuilder("select ");
+        sb.append(recursive ? "distinct " : "");
+        sb.append("g.GRP_ID_C as c0, g.GRP_NAME_C as c1, g.GRP_IDPARENT_C as c2, gp.GRP_NAME_C as c3, g.GRP_IDROLE_C ");
+        if (recursive) {
+            // Direct groups and their ancestors
+            sb.append(" from T_USER_GROUP ug ");
+            sb.append(" join T_GROUP_ANCESTOR ga on ga.GAN_IDGROUP_C = ug.UGP_IDGROUP_C ");
+            sb.append(" join T_GROUP g on g.GRP_ID_C = ga.GAN_IDANCESTOR_C ");
+            criteriaList.add("ug.UGP_IDUSER_C = :userId and ug.UGP_DELETEDATE_D is null");
+            parameterMap.put("userId", criteria.getUserId());
+        } else {
+            sb.append(" from T_GROUP g ");
         }
-        sb.append(" from T_GROUP g ");
         sb.append(" left join T_GROUP gp on g.GRP_IDPARENT_C = gp.GRP_ID_C ");
         
         // Add search criterias
@@ -175,9 +206,7 @@ public class GroupDao {
             criteriaList.add("lower(g.GRP_NAME_C) like lower(:search)");
             parameterMap.put("search", "%" + criteria.getSearch() + "%");
         }
-        if (criteria.getUserId() != null) {
-            // Left join and post-filtering for recursive groups
-            sb.append(criteria.isRecursive() ? " left " : "");
+        if (criteria.getUserId() != null && !recursive) {
             sb.append(" join T_USER_GROUP ug on ug.UGP_IDGROUP_C = g.GRP_ID_C and ug.UGP_IDUSER_C = :userId and ug.UGP_DELETEDATE_D is null ");
             parameterMap.put("userId", criteria.getUserId());
         }
@@ -194,7 +223,6 @@ public class GroupDao {
         
         // Assemble results
         List<GroupDto> groupDtoList = new ArrayList<>();
-        List<GroupDto> userGroupDtoList = new ArrayList<>();
         for (Object[] o : l) {
             int i = 0;
             GroupDto groupDto = new GroupDto()
@@ -202,47 +230,13 @@ public class GroupDao {
                 .setName((String) o[i++])
                 .setParentId((String) o[i++])
                 .setParentName((String) o[i++])
-                .setRoleId((String) o[i++]);
+                .setRoleId((String) o[i]);
             groupDtoList.add(groupDto);
-            if (criteria.getUserId() != null && o[i] != null) {
-                userGroupDtoList.add(groupDto);
-            }
-        }
-        
-        // Post-query filtering for recursive groups
-        if (criteria.getUserId() != null && criteria.isRecursive()) {
-            Set<GroupDto> filteredGroupDtoSet = new HashSet<>();
-            for (GroupDto userGroupDto : userGroupDtoList) {
-                filteredGroupDtoSet.add(userGroupDto); // Direct group
-                findGroupParentHierarchy(filteredGroupDtoSet, groupDtoList, userGroupDto, 0); // Indirect groups
-            }
-            groupDtoList = new ArrayList<>(filteredGroupDtoSet);
         }
         
         return groupDtoList;
     }
     
-    /**
-     * Recursively search group's parents.
-     * 
-     * @param parentGroupDtoSet Resulting parents
-     * @param groupDtoList All groups
-     * @param userGroupDto Reference group to search from
-     * @param depth Depth
-     */
-    private void findGroupParentHierarchy(Set<GroupDto> parentGroupDtoSet, List<GroupDto> groupDtoList, GroupDto userGroupDto, int depth) {
-        if (userGroupDto.getParentId() == null || depth == 10) { // Max depth 10 to avoid infinite loop
-            return;
-        }
-        
-        for (GroupDto groupDto : groupDtoList) {
-            if (groupDto.getId().equals(userGroupDto.getParentId())) {
-                parentGroupDtoSet.add(groupDto); // Add parent
-                findGroupParentHierarchy(parentGroupDtoSet, groupDtoList, groupDto, depth + 1); // Find parent's parents
-            }
-        }
-    }
-    
     /**
      * Update a group.
      * 
@@ -257,15 +251,147 @@ public class GroupDao {
         Query q = em.createQuery("select g from Group g where g.id = :id and g.deleteDate is null");
         q.setParameter("id", group.getId());
         Group groupDb = (Group) q.getSingleResult();
+        String oldParentId = groupDb.getParentId();
         
-        // Update the group
+        // Update the group, before the entity manager is cleared by the ancestors update
         groupDb.setName(group.getName());
         groupDb.setParentId(group.getParentId());
+
+        // Move the group and its subgroups under the new parent
+        if (!Objects.equals(oldParentId, group.getParentId())) {
+            if (oldParentId != null) {
+                detachAncestors(groupDb.getId());
+            }
+            if (group.getParentId() != null) {
+                attachAncestors(groupDb.getId(), group.getParentId());
+            }
+        }
+        ThreadLocalContext.get().addAfterCommit(PrincipalCache::invalidateAll);
         
         // Create audit log
         AuditLogUtil.create(groupDb, AuditLogType.UPDATE, userId);
         
         return groupDb;
     }
-}
 
+    /**
+     * Rebuild the ancestors of all the groups, for the groups created before they were maintained.
+     */
+    public void rebuildAncestors() {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        em.createNativeQuery("delete from T_GROUP_ANCESTOR").executeUpdate();
+
+        Query q = em.createNativeQuery("select GRP_ID_C, GRP_IDPARENT_C from T_GROUP where GRP_DELETEDATE_D is null");
+        @SuppressWarnings("unchecked")
+        List<Object[]> l = q.getResultList();
+        Map<String, String> parentIdMap = new HashMap<>();
+        for (Object[] o : l) {
+            parentIdMap.put((String) o[0], (String) o[1]);
+        }
+
+        for (String groupId : parentIdMap.keySet()) {
+            // Climb the parents, stopping on a cycle
+            Set<String> ancestorIdSet = new HashSet<>();
+            String ancestorId = groupId;
+            while (ancestorId != null && parentIdMap.containsKey(ancestorId) && ancestorIdSet.add(ancestorId)) {
+                insertAncestor(groupId, ancestorId);
+                ancestorId = parentIdMap.get(ancestorId);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the ancestors of the groups need to be rebuilt.
+     *
+     * @return True if some group is not linked to its parent
+     */
+    public boolean isAncestorsMissing() {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("select count(g.GRP_ID_C) from T_GROUP g where g.GRP_IDPARENT_C is not null and g.GRP_DELETEDATE_D is null"
+                + " and not exists (select ga.GAN_IDGROUP_C from T_GROUP_ANCESTOR ga where ga.GAN_IDGROUP_C = g.GRP_ID_C and ga.GAN_IDANCESTOR_C = g.GRP_IDPARENT_C)");
+        return ((Number) q.getSingleResult()).longValue() > 0;
+    }
+
+    /**
+     * Link a group and its subgroups to a new parent and its ancestors.
+     *
+     * @param groupId Group ID
+     * @param parentId New parent ID
+     */
+    private void attachAncestors(String groupId, String parentId) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        List<String> descendantIdList = findDescendantIds(groupId);
+        Query q = em.createNativeQuery("select GAN_IDANCESTOR_C from T_GROUP_ANCESTOR where GAN_IDGROUP_C = :groupId");
+        q.setParameter("groupId", parentId);
+        @SuppressWarnings("unchecked")
+        List<String> ancestorIdList = q.getResultList();
+
+        // Existing links, only possible if the new parent is a subgroup
+        q = em.createNativeQuery("select GAN_IDGROUP_C, GAN_IDANCESTOR_C from T_GROUP_ANCESTOR where GAN_IDGROUP_C in (:groupIdList)");
+        q.setParameter("groupIdList", descendantIdList);
+        @SuppressWarnings("unchecked")
+        List<Object[]> l = q.getResultList();
+        Set<String> linkSet = new HashSet<>();
+        for (Object[] o : l) {
+            linkSet.add(o[0] + "/" + o[1]);
+        }
+
+        for (String descendantId : descendantIdList) {
+            for (String ancestorId : ancestorIdList) {
+                if (!linkSet.contains(descendantId + "/" + ancestorId)) {
+                    insertAncestor(descendantId, ancestorId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unlink a group and its subgroups from the ancestors of the group.
+     *
+     * @param groupId Group ID
+     */
+    private void detachAncestors(String groupId) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        List<String> descendantIdList = findDescendantIds(groupId);
+        Query q = em.createNativeQuery("select GAN_IDANCESTOR_C from T_GROUP_ANCESTOR where GAN_IDGROUP_C = :groupId and GAN_IDANCESTOR_C != :groupId");
+        q.setParameter("groupId", groupId);
+        @SuppressWarnings("unchecked")
+        List<String> ancestorIdList = q.getResultList();
+        if (ancestorIdList.isEmpty()) {
+            return;
+        }
+
+        q = em.createNativeQuery("delete from T_GROUP_ANCESTOR where GAN_IDGROUP_C in (:groupIdList) and GAN_IDANCESTOR_C in (:ancestorIdList)");
+        q.setParameter("groupIdList", descendantIdList);
+        q.setParameter("ancestorIdList", ancestorIdList);
+        q.executeUpdate();
+    }
+
+    /**
+     * Returns a group and its subgroups.
+     *
+     * @param groupId Group ID
+     * @return IDs of the group and its subgroups
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> findDescendantIds(String groupId) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("select GAN_IDGROUP_C from T_GROUP_ANCESTOR where GAN_IDANCESTOR_C = :groupId");
+        q.setParameter("groupId", groupId);
+        return q.getResultList();
+    }
+
+    /**
+     * Link a group to one of its ancestors.
+     *
+     * @param groupId Group ID
+     * @param ancestorId Ancestor ID
+     */
+    private void insertAncestor(String groupId, String ancestorId) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createNativeQuery("insert into T_GROUP_ANCESTOR(GAN_IDGROUP_C, GAN_IDANCESTOR_C) values(:groupId, :ancestorId)");
+        q.setParameter("groupId", groupId);
+        q.setParameter("ancestorId", ancestorId);
+        q.executeUpdate();
+    }
+}
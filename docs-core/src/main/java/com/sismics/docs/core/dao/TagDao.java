@@ -81,6 +81,65 @@ public class TagDao {
         }
     }
     
+    /**
+     * Returns the IDs of the active tags linked to some documents.
+     *
+     * @param documentIds Documents IDs
+     * @return Set of tag IDs per document ID
+     */
+    public Map<String, Set<String>> getTagIdsByDocumentsIds(Iterable<String> documentIds) {
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createQuery("select dt.documentId, dt.tagId from DocumentTag dt, Tag t where t.id = dt.tagId and dt.documentId in :documentIds and dt.deleteDate is null and t.deleteDate is null");
+        q.setParameter("documentIds", documentIds);
+        Map<String, Set<String>> result = new HashMap<>();
+        q.getResultList().forEach(o -> {
+            Object[] resultLine = (Object[]) o;
+            result.computeIfAbsent((String) resultLine[0], k -> new HashSet<>()).add((String) resultLine[1]);
+        });
+        return result;
+    }
+
+    /**
+     * Returns the tags accessible by some targets on each of some documents, sorted by name.
+     *
+     * @param documentIds Documents IDs
+     * @param targetIdList List of targets
+     * @return Tags per document ID
+     */
+    public Map<String, List<TagDto>> getByDocumentsIds(Collection<String> documentIds, List<String> targetIdList) {
+        Map<String, List<TagDto>> result = new HashMap<>();
+        if (documentIds.isEmpty()) {
+            return result;
+        }
+
+        Map<String, Object> parameterMap = new HashMap<>();
+        StringBuilder sb = new StringBuilder("select distinct dt.DOT_IDDOCUMENT_C, t.TAG_ID_C, t.TAG_NAME_C, t.TAG_COLOR_C, t.TAG_IDPARENT_C, u.USE_USERNAME_C ");
+        sb.append(" from T_TAG t ");
+        sb.append(" join T_USER u on t.TAG_IDUSER_C = u.USE_ID_C ");
+        sb.append(" join T_DOCUMENT_TAG dt on dt.DOT_IDTAG_C = t.TAG_ID_C and dt.DOT_DELETEDATE_D is null ");
+        if (!SecurityUtil.skipAclCheck(targetIdList)) {
+            sb.append(" join T_ACL a on a.ACL_TARGETID_C in (:targetIdList) and a.ACL_SOURCEID_C = t.TAG_ID_C and a.ACL_PERM_C = 'READ' and a.ACL_DELETEDATE_D is null ");
+            parameterMap.put("targetIdList", targetIdList);
+        }
+        sb.append(" where dt.DOT_IDDOCUMENT_C in (:documentIds) and t.TAG_DELETEDATE_D is null ");
+        sb.append(" order by t.TAG_NAME_C asc ");
+        parameterMap.put("documentIds", documentIds);
+
+        @SuppressWarnings("unchecked")
+        List<Object[]> l = QueryUtil.getNativeQuery(new QueryParam(sb.toString(), parameterMap)).getResultList();
+        for (Object[] o : l) {
+            int i = 1;
+            TagDto tagDto = new TagDto()
+                    .setId((String) o[i++])
+                    .setName((String) o[i++])
+                    .setColor((String) o[i++])
+                    .setParentId((String) o[i++])
+                    .setCreator((String) o[i]);
+            result.computeIfAbsent((String) o[0], k -> new ArrayList<>()).add(tagDto);
+        }
+        return result;
+    }
+    
     /**
      * Creates a new tag.
      * 
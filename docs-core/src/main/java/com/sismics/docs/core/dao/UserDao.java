@@ -14,6 +14,7 @@ import com.sismics.docs.core.dao.dto.UserDto;
 import com.sismics.docs.core.model.jpa.User;
 import com.sismics.docs.core.util.AuditLogUtil;
 import com.sismics.docs.core.util.EncryptionUtil;
+import com.sismics.docs.core.util.PrincipalCache;
 import com.sismics.docs.core.util.jpa.QueryParam;
 import com.sismics.docs.core.util.jpa.QueryUtil;
 import com.sismics.docs.core.util.jpa.SortCriteria;
@@ -114,6 +115,7 @@ public class UserDao {
         userDb.setStorageCurrent(user.getStorageCurrent());
         userDb.setTotpKey(user.getTotpKey());
         userDb.setDisableDate(user.getDisableDate());
+        ThreadLocalContext.get().addAfterCommit(() -> PrincipalCache.invalidateUser(userDb.getId()));
 
         // Create audit log
         AuditLogUtil.create(userDb, AuditLogType.UPDATE, userId);
@@ -217,6 +219,27 @@ public class UserDao {
         }
     }
     
+    /**
+     * Returns the username of some users.
+     *
+     * @param ids Users IDs
+     * @return Username per user ID
+     */
+    public Map<String, String> getUsernamesByIds(Collection<String> ids) {
+        Map<String, String> result = new HashMap<>();
+        if (ids.isEmpty()) {
+            return result;
+        }
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        Query q = em.createQuery("select u.id, u.username from User u where u.id in :ids");
+        q.setParameter("ids", ids);
+        q.getResultList().forEach(o -> {
+            Object[] resultLine = (Object[]) o;
+            result.put((String) resultLine[0], (String) resultLine[1]);
+        });
+        return result;
+    }
+
     /**
      * Gets an active user by its username.
      * 
@@ -268,6 +291,8 @@ public class UserDao {
         // Delete the user
         Date dateNow = new Date();
         userDb.setDeleteDate(dateNow);
+        EncryptionUtil.invalidateKey(userDb.getPrivateKey());
+        ThreadLocalContext.get().addAfterCommit(() -> PrincipalCache.invalidateUser(userDb.getId()));
 
         // Delete linked data
         q = em.createQuery("delete from AuthenticationToken at where at.userId = :userId");
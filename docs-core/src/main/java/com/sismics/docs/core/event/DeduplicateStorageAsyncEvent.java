@@ -0,0 +1,16 @@
+package com.sismics.docs.core.event;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Deduplicate storage event.
+ *
+ * @author bgamard
+ */
+public class DeduplicateStorageAsyncEvent {
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .toString();
+    }
+}
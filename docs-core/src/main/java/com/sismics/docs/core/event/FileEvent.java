@@ -1,6 +1,7 @@
 package com.sismics.docs.core.event;
 
 import com.google.common.base.MoreObjects;
+import com.sismics.docs.core.constant.FileProcessingLane;
 
 import java.nio.file.Path;
 
@@ -25,6 +26,16 @@ public abstract class FileEvent extends UserEvent {
      */
     private Path unencryptedFile;
 
+    /**
+     * SHA-256 of the unencrypted content, null if unknown.
+     */
+    private String contentHash;
+
+    /**
+     * Processing lane.
+     */
+    private FileProcessingLane lane = FileProcessingLane.INTERACTIVE;
+
     public String getFileId() {
         return fileId;
     }
@@ -50,11 +61,30 @@ public abstract class FileEvent extends UserEvent {
         return this;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public FileEvent setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+        return this;
+    }
+
+    public FileProcessingLane getLane() {
+        return lane;
+    }
+
+    public FileEvent setLane(FileProcessingLane lane) {
+        this.lane = lane;
+        return this;
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
             .add("fileId", fileId)
             .add("language", language)
+            .add("lane", lane)
             .toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+package com.sismics.docs.core.listener.async;
+
+import com.google.common.eventbus.Subscribe;
+import com.sismics.docs.core.dao.FileDao;
+import com.sismics.docs.core.dao.UserDao;
+import com.sismics.docs.core.event.DeduplicateStorageAsyncEvent;
+import com.sismics.docs.core.model.context.AppContext;
+import com.sismics.docs.core.model.jpa.File;
+import com.sismics.docs.core.model.jpa.User;
+import com.sismics.docs.core.util.TransactionUtil;
+import com.sismics.docs.core.util.storage.FileStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Listener on storage deduplication.
+ * The files stored under their ID are moved to deduplicated blobs, one transaction per file,
+ * and the previous content is deleted once the file is committed with its blob.
+ * Deduplications run one at a time, and each file is locked while moved, so that a file
+ * is never moved twice, which would reference its blob twice.
+ *
+ * @author bgamard
+ */
+public class DeduplicateStorageAsyncListener {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(DeduplicateStorageAsyncListener.class);
+
+    /**
+     * Number of files per batch.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Deduplicate the storage.
+     *
+     * @param event Deduplicate storage event
+     */
+    @Subscribe
+    public void on(final DeduplicateStorageAsyncEvent event) {
+        if (log.isInfoEnabled()) {
+            log.info("Deduplicate storage event: " + event.toString());
+        }
+
+        FileStorage fileStorage = AppContext.getInstance().getFileStorage();
+        long movedCount = 0;
+        long failedCount = 0;
+        String lastId = null;
+        while (true) {
+            // Get the next batch of files, the files failing to move being skipped
+            List<String> fileIdList = new ArrayList<>();
+            final String batchLastId = lastId;
+            TransactionUtil.handle(() -> {
+                for (File file : new FileDao().findWithoutBlobAfter(batchLastId, BATCH_SIZE)) {
+                    fileIdList.add(file.getId());
+                }
+            });
+            if (fileIdList.isEmpty()) {
+                break;
+            }
+            lastId = fileIdList.get(fileIdList.size() - 1);
+
+            for (String fileId : fileIdList) {
+                AtomicBoolean moved = new AtomicBoolean();
+                TransactionUtil.handle(() -> {
+                    File file = new FileDao().getByIdForUpdate(fileId);
+                    User user = new UserDao().getById(file.getUserId());
+                    try {
+                        moved.set(fileStorage.moveToBlob(file, user.getPrivateKey()));
+                        if (moved.get()) {
+                            new FileDao().updateStorage(file);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+
+                // Delete the previous content once the blob is committed
+                AtomicBoolean committed = new AtomicBoolean();
+                if (moved.get()) {
+                    TransactionUtil.handle(() -> {
+                        File file = new FileDao().getById(fileId);
+                        if (file.getBlobId() != null) {
+                            try {
+                                fileStorage.getBackend().delete(fileId);
+                                committed.set(true);
+                            } catch (Exception e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    });
+                }
+                if (committed.get()) {
+                    movedCount++;
+                } else {
+                    failedCount++;
+                }
+            }
+        }
+
+        log.info("Storage deduplicated: {} files moved to blobs, {} files not moved", movedCount, failedCount);
+    }
+}
@@ -60,6 +60,10 @@ public class DocumentUpdatedAsyncListener {
             // Update database and index
             documentDao.updateFileId(document);
             AppContext.getInstance().getIndexingHandler().updateDocument(document);
+            if (event.isLanguageChanged() && !fileList.isEmpty()) {
+                // The files are analyzed in the language of their document
+                AppContext.getInstance().getIndexingHandler().createFiles(fileList);
+            }
 
             // Update contributors list
             ContributorDao contributorDao = new ContributorDao();
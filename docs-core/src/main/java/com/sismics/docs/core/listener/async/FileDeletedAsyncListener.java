@@ -12,6 +12,9 @@ import com.sismics.docs.core.util.TransactionUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 /**
  * Listener on file deleted.
  *
@@ -43,8 +46,8 @@ public class FileDeletedAsyncListener {
                 Long fileSize = event.getFileSize();
 
                 if (fileSize.equals(File.UNKNOWN_SIZE)) {
-                    // The file size was not in the database, in this case we need to get from the unencrypted size.
-                    fileSize = FileUtil.getFileSize(event.getFileId(), user);
+                    // The file size was not in the database, in this case we need to get it from the storage.
+                    fileSize = FileUtil.getFileSize(event.getFileId());
                 }
 
                 if (! fileSize.equals(File.UNKNOWN_SIZE)) {
@@ -54,8 +57,14 @@ public class FileDeletedAsyncListener {
             }
         });
 
-        // Delete the file from storage
-        FileUtil.delete(event.getFileId());
+        // Delete the file from storage, releasing its deduplicated content
+        TransactionUtil.handle(() -> {
+            try {
+                FileUtil.delete(event.getFileId());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
 
         TransactionUtil.handle(() -> {
             // Update index
@@ -1,7 +1,9 @@
 package com.sismics.docs.core.listener.async;
 
+import com.google.common.base.Strings;
 import com.google.common.eventbus.AllowConcurrentEvents;
 import com.google.common.eventbus.Subscribe;
+import com.sismics.docs.core.constant.ConfigType;
 import com.sismics.docs.core.dao.FileDao;
 import com.sismics.docs.core.dao.UserDao;
 import com.sismics.docs.core.event.FileCreatedAsyncEvent;
@@ -10,8 +12,8 @@ import com.sismics.docs.core.event.FileUpdatedAsyncEvent;
 import com.sismics.docs.core.model.context.AppContext;
 import com.sismics.docs.core.model.jpa.File;
 import com.sismics.docs.core.model.jpa.User;
-import com.sismics.docs.core.util.DirectoryUtil;
-import com.sismics.docs.core.util.EncryptionUtil;
+import com.sismics.docs.core.util.ConfigUtil;
+import com.sismics.docs.core.util.FileProcessingCache;
 import com.sismics.docs.core.util.FileUtil;
 import com.sismics.docs.core.util.TransactionUtil;
 import com.sismics.docs.core.util.format.FormatHandler;
@@ -21,10 +23,9 @@ import com.sismics.util.Scalr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import java.awt.image.BufferedImage;
-import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.MessageFormat;
@@ -53,7 +54,8 @@ public class FileProcessingAsyncListener {
             log.info("File created event: " + event.toString());
         }
 
-        processFile(event, true);
+        AppContext.getInstance().getFileProcessingService().submit(event.getLane(), event.getUserId(),
+                () -> processFile(event, true));
     }
 
     /**
@@ -66,11 +68,12 @@ public class FileProcessingAsyncListener {
     public void on(final FileUpdatedAsyncEvent event) {
         log.info("File updated event: " + event.toString());
 
-        processFile(event, false);
+        AppContext.getInstance().getFileProcessingService().submit(event.getLane(), event.getUserId(),
+                () -> processFile(event, false));
     }
 
     /**
-     * Process a file :
+     * Process a file, on a file processing worker :
      * Generate thumbnails
      * Extract and save text content
      *
@@ -128,7 +131,7 @@ public class FileProcessingAsyncListener {
     }
 
     /**
-     * Extract text content from a file.
+     * Extract text content from a file, from the file processing cache if the same file was already processed.
      * This is executed outside of a transaction.
      *
      * @param event File event
@@ -144,43 +147,134 @@ public class FileProcessingAsyncListener {
             return null;
         }
 
-        // Generate file variations
+        // A copy decrypted here is deleted at the end, the unencrypted file of the event belongs to its sender
+        Path unencryptedFile = event.getUnencryptedFile();
+        Path decryptedFile = null;
         try {
-            Cipher cipher = EncryptionUtil.getEncryptionCipher(user.getPrivateKey());
-            BufferedImage image = formatHandler.generateThumbnail(event.getUnencryptedFile());
-            if (image != null) {
-                // Generate thumbnails from image
-                BufferedImage web = Scalr.resize(image, Scalr.Method.ULTRA_QUALITY, Scalr.Mode.AUTOMATIC, 1280);
-                BufferedImage thumbnail = Scalr.resize(image, Scalr.Method.ULTRA_QUALITY, Scalr.Mode.AUTOMATIC, 256);
-                image.flush();
-
-                // Write "web" encrypted image
-                Path outputFile = DirectoryUtil.getStorageDirectory().resolve(file.getId() + "_web");
-                try (OutputStream outputStream = new CipherOutputStream(Files.newOutputStream(outputFile), cipher)) {
-                    ImageUtil.writeJpeg(web, outputStream);
+            // Look for the same file processed with the same parameters
+            FileProcessingCache fileProcessingCache = AppContext.getInstance().getFileProcessingCache();
+            String cacheKey = null;
+            try {
+                String contentHash = event.getContentHash() == null ? file.getContentHash() : event.getContentHash();
+                if (contentHash == null) {
+                    if (unencryptedFile == null) {
+                        unencryptedFile = decryptedFile = decryptFile(user, file);
+                    }
+                    contentHash = FileProcessingCache.hash(unencryptedFile);
                 }
+                cacheKey = fileProcessingCache.getKey(contentHash, file.getMimeType(), Strings.nullToEmpty(event.getLanguage()),
+                        Boolean.toString(ConfigUtil.getConfigBooleanValue(ConfigType.OCR_ENABLED, true)));
+                FileProcessingCache.Entry entry = fileProcessingCache.get(cacheKey);
+                if (entry != null) {
+                    log.info("File processing cache hit for: " + file.getId());
+                    writeImage(file.getId(), "web", entry.getWeb(), user);
+                    writeImage(file.getId(), "thumb", entry.getThumbnail(), user);
+                    return entry.getContent();
+                }
+            } catch (Throwable e) {
+                log.error("Unable to use the file processing cache for: " + file, e);
+            }
 
-                // Write "thumb" encrypted image
-                outputFile = DirectoryUtil.getStorageDirectory().resolve(file.getId() + "_thumb");
-                try (OutputStream outputStream = new CipherOutputStream(Files.newOutputStream(outputFile), cipher)) {
-                    ImageUtil.writeJpeg(thumbnail, outputStream);
+            // Decrypt the stored file if no unencrypted copy was kept
+            if (unencryptedFile == null) {
+                try {
+                    unencryptedFile = decryptedFile = decryptFile(user, file);
+                } catch (Throwable e) {
+                    log.error("Unable to decrypt: " + file, e);
+                    return null;
                 }
             }
-        } catch (Throwable e) {
-            log.error("Unable to generate thumbnails for: " + file, e);
-        }
 
-        // Extract text content from the file
-        long startTime = System.currentTimeMillis();
-        String content = null;
-        log.info("Start extracting content from: " + file);
-        try {
-            content = formatHandler.extractContent(event.getLanguage(), event.getUnencryptedFile());
-        } catch (Throwable e) {
-            log.error("Error extracting content from: " + file, e);
+            // Generate file variations
+            boolean processed = true;
+            byte[] web = null;
+            byte[] thumb = null;
+            try {
+                BufferedImage image = formatHandler.generateThumbnail(unencryptedFile);
+                if (image != null) {
+                    // Generate thumbnails from image
+                    BufferedImage webImage = Scalr.resize(image, Scalr.Method.ULTRA_QUALITY, Scalr.Mode.AUTOMATIC, 1280);
+                    BufferedImage thumbnailImage = Scalr.resize(image, Scalr.Method.ULTRA_QUALITY, Scalr.Mode.AUTOMATIC, 256);
+                    image.flush();
+                    web = toJpeg(webImage);
+                    thumb = toJpeg(thumbnailImage);
+
+                    // Write "web" and "thumb" encrypted images
+                    writeImage(file.getId(), "web", web, user);
+                    writeImage(file.getId(), "thumb", thumb, user);
+                }
+            } catch (Throwable e) {
+                processed = false;
+                log.error("Unable to generate thumbnails for: " + file, e);
+            }
+
+            // Extract text content from the file
+            long startTime = System.currentTimeMillis();
+            String content = null;
+            log.info("Start extracting content from: " + file);
+            try {
+                content = formatHandler.extractContent(event.getLanguage(), unencryptedFile);
+            } catch (Throwable e) {
+                processed = false;
+                log.error("Error extracting content from: " + file, e);
+            }
+            log.info(MessageFormat.format("File content extracted in {0}ms: " + file.getId(), System.currentTimeMillis() - startTime));
+
+            // Cache the result of a complete processing
+            if (processed && cacheKey != null) {
+                fileProcessingCache.put(cacheKey, new FileProcessingCache.Entry(content, web, thumb));
+            }
+
+            return content;
+        } finally {
+            if (decryptedFile != null) {
+                try {
+                    Files.deleteIfExists(decryptedFile);
+                } catch (IOException e) {
+                    log.error("Unable to delete the decrypted file: " + decryptedFile, e);
+                }
+            }
         }
-        log.info(MessageFormat.format("File content extracted in {0}ms: " + file.getId(), System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * Decrypt a stored file to a temporary file.
+     *
+     * @param user User whom created the file
+     * @param file File
+     * @return Unencrypted temporary file
+     * @throws Exception e
+     */
+    private Path decryptFile(User user, File file) throws Exception {
+        return AppContext.getInstance().getFileStorage().decrypt(file, user.getPrivateKey());
+    }
+
+    /**
+     * Encode an image to JPEG.
+     *
+     * @param image Image
+     * @return JPEG data
+     * @throws IOException e
+     */
+    private byte[] toJpeg(BufferedImage image) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ImageUtil.writeJpeg(image, outputStream);
+        return outputStream.toByteArray();
+    }
 
-        return content;
+    /**
+     * Write an encrypted JPEG image to the storage.
+     *
+     * @param fileId File ID
+     * @param size Image size ("web" or "thumb")
+     * @param jpeg JPEG data, nothing is written if null
+     * @param user User whom created the file
+     * @throws Exception e
+     */
+    private void writeImage(String fileId, String size, byte[] jpeg, User user) throws Exception {
+        if (jpeg == null) {
+            return;
+        }
+        AppContext.getInstance().getFileStorage().storeImage(fileId, size, jpeg, user.getPrivateKey());
     }
 }
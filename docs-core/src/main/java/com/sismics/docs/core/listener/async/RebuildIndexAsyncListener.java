@@ -2,6 +2,7 @@ package com.sismics.docs.core.listener.async;
 
 import com.google.common.eventbus.AllowConcurrentEvents;
 import com.google.common.eventbus.Subscribe;
+import com.sismics.docs.core.constant.Constants;
 import com.sismics.docs.core.dao.DocumentDao;
 import com.sismics.docs.core.dao.FileDao;
 import com.sismics.docs.core.event.RebuildIndexAsyncEvent;
@@ -9,14 +10,33 @@ import com.sismics.docs.core.model.context.AppContext;
 import com.sismics.docs.core.model.jpa.Document;
 import com.sismics.docs.core.model.jpa.File;
 import com.sismics.docs.core.util.TransactionUtil;
+import com.sismics.docs.core.util.indexing.IndexRebuildProgress;
+import com.sismics.docs.core.util.indexing.IndexingHandler;
+import com.sismics.util.EnvironmentUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 /**
  * Listener on rebuild index.
- * 
+ * The index is rebuilt in a side index by a pool of workers, fed with pages of documents
+ * and files read in ID order. Progress is checkpointed regularly so that an interrupted
+ * rebuild is resumed, and the side index replaces the index once complete.
+ *
  * @author bgamard
  */
 public class RebuildIndexAsyncListener {
@@ -25,9 +45,29 @@ public class RebuildIndexAsyncListener {
      */
     private static final Logger log = LoggerFactory.getLogger(RebuildIndexAsyncListener.class);
 
+    /**
+     * Number of documents or files per batch.
+     */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Number of batches between checkpoints.
+     */
+    private static final int CHECKPOINT_INTERVAL = 10;
+
+    /**
+     * Checkpoint key of the current phase.
+     */
+    private static final String CHECKPOINT_PHASE = "rebuild_phase";
+
+    /**
+     * Checkpoint key of the last ID indexed in the current phase.
+     */
+    private static final String CHECKPOINT_LAST_ID = "rebuild_last_id";
+
     /**
      * Rebuild Lucene index.
-     * 
+     *
      * @param event Index rebuild event
      */
     @Subscribe
@@ -37,35 +77,187 @@ public class RebuildIndexAsyncListener {
             log.info("Rebuild index event: " + event.toString());
         }
 
-        // Clear the index
-        AppContext.getInstance().getIndexingHandler().clearIndex();
+        IndexRebuildProgress progress = AppContext.getInstance().getIndexRebuildProgress();
+        if (!progress.start()) {
+            log.info("The index is already being rebuilt");
+            return;
+        }
 
-        // Index all documents
-        TransactionUtil.handle(() -> {
-            int offset = 0;
-            DocumentDao documentDao = new DocumentDao();
-            List<Document> documentList;
-            do {
-                documentList = documentDao.findAll(offset, 100);
-                AppContext.getInstance().getIndexingHandler().createDocuments(documentList);
-                offset += 100;
-            } while (documentList.size() > 0);
-        });
+        IndexingHandler indexingHandler = AppContext.getInstance().getIndexingHandler();
+        int threadCount = (int) Math.max(1, EnvironmentUtil.getEnvLong(Constants.REINDEX_THREADS_ENV,
+                Runtime.getRuntime().availableProcessors()));
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threadCount), new ThreadPoolExecutor.CallerRunsPolicy());
+        boolean success = false;
+        try {
+            Map<String, String> checkpoint = indexingHandler.startRebuild();
+            progress.setResumed(!checkpoint.isEmpty());
+            handle(() -> {
+                progress.setDocumentTotal(new DocumentDao().getDocumentCount());
+                progress.setFileTotal(new FileDao().getFileCount());
+                return null;
+            });
 
-        // Index all files
-        TransactionUtil.handle(() -> {
-            int offset = 0;
-            FileDao fileDao = new FileDao();
-            List<File> fileList;
-            do {
-                fileList = fileDao.findAll(offset, 100);
-                AppContext.getInstance().getIndexingHandler().createFiles(fileList);
-                offset += 100;
-            } while (fileList.size() > 0);
-        });
+            // Index all documents
+            String phase = checkpoint.getOrDefault(CHECKPOINT_PHASE, IndexRebuildProgress.PHASE_DOCUMENTS);
+            String lastId = checkpoint.get(CHECKPOINT_LAST_ID);
+            if (IndexRebuildProgress.PHASE_DOCUMENTS.equals(phase)) {
+                rebuild(executor, progress, IndexRebuildProgress.PHASE_DOCUMENTS, lastId,
+                        id -> new DocumentDao().findAllAfter(id, BATCH_SIZE), Document::getId,
+                        documentList -> {
+                            indexingHandler.rebuildDocuments(documentList);
+                            progress.addDocumentCount(documentList.size());
+                        });
+                indexingHandler.checkpointRebuild(Collections.singletonMap(CHECKPOINT_PHASE, IndexRebuildProgress.PHASE_FILES));
+                lastId = null;
+            }
+
+            // Index all files
+            rebuild(executor, progress, IndexRebuildProgress.PHASE_FILES, lastId,
+                    id -> new FileDao().findAllAfter(id, BATCH_SIZE), File::getId,
+                    fileList -> {
+                        indexingHandler.rebuildFiles(fileList);
+                        progress.addFileCount(fileList.size());
+                    });
+
+            // Swap the rebuilt index in
+            progress.setPhase(IndexRebuildProgress.PHASE_SWAP);
+            indexingHandler.finishRebuild();
+            success = true;
+        } catch (Exception e) {
+            log.error("Error rebuilding the index, it will be resumed from the last checkpoint", e);
+            indexingHandler.abortRebuild();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Wait for the rebuilt index to be durable
+        try {
+            if (success && !indexingHandler.waitForCommit(indexingHandler.getGeneration(), 60000)) {
+                log.warn("Rebuilt index not committed yet");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        progress.finish(success);
 
         if (log.isInfoEnabled()) {
             log.info("Rebuilding index done");
         }
     }
+
+    /**
+     * Index all entities of a phase, from the last checkpoint.
+     *
+     * @param executor Indexing workers
+     * @param progress Rebuild progress
+     * @param phase Phase
+     * @param lastId Last ID indexed in this phase, null to start from the beginning
+     * @param pageLoader Loads a page of entities after an ID
+     * @param idGetter Entity ID getter
+     * @param indexer Indexes a batch of entities
+     * @param <T> Entity type
+     * @throws Exception e
+     */
+    private <T> void rebuild(ExecutorService executor, IndexRebuildProgress progress, String phase, String lastId,
+                             Function<String, List<T>> pageLoader, Function<T, String> idGetter,
+                             BatchIndexer<T> indexer) throws Exception {
+        progress.setPhase(phase);
+        IndexingHandler indexingHandler = AppContext.getInstance().getIndexingHandler();
+        Deque<Batch> batchDeque = new ArrayDeque<>();
+        int batchCount = 0;
+        while (true) {
+            // Read the next page, indexed by this thread when all workers are busy
+            String pageLastId = lastId;
+            List<T> page = handle(() -> pageLoader.apply(pageLastId));
+            if (page.isEmpty()) {
+                break;
+            }
+            lastId = idGetter.apply(page.get(page.size() - 1));
+            batchDeque.add(new Batch(executor.submit(() -> handle(() -> {
+                indexer.index(page);
+                return null;
+            })), lastId));
+
+            // Checkpoint after the batches completed in order
+            String checkpointId = null;
+            while (!batchDeque.isEmpty() && batchDeque.peek().future.isDone()) {
+                Batch batch = batchDeque.poll();
+                batch.future.get();
+                checkpointId = batch.lastId;
+                batchCount++;
+            }
+            if (checkpointId != null && batchCount >= CHECKPOINT_INTERVAL) {
+                Map<String, String> checkpoint = new HashMap<>();
+                checkpoint.put(CHECKPOINT_PHASE, phase);
+                checkpoint.put(CHECKPOINT_LAST_ID, checkpointId);
+                indexingHandler.checkpointRebuild(checkpoint);
+                batchCount = 0;
+            }
+        }
+
+        // Wait for the remaining batches
+        for (Batch batch : batchDeque) {
+            batch.future.get();
+        }
+    }
+
+    /**
+     * Run a task in a transaction, and rethrow its error.
+     *
+     * @param callable Task
+     * @param <T> Result type
+     * @return Result
+     * @throws Exception e
+     */
+    private <T> T handle(Callable<T> callable) throws Exception {
+        AtomicReference<T> result = new AtomicReference<>();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        TransactionUtil.handle(() -> {
+            try {
+                result.set(callable.call());
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return result.get();
+    }
+
+    /**
+     * Batch submitted to the workers.
+     */
+    private static class Batch {
+        /**
+         * Indexing result.
+         */
+        private final Future<?> future;
+
+        /**
+         * Last ID of the batch.
+         */
+        private final String lastId;
+
+        private Batch(Future<?> future, String lastId) {
+            this.future = future;
+            this.lastId = lastId;
+        }
+    }
+
+    /**
+     * Indexes a batch of entities.
+     *
+     * @param <T> Entity type
+     */
+    private interface BatchIndexer<T> {
+        /**
+         * Index a batch.
+         *
+         * @param batch Entities
+         * @throws Exception e
+         */
+        void index(List<T> batch) throws Exception;
+    }
 }
@@ -5,14 +5,27 @@ import com.google.common.collect.Lists;
 import com.google.common.eventbus.AsyncEventBus;
 import com.google.common.eventbus.EventBus;
 import com.sismics.docs.core.constant.Constants;
+import com.sismics.docs.core.dao.GroupDao;
 import com.sismics.docs.core.dao.UserDao;
 import com.sismics.docs.core.listener.async.*;
 import com.sismics.docs.core.model.jpa.User;
+import com.sismics.docs.core.service.FileProcessingService;
 import com.sismics.docs.core.service.FileService;
 import com.sismics.docs.core.service.FileSizeService;
 import com.sismics.docs.core.service.InboxService;
+import com.sismics.docs.core.util.DirectoryUtil;
+import com.sismics.docs.core.util.FileProcessingCache;
 import com.sismics.docs.core.util.PdfUtil;
+import com.sismics.docs.core.util.TransactionUtil;
+import com.sismics.docs.core.util.indexing.IndexRebuildProgress;
 import com.sismics.docs.core.util.indexing.IndexingHandler;
+import com.sismics.docs.core.util.ocr.BatchOcrEngine;
+import com.sismics.docs.core.util.ocr.OcrEngine;
+import com.sismics.docs.core.util.ocr.ProcessOcrEngine;
+import com.sismics.docs.core.util.storage.FileStorage;
+import com.sismics.docs.core.util.storage.LocalStorageBackend;
+import com.sismics.docs.core.util.storage.S3StorageBackend;
+import com.sismics.docs.core.util.storage.StorageBackend;
 import com.sismics.util.ClasspathScanner;
 import com.sismics.util.EnvironmentUtil;
 import org.slf4j.Logger;
@@ -56,6 +69,11 @@ public class AppContext {
      */
     private IndexingHandler indexingHandler;
 
+    /**
+     * Progress of the index rebuild.
+     */
+    private final IndexRebuildProgress indexRebuildProgress = new IndexRebuildProgress();
+
     /**
      * Inbox scanning service.
      */
@@ -71,6 +89,26 @@ public class AppContext {
      */
     private FileSizeService fileSizeService;
 
+    /**
+     * File processing service.
+     */
+    private FileProcessingService fileProcessingService;
+
+    /**
+     * OCR engine.
+     */
+    private OcrEngine ocrEngine;
+
+    /**
+     * File processing cache.
+     */
+    private FileProcessingCache fileProcessingCache;
+
+    /**
+     * File storage.
+     */
+    private FileStorage fileStorage;
+
     /**
      * Asynchronous executors.
      */
@@ -98,24 +136,47 @@ public class AppContext {
             log.error("Error starting the indexing handler", e);
         }
 
+        // Start file storage
+        fileStorage = new FileStorage(newStorageBackend(),
+                Boolean.parseBoolean(System.getenv(Constants.STORAGE_DEDUPLICATION_ENV)));
+
         // Start file service
         fileService = new FileService();
         fileService.startAsync();
         fileService.awaitRunning();
 
+        // Start file processing service
+        fileProcessingCache = new FileProcessingCache(DirectoryUtil.getProcessingCacheDirectory(),
+                EnvironmentUtil.getEnvLong(Constants.PROCESSING_CACHE_SIZE_ENV, 1024L * 1024L * 1024L));
+        fileProcessingService = newFileProcessingService();
+        fileProcessingService.startAsync();
+        fileProcessingService.awaitRunning();
+
+        // Start OCR engine
+        ocrEngine = newOcrEngine();
+
         // Start inbox service
         inboxService = new InboxService();
         inboxService.startAsync();
         inboxService.awaitRunning();
 
         // Start file size service
-        fileSizeService = new FileSizeService();
+        fileSizeService = new FileSizeService((int) Math.max(1, EnvironmentUtil.getEnvLong(Constants.FILE_SIZE_THREADS_ENV, 2)));
         fileSizeService.startAsync();
         fileSizeService.awaitRunning();
 
         // Register fonts
         PdfUtil.registerFonts();
 
+        // Link the existing groups to their ancestors, the context may be started outside a transaction
+        TransactionUtil.handle(() -> {
+            GroupDao groupDao = new GroupDao();
+            if (groupDao.isAncestorsMissing()) {
+                log.info("Building the ancestors of the groups");
+                groupDao.rebuildAncestors();
+            }
+        });
+
         // Change the admin password if needed
         String envAdminPassword = System.getenv(Constants.ADMIN_PASSWORD_INIT_ENV);
         if (!Strings.isNullOrEmpty(envAdminPassword)) {
@@ -152,6 +213,7 @@ public class AppContext {
         asyncEventBus.register(new DocumentUpdatedAsyncListener());
         asyncEventBus.register(new DocumentDeletedAsyncListener());
         asyncEventBus.register(new RebuildIndexAsyncListener());
+        asyncEventBus.register(new DeduplicateStorageAsyncListener());
         asyncEventBus.register(new AclCreatedAsyncListener());
         asyncEventBus.register(new AclDeletedAsyncListener());
         asyncEventBus.register(new WebhookAsyncListener());
@@ -192,6 +254,65 @@ public class AppContext {
         }
     }
 
+    /**
+     * Creates a new file processing service.
+     *
+     * @return File processing service
+     */
+    private FileProcessingService newFileProcessingService() {
+        if (EnvironmentUtil.isUnitTest()) {
+            return new FileProcessingService(0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        } else {
+            int threadCount = (int) EnvironmentUtil.getEnvLong(Constants.FILE_PROCESSING_THREADS_ENV,
+                    Math.max(Runtime.getRuntime().availableProcessors() / 2, 2));
+            int interactiveCapacity = (int) EnvironmentUtil.getEnvLong(Constants.FILE_PROCESSING_INTERACTIVE_QUEUE_ENV, 1000);
+            int bulkCapacity = (int) EnvironmentUtil.getEnvLong(Constants.FILE_PROCESSING_BULK_QUEUE_ENV, 100);
+            return new FileProcessingService(threadCount, interactiveCapacity, bulkCapacity);
+        }
+    }
+
+    /**
+     * Creates a new OCR engine.
+     *
+     * @return OCR engine
+     */
+    private OcrEngine newOcrEngine() {
+        if ("process".equals(System.getenv(Constants.OCR_ENGINE_ENV))) {
+            int concurrency = (int) Math.max(1, EnvironmentUtil.getEnvLong(Constants.OCR_CONCURRENCY_ENV,
+                    Runtime.getRuntime().availableProcessors()));
+            return new ProcessOcrEngine(concurrency);
+        }
+
+        // Fewer workers than pages OCR-ized at the same time, so that the waiting pages are batched
+        int pageThreadCount = (int) Math.max(1, EnvironmentUtil.getEnvLong(Constants.OCR_PAGE_THREADS_ENV,
+                Math.max(Runtime.getRuntime().availableProcessors() / 2, 1)));
+        int concurrency = (int) Math.max(1, EnvironmentUtil.getEnvLong(Constants.OCR_CONCURRENCY_ENV,
+                Math.max(pageThreadCount / 2, 1)));
+        int batchSize = (int) Math.max(1, EnvironmentUtil.getEnvLong(Constants.OCR_BATCH_SIZE_ENV, 8));
+        return new BatchOcrEngine(concurrency, batchSize);
+    }
+
+    /**
+     * Creates a new storage backend.
+     *
+     * @return Storage backend
+     */
+    private StorageBackend newStorageBackend() {
+        String endpoint = System.getenv(Constants.STORAGE_S3_ENDPOINT_ENV);
+        if (Strings.isNullOrEmpty(endpoint)) {
+            return new LocalStorageBackend(DirectoryUtil.getStorageDirectory());
+        }
+        String region = System.getenv(Constants.STORAGE_S3_REGION_ENV);
+        long partSize = Math.max(5L * 1024L * 1024L, EnvironmentUtil.getEnvLong(Constants.STORAGE_S3_PART_SIZE_ENV, 16L * 1024L * 1024L));
+        int partThreads = (int) Math.max(1, EnvironmentUtil.getEnvLong(Constants.STORAGE_S3_PART_THREADS_ENV, 4));
+        return new S3StorageBackend(endpoint,
+                System.getenv(Constants.STORAGE_S3_BUCKET_ENV),
+                Strings.isNullOrEmpty(region) ? "us-east-1" : region,
+                System.getenv(Constants.STORAGE_S3_ACCESS_KEY_ENV),
+                System.getenv(Constants.STORAGE_S3_SECRET_KEY_ENV),
+                partSize, partThreads);
+    }
+
     /**
      * Return the current number of queued tasks waiting to be processed.
      *
@@ -202,6 +323,9 @@ public class AppContext {
         for (ThreadPoolExecutor executor : asyncExecutorList) {
             queueSize += executor.getTaskCount() - executor.getCompletedTaskCount();
         }
+        if (fileProcessingService != null) {
+            queueSize += fileProcessingService.getQueuedTaskCount();
+        }
         return queueSize;
     }
 
@@ -217,6 +341,10 @@ public class AppContext {
         return indexingHandler;
     }
 
+    public IndexRebuildProgress getIndexRebuildProgress() {
+        return indexRebuildProgress;
+    }
+
     public InboxService getInboxService() {
         return inboxService;
     }
@@ -225,6 +353,26 @@ public class AppContext {
         return fileService;
     }
 
+    public FileSizeService getFileSizeService() {
+        return fileSizeService;
+    }
+
+    public FileProcessingService getFileProcessingService() {
+        return fileProcessingService;
+    }
+
+    public OcrEngine getOcrEngine() {
+        return ocrEngine;
+    }
+
+    public FileProcessingCache getFileProcessingCache() {
+        return fileProcessingCache;
+    }
+
+    public FileStorage getFileStorage() {
+        return fileStorage;
+    }
+
     public void shutDown() {
         for (ExecutorService executor : asyncExecutorList) {
             // Shutdown executor, don't accept any more tasks (can cause error with nested events)
@@ -236,6 +384,15 @@ public class AppContext {
             }
         }
 
+        if (fileProcessingService != null) {
+            fileProcessingService.stopAsync();
+            fileProcessingService.awaitTerminated();
+        }
+
+        if (ocrEngine != null) {
+            ocrEngine.shutDown();
+        }
+
         if (indexingHandler != null) {
             indexingHandler.shutDown();
         }
@@ -96,6 +96,26 @@ public class File implements Loggable {
     @Column(name = "FIL_SIZE_N", nullable = false)
     private Long size;
 
+    /**
+     * SHA-256 of the unencrypted content.
+     * Null if the file was stored before the content hashes, until it is backfilled.
+     */
+    @Column(name = "FIL_CONTENTHASH_C", length = 64)
+    private String contentHash;
+
+    /**
+     * ID of the deduplicated blob holding the file content.
+     * Null if the file content is stored under the file ID.
+     */
+    @Column(name = "FIL_IDBLOB_C", length = 64)
+    private String blobId;
+
+    /**
+     * Key of the blob, encrypted with the private key of the file creator.
+     */
+    @Column(name = "FIL_BLOBKEY_C", length = 200)
+    private String blobKey;
+
     /**
      * Private key to decrypt the file.
      * Not saved to database, of course.
@@ -224,6 +244,33 @@ public class File implements Loggable {
         return this;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public File setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+        return this;
+    }
+
+    public String getBlobId() {
+        return blobId;
+    }
+
+    public File setBlobId(String blobId) {
+        this.blobId = blobId;
+        return this;
+    }
+
+    public String getBlobKey() {
+        return blobKey;
+    }
+
+    public File setBlobKey(String blobKey) {
+        this.blobKey = blobKey;
+        return this;
+    }
+
     @Override
     public String toString() {
         return MoreObjects.toStringHelper(this)
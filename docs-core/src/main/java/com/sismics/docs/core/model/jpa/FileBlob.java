@@ -0,0 +1,102 @@
+package com.sismics.docs.core.model.jpa;
+
+import com.google.common.base.MoreObjects;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+import java.util.Date;
+
+/**
+ * Deduplicated file content, shared by the files having the same content.
+ * 
+ * @author bgamard
+ */
+@Entity
+@Table(name = "T_FILE_BLOB")
+public class FileBlob {
+    /**
+     * Blob ID, derived from the content hash.
+     */
+    @Id
+    @Column(name = "FBL_ID_C", length = 64)
+    private String id;
+
+    /**
+     * Blob key, encrypted with the content hash.
+     */
+    @Column(name = "FBL_KEY_C", length = 200, nullable = false)
+    private String key;
+
+    /**
+     * Number of files referencing the blob.
+     */
+    @Column(name = "FBL_REFCOUNT_N", nullable = false)
+    private Long referenceCount;
+
+    /**
+     * Stored size.
+     */
+    @Column(name = "FBL_SIZE_N", nullable = false)
+    private Long size;
+
+    /**
+     * Creation date.
+     */
+    @Column(name = "FBL_CREATEDATE_D", nullable = false)
+    private Date createDate;
+
+    public String getId() {
+        return id;
+    }
+
+    public FileBlob setId(String id) {
+        this.id = id;
+        return this;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public FileBlob setKey(String key) {
+        this.key = key;
+        return this;
+    }
+
+    public Long getReferenceCount() {
+        return referenceCount;
+    }
+
+    public FileBlob setReferenceCount(Long referenceCount) {
+        this.referenceCount = referenceCount;
+        return this;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public FileBlob setSize(Long size) {
+        this.size = size;
+        return this;
+    }
+
+    public Date getCreateDate() {
+        return createDate;
+    }
+
+    public FileBlob setCreateDate(Date createDate) {
+        this.createDate = createDate;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("id", id)
+                .add("referenceCount", referenceCount)
+                .toString();
+    }
+}
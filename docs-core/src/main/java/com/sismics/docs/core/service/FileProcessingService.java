@@ -0,0 +1,334 @@
+package com.sismics.docs.core.service;
+
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.sismics.docs.core.constant.FileProcessingLane;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File processing service.
+ * Runs the thumbnails generation and the content extraction on its own workers,
+ * apart from the generic asynchronous events.
+ * Each lane has a bounded queue, shared fairly between users, and the interactive lane
+ * is served before the bulk lane without starving it.
+ *
+ * @author bgamard
+ */
+public class FileProcessingService extends AbstractIdleService {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(FileProcessingService.class);
+
+    /**
+     * Number of interactive tasks served for one bulk task when both lanes are waiting.
+     */
+    private static final int INTERACTIVE_WEIGHT = 4;
+
+    /**
+     * Number of workers, 0 to run the tasks in the submitting thread.
+     */
+    private final int threadCount;
+
+    /**
+     * Lanes.
+     */
+    private final Map<FileProcessingLane, Lane> laneMap = new EnumMap<>(FileProcessingLane.class);
+
+    /**
+     * Workers.
+     */
+    private final List<Thread> workerList = new ArrayList<>();
+
+    /**
+     * Number of tasks taken by the workers.
+     */
+    private long pollCount;
+
+    /**
+     * True if the service is shutting down.
+     */
+    private boolean stopping;
+
+    /**
+     * Create a file processing service.
+     *
+     * @param threadCount Number of workers, 0 to run the tasks in the submitting thread
+     * @param interactiveCapacity Maximum number of queued interactive tasks
+     * @param bulkCapacity Maximum number of queued bulk tasks
+     */
+    public FileProcessingService(int threadCount, int interactiveCapacity, int bulkCapacity) {
+        this.threadCount = threadCount;
+        laneMap.put(FileProcessingLane.INTERACTIVE, new Lane(interactiveCapacity));
+        laneMap.put(FileProcessingLane.BULK, new Lane(bulkCapacity));
+    }
+
+    @Override
+    protected void startUp() {
+        log.info("File processing service starting up with " + threadCount + " workers");
+        for (int i = 0; i < threadCount; i++) {
+            Thread worker = new Thread(this::work, "file-processing-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workerList.add(worker);
+        }
+    }
+
+    @Override
+    protected void shutDown() throws InterruptedException {
+        log.info("File processing service shutting down");
+        synchronized (this) {
+            stopping = true;
+            notifyAll();
+        }
+
+        // Let the workers finish the queued tasks
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        for (Thread worker : workerList) {
+            worker.join(Math.max(deadline - System.currentTimeMillis(), 1));
+        }
+    }
+
+    /**
+     * Check that a new file can be admitted in a lane.
+     * A refused file is counted as rejected.
+     *
+     * @param lane Lane
+     * @return True if the lane has room for a new file
+     */
+    public synchronized boolean admit(FileProcessingLane lane) {
+        Lane l = laneMap.get(lane);
+        if (l.size < l.capacity) {
+            return true;
+        }
+        l.rejected++;
+        return false;
+    }
+
+    /**
+     * Wait until a lane has room for a new file.
+     *
+     * @param lane Lane
+     * @throws InterruptedException e
+     */
+    public synchronized void awaitCapacity(FileProcessingLane lane) throws InterruptedException {
+        Lane l = laneMap.get(lane);
+        while (l.size >= l.capacity && !stopping) {
+            wait();
+        }
+    }
+
+    /**
+     * Queue a task.
+     * The capacity is enforced when admitting the files, so a task is always accepted:
+     * its file is already stored and would never be processed otherwise.
+     *
+     * @param lane Lane
+     * @param userId ID of the user owning the file
+     * @param task Task
+     */
+    public void submit(FileProcessingLane lane, String userId, Runnable task) {
+        Task t = new Task(lane, task);
+        if (threadCount == 0) {
+            synchronized (this) {
+                laneMap.get(lane).running++;
+            }
+            run(t);
+            return;
+        }
+
+        synchronized (this) {
+            Lane l = laneMap.get(lane);
+            l.userQueueMap.computeIfAbsent(userId, k -> new ArrayDeque<>()).add(t);
+            l.size++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting for a worker.
+     *
+     * @return Number of queued tasks
+     */
+    public synchronized int getQueuedTaskCount() {
+        int count = 0;
+        for (Lane l : laneMap.values()) {
+            count += l.size;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the file processing metrics by lane.
+     * The wait times are in milliseconds.
+     *
+     * @return Metrics by name
+     */
+    public synchronized Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<FileProcessingLane, Lane> entry : laneMap.entrySet()) {
+            String prefix = entry.getKey().name().toLowerCase(Locale.ENGLISH) + "_";
+            Lane l = entry.getValue();
+            long oldestWaitTime = 0;
+            for (ArrayDeque<Task> userQueue : l.userQueueMap.values()) {
+                oldestWaitTime = Math.max(oldestWaitTime, now - userQueue.peek().queueTime);
+            }
+            metrics.put(prefix + "queued", (long) l.size);
+            metrics.put(prefix + "capacity", (long) l.capacity);
+            metrics.put(prefix + "running", (long) l.running);
+            metrics.put(prefix + "completed", l.completed);
+            metrics.put(prefix + "rejected", l.rejected);
+            metrics.put(prefix + "wait_time_avg", l.completed + l.running == 0 ? 0 : l.totalWaitTime / (l.completed + l.running));
+            metrics.put(prefix + "wait_time_max", l.maxWaitTime);
+            metrics.put(prefix + "wait_time_oldest", oldestWaitTime);
+            metrics.put(prefix + "processing_time_avg", l.completed == 0 ? 0 : l.totalProcessingTime / l.completed);
+        }
+        return metrics;
+    }
+
+    /**
+     * Worker loop.
+     */
+    private void work() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                while ((task = poll()) == null) {
+                    if (stopping) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                notifyAll();
+            }
+            run(task);
+        }
+    }
+
+    /**
+     * Take the next task, the interactive lane first except one time out of
+     * {@link #INTERACTIVE_WEIGHT} + 1, and the users of a lane in turn.
+     *
+     * @return Task or null if all lanes are empty
+     */
+    private Task poll() {
+        pollCount++;
+        boolean bulkFirst = pollCount % (INTERACTIVE_WEIGHT + 1) == 0;
+        Lane first = laneMap.get(bulkFirst ? FileProcessingLane.BULK : FileProcessingLane.INTERACTIVE);
+        Lane second = laneMap.get(bulkFirst ? FileProcessingLane.INTERACTIVE : FileProcessingLane.BULK);
+        Task task = first.poll();
+        if (task == null) {
+            task = second.poll();
+        }
+        if (task == null) {
+            pollCount--;
+        }
+        return task;
+    }
+
+    /**
+     * Run a task and record its metrics.
+     *
+     * @param task Task
+     */
+    private void run(Task task) {
+        long startTime = System.currentTimeMillis();
+        synchronized (this) {
+            Lane l = laneMap.get(task.lane);
+            long waitTime = startTime - task.queueTime;
+            l.totalWaitTime += waitTime;
+            l.maxWaitTime = Math.max(l.maxWaitTime, waitTime);
+        }
+
+        try {
+            task.runnable.run();
+        } catch (Throwable e) {
+            log.error("Error processing a file", e);
+        } finally {
+            synchronized (this) {
+                Lane l = laneMap.get(task.lane);
+                l.running--;
+                l.completed++;
+                l.totalProcessingTime += System.currentTimeMillis() - startTime;
+            }
+        }
+    }
+
+    /**
+     * Processing lane.
+     */
+    private static class Lane {
+        /**
+         * Maximum number of queued tasks.
+         */
+        private final int capacity;
+
+        /**
+         * Queued tasks by user, in the order the users are served.
+         */
+        private final LinkedHashMap<String, ArrayDeque<Task>> userQueueMap = new LinkedHashMap<>();
+
+        private int size;
+        private int running;
+        private long completed;
+        private long rejected;
+        private long totalWaitTime;
+        private long maxWaitTime;
+        private long totalProcessingTime;
+
+        private Lane(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Take the next task of the first user in turn, who goes to the end of the turn.
+         *
+         * @return Task or null if the lane is empty
+         */
+        private Task poll() {
+            Iterator<Map.Entry<String, ArrayDeque<Task>>> iterator = userQueueMap.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                return null;
+            }
+            Map.Entry<String, ArrayDeque<Task>> entry = iterator.next();
+            iterator.remove();
+            Task task = entry.getValue().poll();
+            if (!entry.getValue().isEmpty()) {
+                userQueueMap.put(entry.getKey(), entry.getValue());
+            }
+            size--;
+            running++;
+            return task;
+        }
+    }
+
+    /**
+     * Queued task.
+     */
+    private static class Task {
+        private final FileProcessingLane lane;
+        private final Runnable runnable;
+        private final long queueTime = System.currentTimeMillis();
+
+        private Task(FileProcessingLane lane, Runnable runnable) {
+            this.lane = lane;
+            this.runnable = runnable;
+        }
+    }
+}
@@ -1,28 +1,64 @@
 package com.sismics.docs.core.service;
 
-import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sismics.docs.core.dao.FileDao;
 import com.sismics.docs.core.dao.UserDao;
+import com.sismics.docs.core.model.context.AppContext;
 import com.sismics.docs.core.model.jpa.File;
 import com.sismics.docs.core.model.jpa.User;
-import com.sismics.docs.core.util.FileUtil;
 import com.sismics.docs.core.util.TransactionUtil;
+import com.sismics.docs.core.util.storage.FileStorage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Service that retrieve files sizes when they are not in the database.
+ * Service filling once the size and the content hash of the files stored without them.
+ * The size is read from the storage, the files being encrypted without padding,
+ * while the content hash needs the file decrypted.
+ * Batches of files read in ID order are processed by several workers, each batch in its own transaction.
  */
-public class FileSizeService extends AbstractScheduledService {
+public class FileSizeService extends AbstractExecutionThreadService {
     /**
      * Logger.
      */
     private static final Logger log = LoggerFactory.getLogger(FileSizeService.class);
 
-    public FileSizeService() {
+    /**
+     * Number of files per batch.
+     */
+    private static final int BATCH_SIZE = 30;
+
+    /**
+     * Number of workers.
+     */
+    private final int threadCount;
+
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * Create a file size service.
+     *
+     * @param threadCount Number of workers
+     */
+    public FileSizeService(int threadCount) {
+        this.threadCount = threadCount;
     }
 
     @Override
@@ -35,44 +71,114 @@ public class FileSizeService extends AbstractScheduledService {
         log.info("File size service shutting down");
     }
 
-    private static final int BATCH_SIZE = 30;
-    
     @Override
-    protected void runOneIteration() {
+    protected void run() throws Exception {
+        TransactionUtil.handle(() -> totalCount.set(new FileDao().getToBackfillCount()));
+        if (totalCount.get() == 0) {
+            log.info("No file to process, stopping the service");
+            return;
+        }
+        log.info("Filling the size and content hash of {} files", totalCount.get());
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount,
+                new ThreadFactoryBuilder().setNameFormat("file-size-%d").setDaemon(true).build());
+        Semaphore pendingBatches = new Semaphore(threadCount * 2);
         try {
-            TransactionUtil.handle(() -> {
-                FileDao fileDao = new FileDao();
-                List<File> files = fileDao.getFilesWithUnknownSize(BATCH_SIZE);
-                for(File file : files) {
-                    processFile(file);
+            String lastId = null;
+            while (isRunning()) {
+                List<String> fileIdList = new ArrayList<>();
+                final String batchLastId = lastId;
+                TransactionUtil.handle(() -> fileIdList.addAll(new FileDao().findIdsToBackfillAfter(batchLastId, BATCH_SIZE)));
+                if (fileIdList.isEmpty()) {
+                    break;
                 }
-                if(files.size() < BATCH_SIZE) {
-                    log.info("No more file to process, stopping the service");
-                    stopAsync();
-                }
-            });
-        } catch (Throwable e) {
-            log.error("Exception during file service iteration", e);
+                lastId = fileIdList.get(fileIdList.size() - 1);
+
+                pendingBatches.acquire();
+                executor.execute(() -> {
+                    try {
+                        processBatch(fileIdList);
+                    } finally {
+                        pendingBatches.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.DAYS);
         }
+        log.info("No more file to process, stopping the service: {} files processed, {} failed",
+                processedCount.get(), failedCount.get());
     }
 
-    void processFile(File file) {
+    /**
+     * Process a batch of files in a transaction.
+     *
+     * @param fileIdList File IDs
+     */
+    private void processBatch(List<String> fileIdList) {
+        TransactionUtil.handle(() -> {
+            FileDao fileDao = new FileDao();
+            for (String fileId : fileIdList) {
+                File file = fileDao.getById(fileId);
+                if (file != null && processFile(file)) {
+                    processedCount.incrementAndGet();
+                } else {
+                    failedCount.incrementAndGet();
+                }
+            }
+        });
+        log.info("File size progress: {}/{} files", processedCount.get() + failedCount.get(), totalCount.get());
+    }
+
+    /**
+     * Fill the size and the content hash of a file.
+     * The file is saved with the transaction.
+     *
+     * @param file File
+     * @return True if the file is processed
+     */
+    boolean processFile(File file) {
         UserDao userDao = new UserDao();
         User user = userDao.getById(file.getUserId());
-        if(user == null) {
-            return;
+        if (user == null) {
+            return false;
         }
 
-        long fileSize = FileUtil.getFileSize(file.getId(), user);
-        if(fileSize != File.UNKNOWN_SIZE){
-            FileDao fileDao = new FileDao();
-            file.setSize(fileSize);
-            fileDao.update(file);
+        FileStorage fileStorage = AppContext.getInstance().getFileStorage();
+        try {
+            if (!fileStorage.exists(file, null)) {
+                log.debug("File does not exist " + file.getId());
+                return false;
+            }
+            if (file.getSize().equals(File.UNKNOWN_SIZE)) {
+                file.setSize(fileStorage.getSize(file, null));
+            }
+            if (file.getContentHash() == null) {
+                try (HashingInputStream inputStream = new HashingInputStream(Hashing.sha256(),
+                        fileStorage.open(file, user.getPrivateKey()))) {
+                    ByteStreams.exhaust(inputStream);
+                    file.setContentHash(inputStream.hash().toString());
+                }
+            }
+            new FileDao().updateStorage(file);
+            return true;
+        } catch (Exception e) {
+            log.error("Unable to fill the size and content hash of " + file.getId(), e);
+            return false;
         }
     }
 
-    @Override
-    protected Scheduler scheduler() {
-        return Scheduler.newFixedDelaySchedule(0, 1, TimeUnit.MINUTES);
+    /**
+     * Returns the progress metrics.
+     *
+     * @return Metrics by name
+     */
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new HashMap<>();
+        metrics.put("size_backfill_total", totalCount.get());
+        metrics.put("size_backfill_processed", processedCount.get());
+        metrics.put("size_backfill_failed", failedCount.get());
+        return metrics;
     }
 }
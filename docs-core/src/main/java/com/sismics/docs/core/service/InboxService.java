@@ -2,10 +2,12 @@ package com.sismics.docs.core.service;
 
 import com.google.common.util.concurrent.AbstractScheduledService;
 import com.sismics.docs.core.constant.ConfigType;
+import com.sismics.docs.core.constant.FileProcessingLane;
 import com.sismics.docs.core.dao.TagDao;
 import com.sismics.docs.core.dao.criteria.TagCriteria;
 import com.sismics.docs.core.dao.dto.TagDto;
 import com.sismics.docs.core.event.DocumentCreatedAsyncEvent;
+import com.sismics.docs.core.model.context.AppContext;
 import com.sismics.docs.core.model.jpa.Document;
 import com.sismics.docs.core.model.jpa.Tag;
 import com.sismics.docs.core.util.ConfigUtil;
@@ -70,6 +72,14 @@ public class InboxService extends AbstractScheduledService {
      * Synchronize the inbox.
      */
     public void syncInbox() {
+        // Wait for room in the bulk lane before holding a transaction
+        try {
+            AppContext.getInstance().getFileProcessingService().awaitCapacity(FileProcessingLane.BULK);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
         TransactionUtil.handle(() -> {
             Boolean enabled = ConfigUtil.getConfigBooleanValue(ConfigType.INBOX_ENABLED);
             if (!enabled) {
@@ -260,7 +270,7 @@ public class InboxService extends AbstractScheduledService {
         // Add files to the document
         for (EmailUtil.FileContent fileContent : mailContent.getFileContentList()) {
             FileUtil.createFile(fileContent.getName(), null, fileContent.getFile(), fileContent.getSize(),
-                    document.getLanguage(), "admin", document.getId());
+                    document.getLanguage(), "admin", document.getId(), FileProcessingLane.BULK);
         }
 
         if (ConfigUtil.getConfigBooleanValue(ConfigType.INBOX_DELETE_IMPORTED)) {
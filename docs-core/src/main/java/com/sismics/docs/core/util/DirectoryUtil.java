@@ -68,6 +68,15 @@ public class DirectoryUtil {
         return getDataSubDirectory("lucene");
     }
     
+    /**
+     * Returns the directory of the lucene index being rebuilt.
+     * 
+     * @return Lucene rebuild directory.
+     */
+    public static Path getLuceneRebuildDirectory() {
+        return getDataSubDirectory("lucene_rebuild");
+    }
+
     /**
      * Returns the storage directory.
      * 
@@ -77,6 +86,15 @@ public class DirectoryUtil {
         return getDataSubDirectory("storage");
     }
     
+    /**
+     * Returns the directory of the file processing cache.
+     * 
+     * @return File processing cache directory.
+     */
+    public static Path getProcessingCacheDirectory() {
+        return getDataSubDirectory("processing_cache");
+    }
+
     /**
      * Returns the log directory.
      * 
@@ -1,6 +1,12 @@
 package com.sismics.docs.core.util;
 
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
 import com.sismics.docs.core.model.context.AppContext;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
@@ -8,15 +14,21 @@ import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.DestroyFailedException;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.Security;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Encryption utilities.
@@ -28,6 +40,20 @@ public class EncryptionUtil {
      * Salt.
      */
     private static final String SALT = "LEpxZmm2SMu2PeKzPNrar2rhVAS6LrrgvXKeL9uyXC4vgKHg";
+
+    /**
+     * AES block size, each block being encrypted with the next counter.
+     */
+    private static final int BLOCK_SIZE = 16;
+
+    /**
+     * Keys derived from the users private keys, zeroed when evicted.
+     */
+    private static final Cache<String, DerivedKey> keyCache = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .removalListener((RemovalListener<String, DerivedKey>) notification -> notification.getValue().destroy())
+            .build();
     
     static {
         // Initialize Bouncy Castle provider
@@ -58,7 +84,79 @@ public class EncryptionUtil {
      * @throws Exception  e
      */
     public static InputStream decryptInputStream(InputStream is, String privateKey) throws Exception {
-        return new CipherInputStream(is, getCipher(privateKey, Cipher.DECRYPT_MODE));
+        return new CipherInputStream(is, getCipher(privateKey, Cipher.DECRYPT_MODE, true));
+    }
+
+    /**
+     * Decrypt a stream from an offset using the specified private key.
+     * The files are encrypted in CTR mode, so the decryption starts at the counter of the block containing the offset,
+     * without decrypting the preceding blocks.
+     *
+     * @param is Encrypted stream, starting at the block containing the offset (see {@link #getBlockStart(long)})
+     * @param privateKey Private key
+     * @param offset Offset in the file
+     * @return Decrypted stream starting at the offset
+     * @throws Exception e
+     */
+    public static InputStream decryptInputStream(InputStream is, String privateKey, long offset) throws Exception {
+        long blockIndex = offset / BLOCK_SIZE;
+        Cipher cipher = getCipher(privateKey, Cipher.DECRYPT_MODE, true);
+        if (blockIndex > 0) {
+            IvParameterSpec counter = new IvParameterSpec(addCounter(cipher.getIV(), blockIndex));
+            cipher = getCipher(privateKey, Cipher.DECRYPT_MODE, true, counter);
+        }
+
+        InputStream cipherInputStream = new CipherInputStream(is, cipher);
+        try {
+            ByteStreams.skipFully(cipherInputStream, offset - getBlockStart(offset));
+        } catch (Exception e) {
+            cipherInputStream.close();
+            throw e;
+        }
+        return cipherInputStream;
+    }
+
+    /**
+     * Returns the start of the encrypted block containing an offset.
+     *
+     * @param offset Offset in the file
+     * @return Offset of the block
+     */
+    public static long getBlockStart(long offset) {
+        return offset - offset % BLOCK_SIZE;
+    }
+
+    /**
+     * Encrypt a key with another key, to store it.
+     * The counter starts at a random value, so a key wraps the same key differently each time.
+     *
+     * @param key Key to wrap
+     * @param wrappingKey Wrapping key
+     * @param cached True to cache the key derived from the wrapping key, false for a single use wrapping key
+     * @return Wrapped key
+     * @throws Exception e
+     */
+    public static String wrapKey(String key, String wrappingKey, boolean cached) throws Exception {
+        byte[] counter = new byte[BLOCK_SIZE];
+        new SecureRandom().nextBytes(counter);
+        Cipher cipher = getCipher(wrappingKey, Cipher.ENCRYPT_MODE, cached, new IvParameterSpec(counter));
+        return BaseEncoding.base64().encode(Bytes.concat(counter, cipher.doFinal(key.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * Decrypt a key wrapped by {@link #wrapKey(String, String, boolean)}.
+     *
+     * @param wrappedKey Wrapped key
+     * @param wrappingKey Wrapping key
+     * @param cached True to cache the key derived from the wrapping key, false for a single use wrapping key
+     * @return Key
+     * @throws Exception e
+     */
+    public static String unwrapKey(String wrappedKey, String wrappingKey, boolean cached) throws Exception {
+        byte[] data = BaseEncoding.base64().decode(wrappedKey);
+        IvParameterSpec counter = new IvParameterSpec(data, 0, BLOCK_SIZE);
+        Cipher cipher = getCipher(wrappingKey, Cipher.DECRYPT_MODE, cached, counter);
+        return new String(cipher.doFinal(data, BLOCK_SIZE, data.length - BLOCK_SIZE), StandardCharsets.UTF_8);
     }
 
     /**
@@ -77,7 +175,7 @@ public class EncryptionUtil {
 
         Path tmpFile = AppContext.getInstance().getFileService().createTemporaryFile();
         try (InputStream is = Files.newInputStream(file)) {
-            Files.copy(new CipherInputStream(is, getCipher(privateKey, Cipher.DECRYPT_MODE)), tmpFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.copy(new CipherInputStream(is, getCipher(privateKey, Cipher.DECRYPT_MODE, true)), tmpFile, StandardCopyOption.REPLACE_EXISTING);
         }
         return tmpFile;
     }
@@ -93,23 +191,173 @@ public class EncryptionUtil {
         if (Strings.isNullOrEmpty(privateKey)) {
             throw new IllegalArgumentException("The private key is null or empty");
         }
-        return getCipher(privateKey, Cipher.ENCRYPT_MODE);
+        return getCipher(privateKey, Cipher.ENCRYPT_MODE, true);
+    }
+
+    /**
+     * Forget the key derived from a private key, for a deleted user.
+     *
+     * @param privateKey Private key
+     */
+    public static void invalidateKey(String privateKey) {
+        if (privateKey != null) {
+            keyCache.invalidate(privateKey);
+        }
+    }
+
+    /**
+     * Returns the cached key derived from a private key.
+     *
+     * @param privateKey Private key
+     * @return Derived key, null if not cached
+     */
+    static DerivedKey getCachedKey(String privateKey) {
+        return keyCache.getIfPresent(privateKey);
     }
     
     /**
      * Initialize a Cipher.
+     * The key derivation is expensive, so the keys derived from the users private keys are cached.
      * 
      * @param privateKey Private key
      * @param mode Mode (encrypt or decrypt)
+     * @param cached True to cache the derived key, false for a single use key
      * @return Cipher
      * @throws Exception e
      */
-    private static Cipher getCipher(String privateKey, int mode) throws Exception {
-        PBEKeySpec keySpec = new PBEKeySpec(privateKey.toCharArray(), SALT.getBytes(), 2000, 256);
-        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBEWITHSHA256AND256BITAES-CBC-BC");
-        SecretKey desKey = skf.generateSecret(keySpec);
+    static Cipher getCipher(String privateKey, int mode, boolean cached) throws Exception {
+        return getCipher(privateKey, mode, cached, null);
+    }
+
+    /**
+     * Initialize a Cipher.
+     *
+     * @param privateKey Private key
+     * @param mode Mode (encrypt or decrypt)
+     * @param cached True to cache the derived key, false for a single use key
+     * @param counter Initial counter, null for the one derived from the private key
+     * @return Cipher
+     * @throws Exception e
+     */
+    private static Cipher getCipher(String privateKey, int mode, boolean cached, IvParameterSpec counter) throws Exception {
         Cipher cipher = Cipher.getInstance("AES/CTR/NOPADDING");
-        cipher.init(mode, desKey);
-        return cipher;
+        if (!cached) {
+            DerivedKey desKey = deriveKey(privateKey);
+            init(cipher, mode, desKey, counter);
+            desKey.destroy();
+            return cipher;
+        }
+
+        while (true) {
+            DerivedKey desKey = keyCache.get(privateKey, () -> deriveKey(privateKey));
+            synchronized (desKey) {
+                // The key may have been evicted and destroyed since
+                if (!desKey.isDestroyed()) {
+                    init(cipher, mode, desKey, counter);
+                    return cipher;
+                }
+            }
+            keyCache.asMap().remove(privateKey, desKey);
+        }
+    }
+
+    private static void init(Cipher cipher, int mode, DerivedKey desKey, IvParameterSpec counter) throws Exception {
+        cipher.init(mode, new SecretKeySpec(desKey.key, "AES"), counter == null ? new IvParameterSpec(desKey.counter) : counter);
+    }
+
+    /**
+     * Add a number of blocks to a big-endian counter.
+     *
+     * @param counter Counter
+     * @param blockCount Number of blocks
+     * @return New counter
+     */
+    private static byte[] addCounter(byte[] counter, long blockCount) {
+        byte[] result = counter.clone();
+        long carry = blockCount;
+        for (int i = result.length - 1; i >= 0 && carry != 0; i--) {
+            long sum = (result[i] & 0xff) + (carry & 0xff);
+            result[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        return result;
+    }
+
+    /**
+     * Derive a key from a private key.
+     * The PBE key also derives the initial counter, both are copied out of it,
+     * since the provider key may not support its destruction.
+     *
+     * @param privateKey Private key
+     * @return Derived key
+     * @throws Exception e
+     */
+    private static DerivedKey deriveKey(String privateKey) throws Exception {
+        PBEKeySpec keySpec = new PBEKeySpec(privateKey.toCharArray(), SALT.getBytes(), 2000, 256);
+        SecretKey pbeKey;
+        try {
+            SecretKeyFactory skf = SecretKeyFactory.getInstance("PBEWITHSHA256AND256BITAES-CBC-BC");
+            pbeKey = skf.generateSecret(keySpec);
+        } finally {
+            keySpec.clearPassword();
+        }
+
+        byte[] encoded = pbeKey.getEncoded();
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NOPADDING");
+            cipher.init(Cipher.ENCRYPT_MODE, pbeKey);
+            return new DerivedKey(encoded.clone(), cipher.getIV());
+        } finally {
+            // The encoded key may be the provider key own bytes
+            Arrays.fill(encoded, (byte) 0);
+            try {
+                pbeKey.destroy();
+            } catch (DestroyFailedException e) {
+                // NOP, its bytes are zeroed
+            }
+        }
+    }
+
+    /**
+     * Key and initial counter derived from a private key.
+     * Its bytes are only shared with the ciphers, so they are zeroed on destruction.
+     */
+    static final class DerivedKey {
+        /**
+         * AES key.
+         */
+        final byte[] key;
+
+        /**
+         * Initial counter.
+         */
+        final byte[] counter;
+
+        /**
+         * True if the key has been destroyed.
+         */
+        private boolean destroyed;
+
+        private DerivedKey(byte[] key, byte[] counter) {
+            this.key = key;
+            this.counter = counter;
+        }
+
+        /**
+         * Zero the key.
+         */
+        synchronized void destroy() {
+            Arrays.fill(key, (byte) 0);
+            destroyed = true;
+        }
+
+        /**
+         * Returns true if the key has been destroyed.
+         *
+         * @return True if destroyed
+         */
+        synchronized boolean isDestroyed() {
+            return destroyed;
+        }
     }
 }
@@ -0,0 +1,306 @@
+package com.sismics.docs.core.util;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Cache of the file processing results, addressed by the file content.
+ * Files uploaded several times, new versions of the same file and reprocessed files
+ * reuse the extracted content and the thumbnails instead of being processed again.
+ * An entry is encrypted with a key derived from the file content, and named after a hash of this key,
+ * so it can only be read by someone having the original file.
+ * The least recently used entries are evicted above the maximum size.
+ *
+ * @author bgamard
+ */
+public class FileProcessingCache {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(FileProcessingCache.class);
+
+    /**
+     * Cache directory.
+     */
+    private final Path directory;
+
+    /**
+     * Maximum size of the cache in bytes, 0 to disable it.
+     */
+    private final long maxSize;
+
+    /**
+     * Size of the entries by name, the least recently used first.
+     */
+    private final LinkedHashMap<String, Long> entrySizeMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Create a file processing cache.
+     *
+     * @param directory Cache directory
+     * @param maxSize Maximum size of the cache in bytes, 0 to disable it
+     */
+    public FileProcessingCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        // Load the existing entries, the least recently used first
+        try (Stream<Path> stream = Files.list(directory)) {
+            List<Path> entryList = stream
+                    .sorted(Comparator.comparing(path -> {
+                        try {
+                            return Files.getLastModifiedTime(path);
+                        } catch (IOException e) {
+                            return FileTime.fromMillis(0);
+                        }
+                    }))
+                    .collect(Collectors.toList());
+            for (Path entry : entryList) {
+                if (entry.getFileName().toString().endsWith(".tmp")) {
+                    // Interrupted write
+                    Files.deleteIfExists(entry);
+                    continue;
+                }
+                long entrySize = Files.size(entry);
+                entrySizeMap.put(entry.getFileName().toString(), entrySize);
+                size += entrySize;
+            }
+        } catch (IOException e) {
+            log.error("Error loading the file processing cache", e);
+        }
+        evict();
+    }
+
+    /**
+     * Returns the SHA-256 of a file content.
+     *
+     * @param file Unencrypted file
+     * @return Content hash
+     * @throws IOException e
+     */
+    public static String hash(Path file) throws IOException {
+        return MoreFiles.asByteSource(file).hash(Hashing.sha256()).toString();
+    }
+
+    /**
+     * Returns the cache key of a file.
+     *
+     * @param contentHash SHA-256 of the unencrypted file content
+     * @param parameters Parameters changing the processing result
+     * @return Cache key
+     */
+    public String getKey(String contentHash, String... parameters) {
+        return Hashing.sha256().hashString(contentHash + "|" + String.join("|", parameters), StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns a cached processing result.
+     *
+     * @param key Cache key
+     * @return Processing result or null if not cached
+     */
+    public Entry get(String key) {
+        if (maxSize == 0) {
+            return null;
+        }
+        String name = getName(key);
+        synchronized (this) {
+            if (entrySizeMap.get(name) == null) {
+                missCount++;
+                return null;
+            }
+        }
+
+        Path path = directory.resolve(name);
+        try (InputStream inputStream = Files.newInputStream(path);
+             DataInputStream dataInputStream = new DataInputStream(
+                     new CipherInputStream(inputStream, EncryptionUtil.getCipher(key, Cipher.DECRYPT_MODE, false)))) {
+            Entry entry = new Entry(readString(dataInputStream), readBytes(dataInputStream), readBytes(dataInputStream));
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            synchronized (this) {
+                hitCount++;
+            }
+            return entry;
+        } catch (Exception e) {
+            // Evicted since, or unreadable
+            log.warn("Unable to read the file processing cache entry: " + name, e);
+            synchronized (this) {
+                missCount++;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Cache a processing result.
+     *
+     * @param key Cache key
+     * @param entry Processing result
+     */
+    public void put(String key, Entry entry) {
+        if (maxSize == 0) {
+            return;
+        }
+        String name = getName(key);
+        Path path = directory.resolve(name);
+        Path tmpPath = directory.resolve(name + ".tmp");
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(tmpPath);
+                 DataOutputStream dataOutputStream = new DataOutputStream(
+                         new CipherOutputStream(outputStream, EncryptionUtil.getCipher(key, Cipher.ENCRYPT_MODE, false)))) {
+                writeBytes(dataOutputStream, entry.content == null ? null : entry.content.getBytes(StandardCharsets.UTF_8));
+                writeBytes(dataOutputStream, entry.web);
+                writeBytes(dataOutputStream, entry.thumbnail);
+            }
+            long entrySize = Files.size(tmpPath);
+            synchronized (this) {
+                Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Long previousSize = entrySizeMap.put(name, entrySize);
+                size += entrySize - (previousSize == null ? 0 : previousSize);
+                evict();
+            }
+        } catch (Exception e) {
+            log.error("Error writing the file processing cache entry: " + name, e);
+            try {
+                Files.deleteIfExists(tmpPath);
+            } catch (IOException e1) {
+                // NOP
+            }
+        }
+    }
+
+    /**
+     * Returns the cache metrics.
+     *
+     * @return Metrics by name
+     */
+    public synchronized Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new HashMap<>();
+        metrics.put("cache_hits", hitCount);
+        metrics.put("cache_misses", missCount);
+        metrics.put("cache_evictions", evictionCount);
+        metrics.put("cache_entries", (long) entrySizeMap.size());
+        metrics.put("cache_size", size);
+        metrics.put("cache_max_size", maxSize);
+        return metrics;
+    }
+
+    /**
+     * Evict the least recently used entries until the cache fits its maximum size.
+     */
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entrySizeMap.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            try {
+                Files.deleteIfExists(directory.resolve(entry.getKey()));
+            } catch (IOException e) {
+                log.error("Error evicting the file processing cache entry: " + entry.getKey(), e);
+            }
+            size -= entry.getValue();
+            evictionCount++;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns the name of an entry, which does not reveal its key.
+     *
+     * @param key Cache key
+     * @return Entry name
+     */
+    private static String getName(String key) {
+        return Hashing.sha256().hashString("name|" + key, StandardCharsets.UTF_8).toString();
+    }
+
+    private static void writeBytes(DataOutputStream dataOutputStream, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            dataOutputStream.writeInt(-1);
+        } else {
+            dataOutputStream.writeInt(bytes.length);
+            dataOutputStream.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream dataInputStream) throws IOException {
+        int length = dataInputStream.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        dataInputStream.readFully(bytes);
+        return bytes;
+    }
+
+    private static String readString(DataInputStream dataInputStream) throws IOException {
+        byte[] bytes = readBytes(dataInputStream);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Processing result.
+     */
+    public static class Entry {
+        /**
+         * Extracted content.
+         */
+        private final String content;
+
+        /**
+         * "web" JPEG image.
+         */
+        private final byte[] web;
+
+        /**
+         * "thumb" JPEG image.
+         */
+        private final byte[] thumbnail;
+
+        public Entry(String content, byte[] web, byte[] thumbnail) {
+            this.content = content;
+            this.web = web;
+            this.thumbnail = thumbnail;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public byte[] getWeb() {
+            return web;
+        }
+
+        public byte[] getThumbnail() {
+            return thumbnail;
+        }
+    }
+}
@@ -1,9 +1,9 @@
 package com.sismics.docs.core.util;
 
 import com.google.common.base.Strings;
-import com.google.common.collect.Lists;
-import com.google.common.io.CharStreams;
+import com.google.common.io.BaseEncoding;
 import com.sismics.docs.core.constant.Constants;
+import com.sismics.docs.core.constant.FileProcessingLane;
 import com.sismics.docs.core.dao.FileDao;
 import com.sismics.docs.core.dao.UserDao;
 import com.sismics.docs.core.event.DocumentUpdatedAsyncEvent;
@@ -11,28 +11,25 @@ import com.sismics.docs.core.event.FileCreatedAsyncEvent;
 import com.sismics.docs.core.model.context.AppContext;
 import com.sismics.docs.core.model.jpa.File;
 import com.sismics.docs.core.model.jpa.User;
+import com.sismics.docs.core.util.storage.FileStorage;
 import com.sismics.util.ImageDeskew;
 import com.sismics.util.Scalr;
 import com.sismics.util.context.ThreadLocalContext;
-import com.sismics.util.io.InputStreamReaderThread;
 import com.sismics.util.mime.MimeTypeUtil;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.CountingInputStream;
-import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.*;
 
 /**
@@ -50,7 +47,7 @@ public class FileUtil {
      * File ID of files currently being processed.
      */
     private static final Set<String> processingFileSet = Collections.synchronizedSet(new HashSet<>());
-    
+
     /**
      * Optical character recognition on an image.
      *
@@ -69,38 +66,20 @@ public class FileUtil {
         Path tmpFile = AppContext.getInstance().getFileService().createTemporaryFile();
         ImageIO.write(deskewedImage, "tiff", tmpFile.toFile());
 
-        List<String> result = Lists.newLinkedList(Arrays.asList("tesseract", tmpFile.toAbsolutePath().toString(), "stdout", "-l", language));
-        ProcessBuilder pb = new ProcessBuilder(result);
-        Process process = pb.start();
-
-        // Consume the process error stream
-        final String commandName = pb.command().get(0);
-        new InputStreamReaderThread(process.getErrorStream(), commandName).start();
-
-        // Consume the data as text
-        try (InputStream is = process.getInputStream()) {
-            return CharStreams.toString(new InputStreamReader(is, StandardCharsets.UTF_8));
-        }
+        return AppContext.getInstance().getOcrEngine().ocr(language, tmpFile);
     }
 
     /**
-     * Remove a file from the storage filesystem.
+     * Remove a file from the storage, the deduplicated content being removed by the storage cleaning.
      * 
      * @param fileId ID of file to delete
      */
     public static void delete(String fileId) throws IOException {
-        Path storedFile = DirectoryUtil.getStorageDirectory().resolve(fileId);
-        Path webFile = DirectoryUtil.getStorageDirectory().resolve(fileId + "_web");
-        Path thumbnailFile = DirectoryUtil.getStorageDirectory().resolve(fileId + "_thumb");
-        
-        if (Files.exists(storedFile)) {
-            Files.delete(storedFile);
-        }
-        if (Files.exists(webFile)) {
-            Files.delete(webFile);
-        }
-        if (Files.exists(thumbnailFile)) {
-            Files.delete(thumbnailFile);
+        FileDao fileDao = new FileDao();
+        File file = fileDao.getById(fileId);
+        if (file != null) {
+            AppContext.getInstance().getFileStorage().delete(file);
+            fileDao.updateStorage(file);
         }
     }
 
@@ -118,6 +97,27 @@ public class FileUtil {
      * @throws Exception e
      */
     public static String createFile(String name, String previousFileId, Path unencryptedFile, long fileSize, String language, String userId, String documentId) throws Exception {
+        return createFile(name, previousFileId, unencryptedFile, fileSize, language, userId, documentId, FileProcessingLane.INTERACTIVE);
+    }
+
+    /**
+     * Create a new file, processed in a lane.
+     * An interactive file is refused if its lane is full. A bulk file is always admitted:
+     * its producer waits for room in the lane before opening its transaction.
+     *
+     * @param name File name, can be null
+     * @param previousFileId ID of the previous version of the file, if the new file is a new version
+     * @param unencryptedFile Path to the unencrypted file
+     * @param fileSize File size
+     * @param language File language, can be null if associated to no document
+     * @param userId User ID creating the file
+     * @param documentId Associated document ID or null if no document
+     * @param lane Processing lane
+     * @return File ID
+     * @throws Exception e
+     */
+    public static String createFile(String name, String previousFileId, Path unencryptedFile, long fileSize, String language, String userId, String documentId,
+                                    FileProcessingLane lane) throws Exception {
         // Validate mime type
         String mimeType;
         try {
@@ -126,93 +126,204 @@ public class FileUtil {
             throw new IOException("ErrorGuessMime", e);
         }
 
+        try (InputStream inputStream = Files.newInputStream(unencryptedFile)) {
+            return createFile(name, previousFileId, inputStream, mimeType, unencryptedFile, fileSize, language, userId, documentId, lane);
+        }
+    }
+
+    /**
+     * Create a new file from a stream, processed in a lane.
+     * The stream is read once: its MIME type is guessed from its first bytes,
+     * and it is hashed, counted and encrypted to the storage while it is received.
+     * No unencrypted copy is kept, the processing decrypts the stored file.
+     *
+     * @param name File name, can be null
+     * @param previousFileId ID of the previous version of the file, if the new file is a new version
+     * @param inputStream Unencrypted content
+     * @param language File language, can be null if associated to no document
+     * @param userId User ID creating the file
+     * @param documentId Associated document ID or null if no document
+     * @param lane Processing lane
+     * @return File ID
+     * @throws Exception e
+     */
+    public static String createFile(String name, String previousFileId, InputStream inputStream, String language, String userId, String documentId,
+                                    FileProcessingLane lane) throws Exception {
+        return createFile(name, previousFileId, inputStream, null, null, -1, language, userId, documentId, lane);
+    }
+
+    /**
+     * Create a new file from a stream, processed in a lane.
+     *
+     * @param name File name, can be null
+     * @param previousFileId ID of the previous version of the file, if the new file is a new version
+     * @param inputStream Unencrypted content
+     * @param mimeType MIME type, guessed from the first bytes if null
+     * @param unencryptedFile Unencrypted file to process, the stored file is decrypted if null
+     * @param fileSize File size, -1 if unknown
+     * @param language File language, can be null if associated to no document
+     * @param userId User ID creating the file
+     * @param documentId Associated document ID or null if no document
+     * @param lane Processing lane
+     * @return File ID
+     * @throws Exception e
+     */
+    private static String createFile(String name, String previousFileId, InputStream inputStream, String mimeType, Path unencryptedFile, long fileSize,
+                                     String language, String userId, String documentId, FileProcessingLane lane) throws Exception {
+        // Validate the processing queue, never waiting in a transaction
+        if (lane == FileProcessingLane.INTERACTIVE && !AppContext.getInstance().getFileProcessingService().admit(lane)) {
+            throw new IOException("ProcessingQueueFull");
+        }
+
         // Validate user quota
         UserDao userDao = new UserDao();
         User user = userDao.getById(userId);
-        if (user.getStorageCurrent() + fileSize > user.getStorageQuota()) {
-            throw new IOException("QuotaReached");
-        }
+        long maxSize = user.getStorageQuota() - user.getStorageCurrent();
 
         // Validate global quota
         String globalStorageQuotaStr = System.getenv(Constants.GLOBAL_QUOTA_ENV);
         if (!Strings.isNullOrEmpty(globalStorageQuotaStr)) {
             long globalStorageQuota = Long.parseLong(globalStorageQuotaStr);
             long globalStorageCurrent = userDao.getGlobalStorageCurrent();
-            if (globalStorageCurrent + fileSize > globalStorageQuota) {
-                throw new IOException("QuotaReached");
-            }
+            maxSize = Math.min(maxSize, globalStorageQuota - globalStorageCurrent);
+        }
+        if (fileSize > maxSize) {
+            throw new IOException("QuotaReached");
         }
 
-        // Prepare the file
-        File file = new File();
-        file.setOrder(0);
-        file.setVersion(0);
-        file.setLatestVersion(true);
-        file.setDocumentId(documentId);
-        file.setName(StringUtils.abbreviate(name, 200));
-        file.setMimeType(mimeType);
-        file.setUserId(userId);
-        file.setSize(fileSize);
-
-        // Get files of this document
-        FileDao fileDao = new FileDao();
-        if (documentId != null) {
-            if (previousFileId == null) {
-                // It's not a new version, so put it in last order
-                file.setOrder(fileDao.getByDocumentId(userId, documentId).size());
-            } else {
-                // It's a new version, update the previous version
-                File previousFile = fileDao.getActiveById(previousFileId);
-                if (previousFile == null || !previousFile.getDocumentId().equals(documentId)) {
-                    throw new IOException("Previous version mismatch");
+        // Receive the file encrypted, in a single pass
+        FileStorage fileStorage = AppContext.getInstance().getFileStorage();
+        String uploadKey = fileStorage.getUploadKey(user.getPrivateKey());
+        Cipher cipher = EncryptionUtil.getEncryptionCipher(uploadKey);
+        Path uploadFile = fileStorage.createUploadFile();
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        long size;
+        try {
+            try (OutputStream outputStream = new CipherOutputStream(Files.newOutputStream(uploadFile), cipher)) {
+                byte[] header = new byte[MimeTypeUtil.HEADER_SIZE];
+                int headerLength = 0;
+                int count;
+                while (headerLength < header.length && (count = read(inputStream, header, headerLength, header.length - headerLength)) != -1) {
+                    headerLength += count;
                 }
+                header = Arrays.copyOf(header, headerLength);
+                if (mimeType == null) {
+                    mimeType = MimeTypeUtil.guessMimeType(header, name);
+                }
+                size = header.length;
+                digest.update(header);
+                outputStream.write(header);
 
-                if (previousFile.getVersionId() == null) {
-                    previousFile.setVersionId(UUID.randomUUID().toString());
+                byte[] buffer = new byte[64 * 1024];
+                while ((count = read(inputStream, buffer, 0, buffer.length)) != -1) {
+                    size += count;
+                    if (size > maxSize) {
+                        break;
+                    }
+                    digest.update(buffer, 0, count);
+                    outputStream.write(buffer, 0, count);
                 }
+            }
+            if (size > maxSize) {
+                throw new IOException("QuotaReached");
+            }
+        } catch (Exception e) {
+            Files.deleteIfExists(uploadFile);
+            throw e;
+        }
+
+        try {
+            // Prepare the file
+            File file = new File();
+            file.setOrder(0);
+            file.setVersion(0);
+            file.setLatestVersion(true);
+            file.setDocumentId(documentId);
+            file.setName(StringUtils.abbreviate(name, 200));
+            file.setMimeType(mimeType);
+            file.setUserId(userId);
+            file.setSize(size);
+
+            // Get files of this document
+            FileDao fileDao = new FileDao();
+            if (documentId != null) {
+                if (previousFileId == null) {
+                    // It's not a new version, so put it in last order
+                    file.setOrder(fileDao.getByDocumentId(userId, documentId).size());
+                } else {
+                    // It's a new version, update the previous version
+                    File previousFile = fileDao.getActiveById(previousFileId);
+                    if (previousFile == null || !previousFile.getDocumentId().equals(documentId)) {
+                        throw new IOException("Previous version mismatch");
+                    }
+
+                    if (previousFile.getVersionId() == null) {
+                        previousFile.setVersionId(UUID.randomUUID().toString());
+                    }
 
-                // Copy the previous file metadata
-                file.setOrder(previousFile.getOrder());
-                file.setVersionId(previousFile.getVersionId());
-                file.setVersion(previousFile.getVersion() + 1);
+                    // Copy the previous file metadata
+                    file.setOrder(previousFile.getOrder());
+                    file.setVersionId(previousFile.getVersionId());
+                    file.setVersion(previousFile.getVersion() + 1);
 
-                // Update the previous file
-                previousFile.setLatestVersion(false);
-                fileDao.update(previousFile);
+                    // Update the previous file
+                    previousFile.setLatestVersion(false);
+                    fileDao.update(previousFile);
+                }
             }
-        }
 
-        // Create the file
-        String fileId = fileDao.create(file, userId);
+            // Create the file
+            String fileId = fileDao.create(file, userId);
 
-        // Save the file
-        Cipher cipher = EncryptionUtil.getEncryptionCipher(user.getPrivateKey());
-        Path path = DirectoryUtil.getStorageDirectory().resolve(file.getId());
-        try (InputStream inputStream = Files.newInputStream(unencryptedFile)) {
-            Files.copy(new CipherInputStream(inputStream, cipher), path);
-        }
+            // Save the file
+            String contentHash = BaseEncoding.base16().lowerCase().encode(digest.digest());
+            fileStorage.store(file, user.getPrivateKey(), uploadFile, uploadKey, contentHash);
+            fileDao.updateStorage(file);
+
+            // Update the user quota
+            user.setStorageCurrent(user.getStorageCurrent() + size);
+            userDao.updateQuota(user);
+
+            // Raise a new file created event and document updated event if we have a document
+            startProcessingFile(fileId);
+            FileCreatedAsyncEvent fileCreatedAsyncEvent = new FileCreatedAsyncEvent();
+            fileCreatedAsyncEvent.setUserId(userId);
+            fileCreatedAsyncEvent.setLanguage(language);
+            fileCreatedAsyncEvent.setFileId(file.getId());
+            fileCreatedAsyncEvent.setUnencryptedFile(unencryptedFile);
+            fileCreatedAsyncEvent.setContentHash(contentHash);
+            fileCreatedAsyncEvent.setLane(lane);
+            ThreadLocalContext.get().addAsyncEvent(fileCreatedAsyncEvent);
+
+            if (documentId != null) {
+                DocumentUpdatedAsyncEvent documentUpdatedAsyncEvent = new DocumentUpdatedAsyncEvent();
+                documentUpdatedAsyncEvent.setUserId(userId);
+                documentUpdatedAsyncEvent.setDocumentId(documentId);
+                ThreadLocalContext.get().addAsyncEvent(documentUpdatedAsyncEvent);
+            }
 
-        // Update the user quota
-        user.setStorageCurrent(user.getStorageCurrent() + fileSize);
-        userDao.updateQuota(user);
-
-        // Raise a new file created event and document updated event if we have a document
-        startProcessingFile(fileId);
-        FileCreatedAsyncEvent fileCreatedAsyncEvent = new FileCreatedAsyncEvent();
-        fileCreatedAsyncEvent.setUserId(userId);
-        fileCreatedAsyncEvent.setLanguage(language);
-        fileCreatedAsyncEvent.setFileId(file.getId());
-        fileCreatedAsyncEvent.setUnencryptedFile(unencryptedFile);
-        ThreadLocalContext.get().addAsyncEvent(fileCreatedAsyncEvent);
-
-        if (documentId != null) {
-            DocumentUpdatedAsyncEvent documentUpdatedAsyncEvent = new DocumentUpdatedAsyncEvent();
-            documentUpdatedAsyncEvent.setUserId(userId);
-            documentUpdatedAsyncEvent.setDocumentId(documentId);
-            ThreadLocalContext.get().addAsyncEvent(documentUpdatedAsyncEvent);
+            return fileId;
+        } finally {
+            Files.deleteIfExists(uploadFile);
         }
+    }
 
-        return fileId;
+    /**
+     * Read a received stream.
+     *
+     * @param inputStream Received stream
+     * @param buffer Buffer
+     * @param offset Offset in the buffer
+     * @param length Maximum number of bytes to read
+     * @return Number of bytes read, -1 at the end of the stream
+     * @throws IOException StreamError if the stream cannot be read
+     */
+    private static int read(InputStream inputStream, byte[] buffer, int offset, int length) throws IOException {
+        try {
+            return inputStream.read(buffer, offset, length);
+        } catch (IOException e) {
+            throw new IOException("StreamError", e);
+        }
     }
 
     /**
@@ -246,27 +357,22 @@ public class FileUtil {
     }
 
     /**
-     * Get the size of a file on disk.
+     * Get the size of a file in the storage.
+     * The files are encrypted without padding, so the stored size is the unencrypted size.
      *
      * @param fileId the file id
-     * @param user   the file owner
      * @return the size or -1 if something went wrong
      */
-    public static long getFileSize(String fileId, User user) {
-        // To get the size we copy the decrypted content into a null output stream
-        // and count the copied byte size.
-        Path storedFile = DirectoryUtil.getStorageDirectory().resolve(fileId);
-        if (! Files.exists(storedFile)) {
+    public static long getFileSize(String fileId) {
+        File file = new FileDao().getById(fileId);
+        FileStorage fileStorage = AppContext.getInstance().getFileStorage();
+        if (file == null || !fileStorage.exists(file, null)) {
             log.debug("File does not exist " + fileId);
             return File.UNKNOWN_SIZE;
         }
-        try (InputStream fileInputStream = Files.newInputStream(storedFile);
-             InputStream inputStream = EncryptionUtil.decryptInputStream(fileInputStream, user.getPrivateKey());
-             CountingInputStream countingInputStream = new CountingInputStream(inputStream);
-        ) {
-            IOUtils.copy(countingInputStream, NullOutputStream.NULL_OUTPUT_STREAM);
-            return countingInputStream.getByteCount();
-        } catch (Exception e) {
+        try {
+            return fileStorage.getSize(file, null);
+        } catch (IOException e) {
             log.debug("Can't find size of file " + fileId, e);
             return File.UNKNOWN_SIZE;
         }
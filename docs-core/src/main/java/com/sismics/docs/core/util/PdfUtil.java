@@ -7,6 +7,7 @@ import com.google.common.io.Resources;
 import com.lowagie.text.FontFactory;
 import com.sismics.docs.core.constant.Constants;
 import com.sismics.docs.core.dao.dto.DocumentDto;
+import com.sismics.docs.core.model.context.AppContext;
 import com.sismics.docs.core.model.jpa.File;
 import com.sismics.docs.core.util.format.FormatHandler;
 import com.sismics.docs.core.util.format.FormatHandlerUtil;
@@ -103,10 +104,9 @@ public class PdfUtil {
             
             // Add files
             for (File file : fileList) {
-                Path storedFile = DirectoryUtil.getStorageDirectory().resolve(file.getId());
-
-                // Decrypt the file to a temporary file
-                Path unencryptedFile = EncryptionUtil.decryptFile(storedFile, file.getPrivateKey());
+                // Decrypt the file to a temporary file, deleted once the PDF is written
+                Path unencryptedFile = AppContext.getInstance().getFileStorage().decrypt(file, file.getPrivateKey());
+                closer.register(() -> Files.deleteIfExists(unencryptedFile));
                 FormatHandler formatHandler = FormatHandlerUtil.find(file.getMimeType());
                 if (formatHandler != null) {
                     formatHandler.appendToPdf(unencryptedFile, doc, fitImageToPage, margin, memUsageSettings, closer);
@@ -114,6 +114,7 @@ public class PdfUtil {
             }
             
             doc.save(outputStream); // Write to the output stream
+        } finally {
             closer.close(); // Close all remaining opened PDF
         }
     }
@@ -0,0 +1,140 @@
+package com.sismics.docs.core.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the resolved principals by authentication token ID, so that authenticated requests
+ * do not load the token, the user, its groups and its base functions each time.
+ * Entries are invalidated after the commit of a change of the token, the user, a group membership or a group,
+ * so that a concurrent request cannot cache the state before the change again,
+ * and expire shortly anyway to bound the staleness of a principal resolved while the change commits.
+ *
+ * @author bgamard
+ */
+public class PrincipalCache {
+    /**
+     * Resolved principals by authentication token ID.
+     */
+    private static final Cache<String, Entry> cache = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    /**
+     * Returns the principal resolved for an authentication token.
+     *
+     * @param tokenId Authentication token ID
+     * @return Principal, or null if not cached
+     */
+    public static Entry get(String tokenId) {
+        return cache.getIfPresent(tokenId);
+    }
+
+    /**
+     * Cache the principal resolved for an authentication token.
+     *
+     * @param tokenId Authentication token ID
+     * @param entry Principal
+     */
+    public static void put(String tokenId, Entry entry) {
+        cache.put(tokenId, entry);
+    }
+
+    /**
+     * Invalidate the principal of an authentication token.
+     *
+     * @param tokenId Authentication token ID
+     */
+    public static void invalidate(String tokenId) {
+        cache.invalidate(tokenId);
+    }
+
+    /**
+     * Invalidate the principals of all the authentication tokens of a user.
+     *
+     * @param userId User ID
+     */
+    public static void invalidateUser(String userId) {
+        cache.asMap().values().removeIf(entry -> entry.getUserId().equals(userId));
+    }
+
+    /**
+     * Invalidate all the principals, after a change affecting several users (group hierarchy or roles).
+     */
+    public static void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Returns the cache metrics.
+     *
+     * @return Metrics by name
+     */
+    public static Map<String, Long> getMetrics() {
+        CacheStats stats = cache.stats();
+        Map<String, Long> metrics = new HashMap<>();
+        metrics.put("principal_cache_hits", stats.hitCount());
+        metrics.put("principal_cache_misses", stats.missCount());
+        metrics.put("principal_cache_hit_rate", Math.round(stats.hitRate() * 100));
+        metrics.put("principal_cache_evictions", stats.evictionCount());
+        metrics.put("principal_cache_entries", cache.size());
+        return metrics;
+    }
+
+    /**
+     * Principal resolved for an authentication token.
+     */
+    public static class Entry {
+        private final String userId;
+        private final String username;
+        private final String email;
+        private final Set<String> groupIdSet;
+        private final Set<String> baseFunctionSet;
+
+        /**
+         * Create a resolved principal.
+         *
+         * @param userId User ID
+         * @param username Username
+         * @param email Email
+         * @param groupIdSet IDs of the groups of the user, including the parent groups
+         * @param baseFunctionSet Base functions of the user
+         */
+        public Entry(String userId, String username, String email, Set<String> groupIdSet, Set<String> baseFunctionSet) {
+            this.userId = userId;
+            this.username = username;
+            this.email = email;
+            this.groupIdSet = ImmutableSet.copyOf(groupIdSet);
+            this.baseFunctionSet = ImmutableSet.copyOf(baseFunctionSet);
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getEmail() {
+            return email;
+        }
+
+        public Set<String> getGroupIdSet() {
+            return groupIdSet;
+        }
+
+        public Set<String> getBaseFunctionSet() {
+            return baseFunctionSet;
+        }
+    }
+}
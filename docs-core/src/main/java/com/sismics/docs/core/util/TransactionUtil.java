@@ -69,6 +69,7 @@ public class TransactionUtil {
         if (em.isOpen()) {
             if (em.getTransaction() != null && em.getTransaction().isActive()) {
                 em.getTransaction().commit();
+                context.runAllAfterCommit();
                 
                 try {
                     em.close();
@@ -91,6 +92,7 @@ public class TransactionUtil {
     public static void commit() {
         EntityTransaction tx = ThreadLocalContext.get().getEntityManager().getTransaction();
         tx.commit();
+        ThreadLocalContext.get().runAllAfterCommit();
         tx.begin();
     }
 }
@@ -1,20 +1,16 @@
 package com.sismics.docs.core.util.action;
 
+import com.sismics.docs.core.constant.FileProcessingLane;
 import com.sismics.docs.core.dao.FileDao;
-import com.sismics.docs.core.dao.UserDao;
 import com.sismics.docs.core.dao.dto.DocumentDto;
 import com.sismics.docs.core.event.FileUpdatedAsyncEvent;
 import com.sismics.docs.core.model.jpa.File;
-import com.sismics.docs.core.model.jpa.User;
-import com.sismics.docs.core.util.DirectoryUtil;
-import com.sismics.docs.core.util.EncryptionUtil;
 import com.sismics.docs.core.util.FileUtil;
 import com.sismics.util.context.ThreadLocalContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import jakarta.json.JsonObject;
-import java.nio.file.Path;
 import java.util.List;
 
 /**
@@ -35,21 +31,13 @@ public class ProcessFilesAction implements Action {
 
         try {
             for (File file : fileList) {
-                // Get the creating user
-                UserDao userDao = new UserDao();
-                User user = userDao.getById(file.getUserId());
-
-                // Decrypt the file
-                Path storedFile = DirectoryUtil.getStorageDirectory().resolve(file.getId());
-                Path unencryptedFile = EncryptionUtil.decryptFile(storedFile, user.getPrivateKey());
-
-                // Start the asynchronous processing
+                // Start the asynchronous processing, the file is decrypted by the processing if needed
                 FileUtil.startProcessingFile(file.getId());
                 FileUpdatedAsyncEvent event = new FileUpdatedAsyncEvent();
                 event.setUserId("admin");
                 event.setLanguage(documentDto.getLanguage());
                 event.setFileId(file.getId());
-                event.setUnencryptedFile(unencryptedFile);
+                event.setLane(FileProcessingLane.BULK);
                 ThreadLocalContext.get().addAsyncEvent(event);
             }
         } catch (Exception e) {
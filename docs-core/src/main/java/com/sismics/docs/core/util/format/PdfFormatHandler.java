@@ -4,6 +4,8 @@ import com.google.common.io.Closer;
 import com.sismics.docs.core.util.FileUtil;
 import com.sismics.docs.core.util.ConfigUtil;
 import com.sismics.docs.core.constant.ConfigType;
+import com.sismics.docs.core.constant.Constants;
+import com.sismics.util.EnvironmentUtil;
 import com.sismics.util.mime.MimeType;
 import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.multipdf.PDFMergerUtility;
@@ -18,6 +20,12 @@ import java.awt.image.BufferedImage;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 /**
  * PDF format handler.
@@ -56,16 +64,8 @@ public class PdfFormatHandler implements FormatHandler {
 
         // No text content, try to OCR it
         if (language != null && content != null && content.trim().isEmpty() && ConfigUtil.getConfigBooleanValue(ConfigType.OCR_ENABLED, true)) {
-            StringBuilder sb = new StringBuilder();
-            try (InputStream inputStream = Files.newInputStream(file);
-                 PDDocument pdfDocument = PDDocument.load(inputStream)) {
-                PDFRenderer renderer = new PDFRenderer(pdfDocument);
-                for (int pageIndex = 0; pageIndex < pdfDocument.getNumberOfPages(); pageIndex++) {
-                    log.info("OCR page " + (pageIndex + 1) + "/" + pdfDocument.getNumberOfPages() + " of PDF file containing only images");
-                    sb.append(" ");
-                    sb.append(FileUtil.ocrFile(language, renderer.renderImageWithDPI(pageIndex, 300, ImageType.GRAY)));
-                }
-                return sb.toString();
+            try {
+                return ocrPages(language, file);
             } catch (Exception e) {
                 log.error("Error while OCR-izing the PDF", e);
             }
@@ -74,6 +74,72 @@ public class PdfFormatHandler implements FormatHandler {
         return content;
     }
 
+    /**
+     * OCR all pages of a PDF file, with the configured number of page workers.
+     *
+     * @param language Language to OCR
+     * @param file PDF file
+     * @return Content of the pages, in order
+     * @throws Exception e
+     */
+    private String ocrPages(String language, Path file) throws Exception {
+        int threadCount = (int) Math.max(1, EnvironmentUtil.getEnvLong(Constants.OCR_PAGE_THREADS_ENV,
+                Math.max(Runtime.getRuntime().availableProcessors() / 2, 1)));
+        return ocrPages(language, file, threadCount);
+    }
+
+    /**
+     * OCR all pages of a PDF file, several pages at a time.
+     * The pages are rendered one by one when a worker is free, so only a few images are in memory.
+     *
+     * @param language Language to OCR
+     * @param file PDF file
+     * @param threadCount Number of pages OCR-ized at the same time
+     * @return Content of the pages, in order
+     * @throws Exception e
+     */
+    public String ocrPages(String language, Path file, int threadCount) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        Semaphore renderedPageSemaphore = new Semaphore(threadCount);
+        try (InputStream inputStream = Files.newInputStream(file);
+             PDDocument pdfDocument = PDDocument.load(inputStream)) {
+            PDFRenderer renderer = new PDFRenderer(pdfDocument);
+            int pageCount = pdfDocument.getNumberOfPages();
+            List<Future<String>> pageContentList = new ArrayList<>();
+            for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
+                // Render the next page only when a worker can take it, the renderer is not thread safe
+                renderedPageSemaphore.acquire();
+                BufferedImage image;
+                try {
+                    image = renderer.renderImageWithDPI(pageIndex, 300, ImageType.GRAY);
+                } catch (Exception e) {
+                    renderedPageSemaphore.release();
+                    throw e;
+                }
+
+                int pageNumber = pageIndex + 1;
+                pageContentList.add(executor.submit(() -> {
+                    try {
+                        log.info("OCR page " + pageNumber + "/" + pageCount + " of PDF file containing only images");
+                        return FileUtil.ocrFile(language, image);
+                    } finally {
+                        renderedPageSemaphore.release();
+                    }
+                }));
+            }
+
+            // Reassemble the pages in order
+            StringBuilder sb = new StringBuilder();
+            for (Future<String> pageContent : pageContentList) {
+                sb.append(" ");
+                sb.append(pageContent.get());
+            }
+            return sb.toString();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Override
     public void appendToPdf(Path file, PDDocument doc, boolean fitImageToPage, int margin, MemoryUsageSetting memUsageSettings, Closer closer) throws Exception {
         PDDocument mergeDoc = PDDocument.load(file.toFile(), memUsageSettings);
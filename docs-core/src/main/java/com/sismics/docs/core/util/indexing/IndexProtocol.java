@@ -0,0 +1,564 @@
+package com.sismics.docs.core.util.indexing;
+
+import com.google.common.hash.Hashing;
+import com.sismics.docs.core.dao.criteria.DocumentCriteria;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary protocol between the remote indexing handler and the index server.
+ * A connection starts with a challenge sent by the server, answered with its HMAC
+ * keyed with the shared secret. A request is then an opcode followed by the size of its
+ * parameters and the parameters, answered by a status followed by the result or an error message.
+ *
+ * @author bgamard
+ */
+final class IndexProtocol {
+    /**
+     * Check that the server is up, returns true if it started with a new index.
+     */
+    static final byte OP_PING = 1;
+
+    /**
+     * Apply a batch of write operations, returns the index generation.
+     */
+    static final byte OP_BULK = 2;
+
+    /**
+     * Fulltext search, returns the matching document IDs.
+     */
+    static final byte OP_SEARCH = 3;
+
+    /**
+     * Highlight some documents, returns the highlights by document ID.
+     */
+    static final byte OP_HIGHLIGHT = 4;
+
+    /**
+     * Suggest search terms.
+     */
+    static final byte OP_SUGGEST = 5;
+
+    /**
+     * Wait for a generation to be committed, returns true if committed.
+     */
+    static final byte OP_WAIT_COMMIT = 6;
+
+    /**
+     * Start rebuilding into a side index, returns the checkpoint to resume from.
+     */
+    static final byte OP_START_REBUILD = 7;
+
+    /**
+     * Commit the side index with a checkpoint.
+     */
+    static final byte OP_CHECKPOINT_REBUILD = 8;
+
+    /**
+     * Replace the index with the side index.
+     */
+    static final byte OP_FINISH_REBUILD = 9;
+
+    /**
+     * Stop rebuilding.
+     */
+    static final byte OP_ABORT_REBUILD = 10;
+
+    /**
+     * Returns the indexing metrics.
+     */
+    static final byte OP_METRICS = 11;
+
+    /**
+     * Bulk operation: index or replace a Lucene document by ID.
+     */
+    static final byte BULK_UPDATE = 1;
+
+    /**
+     * Bulk operation: delete a Lucene document by ID.
+     */
+    static final byte BULK_DELETE = 2;
+
+    /**
+     * Bulk operation: delete all Lucene documents.
+     */
+    static final byte BULK_DELETE_ALL = 3;
+
+    /**
+     * Maximum size of a request or a value, in bytes.
+     */
+    static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    /**
+     * Size of the authentication challenge, in bytes.
+     */
+    static final int CHALLENGE_LENGTH = 32;
+
+    /**
+     * Size of the authentication response, in bytes.
+     */
+    static final int SIGNATURE_LENGTH = 32;
+
+    /**
+     * Request succeeded.
+     */
+    static final byte STATUS_OK = 0;
+
+    /**
+     * Request failed.
+     */
+    static final byte STATUS_ERROR = 1;
+
+    /**
+     * Indexed string field.
+     */
+    private static final byte FIELD_STRING = 1;
+
+    /**
+     * Analyzed text field.
+     */
+    private static final byte FIELD_TEXT = 2;
+
+    /**
+     * Stored only field.
+     */
+    private static final byte FIELD_STORED = 3;
+
+    /**
+     * Sorted doc values field.
+     */
+    private static final byte FIELD_SORTED = 4;
+
+    /**
+     * File content field indexed with its offsets.
+     */
+    private static final byte FIELD_CONTENT = 5;
+
+    private IndexProtocol() {
+    }
+
+    /**
+     * Returns the response to an authentication challenge.
+     *
+     * @param secret Shared secret
+     * @param challenge Challenge
+     * @return HMAC of the challenge
+     */
+    static byte[] sign(String secret, byte[] challenge) {
+        return Hashing.hmacSha256(secret.getBytes(StandardCharsets.UTF_8)).hashBytes(challenge).asBytes();
+    }
+
+    /**
+     * Read the parameters of a request.
+     *
+     * @param in Input
+     * @return Parameters
+     * @throws IOException e
+     */
+    static DataInputStream readFrame(DataInputStream in) throws IOException {
+        byte[] frame = readBytes(in);
+        if (frame == null) {
+            throw new IOException("Missing request parameters");
+        }
+        return new DataInputStream(new ByteArrayInputStream(frame));
+    }
+
+    /**
+     * Write the parameters of a request.
+     *
+     * @param out Output
+     * @param frame Parameters
+     * @throws IOException e
+     */
+    static void writeFrame(DataOutputStream out, byte[] frame) throws IOException {
+        writeBytes(out, frame);
+    }
+
+    /**
+     * Write a nullable string of any length.
+     *
+     * @param out Output
+     * @param value String
+     * @throws IOException e
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a nullable string.
+     *
+     * @param in Input
+     * @return String
+     * @throws IOException e
+     */
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a list of strings.
+     *
+     * @param out Output
+     * @param values Strings
+     * @throws IOException e
+     */
+    static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Read a list of strings.
+     *
+     * @param in Input
+     * @return Strings
+     * @throws IOException e
+     */
+    static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    /**
+     * Write a map of strings.
+     *
+     * @param out Output
+     * @param map Map
+     * @throws IOException e
+     */
+    static void writeStringMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Read a map of strings.
+     *
+     * @param in Input
+     * @return Map
+     * @throws IOException e
+     */
+    static Map<String, String> readStringMap(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readString(in));
+        }
+        return map;
+    }
+
+    /**
+     * Write a map of numbers.
+     *
+     * @param out Output
+     * @param map Map
+     * @throws IOException e
+     */
+    static void writeLongMap(DataOutputStream out, Map<String, Long> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+    }
+
+    /**
+     * Read a map of numbers.
+     *
+     * @param in Input
+     * @return Map
+     * @throws IOException e
+     */
+    static Map<String, Long> readLongMap(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        Map<String, Long> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), in.readLong());
+        }
+        return map;
+    }
+
+    /**
+     * Write the fulltext part of search criteria.
+     *
+     * @param out Output
+     * @param criteria Search criteria
+     * @throws IOException e
+     */
+    static void writeCriteria(DataOutputStream out, DocumentCriteria criteria) throws IOException {
+        writeString(out, criteria.getSimpleSearch());
+        writeString(out, criteria.getFullSearch());
+        writeString(out, criteria.getLanguage());
+    }
+
+    /**
+     * Read the fulltext part of search criteria.
+     *
+     * @param in Input
+     * @return Search criteria
+     * @throws IOException e
+     */
+    static DocumentCriteria readCriteria(DataInputStream in) throws IOException {
+        DocumentCriteria criteria = new DocumentCriteria();
+        criteria.setSimpleSearch(readString(in));
+        criteria.setFullSearch(readString(in));
+        criteria.setLanguage(readString(in));
+        return criteria;
+    }
+
+    /**
+     * Write a batch of write operations.
+     *
+     * @param out Output
+     * @param operationList Operations
+     * @throws IOException e
+     */
+    static void writeOperations(DataOutputStream out, List<Operation> operationList) throws IOException {
+        out.writeInt(operationList.size());
+        for (Operation operation : operationList) {
+            out.writeByte(operation.type);
+            if (operation.type == BULK_UPDATE) {
+                writeDocument(out, operation.document);
+            } else if (operation.type == BULK_DELETE) {
+                writeString(out, operation.id);
+            }
+        }
+    }
+
+    /**
+     * Read a batch of write operations.
+     *
+     * @param in Input
+     * @return Operations
+     * @throws IOException e
+     */
+    static List<Operation> readOperations(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        List<Operation> operationList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            byte type = in.readByte();
+            switch (type) {
+                case BULK_UPDATE:
+                    operationList.add(Operation.update(readDocument(in)));
+                    break;
+                case BULK_DELETE:
+                    operationList.add(Operation.delete(readString(in)));
+                    break;
+                case BULK_DELETE_ALL:
+                    operationList.add(Operation.deleteAll());
+                    break;
+                default:
+                    throw new IOException("Unknown bulk operation: " + type);
+            }
+        }
+        return operationList;
+    }
+
+    /**
+     * Write a Lucene document.
+     * Only the field types built by the indexing handlers are supported.
+     *
+     * @param out Output
+     * @param document Lucene document
+     * @throws IOException e
+     */
+    static void writeDocument(DataOutputStream out, Document document) throws IOException {
+        List<IndexableField> fieldList = document.getFields();
+        out.writeInt(fieldList.size());
+        for (IndexableField field : fieldList) {
+            if (field.fieldType() == LuceneIndexingHandler.CONTENT_FIELD_TYPE) {
+                out.writeByte(FIELD_CONTENT);
+            } else if (field instanceof StringField) {
+                out.writeByte(FIELD_STRING);
+            } else if (field instanceof TextField) {
+                out.writeByte(FIELD_TEXT);
+            } else if (field instanceof StoredField) {
+                out.writeByte(FIELD_STORED);
+            } else if (field instanceof SortedDocValuesField) {
+                out.writeByte(FIELD_SORTED);
+                writeString(out, field.name());
+                BytesRef value = field.binaryValue();
+                writeBytes(out, BytesRef.deepCopyOf(value).bytes);
+                continue;
+            } else {
+                throw new IllegalArgumentException("Unsupported field type: " + field.getClass().getSimpleName());
+            }
+            writeString(out, field.name());
+            writeString(out, field.stringValue());
+            out.writeBoolean(field.fieldType().stored());
+        }
+    }
+
+    /**
+     * Read a Lucene document.
+     *
+     * @param in Input
+     * @return Lucene document
+     * @throws IOException e
+     */
+    static Document readDocument(DataInputStream in) throws IOException {
+        Document document = new Document();
+        int size = readSize(in);
+        for (int i = 0; i < size; i++) {
+            byte type = in.readByte();
+            String name = readString(in);
+            if (type == FIELD_SORTED) {
+                document.add(new SortedDocValuesField(name, new BytesRef(readBytes(in))));
+                continue;
+            }
+            String value = readString(in);
+            Field.Store store = in.readBoolean() ? Field.Store.YES : Field.Store.NO;
+            switch (type) {
+                case FIELD_STRING:
+                    document.add(new StringField(name, value, store));
+                    break;
+                case FIELD_TEXT:
+                    document.add(new TextField(name, value, store));
+                    break;
+                case FIELD_STORED:
+                    document.add(new StoredField(name, value));
+                    break;
+                case FIELD_CONTENT:
+                    document.add(new Field(name, value, LuceneIndexingHandler.CONTENT_FIELD_TYPE));
+                    break;
+                default:
+                    throw new IOException("Unknown field type: " + type);
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Write a byte array.
+     *
+     * @param out Output
+     * @param bytes Bytes
+     * @throws IOException e
+     */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a nullable byte array.
+     *
+     * @param in Input
+     * @return Bytes
+     * @throws IOException e
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_FRAME_SIZE) {
+            throw new IOException("Value too large: " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Read the size of a collection.
+     *
+     * @param in Input
+     * @return Size
+     * @throws IOException e
+     */
+    private static int readSize(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid size: " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Write operation of a bulk request.
+     */
+    static final class Operation {
+        /**
+         * Operation type.
+         */
+        final byte type;
+
+        /**
+         * ID of the Lucene document.
+         */
+        final String id;
+
+        /**
+         * Lucene document to index.
+         */
+        final Document document;
+
+        private Operation(byte type, String id, Document document) {
+            this.type = type;
+            this.id = id;
+            this.document = document;
+        }
+
+        /**
+         * Index or replace a Lucene document.
+         *
+         * @param document Lucene document
+         * @return Operation
+         */
+        static Operation update(Document document) {
+            return new Operation(BULK_UPDATE, document.get("id"), document);
+        }
+
+        /**
+         * Delete a Lucene document.
+         *
+         * @param id ID
+         * @return Operation
+         */
+        static Operation delete(String id) {
+            return new Operation(BULK_DELETE, id, null);
+        }
+
+        /**
+         * Delete all Lucene documents.
+         *
+         * @return Operation
+         */
+        static Operation deleteAll() {
+            return new Operation(BULK_DELETE_ALL, null, null);
+        }
+    }
+}
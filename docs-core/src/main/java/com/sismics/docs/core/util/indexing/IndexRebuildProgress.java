@@ -0,0 +1,182 @@
+package com.sismics.docs.core.util.indexing;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of the index rebuild.
+ *
+ * @author bgamard
+ */
+public class IndexRebuildProgress {
+    /**
+     * Documents phase.
+     */
+    public static final String PHASE_DOCUMENTS = "documents";
+
+    /**
+     * Files phase.
+     */
+    public static final String PHASE_FILES = "files";
+
+    /**
+     * Swap of the rebuilt index phase.
+     */
+    public static final String PHASE_SWAP = "swap";
+
+    /**
+     * A rebuild is running.
+     */
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Current phase.
+     */
+    private volatile String phase;
+
+    /**
+     * The rebuild resumed an interrupted one.
+     */
+    private volatile boolean resumed;
+
+    /**
+     * The last rebuild succeeded.
+     */
+    private volatile Boolean success;
+
+    /**
+     * Start date of the last rebuild.
+     */
+    private volatile Long startDate;
+
+    /**
+     * End date of the last rebuild.
+     */
+    private volatile Long endDate;
+
+    /**
+     * Number of documents to index.
+     */
+    private volatile long documentTotal;
+
+    /**
+     * Number of files to index.
+     */
+    private volatile long fileTotal;
+
+    /**
+     * Number of documents indexed.
+     */
+    private final AtomicLong documentCount = new AtomicLong();
+
+    /**
+     * Number of files indexed.
+     */
+    private final AtomicLong fileCount = new AtomicLong();
+
+    /**
+     * Start a rebuild.
+     *
+     * @return False if a rebuild is already running
+     */
+    public boolean start() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        phase = PHASE_DOCUMENTS;
+        resumed = false;
+        success = null;
+        startDate = System.currentTimeMillis();
+        endDate = null;
+        documentTotal = 0;
+        fileTotal = 0;
+        documentCount.set(0);
+        fileCount.set(0);
+        return true;
+    }
+
+    /**
+     * End the rebuild.
+     *
+     * @param success True if the rebuild succeeded
+     */
+    public void finish(boolean success) {
+        this.success = success;
+        endDate = System.currentTimeMillis();
+        running.set(false);
+    }
+
+    /**
+     * Count indexed documents.
+     *
+     * @param count Number of documents indexed
+     */
+    public void addDocumentCount(long count) {
+        documentCount.addAndGet(count);
+    }
+
+    /**
+     * Count indexed files.
+     *
+     * @param count Number of files indexed
+     */
+    public void addFileCount(long count) {
+        fileCount.addAndGet(count);
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public void setResumed(boolean resumed) {
+        this.resumed = resumed;
+    }
+
+    public Boolean getSuccess() {
+        return success;
+    }
+
+    public Long getStartDate() {
+        return startDate;
+    }
+
+    public Long getEndDate() {
+        return endDate;
+    }
+
+    public long getDocumentTotal() {
+        return documentTotal;
+    }
+
+    public void setDocumentTotal(long documentTotal) {
+        this.documentTotal = documentTotal;
+    }
+
+    public long getFileTotal() {
+        return fileTotal;
+    }
+
+    public void setFileTotal(long fileTotal) {
+        this.fileTotal = fileTotal;
+    }
+
+    public long getDocumentCount() {
+        return documentCount.get();
+    }
+
+    public long getFileCount() {
+        return fileCount.get();
+    }
+}
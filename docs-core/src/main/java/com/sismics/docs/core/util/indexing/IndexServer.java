@@ -0,0 +1,365 @@
+package com.sismics.docs.core.util.indexing;
+
+import com.google.common.base.Strings;
+import com.sismics.docs.core.constant.Constants;
+import com.sismics.docs.core.dao.criteria.DocumentCriteria;
+import com.sismics.util.EnvironmentUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index server, holding the Lucene index in its own process so that the search
+ * can be scaled and restarted independently of the web application.
+ * The index is managed by a standalone {@link LuceneIndexingHandler}, and the server
+ * listens on the loopback interface for the {@link RemoteIndexingHandler}, which must
+ * authenticate with the shared secret.
+ *
+ * Started from the distribution with:
+ * DOCS_INDEX_SERVER_SECRET=secret java -cp "WEB-INF/lib/*" com.sismics.docs.core.util.indexing.IndexServer port [index directory]
+ * Without an index directory, the index is kept in memory.
+ *
+ * @author bgamard
+ */
+public class IndexServer implements Closeable {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(IndexServer.class);
+
+    /**
+     * Maximum wait for the authentication of a connection, in milliseconds.
+     */
+    private static final int AUTHENTICATION_TIMEOUT = 10000;
+
+    /**
+     * Indexing handler.
+     */
+    private final LuceneIndexingHandler handler;
+
+    /**
+     * Shared secret authenticating the clients.
+     */
+    private final String secret;
+
+    /**
+     * Generator of the authentication challenges.
+     */
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    /**
+     * Number of bulk requests applied.
+     */
+    private final AtomicLong bulkCount = new AtomicLong();
+
+    /**
+     * Number of write operations applied.
+     */
+    private final AtomicLong operationCount = new AtomicLong();
+
+    /**
+     * Connections handlers.
+     */
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "index-server-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Server socket.
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * Open the index.
+     *
+     * @param indexPath Index directory, null to keep the index in memory
+     * @param commitInterval Maximum delay before committing a write, in milliseconds (0 to commit every bulk)
+     * @param commitSize Number of writes triggering a commit
+     * @param secret Shared secret authenticating the clients
+     * @throws Exception e
+     */
+    public IndexServer(Path indexPath, long commitInterval, int commitSize, String secret) throws Exception {
+        if (Strings.isNullOrEmpty(secret)) {
+            throw new IllegalArgumentException("The index server secret is required");
+        }
+        this.secret = secret;
+        handler = new LuceneIndexingHandler(indexPath, commitInterval, commitSize);
+        handler.startUp();
+    }
+
+    /**
+     * Start listening on the loopback interface.
+     *
+     * @param port Port, 0 for any free port
+     * @throws IOException e
+     */
+    public void start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    connectionExecutor.execute(() -> serve(socket));
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        log.error("Error accepting a connection", e);
+                    }
+                }
+            }
+        }, "index-server-accept");
+        acceptThread.start();
+        log.info("Index server listening on port {}", getPort());
+    }
+
+    /**
+     * Returns the port listened on.
+     *
+     * @return Port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                log.error("Error closing the server socket", e);
+            }
+        }
+        connectionExecutor.shutdownNow();
+        handler.shutDown();
+    }
+
+    /**
+     * Serve the requests of a connection until it is closed.
+     *
+     * @param socket Connection
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            if (!authenticate(s, in, out)) {
+                log.warn("Index client authentication failed from {}", s.getRemoteSocketAddress());
+                return;
+            }
+
+            while (true) {
+                byte opcode;
+                try {
+                    opcode = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                // The request is read entirely before running, so an error leaves the connection usable
+                Callable<Response> request = readRequest(opcode, IndexProtocol.readFrame(in));
+                Response response;
+                try {
+                    response = request.call();
+                } catch (Exception e) {
+                    log.error("Error running index request " + opcode, e);
+                    out.writeByte(IndexProtocol.STATUS_ERROR);
+                    IndexProtocol.writeString(out, e.getClass().getSimpleName() + ": " + e.getMessage());
+                    out.flush();
+                    continue;
+                }
+                out.writeByte(IndexProtocol.STATUS_OK);
+                response.write(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            log.info("Index client disconnected: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Authenticate a connection with a challenge answered with the shared secret.
+     *
+     * @param socket Connection
+     * @param in Input
+     * @param out Output
+     * @return True if authenticated
+     * @throws IOException e
+     */
+    private boolean authenticate(Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] challenge = new byte[IndexProtocol.CHALLENGE_LENGTH];
+        secureRandom.nextBytes(challenge);
+        out.write(challenge);
+        out.flush();
+
+        socket.setSoTimeout(AUTHENTICATION_TIMEOUT);
+        byte[] signature = new byte[IndexProtocol.SIGNATURE_LENGTH];
+        in.readFully(signature);
+        socket.setSoTimeout(0);
+        if (!MessageDigest.isEqual(signature, IndexProtocol.sign(secret, challenge))) {
+            out.writeByte(IndexProtocol.STATUS_ERROR);
+            IndexProtocol.writeString(out, "Authentication failed");
+            out.flush();
+            return false;
+        }
+        out.writeByte(IndexProtocol.STATUS_OK);
+        out.flush();
+        return true;
+    }
+
+    /**
+     * Read a request.
+     *
+     * @param opcode Operation code
+     * @param in Request parameters
+     * @return Request, returning its response
+     * @throws IOException e
+     */
+    private Callable<Response> readRequest(byte opcode, DataInputStream in) throws IOException {
+        switch (opcode) {
+            case IndexProtocol.OP_PING:
+                return () -> {
+                    boolean rebuildNeeded = handler.isRebuildNeeded();
+                    return out -> out.writeBoolean(rebuildNeeded);
+                };
+            case IndexProtocol.OP_BULK: {
+                boolean rebuild = in.readBoolean();
+                List<IndexProtocol.Operation> operationList = IndexProtocol.readOperations(in);
+                return () -> {
+                    long generation;
+                    if (rebuild) {
+                        handler.rebuild(operationList);
+                        generation = handler.getGeneration();
+                    } else {
+                        generation = handler.write(operationList);
+                        bulkCount.incrementAndGet();
+                        operationCount.addAndGet(operationList.size());
+                    }
+                    return out -> out.writeLong(generation);
+                };
+            }
+            case IndexProtocol.OP_SEARCH: {
+                DocumentCriteria criteria = IndexProtocol.readCriteria(in);
+                return () -> {
+                    List<String> documentIdList = new ArrayList<>(handler.search(criteria));
+                    return out -> IndexProtocol.writeStrings(out, documentIdList);
+                };
+            }
+            case IndexProtocol.OP_HIGHLIGHT: {
+                DocumentCriteria criteria = IndexProtocol.readCriteria(in);
+                List<String> documentIdList = IndexProtocol.readStrings(in);
+                return () -> {
+                    Map<String, String> highlightMap = handler.highlight(criteria, documentIdList);
+                    return out -> IndexProtocol.writeStringMap(out, highlightMap);
+                };
+            }
+            case IndexProtocol.OP_SUGGEST: {
+                String search = IndexProtocol.readString(in);
+                return () -> {
+                    List<String> suggestionList = new ArrayList<>();
+                    if (search != null) {
+                        handler.suggestSearchTerms(search, suggestionList);
+                    }
+                    return out -> IndexProtocol.writeStrings(out, suggestionList);
+                };
+            }
+            case IndexProtocol.OP_WAIT_COMMIT: {
+                long generation = in.readLong();
+                long timeout = in.readLong();
+                return () -> {
+                    boolean committed = handler.waitForCommit(generation, timeout);
+                    return out -> out.writeBoolean(committed);
+                };
+            }
+            case IndexProtocol.OP_START_REBUILD:
+                return () -> {
+                    Map<String, String> checkpoint = handler.startRebuild();
+                    return out -> IndexProtocol.writeStringMap(out, checkpoint);
+                };
+            case IndexProtocol.OP_CHECKPOINT_REBUILD: {
+                Map<String, String> checkpoint = IndexProtocol.readStringMap(in);
+                return () -> {
+                    handler.checkpointRebuild(checkpoint);
+                    return out -> {};
+                };
+            }
+            case IndexProtocol.OP_FINISH_REBUILD:
+                return () -> {
+                    handler.finishRebuild();
+                    return out -> {};
+                };
+            case IndexProtocol.OP_ABORT_REBUILD:
+                return () -> {
+                    handler.abortRebuild();
+                    return out -> {};
+                };
+            case IndexProtocol.OP_METRICS:
+                return () -> {
+                    Map<String, Long> metrics = handler.getMetrics();
+                    metrics.put("index_bulk_count", bulkCount.get());
+                    metrics.put("index_operation_count", operationCount.get());
+                    return out -> IndexProtocol.writeLongMap(out, metrics);
+                };
+            default:
+                throw new IOException("Unknown index request: " + opcode);
+        }
+    }
+
+    /**
+     * Start an index server.
+     *
+     * @param args Port, and index directory (in memory if missing)
+     * @throws Exception e
+     */
+    public static void main(String[] args) throws Exception {
+        String secret = System.getenv(Constants.INDEX_SERVER_SECRET_ENV);
+        if (args.length < 1 || Strings.isNullOrEmpty(secret)) {
+            System.err.println("Usage: " + Constants.INDEX_SERVER_SECRET_ENV + "=secret IndexServer port [index directory]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        Path indexPath = args.length > 1 ? Paths.get(args[1]) : null;
+        IndexServer server = new IndexServer(indexPath,
+                EnvironmentUtil.getEnvLong(Constants.LUCENE_COMMIT_INTERVAL_ENV, Constants.DEFAULT_LUCENE_COMMIT_INTERVAL),
+                (int) EnvironmentUtil.getEnvLong(Constants.LUCENE_COMMIT_SIZE_ENV, Constants.DEFAULT_LUCENE_COMMIT_SIZE),
+                secret);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close, "index-server-shutdown"));
+        server.start(port);
+    }
+
+    /**
+     * Response to a request.
+     */
+    private interface Response {
+        /**
+         * Write the response.
+         *
+         * @param out Output
+         * @throws IOException e
+         */
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -9,6 +9,7 @@ import com.sismics.docs.core.util.jpa.PaginatedList;
 import com.sismics.docs.core.util.jpa.SortCriteria;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * Indexing handler.
@@ -40,6 +41,52 @@ public interface IndexingHandler {
      */
     void clearIndex();
 
+    /**
+     * Start rebuilding the index into a side index, the current index staying searchable
+     * and receiving the changes until the rebuilt index is swapped in.
+     * An interrupted rebuild is resumed from its last checkpoint if possible.
+     *
+     * @return Checkpoint of the interrupted rebuild, empty if starting from scratch
+     * @throws Exception e
+     */
+    Map<String, String> startRebuild() throws Exception;
+
+    /**
+     * Index a list of documents in the side index.
+     *
+     * @param documentList Documents
+     * @throws Exception e
+     */
+    void rebuildDocuments(List<Document> documentList) throws Exception;
+
+    /**
+     * Index a list of files in the side index.
+     *
+     * @param fileList Files
+     * @throws Exception e
+     */
+    void rebuildFiles(List<File> fileList) throws Exception;
+
+    /**
+     * Durably save the side index with a checkpoint to resume from.
+     *
+     * @param checkpoint Checkpoint
+     * @throws Exception e
+     */
+    void checkpointRebuild(Map<String, String> checkpoint) throws Exception;
+
+    /**
+     * Replace the index with the side index.
+     *
+     * @throws Exception e
+     */
+    void finishRebuild() throws Exception;
+
+    /**
+     * Stop rebuilding, keeping the last checkpoint of the side index.
+     */
+    void abortRebuild();
+
     /**
      * Index a list of documents.
      *
@@ -117,4 +164,43 @@ public interface IndexingHandler {
      * @throws Exception e
      */
     void findByCriteria(PaginatedList<DocumentDto> paginatedList, List<String> suggestionList, DocumentCriteria criteria, SortCriteria sortCriteria) throws Exception;
+
+    /**
+     * Searches documents by criteria, and counts the matching documents by facet in the same search.
+     * Facets are "tag", "mime_type", "language", "creator" and "year". They stay empty if the
+     * search cannot be faceted by the handler.
+     *
+     * @param paginatedList List of documents (updated by side effects)
+     * @param suggestionList Suggestion of search query (updated by side effects)
+     * @param facetMap Count of documents by value, by facet (updated by side effects)
+     * @param criteria Search criteria
+     * @param sortCriteria Sort criteria
+     * @throws Exception e
+     */
+    void findByCriteria(PaginatedList<DocumentDto> paginatedList, List<String> suggestionList, Map<String, Map<String, Integer>> facetMap,
+                        DocumentCriteria criteria, SortCriteria sortCriteria) throws Exception;
+
+    /**
+     * Returns the generation of the last change made to the index.
+     *
+     * @return Generation
+     */
+    long getGeneration();
+
+    /**
+     * Wait for all changes up to a generation to be durably committed.
+     *
+     * @param generation Generation returned by {@link #getGeneration()}
+     * @param timeout Maximum wait in milliseconds
+     * @return True if the changes are committed
+     * @throws InterruptedException e
+     */
+    boolean waitForCommit(long generation, long timeout) throws InterruptedException;
+
+    /**
+     * Returns the indexing metrics.
+     *
+     * @return Metrics by name
+     */
+    Map<String, Long> getMetrics();
 }
@@ -0,0 +1,153 @@
+package com.sismics.docs.core.util.indexing;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.DelegatingAnalyzerWrapper;
+import org.apache.lucene.analysis.ar.ArabicAnalyzer;
+import org.apache.lucene.analysis.cjk.CJKAnalyzer;
+import org.apache.lucene.analysis.cz.CzechAnalyzer;
+import org.apache.lucene.analysis.da.DanishAnalyzer;
+import org.apache.lucene.analysis.de.GermanAnalyzer;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.es.SpanishAnalyzer;
+import org.apache.lucene.analysis.fi.FinnishAnalyzer;
+import org.apache.lucene.analysis.fr.FrenchAnalyzer;
+import org.apache.lucene.analysis.hi.HindiAnalyzer;
+import org.apache.lucene.analysis.hu.HungarianAnalyzer;
+import org.apache.lucene.analysis.it.ItalianAnalyzer;
+import org.apache.lucene.analysis.lv.LatvianAnalyzer;
+import org.apache.lucene.analysis.nl.DutchAnalyzer;
+import org.apache.lucene.analysis.no.NorwegianAnalyzer;
+import org.apache.lucene.analysis.pt.PortugueseAnalyzer;
+import org.apache.lucene.analysis.ru.RussianAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.sv.SwedishAnalyzer;
+import org.apache.lucene.analysis.th.ThaiAnalyzer;
+import org.apache.lucene.analysis.tr.TurkishAnalyzer;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lucene analyzers by document language.
+ * Text is indexed in language-suffixed fields (e.g. title.fra), analyzed with
+ * the analyzer of their language. Fields without a language, and languages without
+ * a dedicated analyzer, use the standard analyzer.
+ *
+ * @author bgamard
+ */
+public class LanguageAnalyzerRegistry implements Closeable {
+    /**
+     * Separator between a field name and its language.
+     */
+    private static final char LANGUAGE_SEPARATOR = '.';
+
+    /**
+     * Analyzers by language.
+     */
+    private final Map<String, Analyzer> analyzerMap = new HashMap<>();
+
+    /**
+     * Analyzer of fields without a language.
+     */
+    private final Analyzer defaultAnalyzer = new StandardAnalyzer();
+
+    /**
+     * Analyzer picking the analyzer of each field by its language.
+     */
+    private final Analyzer fieldAnalyzer = new DelegatingAnalyzerWrapper(Analyzer.PER_FIELD_REUSE_STRATEGY) {
+        @Override
+        protected Analyzer getWrappedAnalyzer(String fieldName) {
+            int index = fieldName.lastIndexOf(LANGUAGE_SEPARATOR);
+            return index == -1 ? defaultAnalyzer : getAnalyzer(fieldName.substring(index + 1));
+        }
+    };
+
+    /**
+     * Create the registry of the supported languages.
+     * Polish, Ukrainian, Hebrew, Vietnamese and Albanian have no analyzer in Lucene common analyzers.
+     */
+    public LanguageAnalyzerRegistry() {
+        analyzerMap.put("eng", new EnglishAnalyzer());
+        analyzerMap.put("fra", new FrenchAnalyzer());
+        analyzerMap.put("ita", new ItalianAnalyzer());
+        analyzerMap.put("deu", new GermanAnalyzer());
+        analyzerMap.put("spa", new SpanishAnalyzer());
+        analyzerMap.put("por", new PortugueseAnalyzer());
+        analyzerMap.put("rus", new RussianAnalyzer());
+        analyzerMap.put("ara", new ArabicAnalyzer());
+        analyzerMap.put("hin", new HindiAnalyzer());
+        analyzerMap.put("tha", new ThaiAnalyzer());
+        analyzerMap.put("nld", new DutchAnalyzer());
+        analyzerMap.put("tur", new TurkishAnalyzer());
+        analyzerMap.put("hun", new HungarianAnalyzer());
+        analyzerMap.put("fin", new FinnishAnalyzer());
+        analyzerMap.put("swe", new SwedishAnalyzer());
+        analyzerMap.put("lav", new LatvianAnalyzer());
+        analyzerMap.put("dan", new DanishAnalyzer());
+        analyzerMap.put("nor", new NorwegianAnalyzer());
+        analyzerMap.put("ces", new CzechAnalyzer());
+
+        // Bigrams instead of one term per ideogram
+        Analyzer cjkAnalyzer = new CJKAnalyzer();
+        analyzerMap.put("chi_sim", cjkAnalyzer);
+        analyzerMap.put("chi_tra", cjkAnalyzer);
+        analyzerMap.put("jpn", cjkAnalyzer);
+        analyzerMap.put("kor", cjkAnalyzer);
+    }
+
+    /**
+     * Returns the analyzer of a language.
+     *
+     * @param language Language, null for none
+     * @return Analyzer
+     */
+    public Analyzer getAnalyzer(String language) {
+        if (language == null) {
+            return defaultAnalyzer;
+        }
+        return analyzerMap.getOrDefault(language, defaultAnalyzer);
+    }
+
+    /**
+     * Returns the analyzer of all fields, by their language.
+     *
+     * @return Analyzer
+     */
+    public Analyzer getFieldAnalyzer() {
+        return fieldAnalyzer;
+    }
+
+    /**
+     * Returns the name of a field in a language.
+     *
+     * @param field Field name
+     * @param language Language, null for none
+     * @return Field name in this language
+     */
+    public static String getField(String field, String language) {
+        return language == null ? field : field + LANGUAGE_SEPARATOR + language;
+    }
+
+    /**
+     * Returns the language of a field.
+     *
+     * @param field Field name in a language
+     * @param baseField Field name without language
+     * @return Language, null if the field is not this field in a language
+     */
+    public static String getLanguage(String field, String baseField) {
+        if (field.length() <= baseField.length() + 1 || !field.startsWith(baseField)
+                || field.charAt(baseField.length()) != LANGUAGE_SEPARATOR) {
+            return null;
+        }
+        return field.substring(baseField.length() + 1);
+    }
+
+    @Override
+    public void close() {
+        fieldAnalyzer.close();
+        defaultAnalyzer.close();
+        analyzerMap.values().forEach(Analyzer::close);
+    }
+}
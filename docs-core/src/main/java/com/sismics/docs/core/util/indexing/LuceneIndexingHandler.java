@@ -3,10 +3,15 @@ package com.sismics.docs.core.util.indexing;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.sismics.docs.core.constant.ConfigType;
+import com.sismics.docs.core.constant.Constants;
 import com.sismics.docs.core.constant.PermType;
+import com.sismics.docs.core.dao.AclDao;
 import com.sismics.docs.core.dao.ConfigDao;
+import com.sismics.docs.core.dao.DocumentDao;
+import com.sismics.docs.core.dao.FileDao;
+import com.sismics.docs.core.dao.TagDao;
 import com.sismics.docs.core.dao.criteria.DocumentCriteria;
 import com.sismics.docs.core.dao.dto.DocumentDto;
 import com.sismics.docs.core.event.RebuildIndexAsyncEvent;
@@ -14,59 +19,139 @@ import com.sismics.docs.core.model.context.AppContext;
 import com.sismics.docs.core.model.jpa.Config;
 import com.sismics.docs.core.model.jpa.Document;
 import com.sismics.docs.core.model.jpa.File;
+import com.sismics.docs.core.util.ConfigUtil;
 import com.sismics.docs.core.util.DirectoryUtil;
 import com.sismics.docs.core.util.SecurityUtil;
 import com.sismics.docs.core.util.jpa.PaginatedList;
 import com.sismics.docs.core.util.jpa.PaginatedLists;
 import com.sismics.docs.core.util.jpa.QueryParam;
+import com.sismics.docs.core.util.jpa.QueryUtil;
 import com.sismics.docs.core.util.jpa.SortCriteria;
 import com.sismics.util.ClasspathScanner;
+import com.sismics.util.EnvironmentUtil;
+import org.apache.commons.io.FileUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.facet.Facets;
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.LabelAndValue;
+import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetCounts;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetField;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
 import org.apache.lucene.index.CheckIndex;
 import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.simple.SimpleQueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ReferenceManager;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.highlight.Highlighter;
-import org.apache.lucene.search.highlight.QueryScorer;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.search.highlight.SimpleHTMLEncoder;
-import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
+import org.apache.lucene.search.join.JoinUtil;
+import org.apache.lucene.search.join.ScoreMode;
 import org.apache.lucene.search.spell.LuceneDictionary;
 import org.apache.lucene.search.suggest.Lookup;
 import org.apache.lucene.search.suggest.analyzing.FuzzySuggester;
+import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
+import org.apache.lucene.search.uhighlight.LengthGoalBreakIterator;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.ByteBuffersDirectory;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.NoLockFactory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.store.SingleInstanceLockFactory;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Timestamp;
+import java.text.BreakIterator;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Lucene indexing handler.
  * Documents and files are indexed in Lucene, but only used for fulltext search.
- * Other search criteria are still using the database.
+ * Other search criteria are still using the database, unless search filters are indexed
+ * (see {@link ConfigType#LUCENE_INDEXED_FILTERS}), in which case fulltext searches are filtered,
+ * sorted, paginated and faceted in Lucene, and only the resulting page is read from the database.
+ * Searches use near real-time readers refreshed in the background, and writes are committed
+ * in groups (see {@link Constants#LUCENE_COMMIT_INTERVAL_ENV} and {@link Constants#LUCENE_COMMIT_SIZE_ENV}).
+ * File contents are indexed with their offsets and highlighted from them, and are stored in the index
+ * only if {@link ConfigType#LUCENE_STORED_CONTENT} is enabled, otherwise they are read from the database.
+ * The {@link IndexServer} runs a standalone handler, without database, fed with Lucene documents.
  *
  * @author bgamard
  */
@@ -77,70 +162,387 @@ public class LuceneIndexingHandler implements IndexingHandler {
      */
     private static final Logger log = LoggerFactory.getLogger(LuceneIndexingHandler.class);
 
+    /**
+     * Commit user data key marking an index built with search filters and facets.
+     * Indexes built with search filters only have the former "indexed_filters" key.
+     */
+    private static final String INDEXED_FILTERS_COMMIT_KEY = "indexed_filters_facets";
+
+    /**
+     * Facets indexed along with the search filters.
+     */
+    private static final List<String> FACETS = Lists.newArrayList("tag", "mime_type", "language", "creator", "year");
+
+    /**
+     * Facets configuration.
+     */
+    private static final FacetsConfig FACETS_CONFIG = new FacetsConfig();
+    static {
+        FACETS_CONFIG.setMultiValued("tag", true);
+        FACETS_CONFIG.setMultiValued("mime_type", true);
+    }
+
+    /**
+     * Maximum number of values counted by facet.
+     */
+    private static final int MAX_FACET_VALUES = 100;
+
+    /**
+     * Commit user data key marking an index built with file content offsets.
+     */
+    private static final String CONTENT_OFFSETS_COMMIT_KEY = "content_offsets";
+
+    /**
+     * File content indexed with its offsets, for highlighting without analyzing it again.
+     */
+    static final FieldType CONTENT_FIELD_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+    static {
+        CONTENT_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        CONTENT_FIELD_TYPE.freeze();
+    }
+
+    /**
+     * Stored fields read from the best matching file of a document to highlight it.
+     */
+    private static final Set<String> HIGHLIGHT_FIELDS = Sets.newHashSet("id", "content", "language");
+
+    /**
+     * Length goal of the highlights, in characters.
+     */
+    private static final int HIGHLIGHT_LENGTH = 100;
+
+    /**
+     * Maximum staleness of the searchers, in seconds.
+     */
+    private static final double SEARCHER_MAX_STALE_SEC = 1.0;
+
+    /**
+     * Minimum staleness of the searchers when a search waits for a write, in seconds.
+     */
+    private static final double SEARCHER_MIN_STALE_SEC = 0.025;
+
+    /**
+     * Maximum wait of a search for the previous writes to be visible, in milliseconds.
+     */
+    private static final int SEARCHER_MAX_WAIT_MS = 2000;
+
+    /**
+     * Fields indexed in the language of their document.
+     */
+    private static final List<String> LANGUAGE_FIELDS = Lists.newArrayList("title", "content");
+
+    /**
+     * Delay before rebuilding the suggester after an index change, in milliseconds.
+     */
+    private static final long SUGGESTER_REBUILD_DELAY = 5000;
+
+    /**
+     * True if running without database in the index server.
+     */
+    private final boolean standalone;
+
+    /**
+     * Index directory of the standalone handler, null if in memory.
+     */
+    private final Path standalonePath;
+
     /**
      * Lucene directory.
      */
     private Directory directory;
 
     /**
-     * Directory reader.
+     * True if the index has been created on start up.
+     */
+    private boolean created;
+
+    /**
+     * Lucene directory storage type.
+     */
+    private String luceneStorage;
+
+    /**
+     * Analyzers by document language.
+     */
+    private LanguageAnalyzerRegistry analyzerRegistry;
+
+    /**
+     * Directory of the index snapshot loaded and saved by in memory storages, null if none.
+     */
+    private Path snapshotPath;
+
+    /**
+     * The index is in memory and no snapshot was found to load it from.
      */
-    private DirectoryReader directoryReader;
+    private boolean snapshotMissing;
 
     /**
      * Index writer.
      */
     private IndexWriter indexWriter;
 
+    /**
+     * Near real-time searcher manager.
+     */
+    private SearcherManager searcherManager;
+
+    /**
+     * Background thread refreshing the searchers.
+     */
+    private volatile ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+
+    /**
+     * Background executor committing the index.
+     */
+    private ScheduledExecutorService commitExecutor;
+
+    /**
+     * Maximum delay before committing a write, in milliseconds (0 to commit every write).
+     */
+    private final long commitInterval;
+
+    /**
+     * Number of writes triggering a commit.
+     */
+    private final int commitSize;
+
+    /**
+     * Number of writes since the last commit.
+     */
+    private final AtomicInteger pendingWriteCount = new AtomicInteger();
+
+    /**
+     * Generation of the last write.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Generation of the last commit.
+     */
+    private long committedGeneration;
+
+    /**
+     * Monitor notified on each commit.
+     */
+    private final Object commitMonitor = new Object();
+
+    /**
+     * Background executor rebuilding the suggester.
+     */
+    private ScheduledExecutorService suggesterExecutor;
+
+    /**
+     * Suggester on document titles, null if nothing is indexed.
+     */
+    private volatile FuzzySuggester suggester;
+
+    /**
+     * Version of the index reader the suggester is built from.
+     */
+    private volatile long suggesterVersion = -1;
+
+    /**
+     * Time of the first index change not in the suggester, 0 if the suggester is up to date.
+     */
+    private volatile long suggesterStaleSince;
+
+    /**
+     * Duration of the last suggester rebuild, in milliseconds.
+     */
+    private volatile long suggesterRebuildTime;
+
+    /**
+     * A suggester rebuild is scheduled.
+     */
+    private final AtomicBoolean suggesterRebuildScheduled = new AtomicBoolean();
+
+    /**
+     * Lock on suggester rebuilds.
+     */
+    private final Object suggesterLock = new Object();
+
+    /**
+     * Directory of the side index built during a rebuild, null if the index is in memory.
+     */
+    private Path rebuildPath;
+
+    /**
+     * Side index directory, while a rebuild is running.
+     */
+    private Directory rebuildDirectory;
+
+    /**
+     * Side index writer, while a rebuild is running.
+     */
+    private volatile IndexWriter rebuildWriter;
+
+    /**
+     * Lock shared by index writes, and held exclusively while swapping the rebuilt index in.
+     */
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+
+    /**
+     * Search filters are indexed along with new documents.
+     */
+    private boolean indexedFiltersEnabled;
+
+    /**
+     * Search filters are present in the whole index and can be used for searching.
+     */
+    private volatile boolean indexedFilters;
+
+    /**
+     * File contents are indexed with their offsets in the whole index.
+     */
+    private volatile boolean contentOffsets;
+
+    /**
+     * File contents are stored in the index.
+     */
+    private boolean storedContent;
+
+    /**
+     * Facets state of the last index reader faceted, null if none.
+     */
+    private SortedSetDocValuesReaderState facetState;
+
+    /**
+     * Create a Lucene indexing handler configured from the environment.
+     */
+    public LuceneIndexingHandler() {
+        this(EnvironmentUtil.getEnvLong(Constants.LUCENE_COMMIT_INTERVAL_ENV, Constants.DEFAULT_LUCENE_COMMIT_INTERVAL),
+                (int) EnvironmentUtil.getEnvLong(Constants.LUCENE_COMMIT_SIZE_ENV, Constants.DEFAULT_LUCENE_COMMIT_SIZE));
+    }
+
+    /**
+     * Create a Lucene indexing handler.
+     *
+     * @param commitInterval Maximum delay before committing a write, in milliseconds (0 to commit every write)
+     * @param commitSize Number of writes triggering a commit
+     */
+    LuceneIndexingHandler(long commitInterval, int commitSize) {
+        this.standalone = false;
+        this.standalonePath = null;
+        this.commitInterval = commitInterval;
+        this.commitSize = commitSize;
+    }
+
+    /**
+     * Create a standalone Lucene indexing handler, without database, for the index server.
+     * File contents are stored in the index, and search filters are not indexed.
+     *
+     * @param indexPath Index directory, null to keep the index in memory
+     * @param commitInterval Maximum delay before committing a write, in milliseconds (0 to commit every write)
+     * @param commitSize Number of writes triggering a commit
+     */
+    LuceneIndexingHandler(Path indexPath, long commitInterval, int commitSize) {
+        this.standalone = true;
+        this.standalonePath = indexPath;
+        this.commitInterval = commitInterval;
+        this.commitSize = commitSize;
+    }
+
     @Override
     public boolean accept() {
-        // Embedded Lucene can always start
-        return true;
+        // Embedded Lucene, unless an index server is configured
+        return Strings.isNullOrEmpty(System.getenv(Constants.INDEX_SERVER_ENV));
     }
 
     @Override
     public void startUp() throws Exception {
+        if (standalone) {
+            // The index server reports a needed rebuild to its clients
+            initLucene();
+            return;
+        }
+
         try {
             initLucene();
         } catch (Exception e) {
             // An error occurred initializing Lucene, the index is out of date or broken, delete everything
             log.info("Unable to initialize Lucene, cleaning up the index: " + e.getMessage());
-            Path luceneDirectory = DirectoryUtil.getLuceneDirectory();
-            Files.walk(luceneDirectory)
-                    .sorted(Comparator.reverseOrder())
-                    .map(Path::toFile)
-                    .forEach(java.io.File::delete);
+            deleteDirectory(DirectoryUtil.getLuceneDirectory());
 
             // Re-initialize and schedule a full reindex
             initLucene();
             RebuildIndexAsyncEvent rebuildIndexAsyncEvent = new RebuildIndexAsyncEvent();
             AppContext.getInstance().getAsyncEventBus().post(rebuildIndexAsyncEvent);
+            return;
+        }
+
+        if (isRebuildInterrupted()) {
+            // A rebuild has been interrupted, resume it
+            log.info("Resuming the interrupted index rebuild");
+            RebuildIndexAsyncEvent rebuildIndexAsyncEvent = new RebuildIndexAsyncEvent();
+            AppContext.getInstance().getAsyncEventBus().post(rebuildIndexAsyncEvent);
+        } else if (snapshotMissing) {
+            // The in memory index is empty, fill it
+            log.info("No index to load in memory, scheduling a full reindex");
+            RebuildIndexAsyncEvent rebuildIndexAsyncEvent = new RebuildIndexAsyncEvent();
+            AppContext.getInstance().getAsyncEventBus().post(rebuildIndexAsyncEvent);
+        } else if (indexedFiltersEnabled && !indexedFilters) {
+            // The index has been built without search filters, rebuild it
+            log.info("Search filters are not indexed yet, scheduling a full reindex");
+            RebuildIndexAsyncEvent rebuildIndexAsyncEvent = new RebuildIndexAsyncEvent();
+            AppContext.getInstance().getAsyncEventBus().post(rebuildIndexAsyncEvent);
+        } else if (!contentOffsets) {
+            // The index has been built without content offsets, rebuild it
+            log.info("File content offsets are not indexed yet, scheduling a full reindex");
+            RebuildIndexAsyncEvent rebuildIndexAsyncEvent = new RebuildIndexAsyncEvent();
+            AppContext.getInstance().getAsyncEventBus().post(rebuildIndexAsyncEvent);
         }
     }
 
     private void initLucene() throws Exception {
-        ConfigDao configDao = new ConfigDao();
-        Config luceneStorageConfig = configDao.getById(ConfigType.LUCENE_DIRECTORY_STORAGE);
-        String luceneStorage = luceneStorageConfig == null ? null : luceneStorageConfig.getValue();
+        if (standalone) {
+            luceneStorage = standalonePath == null ? "BYTEBUFFERS" : "FILE";
+        } else {
+            Config luceneStorageConfig = new ConfigDao().getById(ConfigType.LUCENE_DIRECTORY_STORAGE);
+            luceneStorage = luceneStorageConfig == null ? null : luceneStorageConfig.getValue();
+        }
 
         // RAM directory storage by default
-        if (luceneStorage == null || luceneStorage.equals("RAM")) {
+        snapshotPath = null;
+        snapshotMissing = false;
+        if (standalone) {
+            if (standalonePath == null) {
+                directory = createMemoryDirectory();
+                rebuildPath = null;
+                log.info("Using off-heap byte buffers Lucene storage");
+            } else {
+                log.info("Using file Lucene storage: {}", standalonePath);
+                directory = new NIOFSDirectory(standalonePath, NoLockFactory.INSTANCE);
+                rebuildPath = standalonePath.resolveSibling(standalonePath.getFileName() + "_rebuild");
+            }
+        } else if (luceneStorage == null || luceneStorage.equals("RAM")) {
             directory = new RAMDirectory();
+            rebuildPath = null;
             log.info("Using RAM Lucene storage");
+        } else if (luceneStorage.equals("BYTEBUFFERS")) {
+            // The index is loaded from the file storage and saved back on shut down,
+            // so the storage can be switched without a full reindex
+            directory = createMemoryDirectory();
+            rebuildPath = null;
+            snapshotPath = DirectoryUtil.getLuceneDirectory();
+            log.info("Using off-heap byte buffers Lucene storage");
         } else if (luceneStorage.equals("FILE")) {
             Path luceneDirectory = DirectoryUtil.getLuceneDirectory();
             log.info("Using file Lucene storage: {}", luceneDirectory);
             directory = new NIOFSDirectory(luceneDirectory, NoLockFactory.INSTANCE);
+            rebuildPath = DirectoryUtil.getLuceneRebuildDirectory();
+        } else if (luceneStorage.equals("MMAP")) {
+            Path luceneDirectory = DirectoryUtil.getLuceneDirectory();
+            log.info("Using memory-mapped file Lucene storage: {}", luceneDirectory);
+            directory = new MMapDirectory(luceneDirectory, NoLockFactory.INSTANCE);
+            rebuildPath = DirectoryUtil.getLuceneRebuildDirectory();
+        }
+        if (snapshotPath != null) {
+            loadSnapshot();
         }
 
-        // Create an index writer
-        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
-        config.setCommitOnClose(true);
-        config.setMergeScheduler(new ConcurrentMergeScheduler());
-        indexWriter = new IndexWriter(directory, config);
-
-        // Check index version and rebuild it if necessary
-        if (DirectoryReader.indexExists(directory)) {
+        // Check index version and rebuild it if necessary, before the index writer locks it
+        created = !DirectoryReader.indexExists(directory);
+        if (!created) {
             log.info("Checking index health and version");
             try (CheckIndex checkIndex = new CheckIndex(directory)) {
                 CheckIndex.Status status = checkIndex.checkIndex();
@@ -149,15 +551,122 @@ public class LuceneIndexingHandler implements IndexingHandler {
                 }
             }
         }
+
+        // Create an index writer, analyzing each field in its language
+        analyzerRegistry = new LanguageAnalyzerRegistry();
+        IndexWriterConfig config = new IndexWriterConfig(analyzerRegistry.getFieldAnalyzer());
+        config.setCommitOnClose(true);
+        config.setMergeScheduler(new ConcurrentMergeScheduler());
+        indexWriter = new IndexWriter(directory, config);
+
+        // Search filters and content offsets can be used only if the whole index has been built with them
+        indexedFiltersEnabled = !standalone && ConfigUtil.getConfigBooleanValue(ConfigType.LUCENE_INDEXED_FILTERS, false);
+        storedContent = standalone || ConfigUtil.getConfigBooleanValue(ConfigType.LUCENE_STORED_CONTENT, true);
+        indexedFilters = false;
+        contentOffsets = false;
+        if (indexWriter.getDocStats().maxDoc == 0) {
+            // Empty index, everything will be indexed with search filters and content offsets
+            setFormatCommitData();
+        } else {
+            Map<String, String> userData = SegmentInfos.readLatestCommit(directory).getUserData();
+            indexedFilters = indexedFiltersEnabled && Boolean.parseBoolean(userData.get(INDEXED_FILTERS_COMMIT_KEY));
+            contentOffsets = Boolean.parseBoolean(userData.get(CONTENT_OFFSETS_COMMIT_KEY));
+        }
+        log.info("Lucene search filters indexed: {}, content offsets indexed: {}, content stored: {}",
+                indexedFilters, contentOffsets, storedContent);
+        logFootprint();
+
+        // Near real-time searchers, refreshed in the background
+        searcherManager = new SearcherManager(indexWriter, null);
+        reopenThread = startReopenThread();
+
+        // Group commits in the background
+        commitExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lucene-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (commitInterval > 0) {
+            commitExecutor.scheduleWithFixedDelay(() -> {
+                if (indexWriter.hasUncommittedChanges()) {
+                    commit();
+                }
+            }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        }
+        log.info("Lucene commit interval: {}ms, commit size: {}", commitInterval, commitSize);
+
+        // Rebuild the suggester in the background when the index changes
+        suggesterExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lucene-suggester");
+            thread.setDaemon(true);
+            return thread;
+        });
+        searcherManager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() {
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                if (didRefresh) {
+                    scheduleSuggesterRebuild(SUGGESTER_REBUILD_DELAY);
+                }
+            }
+        });
+        scheduleSuggesterRebuild(0);
+    }
+
+    /**
+     * Start a thread refreshing the searchers in the background.
+     *
+     * @return Reopen thread
+     */
+    private ControlledRealTimeReopenThread<IndexSearcher> startReopenThread() {
+        ControlledRealTimeReopenThread<IndexSearcher> thread = new ControlledRealTimeReopenThread<>(indexWriter, searcherManager,
+                SEARCHER_MAX_STALE_SEC, SEARCHER_MIN_STALE_SEC);
+        thread.setName("lucene-reopen");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Mark the index as containing search filters if enabled, and content offsets, and commit.
+     *
+     * @throws IOException e
+     */
+    private void setFormatCommitData() throws IOException {
+        Map<String, String> userData = new HashMap<>();
+        userData.put(INDEXED_FILTERS_COMMIT_KEY, Boolean.toString(indexedFiltersEnabled));
+        userData.put(CONTENT_OFFSETS_COMMIT_KEY, Boolean.toString(true));
+        indexWriter.setLiveCommitData(userData.entrySet());
+        indexWriter.commit();
+        indexedFilters = indexedFiltersEnabled;
+        contentOffsets = true;
     }
 
     @Override
     public void shutDown() {
-        if (directoryReader != null) {
+        abortRebuild();
+        if (suggesterExecutor != null) {
+            suggesterExecutor.shutdownNow();
+        }
+        if (commitExecutor != null) {
+            commitExecutor.shutdown();
+            try {
+                commitExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (reopenThread != null) {
+            reopenThread.close();
+        }
+        if (searcherManager != null) {
             try {
-                directoryReader.close();
+                searcherManager.close();
             } catch (IOException e) {
-                log.error("Error closing the index reader", e);
+                log.error("Error closing the searcher manager", e);
             }
         }
         if (indexWriter != null) {
@@ -167,6 +676,13 @@ public class LuceneIndexingHandler implements IndexingHandler {
                 log.error("Error closing the index writer, index may be corrupt", e);
             }
         }
+        if (snapshotPath != null && directory != null) {
+            try {
+                saveSnapshot();
+            } catch (IOException e) {
+                log.error("Error saving the index, it will be rebuilt on next start up", e);
+            }
+        }
         if (directory != null) {
             try {
                 directory.close();
@@ -174,85 +690,728 @@ public class LuceneIndexingHandler implements IndexingHandler {
                 log.error("Error closing Lucene index", e);
             }
         }
+        if (analyzerRegistry != null) {
+            analyzerRegistry.close();
+        }
     }
 
     @Override
     public void clearIndex() {
-        handle(IndexWriter::deleteAll);
+        handle(indexWriter -> {
+            indexWriter.deleteAll();
+
+            // Everything will be reindexed with search filters and content offsets
+            setFormatCommitData();
+        });
+    }
+
+    /**
+     * Returns true if the index needs a full rebuild: new, interrupted while rebuilding,
+     * or built without content offsets.
+     *
+     * @return True if a rebuild is needed
+     * @throws IOException e
+     */
+    boolean isRebuildNeeded() throws IOException {
+        return created || snapshotMissing || isRebuildInterrupted() || !contentOffsets;
     }
 
     @Override
-    public void createDocuments(List<Document> documentList) {
-        handle(indexWriter -> {
-            for (Document document : documentList) {
-                org.apache.lucene.document.Document luceneDocument = getDocumentFromDocument(document);
-                indexWriter.addDocument(luceneDocument);
+    public synchronized Map<String, String> startRebuild() throws IOException {
+        if (rebuildWriter != null) {
+            throw new IllegalStateException("An index rebuild is already running");
+        }
+        if (rebuildDirectory == null) {
+            // An in memory side index is kept after an abort, so it can be resumed
+            rebuildDirectory = rebuildPath == null ? createMemoryDirectory() : new NIOFSDirectory(rebuildPath, NoLockFactory.INSTANCE);
+        }
+        Map<String, String> checkpoint = new HashMap<>();
+        if (DirectoryReader.indexExists(rebuildDirectory)) {
+            checkpoint.putAll(SegmentInfos.readLatestCommit(rebuildDirectory).getUserData());
+        }
+
+        IndexWriterConfig config = new IndexWriterConfig(analyzerRegistry.getFieldAnalyzer());
+        config.setMergeScheduler(new ConcurrentMergeScheduler());
+        IndexWriter writer = new IndexWriter(rebuildDirectory, config);
+        boolean sameIndexedFilters = Boolean.toString(indexedFiltersEnabled).equals(checkpoint.remove(INDEXED_FILTERS_COMMIT_KEY));
+        boolean sameContentOffsets = Boolean.parseBoolean(checkpoint.remove(CONTENT_OFFSETS_COMMIT_KEY));
+        if (!sameIndexedFilters || !sameContentOffsets) {
+            // Nothing to resume, or not with the same search filters and content offsets
+            checkpoint.clear();
+            writer.deleteAll();
+        }
+
+        // From now on, changes are also written in the side index
+        swapLock.writeLock().lock();
+        try {
+            rebuildWriter = writer;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        return checkpoint;
+    }
+
+    @Override
+    public void rebuildDocuments(List<Document> documentList) throws IOException {
+        IndexWriter writer = getRebuildWriter();
+        for (org.apache.lucene.document.Document luceneDocument : getDocumentsFromDocuments(documentList)) {
+            writer.updateDocument(new Term("id", luceneDocument.get("id")), luceneDocument);
+        }
+    }
+
+    @Override
+    public void rebuildFiles(List<File> fileList) throws IOException {
+        IndexWriter writer = getRebuildWriter();
+        for (org.apache.lucene.document.Document luceneDocument : getDocumentsFromFiles(fileList, storedContent, true)) {
+            writer.updateDocument(new Term("id", luceneDocument.get("id")), luceneDocument);
+        }
+    }
+
+    @Override
+    public void checkpointRebuild(Map<String, String> checkpoint) throws IOException {
+        Map<String, String> userData = new HashMap<>(checkpoint);
+        userData.put(INDEXED_FILTERS_COMMIT_KEY, Boolean.toString(indexedFiltersEnabled));
+        userData.put(CONTENT_OFFSETS_COMMIT_KEY, Boolean.toString(true));
+        IndexWriter writer = getRebuildWriter();
+        writer.setLiveCommitData(userData.entrySet());
+        writer.commit();
+    }
+
+    @Override
+    public synchronized void finishRebuild() throws IOException {
+        swapLock.writeLock().lock();
+        try {
+            IndexWriter writer = getRebuildWriter();
+            rebuildWriter = null;
+            writer.close();
+
+            // Replace the whole index in a single commit, searches keep the previous searcher
+            // until then since the searchers are not refreshed in the meantime
+            reopenThread.close();
+            try {
+                indexWriter.deleteAll();
+                indexWriter.addIndexes(rebuildDirectory);
+                setFormatCommitData();
+                generation.accumulateAndGet(indexWriter.getMaxCompletedSequenceNumber(), Math::max);
+                commit();
+            } finally {
+                searcherManager.maybeRefreshBlocking();
+                reopenThread = startReopenThread();
             }
-        });
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+
+        rebuildDirectory.close();
+        rebuildDirectory = null;
+        if (rebuildPath != null) {
+            deleteDirectory(rebuildPath);
+        }
+    }
+
+    @Override
+    public synchronized void abortRebuild() {
+        IndexWriter writer;
+        swapLock.writeLock().lock();
+        try {
+            writer = rebuildWriter;
+            rebuildWriter = null;
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            // Back to the last checkpoint
+            writer.rollback();
+            if (rebuildPath != null) {
+                rebuildDirectory.close();
+                rebuildDirectory = null;
+            }
+        } catch (IOException e) {
+            log.error("Error closing the side index", e);
+        }
+    }
+
+    /**
+     * Create an in memory directory, off heap with the byte buffers storage.
+     *
+     * @return In memory directory
+     */
+    private Directory createMemoryDirectory() {
+        if (!"BYTEBUFFERS".equals(luceneStorage)) {
+            return new ByteBuffersDirectory();
+        }
+        return new ByteBuffersDirectory(new SingleInstanceLockFactory(),
+                () -> new ByteBuffersDataOutput(ByteBuffersDataOutput.DEFAULT_MIN_BITS_PER_BLOCK,
+                        ByteBuffersDataOutput.DEFAULT_MAX_BITS_PER_BLOCK, ByteBuffer::allocateDirect, ByteBuffersDataOutput.NO_REUSE),
+                ByteBuffersDirectory.OUTPUT_AS_MANY_BUFFERS);
+    }
+
+    /**
+     * Load the in memory index from the snapshot in the file storage.
+     * The snapshot is deleted once loaded, since it won't follow the changes.
+     *
+     * @throws IOException e
+     */
+    private void loadSnapshot() throws IOException {
+        try (Directory snapshotDirectory = new NIOFSDirectory(snapshotPath, NoLockFactory.INSTANCE)) {
+            if (!DirectoryReader.indexExists(snapshotDirectory)) {
+                snapshotMissing = true;
+                return;
+            }
+            long start = System.currentTimeMillis();
+            copyIndex(snapshotDirectory, directory);
+            clearDirectory(snapshotDirectory);
+            log.info("Index loaded in memory from {} in {}ms", snapshotPath, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Save the in memory index as a snapshot in the file storage.
+     *
+     * @throws IOException e
+     */
+    private void saveSnapshot() throws IOException {
+        try (Directory snapshotDirectory = new NIOFSDirectory(snapshotPath, NoLockFactory.INSTANCE)) {
+            long start = System.currentTimeMillis();
+            copyIndex(directory, snapshotDirectory);
+            log.info("Index saved to {} in {}ms", snapshotPath, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Copy the last commit of an index to another directory, replacing its content.
+     * The segments file is copied last, so an interrupted copy is not seen as an index.
+     *
+     * @param from Source directory
+     * @param to Target directory
+     * @throws IOException e
+     */
+    private static void copyIndex(Directory from, Directory to) throws IOException {
+        clearDirectory(to);
+        SegmentInfos segmentInfos = SegmentInfos.readLatestCommit(from);
+        Collection<String> fileList = segmentInfos.files(false);
+        for (String file : fileList) {
+            to.copyFrom(from, file, file, IOContext.READONCE);
+        }
+        to.sync(fileList);
+        to.copyFrom(from, segmentInfos.getSegmentsFileName(), segmentInfos.getSegmentsFileName(), IOContext.READONCE);
+        to.sync(Collections.singleton(segmentInfos.getSegmentsFileName()));
+        to.syncMetaData();
+    }
+
+    /**
+     * Delete all files of a directory.
+     *
+     * @param directory Directory
+     * @throws IOException e
+     */
+    private static void clearDirectory(Directory directory) throws IOException {
+        for (String file : directory.listAll()) {
+            directory.deleteFile(file);
+        }
+    }
+
+    /**
+     * Log the size of the index and its memory footprint.
+     *
+     * @throws IOException e
+     */
+    private void logFootprint() throws IOException {
+        long indexSize = getIndexSize();
+        long heapSize = directory instanceof RAMDirectory ? indexSize : 0;
+        long offHeapSize = "BYTEBUFFERS".equals(luceneStorage) || "MMAP".equals(luceneStorage) ? indexSize : 0;
+
+        Map<String, Long> bufferPoolMap = new HashMap<>();
+        for (BufferPoolMXBean bufferPool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            bufferPoolMap.put(bufferPool.getName(), bufferPool.getMemoryUsed());
+        }
+        Runtime runtime = Runtime.getRuntime();
+        log.info("Lucene index size: {} ({} on heap, {} off heap), JVM heap used: {} of {}, direct buffers: {}, mapped buffers: {}",
+                FileUtils.byteCountToDisplaySize(indexSize),
+                FileUtils.byteCountToDisplaySize(heapSize),
+                FileUtils.byteCountToDisplaySize(offHeapSize),
+                FileUtils.byteCountToDisplaySize(runtime.totalMemory() - runtime.freeMemory()),
+                FileUtils.byteCountToDisplaySize(runtime.maxMemory()),
+                FileUtils.byteCountToDisplaySize(bufferPoolMap.getOrDefault("direct", 0L)),
+                FileUtils.byteCountToDisplaySize(bufferPoolMap.getOrDefault("mapped", 0L)));
+    }
+
+    /**
+     * Returns the size of the index files.
+     *
+     * @return Index size in bytes
+     * @throws IOException e
+     */
+    private long getIndexSize() throws IOException {
+        long indexSize = 0;
+        for (String file : directory.listAll()) {
+            try {
+                indexSize += directory.fileLength(file);
+            } catch (IOException e) {
+                // Deleted by a merge in the meantime
+            }
+        }
+        return indexSize;
+    }
+
+    /**
+     * Returns true if a rebuild has been interrupted and can be resumed.
+     *
+     * @return True if a side index exists
+     * @throws IOException e
+     */
+    private boolean isRebuildInterrupted() throws IOException {
+        if (rebuildPath == null) {
+            return false;
+        }
+        try (Directory rebuildDirectory = new NIOFSDirectory(rebuildPath, NoLockFactory.INSTANCE)) {
+            return DirectoryReader.indexExists(rebuildDirectory);
+        }
+    }
+
+    /**
+     * Returns the side index writer.
+     *
+     * @return Side index writer
+     */
+    private IndexWriter getRebuildWriter() {
+        IndexWriter writer = rebuildWriter;
+        if (writer == null) {
+            throw new IllegalStateException("No index rebuild is running");
+        }
+        return writer;
+    }
+
+    /**
+     * Delete a directory and its content.
+     *
+     * @param path Directory
+     * @throws IOException e
+     */
+    private void deleteDirectory(Path path) throws IOException {
+        try (Stream<Path> stream = Files.walk(path)) {
+            stream.sorted(Comparator.reverseOrder())
+                    .map(Path::toFile)
+                    .forEach(java.io.File::delete);
+        }
+    }
+
+    @Override
+    public void createDocuments(List<Document> documentList) {
+        // Documents may already be in a side index being rebuilt, update them
+        updateDocuments(documentList);
     }
 
     @Override
     public void createFiles(List<File> fileList) {
-        handle(indexWriter -> {
-            for (File file : fileList) {
-                org.apache.lucene.document.Document luceneDocument = getDocumentFromFile(file);
-                indexWriter.addDocument(luceneDocument);
+        List<org.apache.lucene.document.Document> luceneDocumentList = getDocumentsFromFiles(fileList, storedContent, true);
+        handle(writer -> {
+            for (org.apache.lucene.document.Document luceneDocument : luceneDocumentList) {
+                if (writer == indexWriter && !contentOffsets) {
+                    // The index has yet to be rebuilt with content offsets, a field cannot mix both
+                    luceneDocument = removeContentOffsets(luceneDocument);
+                }
+                writer.updateDocument(new Term("id", luceneDocument.get("id")), luceneDocument);
             }
         });
     }
 
     @Override
     public void createDocument(final Document document) {
-        handle(indexWriter -> {
-            org.apache.lucene.document.Document luceneDocument = getDocumentFromDocument(document);
-            indexWriter.addDocument(luceneDocument);
-        });
+        createDocuments(Collections.singletonList(document));
     }
 
     @Override
     public void createFile(final File file) {
-        handle(indexWriter -> {
-            org.apache.lucene.document.Document luceneDocument = getDocumentFromFile(file);
-            indexWriter.addDocument(luceneDocument);
-        });
+        createFiles(Collections.singletonList(file));
     }
 
     @Override
     public void updateFile(final File file) {
-        handle(indexWriter -> {
-            org.apache.lucene.document.Document luceneDocument = getDocumentFromFile(file);
-            indexWriter.updateDocument(new Term("id", file.getId()), luceneDocument);
-        });
+        createFiles(Collections.singletonList(file));
     }
 
     @Override
     public void updateDocument(final Document document) {
+        updateDocuments(Collections.singletonList(document));
+    }
+
+    /**
+     * Update a list of indexed documents.
+     *
+     * @param documentList Documents
+     */
+    private void updateDocuments(List<Document> documentList) {
+        List<org.apache.lucene.document.Document> luceneDocumentList;
+        try {
+            luceneDocumentList = getDocumentsFromDocuments(documentList);
+        } catch (IOException e) {
+            log.error("Error building the documents to index", e);
+            return;
+        }
         handle(indexWriter -> {
-            org.apache.lucene.document.Document luceneDocument = getDocumentFromDocument(document);
-            indexWriter.updateDocument(new Term("id", document.getId()), luceneDocument);
+            for (org.apache.lucene.document.Document luceneDocument : luceneDocumentList) {
+                indexWriter.updateDocument(new Term("id", luceneDocument.get("id")), luceneDocument);
+            }
         });
     }
 
-    @Override
-    public void deleteDocument(final String id) {
-        handle(indexWriter -> indexWriter.deleteDocuments(new Term("id", id)));
+    /**
+     * Apply a batch of write operations built by the remote indexing handler.
+     *
+     * @param operationList Operations
+     * @return Generation of the writes
+     */
+    long write(List<IndexProtocol.Operation> operationList) {
+        return handle(writer -> {
+            for (IndexProtocol.Operation operation : operationList) {
+                apply(writer, operation);
+            }
+        }, operationList.size());
+    }
+
+    /**
+     * Apply a batch of write operations built by the remote indexing handler to the side index only.
+     *
+     * @param operationList Operations
+     * @throws IOException e
+     */
+    void rebuild(List<IndexProtocol.Operation> operationList) throws IOException {
+        IndexWriter writer = getRebuildWriter();
+        for (IndexProtocol.Operation operation : operationList) {
+            apply(writer, operation);
+        }
+    }
+
+    /**
+     * Apply a write operation.
+     *
+     * @param writer Index writer
+     * @param operation Operation
+     * @throws IOException e
+     */
+    private void apply(IndexWriter writer, IndexProtocol.Operation operation) throws IOException {
+        switch (operation.type) {
+            case IndexProtocol.BULK_UPDATE: {
+                org.apache.lucene.document.Document luceneDocument = operation.document;
+                if (writer == indexWriter && !contentOffsets) {
+                    // The index has yet to be rebuilt with content offsets, a field cannot mix both
+                    luceneDocument = removeContentOffsets(luceneDocument);
+                }
+                writer.updateDocument(new Term("id", operation.id), luceneDocument);
+                break;
+            }
+            case IndexProtocol.BULK_DELETE:
+                writer.deleteDocuments(new Term("id", operation.id));
+                break;
+            case IndexProtocol.BULK_DELETE_ALL:
+                writer.deleteAll();
+                if (writer == indexWriter) {
+                    // Everything will be reindexed with content offsets
+                    setFormatCommitData();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown bulk operation: " + operation.type);
+        }
+    }
+
+    @Override
+    public void deleteDocument(final String id) {
+        handle(indexWriter -> indexWriter.deleteDocuments(new Term("id", id)));
+    }
+
+    @Override
+    public void createAcl(String sourceId, PermType perm, String targetId) {
+        updateAclSource(sourceId, perm);
+    }
+
+    @Override
+    public void deleteAcl(String sourceId, PermType perm, String targetId) {
+        updateAclSource(sourceId, perm);
+    }
+
+    /**
+     * Reindex the documents affected by an ACL change on a document or a tag.
+     *
+     * @param sourceId Source ID
+     * @param perm Permission type
+     */
+    private void updateAclSource(String sourceId, PermType perm) {
+        if (!indexedFiltersEnabled || perm != PermType.READ) {
+            // Only read ACLs are indexed
+            return;
+        }
+
+        DocumentDao documentDao = new DocumentDao();
+        Document document = documentDao.getById(sourceId);
+        if (document != null) {
+            updateDocument(document);
+        } else {
+            // Not a document, update all documents linked to this tag
+            for (List<Document> documentList : Lists.partition(documentDao.findByTagId(sourceId), 100)) {
+                updateDocuments(documentList);
+            }
+        }
+    }
+
+    @Override
+    public void findByCriteria(PaginatedList<DocumentDto> paginatedList, List<String> suggestionList, DocumentCriteria criteria, SortCriteria sortCriteria) throws Exception {
+        findByCriteria(paginatedList, suggestionList, null, criteria, sortCriteria);
+    }
+
+    @Override
+    public void findByCriteria(PaginatedList<DocumentDto> paginatedList, List<String> suggestionList, Map<String, Map<String, Integer>> facetMap,
+                               DocumentCriteria criteria, SortCriteria sortCriteria) throws Exception {
+        boolean fullTextSearch = !Strings.isNullOrEmpty(criteria.getSimpleSearch()) || !Strings.isNullOrEmpty(criteria.getFullSearch());
+        Sort sort = getIndexSort(sortCriteria);
+        if ((fullTextSearch || facetMap != null) && indexedFilters && sort != null && isIndexedCriteria(criteria)) {
+            // Filter, sort, paginate and facet in Lucene, then read the page from the database
+            findByCriteriaInIndex(paginatedList, facetMap, criteria, sort, fullTextSearch);
+            if (fullTextSearch) {
+                suggestSearchTerms(criteria.getFullSearch(), suggestionList);
+            }
+            return;
+        }
+
+        Set<String> documentIdSet = null;
+        if (fullTextSearch) {
+            documentIdSet = search(criteria);
+            if (documentIdSet.isEmpty()) {
+                // If the search doesn't find any document, the request should return nothing
+                documentIdSet.add(UUID.randomUUID().toString());
+            }
+
+            suggestSearchTerms(criteria.getFullSearch(), suggestionList);
+        }
+
+        // Perform the search
+        QueryParam queryParam = buildDatabaseQuery(criteria, documentIdSet);
+        List<Object[]> l = PaginatedLists.executePaginatedQuery(paginatedList, queryParam, sortCriteria);
+
+        // Assemble results, and highlight only the returned page
+        List<DocumentDto> documentDtoList = assembleResultList(l);
+        if (fullTextSearch && !documentDtoList.isEmpty()) {
+            Map<String, String> highlightMap = highlight(criteria, documentDtoList.stream()
+                    .map(DocumentDto::getId)
+                    .collect(Collectors.toList()));
+            for (DocumentDto documentDto : documentDtoList) {
+                documentDto.setHighlight(highlightMap.get(documentDto.getId()));
+            }
+        }
+
+        paginatedList.setResultList(documentDtoList);
+    }
+
+    /**
+     * Searches documents by criteria entirely in Lucene.
+     * Only the documents of the requested page are read from the database,
+     * with all criteria checked again to ignore stale index entries.
+     *
+     * @param paginatedList List of documents (updated by side effects)
+     * @param facetMap Count of documents by value, by facet (updated by side effects, can be null)
+     * @param criteria Search criteria
+     * @param sort Lucene sort
+     * @param fullTextSearch The criteria contain a fulltext search
+     * @throws Exception e
+     */
+    @SuppressWarnings("unchecked")
+    private void findByCriteriaInIndex(PaginatedList<DocumentDto> paginatedList, Map<String, Map<String, Integer>> facetMap,
+                                       DocumentCriteria criteria, Sort sort, boolean fullTextSearch) throws Exception {
+        List<String> documentIdList = new ArrayList<>();
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder()
+                    .add(new TermQuery(new Term("doctype", "document")), BooleanClause.Occur.FILTER);
+            if (fullTextSearch) {
+                // Fulltext query on documents, and on their files through a join on the document ID
+                Set<String> languageSet = getSearchLanguages(searcher, criteria);
+                String searchQuery = criteria.getSimpleSearch() + " " + criteria.getFullSearch();
+                Query fileQuery = buildFileQuery(analyzerRegistry, languageSet, searchQuery, criteria.getFullSearch());
+                queryBuilder.add(new BooleanQuery.Builder()
+                        .add(buildDocumentQuery(analyzerRegistry, languageSet, searchQuery), BooleanClause.Occur.SHOULD)
+                        .add(JoinUtil.createJoinQuery("document_id", false, "id", fileQuery, searcher, ScoreMode.Max), BooleanClause.Occur.SHOULD)
+                        .build(), BooleanClause.Occur.MUST);
+            }
+
+            // Add search criterias
+            if (!SecurityUtil.skipAclCheck(criteria.getTargetIdList())) {
+                List<BytesRef> targetIdList = criteria.getTargetIdList().stream().map(BytesRef::new).collect(Collectors.toList());
+                queryBuilder.add(new TermInSetQuery("acl", targetIdList), BooleanClause.Occur.FILTER);
+            }
+            for (List<String> tagIdList : criteria.getTagIdList()) {
+                BooleanQuery.Builder tagQueryBuilder = new BooleanQuery.Builder();
+                for (String tagId : tagIdList) {
+                    tagQueryBuilder.add(new TermQuery(new Term("tag", tagId)), BooleanClause.Occur.SHOULD);
+                }
+                queryBuilder.add(tagQueryBuilder.build(), BooleanClause.Occur.FILTER);
+            }
+            for (List<String> tagIdList : criteria.getExcludedTagIdList()) {
+                for (String tagId : tagIdList) {
+                    queryBuilder.add(new TermQuery(new Term("tag", tagId)), BooleanClause.Occur.MUST_NOT);
+                }
+            }
+            if (criteria.getCreateDateMin() != null || criteria.getCreateDateMax() != null) {
+                queryBuilder.add(LongPoint.newRangeQuery("create_date",
+                        criteria.getCreateDateMin() == null ? Long.MIN_VALUE : criteria.getCreateDateMin().getTime(),
+                        criteria.getCreateDateMax() == null ? Long.MAX_VALUE : criteria.getCreateDateMax().getTime()), BooleanClause.Occur.FILTER);
+            }
+            if (criteria.getUpdateDateMin() != null || criteria.getUpdateDateMax() != null) {
+                queryBuilder.add(LongPoint.newRangeQuery("update_date",
+                        criteria.getUpdateDateMin() == null ? Long.MIN_VALUE : criteria.getUpdateDateMin().getTime(),
+                        criteria.getUpdateDateMax() == null ? Long.MAX_VALUE : criteria.getUpdateDateMax().getTime()), BooleanClause.Occur.FILTER);
+            }
+            if (criteria.getMimeType() != null) {
+                queryBuilder.add(new TermQuery(new Term("mime_type", criteria.getMimeType())), BooleanClause.Occur.FILTER);
+            }
+            if (criteria.getLanguage() != null) {
+                queryBuilder.add(new TermQuery(new Term("language", criteria.getLanguage())), BooleanClause.Occur.FILTER);
+            }
+            if (criteria.getCreatorId() != null) {
+                queryBuilder.add(new TermQuery(new Term("creator", criteria.getCreatorId())), BooleanClause.Occur.FILTER);
+            }
+
+            // Search and keep only the requested page, the total and the facets are counted in the same pass
+            int numHits = Math.max(paginatedList.getOffset() + paginatedList.getLimit(), 1);
+            TopFieldCollector topCollector = TopFieldCollector.create(sort, numHits, numHits);
+            TotalHitCountCollector countCollector = new TotalHitCountCollector();
+            FacetsCollector facetsCollector = facetMap == null ? null : new FacetsCollector();
+            searcher.search(queryBuilder.build(), MultiCollector.wrap(topCollector, countCollector, facetsCollector));
+            TopDocs topDocs = topCollector.topDocs(paginatedList.getOffset(), paginatedList.getLimit());
+            paginatedList.setResultCount(countCollector.getTotalHits());
+            if (facetsCollector != null) {
+                countFacets(searcher.getIndexReader(), facetsCollector, facetMap);
+            }
+
+            // Extract document IDs of the page
+            for (ScoreDoc doc : topDocs.scoreDocs) {
+                documentIdList.add(searcher.doc(doc.doc, Collections.singleton("id")).get("id"));
+            }
+        } finally {
+            searcherManager.release(searcher);
+        }
+
+        if (documentIdList.isEmpty()) {
+            paginatedList.setResultList(new ArrayList<>());
+            return;
+        }
+
+        // Read the page from the database, keeping the index order
+        QueryParam queryParam = buildDatabaseQuery(criteria, documentIdList);
+        List<Object[]> l = QueryUtil.getNativeQuery(queryParam).getResultList();
+        Map<String, String> highlightMap = highlight(criteria, documentIdList);
+        Map<String, DocumentDto> documentDtoMap = new HashMap<>();
+        for (DocumentDto documentDto : assembleResultList(l)) {
+            documentDto.setHighlight(highlightMap.get(documentDto.getId()));
+            documentDtoMap.put(documentDto.getId(), documentDto);
+        }
+        List<DocumentDto> documentDtoList = new ArrayList<>();
+        for (String documentId : documentIdList) {
+            DocumentDto documentDto = documentDtoMap.get(documentId);
+            if (documentDto != null) {
+                documentDtoList.add(documentDto);
+            }
+        }
+
+        paginatedList.setResultList(documentDtoList);
+    }
+
+    /**
+     * Count the collected documents by facet.
+     *
+     * @param reader Index reader searched
+     * @param facetsCollector Collector of the matching documents
+     * @param facetMap Count of documents by value, by facet (updated by side effects)
+     * @throws IOException e
+     */
+    private void countFacets(IndexReader reader, FacetsCollector facetsCollector, Map<String, Map<String, Integer>> facetMap) throws IOException {
+        SortedSetDocValuesReaderState state = getFacetState(reader);
+        if (state == null) {
+            return;
+        }
+        Facets facets = new SortedSetDocValuesFacetCounts(state, facetsCollector);
+        for (String facet : FACETS) {
+            Map<String, Integer> countMap = new LinkedHashMap<>();
+            if (state.getOrdRange(facet) != null) {
+                FacetResult facetResult = facets.getTopChildren(MAX_FACET_VALUES, facet);
+                if (facetResult != null) {
+                    for (LabelAndValue labelAndValue : facetResult.labelValues) {
+                        countMap.put(labelAndValue.label, labelAndValue.value.intValue());
+                    }
+                }
+            }
+            facetMap.put(facet, countMap);
+        }
     }
 
-    @Override
-    public void createAcl(String sourceId, PermType perm, String targetId) {
-        // Lucene does not index ACLs
+    /**
+     * Returns the facets state of an index reader, built once per reader.
+     *
+     * @param reader Index reader
+     * @return Facets state, null if nothing is faceted in this reader
+     * @throws IOException e
+     */
+    private synchronized SortedSetDocValuesReaderState getFacetState(IndexReader reader) throws IOException {
+        if (facetState == null || facetState.getReader() != reader) {
+            if (FieldInfos.getMergedFieldInfos(reader).fieldInfo(FacetsConfig.DEFAULT_INDEX_FIELD_NAME) == null) {
+                return null;
+            }
+            facetState = new DefaultSortedSetDocValuesReaderState(reader, FacetsConfig.DEFAULT_INDEX_FIELD_NAME);
+        }
+        return facetState;
     }
 
-    @Override
-    public void deleteAcl(String sourceId, PermType perm, String targetId) {
-        // Lucene does not index ACLs
+    /**
+     * Returns true if all search criteria are indexed in Lucene.
+     *
+     * @param criteria Search criteria
+     * @return True if the search can be done in Lucene
+     */
+    private boolean isIndexedCriteria(DocumentCriteria criteria) {
+        return !Boolean.TRUE.equals(criteria.getShared())
+                && !Boolean.TRUE.equals(criteria.getActiveRoute())
+                && criteria.getTitleList().isEmpty();
     }
 
-    @Override
-    public void findByCriteria(PaginatedList<DocumentDto> paginatedList, List<String> suggestionList, DocumentCriteria criteria, SortCriteria sortCriteria) throws Exception {
+    /**
+     * Returns the Lucene sort matching a database sort criteria.
+     *
+     * @param sortCriteria Sort criteria
+     * @return Lucene sort, or null if the column is not sortable in Lucene
+     */
+    private Sort getIndexSort(SortCriteria sortCriteria) {
+        if (sortCriteria == null) {
+            return Sort.RELEVANCE;
+        }
+        boolean reverse = !sortCriteria.isAsc();
+        switch (sortCriteria.getColumn()) {
+            case 0:
+                return new Sort(new SortField("document_id", SortField.Type.STRING, reverse));
+            case 1:
+                return new Sort(new SortField("title_sort", SortField.Type.STRING, reverse), SortField.FIELD_SCORE);
+            case 3:
+                return new Sort(new SortField("create_date", SortField.Type.LONG, reverse), SortField.FIELD_SCORE);
+            case 8:
+                return new Sort(new SortField("update_date", SortField.Type.LONG, reverse), SortField.FIELD_SCORE);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Build the database query searching documents by criteria.
+     *
+     * @param criteria Search criteria
+     * @param documentIdList Restrict the search to these documents (can be null)
+     * @return Query parameters
+     */
+    static QueryParam buildDatabaseQuery(DocumentCriteria criteria, Collection<String> documentIdList) {
         Map<String, Object> parameterMap = new HashMap<>();
         List<String> criteriaList = new ArrayList<>();
-        Map<String, String> documentSearchMap = Maps.newHashMap();
 
         StringBuilder sb = new StringBuilder("select distinct d.DOC_ID_C c0, d.DOC_TITLE_C c1, d.DOC_DESCRIPTION_C c2, d.DOC_CREATEDATE_D c3, d.DOC_LANGUAGE_C c4, d.DOC_IDFILE_C, ");
         sb.append(" s.count c5, ");
@@ -276,16 +1435,9 @@ public class LuceneIndexingHandler implements IndexingHandler {
             criteriaList.add("(a.ACL_ID_C is not null or a2.ACL_ID_C is not null)");
         }
         parameterMap.put("targetIdList", criteria.getTargetIdList());
-        if (!Strings.isNullOrEmpty(criteria.getSimpleSearch()) || !Strings.isNullOrEmpty(criteria.getFullSearch())) {
-            documentSearchMap = search(criteria.getSimpleSearch(), criteria.getFullSearch());
-            if (documentSearchMap.isEmpty()) {
-                // If the search doesn't find any document, the request should return nothing
-                documentSearchMap.put(UUID.randomUUID().toString(), null);
-            }
+        if (documentIdList != null) {
             criteriaList.add("d.DOC_ID_C in :documentIdList");
-            parameterMap.put("documentIdList", documentSearchMap.keySet());
-
-            suggestSearchTerms(criteria.getFullSearch(), suggestionList);
+            parameterMap.put("documentIdList", documentIdList);
         }
         if (criteria.getCreateDateMin() != null) {
             criteriaList.add("d.DOC_CREATEDATE_D >= :createDateMin");
@@ -358,11 +1510,16 @@ public class LuceneIndexingHandler implements IndexingHandler {
         sb.append(" where ");
         sb.append(Joiner.on(" and ").join(criteriaList));
 
-        // Perform the search
-        QueryParam queryParam = new QueryParam(sb.toString(), parameterMap);
-        List<Object[]> l = PaginatedLists.executePaginatedQuery(paginatedList, queryParam, sortCriteria);
+        return new QueryParam(sb.toString(), parameterMap);
+    }
 
-        // Assemble results
+    /**
+     * Assemble the documents returned by the database query.
+     *
+     * @param l Query results
+     * @return List of documents
+     */
+    static List<DocumentDto> assembleResultList(List<Object[]> l) {
         List<DocumentDto> documentDtoList = new ArrayList<>();
         for (Object[] o : l) {
             int i = 0;
@@ -378,29 +1535,25 @@ public class LuceneIndexingHandler implements IndexingHandler {
             documentDto.setActiveRoute(o[i++] != null);
             documentDto.setCurrentStepName((String) o[i++]);
             documentDto.setUpdateTimestamp(((Timestamp) o[i]).getTime());
-            documentDto.setHighlight(documentSearchMap.get(documentDto.getId()));
             documentDtoList.add(documentDto);
         }
 
-        paginatedList.setResultList(documentDtoList);
+        return documentDtoList;
     }
 
     /**
      * Suggest search terms according to the user query.
+     * Suggestions come from a suggester rebuilt in the background when the index changes.
      *
      * @param search User search query
      * @param suggestionList Suggestion of search query (updated by side effects)
      * @throws Exception e
      */
-    private void suggestSearchTerms(String search, List<String> suggestionList) throws Exception {
-        DirectoryReader directoryReader = getDirectoryReader();
-        if (directoryReader == null) {
+    void suggestSearchTerms(String search, List<String> suggestionList) throws Exception {
+        FuzzySuggester suggester = this.suggester;
+        if (suggester == null) {
             return;
         }
-
-        FuzzySuggester suggester = new FuzzySuggester(directory, "", new StandardAnalyzer());
-        LuceneDictionary dictionary = new LuceneDictionary(directoryReader, "title");
-        suggester.build(dictionary);
         int lastIndex = search.lastIndexOf(' ');
         String suggestQuery = search.substring(Math.max(lastIndex, 0));
         List<Lookup.LookupResult> lookupResultList = suggester.lookup(suggestQuery, false, 10);
@@ -409,74 +1562,301 @@ public class LuceneIndexingHandler implements IndexingHandler {
         }
     }
 
+    /**
+     * Schedule a rebuild of the suggester, if none is scheduled yet.
+     *
+     * @param delay Delay in milliseconds
+     */
+    private void scheduleSuggesterRebuild(long delay) {
+        if (suggesterStaleSince == 0) {
+            suggesterStaleSince = System.currentTimeMillis();
+        }
+        if (suggesterRebuildScheduled.compareAndSet(false, true)) {
+            suggesterExecutor.schedule(() -> {
+                suggesterRebuildScheduled.set(false);
+                rebuildSuggester();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Rebuild the suggester from the current searcher, if it has changed.
+     */
+    void rebuildSuggester() {
+        synchronized (suggesterLock) {
+            long start = System.currentTimeMillis();
+            try {
+                IndexSearcher searcher = acquireSearcher();
+                try {
+                    DirectoryReader reader = (DirectoryReader) searcher.getIndexReader();
+                    if (reader.getVersion() == suggesterVersion) {
+                        return;
+                    }
+
+                    FuzzySuggester newSuggester = null;
+                    if (reader.maxDoc() > 0) {
+                        try (Directory tempDirectory = new ByteBuffersDirectory()) {
+                            newSuggester = new FuzzySuggester(tempDirectory, "suggester", new StandardAnalyzer());
+                            newSuggester.build(new LuceneDictionary(reader, "title"));
+                        }
+                    }
+                    suggester = newSuggester;
+                    suggesterVersion = reader.getVersion();
+                    suggesterStaleSince = isSearcherVersion(reader.getVersion()) ? 0 : start;
+                } finally {
+                    searcherManager.release(searcher);
+                }
+            } catch (Exception e) {
+                log.error("Error rebuilding the suggester", e);
+            }
+            suggesterRebuildTime = System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * Returns true if the current searcher reads this version of the index.
+     *
+     * @param version Index reader version
+     * @return True if the current searcher reads this version
+     * @throws IOException e
+     */
+    private boolean isSearcherVersion(long version) throws IOException {
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            return ((DirectoryReader) searcher.getIndexReader()).getVersion() == version;
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new HashMap<>();
+        long suggesterStaleSince = this.suggesterStaleSince;
+        metrics.put("suggester_rebuild_time", suggesterRebuildTime);
+        metrics.put("suggester_staleness", suggesterStaleSince == 0 ? 0 : System.currentTimeMillis() - suggesterStaleSince);
+        metrics.put("index_entries", (long) indexWriter.getDocStats().numDocs);
+        try {
+            metrics.put("index_size", getIndexSize());
+        } catch (IOException e) {
+            log.error("Error reading the index size", e);
+        }
+        return metrics;
+    }
+
     /**
      * Fulltext search in files and documents.
      *
-     * @param simpleSearchQuery Search query on metadatas
-     * @param fullSearchQuery Search query on all fields
-     * @return Map of document IDs as key and highlight as value
+     * @param criteria Search criteria
+     * @return Set of document IDs
      * @throws Exception e
      */
-    private Map<String, String> search(String simpleSearchQuery, String fullSearchQuery) throws Exception {
-        // The fulltext query searches in all fields
-        String searchQuery = simpleSearchQuery + " " + fullSearchQuery;
-
-        // Build search query
-        Analyzer analyzer = new StandardAnalyzer();
+    Set<String> search(DocumentCriteria criteria) throws Exception {
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            return search(searcher, analyzerRegistry, criteria);
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
 
-        // Search on documents and files
+    /**
+     * Fulltext search in files and documents with a searcher.
+     * File hits are collapsed onto their document, without loading stored fields.
+     *
+     * @param searcher Searcher
+     * @param analyzerRegistry Language analyzers
+     * @param criteria Search criteria
+     * @return Set of document IDs
+     * @throws IOException e
+     */
+    static Set<String> search(IndexSearcher searcher, LanguageAnalyzerRegistry analyzerRegistry, DocumentCriteria criteria) throws IOException {
+        // The fulltext query searches in all fields, on documents and files
+        Set<String> languageSet = getSearchLanguages(searcher, criteria);
+        String searchQuery = criteria.getSimpleSearch() + " " + criteria.getFullSearch();
         BooleanQuery query = new BooleanQuery.Builder()
-                .add(buildQueryParser(analyzer, "title").parse(searchQuery), BooleanClause.Occur.SHOULD)
-                .add(buildQueryParser(analyzer, "description").parse(searchQuery), BooleanClause.Occur.SHOULD)
-                .add(buildQueryParser(analyzer, "subject").parse(searchQuery), BooleanClause.Occur.SHOULD)
-                .add(buildQueryParser(analyzer, "identifier").parse(searchQuery), BooleanClause.Occur.SHOULD)
-                .add(buildQueryParser(analyzer, "publisher").parse(searchQuery), BooleanClause.Occur.SHOULD)
-                .add(buildQueryParser(analyzer, "format").parse(searchQuery), BooleanClause.Occur.SHOULD)
-                .add(buildQueryParser(analyzer, "source").parse(searchQuery), BooleanClause.Occur.SHOULD)
-                .add(buildQueryParser(analyzer, "type").parse(searchQuery), BooleanClause.Occur.SHOULD)
-                .add(buildQueryParser(analyzer, "coverage").parse(searchQuery), BooleanClause.Occur.SHOULD)
-                .add(buildQueryParser(analyzer, "rights").parse(searchQuery), BooleanClause.Occur.SHOULD)
-                .add(buildQueryParser(analyzer, "filename").parse(searchQuery), BooleanClause.Occur.SHOULD)
-                .add(buildQueryParser(analyzer, "content").parse(fullSearchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildDocumentQuery(analyzerRegistry, languageSet, searchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildFileQuery(analyzerRegistry, languageSet, searchQuery, criteria.getFullSearch()), BooleanClause.Occur.SHOULD)
                 .build();
 
-        // Search
-        DirectoryReader directoryReader = getDirectoryReader();
-        Map<String, String> documentMap = Maps.newHashMap();
-        if (directoryReader == null) {
-            // The directory reader is not yet initialized (probably because there is nothing indexed)
-            return documentMap;
-        }
-        IndexSearcher searcher = new IndexSearcher(directoryReader);
-        TopDocs topDocs = searcher.search(query, Integer.MAX_VALUE);
-        ScoreDoc[] docs = topDocs.scoreDocs;
-
-        SimpleHTMLFormatter simpleHTMLFormatter = new SimpleHTMLFormatter("<strong>", "</strong>");
-        SimpleHTMLEncoder simpleHTMLEncoder = new SimpleHTMLEncoder();
-        Highlighter highlighter = new Highlighter(simpleHTMLFormatter, simpleHTMLEncoder, new QueryScorer(query));
-
-        // Extract document IDs and highlights
-        for (ScoreDoc doc : docs) {
-            org.apache.lucene.document.Document document = searcher.doc(doc.doc);
-            String type = document.get("doctype");
-            String documentId = null;
-            String highlight = null;
-            if (type.equals("document")) {
-                documentId = document.get("id");
-            } else if (type.equals("file")) {
-                documentId = document.get("document_id");
-                String content = document.get("content");
+        DocumentIdCollector collector = new DocumentIdCollector();
+        searcher.search(query, collector);
+        return collector.getDocumentIdSet();
+    }
+
+    /**
+     * Highlight the best matching file content of some documents.
+     *
+     * @param criteria Search criteria
+     * @param documentIdList Document IDs
+     * @return Map of document IDs as key and highlight as value
+     * @throws Exception e
+     */
+    Map<String, String> highlight(DocumentCriteria criteria, List<String> documentIdList) throws Exception {
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            // Contents are always stored by the standalone handler
+            return highlight(searcher, analyzerRegistry, criteria, documentIdList,
+                    fileIdList -> standalone ? Collections.emptyMap() : new FileDao().getContentsByIds(fileIdList));
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    /**
+     * Highlight the best matching file content of some documents with a searcher.
+     * Contents are highlighted from their indexed offsets, or analyzed again if they have none.
+     *
+     * @param searcher Searcher
+     * @param analyzerRegistry Language analyzers
+     * @param criteria Search criteria
+     * @param documentIdList Document IDs
+     * @param contentLoader Loader of the contents not stored in the index, by file ID
+     * @return Map of document IDs as key and highlight as value
+     * @throws Exception e
+     */
+    static Map<String, String> highlight(IndexSearcher searcher, LanguageAnalyzerRegistry analyzerRegistry,
+                                         DocumentCriteria criteria, List<String> documentIdList,
+                                         Function<Collection<String>, Map<String, String>> contentLoader) throws Exception {
+        Set<String> languageSet = getSearchLanguages(searcher, criteria);
+        String searchQuery = criteria.getSimpleSearch() + " " + criteria.getFullSearch();
+        Query fileQuery = buildFileQuery(analyzerRegistry, languageSet, searchQuery, criteria.getFullSearch());
+
+        // Find the best matching file of each document, by content field
+        Map<String, Map<Integer, String>> documentIdMap = new HashMap<>();
+        Map<Integer, String> contentMap = new HashMap<>();
+        Map<Integer, String> fileIdMap = new HashMap<>();
+        for (String documentId : documentIdList) {
+            Query documentFileQuery = new BooleanQuery.Builder()
+                    .add(fileQuery, BooleanClause.Occur.MUST)
+                    .add(new TermQuery(new Term("document_id", documentId)), BooleanClause.Occur.FILTER)
+                    .build();
+            ScoreDoc[] fileDocs = searcher.search(documentFileQuery, 1).scoreDocs;
+            if (fileDocs.length > 0) {
+                int doc = fileDocs[0].doc;
+                org.apache.lucene.document.Document fileDocument = searcher.doc(doc, HIGHLIGHT_FIELDS);
+                String field = LanguageAnalyzerRegistry.getField("content", fileDocument.get("language"));
+                documentIdMap.computeIfAbsent(field, k -> new HashMap<>()).put(doc, documentId);
+                String content = fileDocument.get("content");
+                if (content == null) {
+                    fileIdMap.put(doc, fileDocument.get("id"));
+                } else {
+                    contentMap.put(doc, content);
+                }
+            }
+        }
+
+        // Contents not stored in the index are read at once
+        if (!fileIdMap.isEmpty()) {
+            Map<String, String> loadedContentMap = contentLoader.apply(fileIdMap.values());
+            for (Map.Entry<Integer, String> entry : fileIdMap.entrySet()) {
+                String content = loadedContentMap.get(entry.getValue());
                 if (content != null) {
-                    highlight = highlighter.getBestFragment(analyzer, "content", content);
+                    contentMap.put(entry.getKey(), content);
                 }
             }
+        }
 
-            if (documentId != null) {
-                documentMap.put(documentId, highlight);
+        // Highlight the files having a content, field by field
+        Map<String, String> highlightMap = new HashMap<>();
+        ContentHighlighter highlighter = new ContentHighlighter(searcher, analyzerRegistry.getFieldAnalyzer(), contentMap);
+        for (Map.Entry<String, Map<Integer, String>> entry : documentIdMap.entrySet()) {
+            int[] docs = entry.getValue().keySet().stream()
+                    .filter(contentMap::containsKey)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            if (docs.length == 0) {
+                continue;
+            }
+            String[] highlights = highlighter.highlightFields(new String[] { entry.getKey() }, fileQuery, docs, new int[] { 1 })
+                    .get(entry.getKey());
+            for (int i = 0; i < docs.length; i++) {
+                highlightMap.put(entry.getValue().get(docs[i]), highlights[i]);
+            }
+        }
+        return highlightMap;
+    }
+
+    /**
+     * Returns the languages to search in: the language searched for, or all indexed languages.
+     *
+     * @param searcher Searcher
+     * @param criteria Search criteria
+     * @return Languages
+     */
+    static Set<String> getSearchLanguages(IndexSearcher searcher, DocumentCriteria criteria) {
+        if (criteria.getLanguage() != null) {
+            return Collections.singleton(criteria.getLanguage());
+        }
+        Set<String> languageSet = new HashSet<>();
+        for (FieldInfo fieldInfo : FieldInfos.getMergedFieldInfos(searcher.getIndexReader())) {
+            for (String field : LANGUAGE_FIELDS) {
+                String language = LanguageAnalyzerRegistry.getLanguage(fieldInfo.name, field);
+                if (language != null) {
+                    languageSet.add(language);
+                }
             }
         }
+        return languageSet;
+    }
+
+    /**
+     * Build the fulltext query on documents fields.
+     *
+     * @param analyzerRegistry Language analyzers
+     * @param languageSet Languages to search in
+     * @param searchQuery Search query
+     * @return Query
+     */
+    private static Query buildDocumentQuery(LanguageAnalyzerRegistry analyzerRegistry, Set<String> languageSet, String searchQuery) {
+        return new BooleanQuery.Builder()
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "title", searchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "description", searchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "subject", searchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "identifier", searchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "publisher", searchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "format", searchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "source", searchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "type", searchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "coverage", searchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "rights", searchQuery), BooleanClause.Occur.SHOULD)
+                .build();
+    }
+
+    /**
+     * Build the fulltext query on files fields.
+     *
+     * @param analyzerRegistry Language analyzers
+     * @param languageSet Languages to search in
+     * @param searchQuery Search query on metadatas
+     * @param fullSearchQuery Search query on the content
+     * @return Query
+     */
+    private static Query buildFileQuery(LanguageAnalyzerRegistry analyzerRegistry, Set<String> languageSet, String searchQuery, String fullSearchQuery) {
+        return new BooleanQuery.Builder()
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "filename", searchQuery), BooleanClause.Occur.SHOULD)
+                .add(buildFieldQuery(analyzerRegistry, languageSet, "content", fullSearchQuery), BooleanClause.Occur.SHOULD)
+                .build();
+    }
 
-        return documentMap;
+    /**
+     * Build the fulltext query on a field, in each language with its analyzer.
+     * The field without language is searched too, for entries indexed before languages.
+     *
+     * @param analyzerRegistry Language analyzers
+     * @param languageSet Languages to search in
+     * @param field Field
+     * @param searchQuery Search query
+     * @return Query
+     */
+    private static Query buildFieldQuery(LanguageAnalyzerRegistry analyzerRegistry, Set<String> languageSet, String field, String searchQuery) {
+        BooleanQuery.Builder queryBuilder = new BooleanQuery.Builder()
+                .add(buildQueryParser(analyzerRegistry.getAnalyzer(null), field).parse(searchQuery), BooleanClause.Occur.SHOULD);
+        for (String language : languageSet) {
+            queryBuilder.add(buildQueryParser(analyzerRegistry.getAnalyzer(language),
+                    LanguageAnalyzerRegistry.getField(field, language)).parse(searchQuery), BooleanClause.Occur.SHOULD);
+        }
+        return queryBuilder.build();
     }
 
     /**
@@ -486,124 +1866,409 @@ public class LuceneIndexingHandler implements IndexingHandler {
      * @param field Field
      * @return Query parser
      */
-    private SimpleQueryParser buildQueryParser(Analyzer analyzer, String field) {
+    private static SimpleQueryParser buildQueryParser(Analyzer analyzer, String field) {
         SimpleQueryParser simpleQueryParser = new SimpleQueryParser(analyzer, field);
         simpleQueryParser.setDefaultOperator(BooleanClause.Occur.MUST); // AND all the terms
         return simpleQueryParser;
     }
 
+    /**
+     * Build Lucene documents from database documents, with their search filters if enabled.
+     *
+     * @param documentList Documents
+     * @return Lucene documents
+     * @throws IOException e
+     */
+    private List<org.apache.lucene.document.Document> getDocumentsFromDocuments(List<Document> documentList) throws IOException {
+        Map<String, Set<String>> targetIdMap = Collections.emptyMap();
+        Map<String, Set<String>> tagIdMap = Collections.emptyMap();
+        Map<String, Set<String>> mimeTypeMap = Collections.emptyMap();
+        if (indexedFiltersEnabled && !documentList.isEmpty()) {
+            List<String> documentIdList = documentList.stream().map(Document::getId).collect(Collectors.toList());
+            targetIdMap = new AclDao().getReadTargetIdsByDocumentsIds(documentIdList);
+            tagIdMap = new TagDao().getTagIdsByDocumentsIds(documentIdList);
+            mimeTypeMap = new FileDao().getMimeTypesByDocumentsIds(documentIdList);
+        }
+
+        List<org.apache.lucene.document.Document> luceneDocumentList = new ArrayList<>();
+        for (Document document : documentList) {
+            org.apache.lucene.document.Document luceneDocument = getDocumentFromDocument(document);
+            if (indexedFiltersEnabled) {
+                for (String targetId : targetIdMap.getOrDefault(document.getId(), Collections.emptySet())) {
+                    luceneDocument.add(new StringField("acl", targetId, Field.Store.NO));
+                }
+                for (String tagId : tagIdMap.getOrDefault(document.getId(), Collections.emptySet())) {
+                    luceneDocument.add(new StringField("tag", tagId, Field.Store.NO));
+                    luceneDocument.add(new SortedSetDocValuesFacetField("tag", tagId));
+                }
+                for (String mimeType : mimeTypeMap.getOrDefault(document.getId(), Collections.emptySet())) {
+                    luceneDocument.add(new StringField("mime_type", mimeType, Field.Store.NO));
+                    luceneDocument.add(new SortedSetDocValuesFacetField("mime_type", mimeType));
+                }
+                luceneDocument.add(new StringField("language", document.getLanguage(), Field.Store.NO));
+                luceneDocument.add(new SortedSetDocValuesFacetField("language", document.getLanguage()));
+                luceneDocument.add(new StringField("creator", document.getUserId(), Field.Store.NO));
+                luceneDocument.add(new SortedSetDocValuesFacetField("creator", document.getUserId()));
+                luceneDocument.add(new SortedSetDocValuesFacetField("year",
+                        Integer.toString(document.getCreateDate().toInstant().atZone(ZoneId.systemDefault()).getYear())));
+                luceneDocument.add(new LongPoint("create_date", document.getCreateDate().getTime()));
+                luceneDocument.add(new NumericDocValuesField("create_date", document.getCreateDate().getTime()));
+                if (document.getUpdateDate() != null) {
+                    luceneDocument.add(new LongPoint("update_date", document.getUpdateDate().getTime()));
+                    luceneDocument.add(new NumericDocValuesField("update_date", document.getUpdateDate().getTime()));
+                }
+                luceneDocument.add(new SortedDocValuesField("title_sort", new BytesRef(document.getTitle())));
+                luceneDocument = FACETS_CONFIG.build(luceneDocument);
+            }
+            luceneDocumentList.add(luceneDocument);
+        }
+        return luceneDocumentList;
+    }
+
     /**
      * Build Lucene document from database document.
      *
      * @param document Document
      * @return Document
      */
-    private org.apache.lucene.document.Document getDocumentFromDocument(Document document) {
+    static org.apache.lucene.document.Document getDocumentFromDocument(Document document) {
         org.apache.lucene.document.Document luceneDocument = new org.apache.lucene.document.Document();
         luceneDocument.add(new StringField("id", document.getId(), Field.Store.YES));
         luceneDocument.add(new StringField("doctype", "document", Field.Store.YES));
-        luceneDocument.add(new TextField("title", document.getTitle(), Field.Store.NO));
+        luceneDocument.add(new SortedDocValuesField("document_id", new BytesRef(document.getId())));
+        luceneDocument.add(new TextField("title", document.getTitle(), Field.Store.NO)); // Without language, for suggestions
+        if (document.getLanguage() != null) {
+            addTextField(luceneDocument, "title", document.getTitle(), document.getLanguage());
+        }
         if (document.getDescription() != null) {
-            luceneDocument.add(new TextField("description", document.getDescription(), Field.Store.NO));
+            addTextField(luceneDocument, "description", document.getDescription(), document.getLanguage());
         }
         if (document.getSubject() != null) {
-            luceneDocument.add(new TextField("subject", document.getSubject(), Field.Store.NO));
+            addTextField(luceneDocument, "subject", document.getSubject(), document.getLanguage());
         }
         if (document.getIdentifier() != null) {
-            luceneDocument.add(new TextField("identifier", document.getIdentifier(), Field.Store.NO));
+            addTextField(luceneDocument, "identifier", document.getIdentifier(), document.getLanguage());
         }
         if (document.getPublisher() != null) {
-            luceneDocument.add(new TextField("publisher", document.getPublisher(), Field.Store.NO));
+            addTextField(luceneDocument, "publisher", document.getPublisher(), document.getLanguage());
         }
         if (document.getFormat() != null) {
-            luceneDocument.add(new TextField("format", document.getFormat(), Field.Store.NO));
+            addTextField(luceneDocument, "format", document.getFormat(), document.getLanguage());
         }
         if (document.getSource() != null) {
-            luceneDocument.add(new TextField("source", document.getSource(), Field.Store.NO));
+            addTextField(luceneDocument, "source", document.getSource(), document.getLanguage());
         }
         if (document.getType() != null) {
-            luceneDocument.add(new TextField("type", document.getType(), Field.Store.NO));
+            addTextField(luceneDocument, "type", document.getType(), document.getLanguage());
         }
         if (document.getCoverage() != null) {
-            luceneDocument.add(new TextField("coverage", document.getCoverage(), Field.Store.NO));
+            addTextField(luceneDocument, "coverage", document.getCoverage(), document.getLanguage());
         }
         if (document.getRights() != null) {
-            luceneDocument.add(new TextField("rights", document.getRights(), Field.Store.NO));
+            addTextField(luceneDocument, "rights", document.getRights(), document.getLanguage());
         }
 
         return luceneDocument;
     }
 
+    /**
+     * Build Lucene documents from files, in the language of their document.
+     *
+     * @param fileList Files
+     * @param storedContent Store the contents
+     * @param contentOffsets Index the contents with their offsets
+     * @return Lucene documents
+     */
+    static List<org.apache.lucene.document.Document> getDocumentsFromFiles(List<File> fileList, boolean storedContent, boolean contentOffsets) {
+        Set<String> documentIdSet = fileList.stream()
+                .map(File::getDocumentId)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        Map<String, String> languageMap = documentIdSet.isEmpty() ?
+                Collections.emptyMap() : new DocumentDao().getLanguagesByIds(documentIdSet);
+
+        List<org.apache.lucene.document.Document> luceneDocumentList = new ArrayList<>();
+        for (File file : fileList) {
+            String language = file.getDocumentId() == null ? null : languageMap.get(file.getDocumentId());
+            luceneDocumentList.add(getDocumentFromFile(file, language, storedContent, contentOffsets));
+        }
+        return luceneDocumentList;
+    }
+
     /**
      * Build Lucene document from file.
      *
      * @param file File
+     * @param language Language of the file, null if unknown
+     * @param storedContent Store the content
+     * @param contentOffsets Index the content with its offsets
      * @return Document
      */
-    private org.apache.lucene.document.Document getDocumentFromFile(File file) {
+    private static org.apache.lucene.document.Document getDocumentFromFile(File file, String language,
+                                                                          boolean storedContent, boolean contentOffsets) {
         org.apache.lucene.document.Document luceneDocument = new org.apache.lucene.document.Document();
         luceneDocument.add(new StringField("id", file.getId(), Field.Store.YES));
         luceneDocument.add(new StringField("doctype", "file", Field.Store.YES));
+        if (language != null) {
+            luceneDocument.add(new StoredField("language", language));
+        }
         if (file.getName() != null) {
-            luceneDocument.add(new TextField("filename", file.getName(), Field.Store.NO));
+            addTextField(luceneDocument, "filename", file.getName(), language);
         }
         if (file.getDocumentId() != null) {
             luceneDocument.add(new StringField("document_id", file.getDocumentId(), Field.Store.YES));
+            luceneDocument.add(new SortedDocValuesField("document_id", new BytesRef(file.getDocumentId())));
         }
         if (file.getContent() != null) {
-            luceneDocument.add(new TextField("content", file.getContent(), Field.Store.YES));
+            // Stored once for highlighting if enabled, the database has it anyway
+            if (storedContent) {
+                luceneDocument.add(new StoredField("content", file.getContent()));
+            }
+
+            // Indexed in its language
+            if (contentOffsets) {
+                luceneDocument.add(new Field(LanguageAnalyzerRegistry.getField("content", language), file.getContent(), CONTENT_FIELD_TYPE));
+            } else {
+                addTextField(luceneDocument, "content", file.getContent(), language);
+            }
         }
 
         return luceneDocument;
     }
 
     /**
-     * Returns a valid directory reader.
-     * Take care of reopening the reader if the index has changed
-     * and closing the previous one.
+     * Copy a Lucene document with its content indexed without offsets.
      *
-     * @return the directoryReader
+     * @param luceneDocument Lucene document
+     * @return Lucene document without content offsets
      */
-    private DirectoryReader getDirectoryReader() {
-        if (directoryReader == null) {
-            try {
-                if (!DirectoryReader.indexExists(directory)) {
-                    return null;
-                }
-                directoryReader = DirectoryReader.open(directory);
-            } catch (IOException e) {
-                log.error("Error creating the directory reader", e);
+    private static org.apache.lucene.document.Document removeContentOffsets(org.apache.lucene.document.Document luceneDocument) {
+        org.apache.lucene.document.Document copy = new org.apache.lucene.document.Document();
+        for (IndexableField field : luceneDocument.getFields()) {
+            if (field.fieldType() == CONTENT_FIELD_TYPE) {
+                copy.add(new TextField(field.name(), field.stringValue(), Field.Store.NO));
+            } else {
+                copy.add(field);
             }
-        } else {
-            try {
-                DirectoryReader newReader = DirectoryReader.openIfChanged(directoryReader);
-                if (newReader != null) {
-                    directoryReader.close();
-                    directoryReader = newReader;
+        }
+        return copy;
+    }
+
+    /**
+     * Add a text field indexed in a language.
+     *
+     * @param luceneDocument Lucene document
+     * @param field Field name
+     * @param value Field value
+     * @param language Language, null if unknown
+     */
+    private static void addTextField(org.apache.lucene.document.Document luceneDocument, String field, String value, String language) {
+        luceneDocument.add(new TextField(LanguageAnalyzerRegistry.getField(field, language), value, Field.Store.NO));
+    }
+
+    /**
+     * Acquire a near real-time searcher, which must be released after use.
+     * Waits for the previous writes to be visible, up to {@link #SEARCHER_MAX_WAIT_MS}.
+     *
+     * @return Searcher
+     * @throws Exception e
+     */
+    private IndexSearcher acquireSearcher() throws Exception {
+        reopenThread.waitForGeneration(generation.get(), SEARCHER_MAX_WAIT_MS);
+        return searcherManager.acquire();
+    }
+
+    /**
+     * Commit the index writer.
+     */
+    private void commit() {
+        pendingWriteCount.set(0);
+        // Not while the index is being swapped
+        swapLock.readLock().lock();
+        try {
+            // The writes completed so far are in the commit
+            long commitGeneration = generation.get();
+            indexWriter.commit();
+            synchronized (commitMonitor) {
+                committedGeneration = Math.max(committedGeneration, commitGeneration);
+                commitMonitor.notifyAll();
+            }
+        } catch (IOException | AlreadyClosedException e) {
+            log.error("Cannot commit index writer", e);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    @Override
+    public boolean waitForCommit(long generation, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (commitMonitor) {
+            while (committedGeneration < generation) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
                 }
-            } catch (IOException e) {
-                log.error("Error while reopening the directory reader", e);
+                commitMonitor.wait(wait);
             }
         }
-        return directoryReader;
+        return true;
     }
 
     /**
      * Encapsulate a process into a Lucene context.
+     * The changes are visible to searches in near real-time, and committed
+     * after {@link #commitInterval} milliseconds or {@link #commitSize} writes.
      *
      * @param runnable Runnable
      */
     private void handle(LuceneRunnable runnable) {
+        handle(runnable, 1);
+    }
+
+    /**
+     * Encapsulate a process of several writes into a Lucene context.
+     *
+     * @param runnable Runnable
+     * @param writeCount Number of writes
+     * @return Generation of the writes
+     */
+    private long handle(LuceneRunnable runnable, int writeCount) {
+        swapLock.readLock().lock();
         try {
             runnable.run(indexWriter);
+
+            // Keep the index being rebuilt up to date
+            IndexWriter rebuildWriter = this.rebuildWriter;
+            if (rebuildWriter != null) {
+                runnable.run(rebuildWriter);
+            }
         } catch (Exception e) {
             log.error("Error in running index writing", e);
+        } finally {
+            swapLock.readLock().unlock();
         }
+        long writeGeneration = generation.accumulateAndGet(indexWriter.getMaxCompletedSequenceNumber(), Math::max);
 
-        try {
-            indexWriter.commit();
-        } catch (IOException e) {
-            log.error("Cannot commit index writer", e);
+        if (commitInterval <= 0) {
+            commit();
+        } else {
+            // Commit once when the commit size is reached
+            int pendingCount = pendingWriteCount.addAndGet(writeCount);
+            if (pendingCount >= commitSize && pendingCount - writeCount < commitSize) {
+                commitExecutor.execute(this::commit);
+            }
+        }
+        return writeGeneration;
+    }
+
+    /**
+     * Collector of the IDs of the documents matched directly or through their files.
+     * Reads the document ID from doc values, with a fallback on stored fields
+     * for documents indexed before doc values were added.
+     */
+    private static class DocumentIdCollector extends SimpleCollector {
+        /**
+         * Fields read when doc values are missing.
+         */
+        private static final Set<String> FIELDS = Sets.newHashSet("doctype", "id", "document_id");
+
+        /**
+         * Collected document IDs.
+         */
+        private final Set<String> documentIdSet = new HashSet<>();
+
+        /**
+         * Current leaf reader.
+         */
+        private LeafReader reader;
+
+        /**
+         * Document IDs of the current leaf.
+         */
+        private SortedDocValues documentIdValues;
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            reader = context.reader();
+            documentIdValues = reader.getSortedDocValues("document_id");
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            if (documentIdValues != null && documentIdValues.advanceExact(doc)) {
+                documentIdSet.add(documentIdValues.binaryValue().utf8ToString());
+                return;
+            }
+
+            org.apache.lucene.document.Document document = reader.document(doc, FIELDS);
+            String documentId = "document".equals(document.get("doctype")) ? document.get("id") : document.get("document_id");
+            if (documentId != null) {
+                documentIdSet.add(documentId);
+            }
+        }
+
+        @Override
+        public org.apache.lucene.search.ScoreMode scoreMode() {
+            return org.apache.lucene.search.ScoreMode.COMPLETE_NO_SCORES;
+        }
+
+        /**
+         * Getter of documentIdSet.
+         *
+         * @return documentIdSet
+         */
+        public Set<String> getDocumentIdSet() {
+            return documentIdSet;
+        }
+    }
+
+    /**
+     * Highlighter of file contents given by Lucene document number, instead of read from stored fields.
+     * Highlights are HTML encoded like the previous highlighter did.
+     */
+    private static class ContentHighlighter extends UnifiedHighlighter {
+        /**
+         * Contents by Lucene document number.
+         */
+        private final Map<Integer, String> contentMap;
+
+        /**
+         * Create a content highlighter.
+         *
+         * @param searcher Searcher
+         * @param indexAnalyzer Analyzer of the contents indexed without offsets
+         * @param contentMap Contents by Lucene document number
+         */
+        ContentHighlighter(IndexSearcher searcher, Analyzer indexAnalyzer, Map<Integer, String> contentMap) {
+            super(searcher, indexAnalyzer);
+            this.contentMap = contentMap;
+            setMaxLength(Integer.MAX_VALUE - 1); // Offsets are indexed, long contents are cheap
+            setMaxNoHighlightPassages(0);
+            setBreakIterator(() -> LengthGoalBreakIterator.createClosestToLength(
+                    BreakIterator.getSentenceInstance(Locale.ROOT), HIGHLIGHT_LENGTH));
+            setFormatter(new DefaultPassageFormatter("<strong>", "</strong>", "", true) {
+                @Override
+                protected void append(StringBuilder dest, String content, int start, int end) {
+                    dest.append(SimpleHTMLEncoder.htmlEncode(content.substring(start, end)));
+                }
+            });
+        }
+
+        @Override
+        protected List<CharSequence[]> loadFieldValues(String[] fields, DocIdSetIterator docIter, int cacheCharsThreshold) throws IOException {
+            List<CharSequence[]> valueList = new ArrayList<>();
+            for (int doc = docIter.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = docIter.nextDoc()) {
+                CharSequence[] values = new CharSequence[fields.length];
+                Arrays.fill(values, contentMap.get(doc));
+                valueList.add(values);
+            }
+            return valueList;
         }
     }
 
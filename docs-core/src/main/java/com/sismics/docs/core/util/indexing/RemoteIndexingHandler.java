@@ -0,0 +1,747 @@
+package com.sismics.docs.core.util.indexing;
+
+import com.google.common.base.Strings;
+import com.sismics.docs.core.constant.Constants;
+import com.sismics.docs.core.constant.PermType;
+import com.sismics.docs.core.dao.criteria.DocumentCriteria;
+import com.sismics.docs.core.dao.dto.DocumentDto;
+import com.sismics.docs.core.event.RebuildIndexAsyncEvent;
+import com.sismics.docs.core.model.context.AppContext;
+import com.sismics.docs.core.model.jpa.Document;
+import com.sismics.docs.core.model.jpa.File;
+import com.sismics.docs.core.util.jpa.PaginatedList;
+import com.sismics.docs.core.util.jpa.PaginatedLists;
+import com.sismics.docs.core.util.jpa.QueryParam;
+import com.sismics.docs.core.util.jpa.SortCriteria;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Indexing handler backed by an {@link IndexServer} running in another process.
+ * Used when the index server address is configured, authenticated with the shared secret.
+ * Writes are queued and sent by a background thread in bulk requests,
+ * so concurrent writes are grouped in as few round trips as possible.
+ * Search criteria other than fulltext are checked in the database.
+ *
+ * @author bgamard
+ */
+public class RemoteIndexingHandler implements IndexingHandler {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(RemoteIndexingHandler.class);
+
+    /**
+     * Maximum number of writes per bulk request.
+     */
+    private static final int BULK_SIZE = 500;
+
+    /**
+     * Number of writes not acknowledged by the server blocking the writers.
+     */
+    private static final int MAX_PENDING_WRITES = 10000;
+
+    /**
+     * Number of connections for searches and rebuilds.
+     */
+    private static final int CONNECTION_COUNT = 4;
+
+    /**
+     * Maximum wait for the server on start up, in milliseconds.
+     */
+    private static final long STARTUP_TIMEOUT = 30000;
+
+    /**
+     * Delay before retrying a request on a server error, in milliseconds.
+     */
+    private static final long RETRY_DELAY = 1000;
+
+    /**
+     * Connection timeout, in milliseconds.
+     */
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    /**
+     * Maximum wait for a response, in milliseconds.
+     */
+    private static final int READ_TIMEOUT = 300000;
+
+    /**
+     * Maximum wait for the previous writes to be sent before a search, in milliseconds.
+     */
+    private static final long SEARCH_MAX_WAIT_MS = 2000;
+
+    /**
+     * Server host.
+     */
+    private final String host;
+
+    /**
+     * Server port.
+     */
+    private final int port;
+
+    /**
+     * Shared secret authenticating with the server.
+     */
+    private final String secret;
+
+    /**
+     * Writes waiting to be sent.
+     */
+    private final Deque<IndexProtocol.Operation> pendingQueue = new ArrayDeque<>();
+
+    /**
+     * Monitor of the writes.
+     */
+    private final Object writeMonitor = new Object();
+
+    /**
+     * Number of writes queued, used as generation.
+     */
+    private long queuedCount;
+
+    /**
+     * Number of writes acknowledged by the server.
+     */
+    private long sentCount;
+
+    /**
+     * Server generation of the last acknowledged write.
+     */
+    private long serverGeneration;
+
+    /**
+     * True while the writes are sent.
+     */
+    private boolean running;
+
+    /**
+     * Background sender of the writes.
+     */
+    private Thread senderThread;
+
+    /**
+     * Connection of the sender.
+     */
+    private Connection senderConnection;
+
+    /**
+     * Connections for searches and rebuilds.
+     */
+    private final BlockingQueue<Connection> connectionPool = new LinkedBlockingQueue<>();
+
+    /**
+     * Create a remote indexing handler configured from the environment.
+     */
+    public RemoteIndexingHandler() {
+        this(System.getenv(Constants.INDEX_SERVER_ENV), System.getenv(Constants.INDEX_SERVER_SECRET_ENV));
+    }
+
+    /**
+     * Create a remote indexing handler.
+     *
+     * @param address Server address (host:port), null if not configured
+     * @param secret Shared secret authenticating with the server
+     */
+    RemoteIndexingHandler(String address, String secret) {
+        this.secret = Strings.nullToEmpty(secret);
+        if (Strings.isNullOrEmpty(address)) {
+            host = null;
+            port = 0;
+        } else {
+            int index = address.lastIndexOf(':');
+            host = address.substring(0, index);
+            port = Integer.parseInt(address.substring(index + 1));
+        }
+    }
+
+    @Override
+    public boolean accept() {
+        // Only if an index server is configured
+        return host != null;
+    }
+
+    @Override
+    public void startUp() throws Exception {
+        for (int i = 0; i < CONNECTION_COUNT; i++) {
+            connectionPool.add(new Connection());
+        }
+        senderConnection = new Connection();
+        running = true;
+        senderThread = new Thread(this::send, "index-sender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+
+        // Wait for the server, which may be starting alongside
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        boolean rebuildNeeded;
+        while (true) {
+            try {
+                rebuildNeeded = call(IndexProtocol.OP_PING, out -> {}, DataInputStream::readBoolean);
+                break;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Index server unreachable at " + host + ":" + port, e);
+                }
+                Thread.sleep(RETRY_DELAY);
+            }
+        }
+        log.info("Using the index server at {}:{}", host, port);
+
+        if (rebuildNeeded) {
+            // The index server started empty or with an outdated index, fill it
+            log.info("The index server needs a full reindex, scheduling it");
+            RebuildIndexAsyncEvent rebuildIndexAsyncEvent = new RebuildIndexAsyncEvent();
+            AppContext.getInstance().getAsyncEventBus().post(rebuildIndexAsyncEvent);
+        }
+    }
+
+    @Override
+    public void shutDown() {
+        // Send the remaining writes
+        synchronized (writeMonitor) {
+            running = false;
+            writeMonitor.notifyAll();
+        }
+        if (senderThread != null) {
+            try {
+                senderThread.join(60000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (senderConnection != null) {
+            senderConnection.close();
+        }
+        for (Connection connection : connectionPool) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public void clearIndex() {
+        write(Collections.singletonList(IndexProtocol.Operation.deleteAll()));
+    }
+
+    @Override
+    public Map<String, String> startRebuild() throws Exception {
+        return call(IndexProtocol.OP_START_REBUILD, out -> {}, IndexProtocol::readStringMap);
+    }
+
+    @Override
+    public void rebuildDocuments(List<Document> documentList) throws Exception {
+        rebuild(documentList.stream()
+                .map(document -> IndexProtocol.Operation.update(LuceneIndexingHandler.getDocumentFromDocument(document)))
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public void rebuildFiles(List<File> fileList) throws Exception {
+        // The index server has no database to read the contents from
+        rebuild(LuceneIndexingHandler.getDocumentsFromFiles(fileList, true, true).stream()
+                .map(IndexProtocol.Operation::update)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Send a batch of writes to the side index, in a single bulk request if small enough.
+     *
+     * @param operationList Operations
+     * @throws Exception e
+     */
+    private void rebuild(List<IndexProtocol.Operation> operationList) throws Exception {
+        try {
+            call(IndexProtocol.OP_BULK, out -> {
+                out.writeBoolean(true);
+                IndexProtocol.writeOperations(out, operationList);
+            }, DataInputStream::readLong);
+        } catch (RequestTooLargeException e) {
+            if (operationList.size() == 1) {
+                throw e;
+            }
+            int half = operationList.size() / 2;
+            rebuild(operationList.subList(0, half));
+            rebuild(operationList.subList(half, operationList.size()));
+        }
+    }
+
+    @Override
+    public void checkpointRebuild(Map<String, String> checkpoint) throws Exception {
+        call(IndexProtocol.OP_CHECKPOINT_REBUILD, out -> IndexProtocol.writeStringMap(out, checkpoint), in -> null);
+    }
+
+    @Override
+    public void finishRebuild() throws Exception {
+        call(IndexProtocol.OP_FINISH_REBUILD, out -> {}, in -> null);
+    }
+
+    @Override
+    public void abortRebuild() {
+        try {
+            call(IndexProtocol.OP_ABORT_REBUILD, out -> {}, in -> null);
+        } catch (Exception e) {
+            log.error("Error aborting the index rebuild", e);
+        }
+    }
+
+    @Override
+    public void createDocuments(List<Document> documentList) {
+        write(documentList.stream()
+                .map(document -> IndexProtocol.Operation.update(LuceneIndexingHandler.getDocumentFromDocument(document)))
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public void createFiles(List<File> fileList) {
+        write(LuceneIndexingHandler.getDocumentsFromFiles(fileList, true, true).stream()
+                .map(IndexProtocol.Operation::update)
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public void createDocument(Document document) {
+        createDocuments(Collections.singletonList(document));
+    }
+
+    @Override
+    public void createFile(File file) {
+        createFiles(Collections.singletonList(file));
+    }
+
+    @Override
+    public void updateDocument(Document document) {
+        createDocuments(Collections.singletonList(document));
+    }
+
+    @Override
+    public void updateFile(File file) {
+        createFiles(Collections.singletonList(file));
+    }
+
+    @Override
+    public void deleteDocument(String id) {
+        write(Collections.singletonList(IndexProtocol.Operation.delete(id)));
+    }
+
+    @Override
+    public void createAcl(String sourceId, PermType perm, String targetId) {
+        // ACLs are checked in the database
+    }
+
+    @Override
+    public void deleteAcl(String sourceId, PermType perm, String targetId) {
+        // ACLs are checked in the database
+    }
+
+    @Override
+    public void findByCriteria(PaginatedList<DocumentDto> paginatedList, List<String> suggestionList, Map<String, Map<String, Integer>> facetMap,
+                               DocumentCriteria criteria, SortCriteria sortCriteria) throws Exception {
+        // Search filters are not indexed by the index server, nothing to facet on
+        findByCriteria(paginatedList, suggestionList, criteria, sortCriteria);
+    }
+
+    @Override
+    public void findByCriteria(PaginatedList<DocumentDto> paginatedList, List<String> suggestionList, DocumentCriteria criteria, SortCriteria sortCriteria) throws Exception {
+        boolean fullTextSearch = !Strings.isNullOrEmpty(criteria.getSimpleSearch()) || !Strings.isNullOrEmpty(criteria.getFullSearch());
+        Set<String> documentIdSet = null;
+        if (fullTextSearch) {
+            // Search after the previous writes
+            waitForSent(getGeneration(), SEARCH_MAX_WAIT_MS);
+            documentIdSet = new HashSet<>(call(IndexProtocol.OP_SEARCH,
+                    out -> IndexProtocol.writeCriteria(out, criteria), IndexProtocol::readStrings));
+            if (documentIdSet.isEmpty()) {
+                // If the search doesn't find any document, the request should return nothing
+                documentIdSet.add(UUID.randomUUID().toString());
+            }
+
+            suggestionList.addAll(call(IndexProtocol.OP_SUGGEST,
+                    out -> IndexProtocol.writeString(out, criteria.getFullSearch()), IndexProtocol::readStrings));
+        }
+
+        // Perform the search
+        QueryParam queryParam = LuceneIndexingHandler.buildDatabaseQuery(criteria, documentIdSet);
+        List<Object[]> l = PaginatedLists.executePaginatedQuery(paginatedList, queryParam, sortCriteria);
+
+        // Assemble results, and highlight only the returned page
+        List<DocumentDto> documentDtoList = LuceneIndexingHandler.assembleResultList(l);
+        if (fullTextSearch && !documentDtoList.isEmpty()) {
+            List<String> documentIdList = documentDtoList.stream()
+                    .map(DocumentDto::getId)
+                    .collect(Collectors.toList());
+            Map<String, String> highlightMap = call(IndexProtocol.OP_HIGHLIGHT, out -> {
+                IndexProtocol.writeCriteria(out, criteria);
+                IndexProtocol.writeStrings(out, documentIdList);
+            }, IndexProtocol::readStringMap);
+            for (DocumentDto documentDto : documentDtoList) {
+                documentDto.setHighlight(highlightMap.get(documentDto.getId()));
+            }
+        }
+
+        paginatedList.setResultList(documentDtoList);
+    }
+
+    @Override
+    public long getGeneration() {
+        synchronized (writeMonitor) {
+            return queuedCount;
+        }
+    }
+
+    @Override
+    public boolean waitForCommit(long generation, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        if (!waitForSent(generation, timeout)) {
+            return false;
+        }
+
+        long serverGeneration;
+        synchronized (writeMonitor) {
+            serverGeneration = this.serverGeneration;
+        }
+        try {
+            long remaining = Math.max(0, deadline - System.currentTimeMillis());
+            return call(IndexProtocol.OP_WAIT_COMMIT, out -> {
+                out.writeLong(serverGeneration);
+                out.writeLong(remaining);
+            }, DataInputStream::readBoolean);
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException();
+        } catch (Exception e) {
+            log.error("Error waiting for the index server commit", e);
+            return false;
+        }
+    }
+
+    @Override
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new HashMap<>();
+        try {
+            metrics.putAll(call(IndexProtocol.OP_METRICS, out -> {}, IndexProtocol::readLongMap));
+        } catch (Exception e) {
+            log.error("Error reading the index server metrics", e);
+        }
+        synchronized (writeMonitor) {
+            metrics.put("index_pending_writes", queuedCount - sentCount);
+        }
+        return metrics;
+    }
+
+    /**
+     * Queue writes to be sent to the server.
+     * Blocks while too many writes are waiting for the server.
+     *
+     * @param operationList Operations
+     */
+    private void write(List<IndexProtocol.Operation> operationList) {
+        synchronized (writeMonitor) {
+            try {
+                while (running && queuedCount - sentCount >= MAX_PENDING_WRITES) {
+                    writeMonitor.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!running) {
+                log.error("Index writes after the indexing handler shut down, {} writes lost", operationList.size());
+                return;
+            }
+            pendingQueue.addAll(operationList);
+            queuedCount += operationList.size();
+            writeMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the writes up to a generation to be applied by the server.
+     *
+     * @param generation Generation returned by {@link #getGeneration()}
+     * @param timeout Maximum wait in milliseconds
+     * @return True if the writes are applied
+     * @throws InterruptedException e
+     */
+    private boolean waitForSent(long generation, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (writeMonitor) {
+            while (sentCount < generation) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                writeMonitor.wait(wait);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Send the queued writes in bulk requests, until shut down and all writes are sent.
+     */
+    private void send() {
+        while (true) {
+            // Take all the writes queued so far
+            List<IndexProtocol.Operation> operationList = new ArrayList<>();
+            synchronized (writeMonitor) {
+                while (running && pendingQueue.isEmpty()) {
+                    try {
+                        writeMonitor.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pendingQueue.isEmpty()) {
+                    return;
+                }
+                while (!pendingQueue.isEmpty() && operationList.size() < BULK_SIZE) {
+                    operationList.add(pendingQueue.poll());
+                }
+            }
+
+            long generation = sendBulk(operationList);
+            synchronized (writeMonitor) {
+                sentCount += operationList.size();
+                serverGeneration = Math.max(serverGeneration, generation);
+                writeMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Send a bulk request, retrying until the server is reachable.
+     *
+     * @param operationList Operations
+     * @return Server generation of the writes, 0 if lost
+     */
+    private long sendBulk(List<IndexProtocol.Operation> operationList) {
+        while (true) {
+            try {
+                return senderConnection.call(IndexProtocol.OP_BULK, out -> {
+                    out.writeBoolean(false);
+                    IndexProtocol.writeOperations(out, operationList);
+                }, DataInputStream::readLong);
+            } catch (IOException e) {
+                synchronized (writeMonitor) {
+                    if (!running) {
+                        log.error("Index server unreachable on shut down, {} writes lost", operationList.size(), e);
+                        return 0;
+                    }
+                }
+                log.error("Error sending writes to the index server, retrying", e);
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            } catch (RequestTooLargeException e) {
+                if (operationList.size() == 1) {
+                    log.error("Index write too large for the index server, lost", e);
+                    return 0;
+                }
+                int half = operationList.size() / 2;
+                return Math.max(sendBulk(operationList.subList(0, half)),
+                        sendBulk(operationList.subList(half, operationList.size())));
+            } catch (IndexServerException e) {
+                // Retrying won't help
+                log.error("Index server error, {} writes lost", operationList.size(), e);
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Send a request on a pooled connection, retried once on a new connection.
+     *
+     * @param opcode Operation code
+     * @param request Request writer
+     * @param response Response reader
+     * @param <T> Result type
+     * @return Result
+     * @throws IOException e
+     */
+    private <T> T call(byte opcode, RequestWriter request, ResponseReader<T> response) throws IOException {
+        Connection connection;
+        try {
+            connection = connectionPool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        try {
+            try {
+                return connection.call(opcode, request, response);
+            } catch (IOException e) {
+                // The server may have been restarted
+                return connection.call(opcode, request, response);
+            }
+        } finally {
+            connectionPool.add(connection);
+        }
+    }
+
+    /**
+     * Connection to the index server, opened on first use and after an error.
+     */
+    private class Connection {
+        /**
+         * Socket.
+         */
+        private Socket socket;
+
+        /**
+         * Input.
+         */
+        private DataInputStream in;
+
+        /**
+         * Output.
+         */
+        private DataOutputStream out;
+
+        /**
+         * Send a request and read its response.
+         *
+         * @param opcode Operation code
+         * @param request Request writer
+         * @param response Response reader
+         * @param <T> Result type
+         * @return Result
+         * @throws IOException e
+         */
+        private synchronized <T> T call(byte opcode, RequestWriter request, ResponseReader<T> response) throws IOException {
+            // Serialize the request first, the server rejects the frames too large
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            DataOutputStream frameOut = new DataOutputStream(frame);
+            request.write(frameOut);
+            frameOut.flush();
+            if (frame.size() > IndexProtocol.MAX_FRAME_SIZE) {
+                throw new RequestTooLargeException("Index request of " + frame.size() + " bytes is too large");
+            }
+
+            try {
+                if (socket == null) {
+                    connect();
+                }
+
+                out.writeByte(opcode);
+                IndexProtocol.writeFrame(out, frame.toByteArray());
+                out.flush();
+                if (in.readByte() == IndexProtocol.STATUS_ERROR) {
+                    throw new IndexServerException(IndexProtocol.readString(in));
+                }
+                return response.read(in);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Open the connection and answer the authentication challenge of the server.
+         *
+         * @throws IOException e
+         */
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            byte[] challenge = new byte[IndexProtocol.CHALLENGE_LENGTH];
+            in.readFully(challenge);
+            out.write(IndexProtocol.sign(secret, challenge));
+            out.flush();
+            if (in.readByte() == IndexProtocol.STATUS_ERROR) {
+                String message = IndexProtocol.readString(in);
+                close();
+                throw new IndexServerException("Index server authentication failed: " + message);
+            }
+        }
+
+        /**
+         * Close the connection.
+         */
+        private synchronized void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // NOP
+                }
+                socket = null;
+            }
+        }
+    }
+
+    /**
+     * Error reported by the index server.
+     */
+    private static class IndexServerException extends RuntimeException {
+        private IndexServerException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Request larger than the frames accepted by the index server, not sent.
+     */
+    private static class RequestTooLargeException extends IndexServerException {
+        private RequestTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Writes the parameters of a request.
+     */
+    private interface RequestWriter {
+        /**
+         * Write the parameters.
+         *
+         * @param out Output
+         * @throws IOException e
+         */
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads the result of a request.
+     *
+     * @param <T> Result type
+     */
+    private interface ResponseReader<T> {
+        /**
+         * Read the result.
+         *
+         * @param in Input
+         * @return Result
+         * @throws IOException e
+         */
+        T read(DataInputStream in) throws IOException;
+    }
+}
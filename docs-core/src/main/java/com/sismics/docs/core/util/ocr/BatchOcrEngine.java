@@ -0,0 +1,255 @@
+package com.sismics.docs.core.util.ocr;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * OCR engine sharing tesseract processes between images.
+ * A pool of workers takes the images waiting to be OCR-ized in the same language,
+ * and runs a single tesseract process on the list of images, loading the language model once.
+ * The batches grow with the load: an idle worker waits a few milliseconds for other images
+ * in the same language before starting a partial batch.
+ * A failed batch, or a batch not returning one text per image, falls back to a process for each image.
+ *
+ * @author bgamard
+ */
+public class BatchOcrEngine implements OcrEngine {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(BatchOcrEngine.class);
+
+    /**
+     * Maximum wait for other images to fill a batch, in milliseconds.
+     * Negligible compared to the OCR of an image.
+     */
+    private static final long BATCH_WAIT_MS = 20;
+
+    /**
+     * Maximum number of images in a batch.
+     */
+    private final int batchSize;
+
+    /**
+     * Waiting images by language, in the order the languages are served.
+     */
+    private final LinkedHashMap<String, ArrayDeque<OcrRequest>> requestMap = new LinkedHashMap<>();
+
+    /**
+     * Workers.
+     */
+    private final List<Thread> workerList = new ArrayList<>();
+
+    /**
+     * True if the engine is shutting down.
+     */
+    private boolean stopping;
+
+    /**
+     * Create a batch OCR engine.
+     *
+     * @param workerCount Number of workers, which is the maximum number of tesseract processes running at the same time
+     * @param batchSize Maximum number of images in a batch
+     */
+    public BatchOcrEngine(int workerCount, int batchSize) {
+        this.batchSize = batchSize;
+        for (int i = 0; i < workerCount; i++) {
+            Thread worker = new Thread(this::work, "ocr-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workerList.add(worker);
+        }
+    }
+
+    @Override
+    public String ocr(String language, Path image) throws Exception {
+        OcrRequest request = new OcrRequest(language, image);
+        synchronized (this) {
+            if (stopping) {
+                throw new IllegalStateException("OCR engine stopped");
+            }
+            requestMap.computeIfAbsent(language, k -> new ArrayDeque<>()).add(request);
+            notifyAll();
+        }
+
+        try {
+            return request.result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void shutDown() {
+        synchronized (this) {
+            stopping = true;
+            notifyAll();
+        }
+        for (Thread worker : workerList) {
+            try {
+                worker.join(60000);
+            } catch (InterruptedException e) {
+                // NOP
+            }
+        }
+    }
+
+    /**
+     * Worker loop.
+     */
+    private void work() {
+        while (true) {
+            List<OcrRequest> batch;
+            synchronized (this) {
+                while ((batch = poll()) == null) {
+                    if (stopping) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                // Give the other pages being rendered a chance to join the batch
+                long deadline = System.currentTimeMillis() + BATCH_WAIT_MS;
+                while (batch.size() < batchSize && !stopping) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    fill(batch);
+                }
+            }
+            run(batch);
+        }
+    }
+
+    /**
+     * Take the next batch, the languages in turn.
+     *
+     * @return Images to OCR in the same language, or null if none is waiting
+     */
+    private List<OcrRequest> poll() {
+        Iterator<Map.Entry<String, ArrayDeque<OcrRequest>>> iterator = requestMap.entrySet().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        Map.Entry<String, ArrayDeque<OcrRequest>> entry = iterator.next();
+        iterator.remove();
+        List<OcrRequest> batch = new ArrayList<>();
+        while (batch.size() < batchSize && !entry.getValue().isEmpty()) {
+            batch.add(entry.getValue().poll());
+        }
+        if (!entry.getValue().isEmpty()) {
+            requestMap.put(entry.getKey(), entry.getValue());
+        }
+        return batch;
+    }
+
+    /**
+     * Add the images waiting in the language of a batch, up to the batch size.
+     *
+     * @param batch Images to OCR in the same language
+     */
+    private void fill(List<OcrRequest> batch) {
+        String language = batch.get(0).language;
+        ArrayDeque<OcrRequest> requestQueue = requestMap.get(language);
+        if (requestQueue == null) {
+            return;
+        }
+        while (batch.size() < batchSize && !requestQueue.isEmpty()) {
+            batch.add(requestQueue.poll());
+        }
+        if (requestQueue.isEmpty()) {
+            requestMap.remove(language);
+        }
+    }
+
+    /**
+     * OCR a batch of images in a single process.
+     *
+     * @param batch Images to OCR in the same language
+     */
+    private void run(List<OcrRequest> batch) {
+        String language = batch.get(0).language;
+        if (batch.size() > 1) {
+            Path listFile = null;
+            try {
+                listFile = Files.createTempFile("ocr", ".txt");
+                Files.write(listFile, batch.stream()
+                        .map(request -> request.image.toAbsolutePath().toString())
+                        .collect(Collectors.toList()), StandardCharsets.UTF_8);
+                // One page per image, each followed by a separator
+                String[] pageContents = StringUtils.removeEnd(ProcessOcrEngine.tesseract(language, listFile), ProcessOcrEngine.PAGE_SEPARATOR)
+                        .split(ProcessOcrEngine.PAGE_SEPARATOR, -1);
+                if (pageContents.length != batch.size()) {
+                    throw new IOException("Expected " + batch.size() + " pages from tesseract, got " + pageContents.length);
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).result.complete(pageContents[i]);
+                }
+                return;
+            } catch (Exception e) {
+                log.warn("Error OCR-izing a batch of " + batch.size() + " images, OCR-izing them one by one", e);
+            } finally {
+                if (listFile != null) {
+                    try {
+                        Files.deleteIfExists(listFile);
+                    } catch (Exception e) {
+                        // NOP
+                    }
+                }
+            }
+        }
+
+        // Fallback to a process for each image
+        for (OcrRequest request : batch) {
+            try {
+                request.result.complete(StringUtils.removeEnd(ProcessOcrEngine.tesseract(language, request.image),
+                        ProcessOcrEngine.PAGE_SEPARATOR));
+            } catch (Exception e) {
+                request.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Image waiting to be OCR-ized.
+     */
+    private static class OcrRequest {
+        private final String language;
+        private final Path image;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        private OcrRequest(String language, Path image) {
+            this.language = language;
+            this.image = image;
+        }
+    }
+}
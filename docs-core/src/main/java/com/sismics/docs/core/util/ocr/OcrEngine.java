@@ -0,0 +1,26 @@
+package com.sismics.docs.core.util.ocr;
+
+import java.nio.file.Path;
+
+/**
+ * Optical character recognition engine.
+ *
+ * @author bgamard
+ */
+public interface OcrEngine {
+    /**
+     * Optical character recognition on an image file.
+     * Can be called from several threads at the same time.
+     *
+     * @param language Language to OCR
+     * @param image Image file
+     * @return Content extracted
+     * @throws Exception e
+     */
+    String ocr(String language, Path image) throws Exception;
+
+    /**
+     * Shutdown the engine.
+     */
+    void shutDown();
+}
@@ -0,0 +1,78 @@
+package com.sismics.docs.core.util.ocr;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+import com.sismics.util.io.InputStreamReaderThread;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * OCR engine forking a tesseract process for each image.
+ *
+ * @author bgamard
+ */
+public class ProcessOcrEngine implements OcrEngine {
+    /**
+     * Separator written by tesseract after each page.
+     */
+    static final String PAGE_SEPARATOR = "\f";
+
+    /**
+     * Permits to run a tesseract process.
+     */
+    private final Semaphore semaphore;
+
+    /**
+     * Create a process OCR engine.
+     *
+     * @param concurrency Maximum number of tesseract processes running at the same time
+     */
+    public ProcessOcrEngine(int concurrency) {
+        semaphore = new Semaphore(concurrency);
+    }
+
+    @Override
+    public String ocr(String language, Path image) throws Exception {
+        semaphore.acquire();
+        try {
+            return StringUtils.removeEnd(tesseract(language, image), PAGE_SEPARATOR);
+        } finally {
+            semaphore.release();
+        }
+    }
+
+    @Override
+    public void shutDown() {
+        // NOP
+    }
+
+    /**
+     * Run tesseract on an image, or on a list of images.
+     *
+     * @param language Language to OCR
+     * @param input Image file or text file listing the images
+     * @return Content extracted, each page followed by a page separator
+     * @throws Exception e
+     */
+    static String tesseract(String language, Path input) throws Exception {
+        List<String> command = Lists.newLinkedList(Arrays.asList("tesseract", input.toAbsolutePath().toString(), "stdout", "-l", language));
+        ProcessBuilder pb = new ProcessBuilder(command);
+        Process process = pb.start();
+
+        // Consume the process error stream
+        final String commandName = pb.command().get(0);
+        new InputStreamReaderThread(process.getErrorStream(), commandName).start();
+
+        // Consume the data as text
+        try (InputStream is = process.getInputStream()) {
+            return CharStreams.toString(new InputStreamReader(is, StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.sismics.docs.core.util.storage;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import com.sismics.docs.core.dao.FileBlobDao;
+import com.sismics.docs.core.dao.FileDao;
+import com.sismics.docs.core.model.context.AppContext;
+import com.sismics.docs.core.model.jpa.File;
+import com.sismics.docs.core.model.jpa.FileBlob;
+import com.sismics.docs.core.util.DirectoryUtil;
+import com.sismics.docs.core.util.EncryptionUtil;
+
+import javax.crypto.CipherOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * Storage of the encrypted files.
+ * A file content is either stored under the file ID and encrypted with the private key of its creator,
+ * or in deduplicating mode, stored once in a reference-counted blob addressed by the content hash.
+ * A blob is encrypted with its own random key, which is stored encrypted with the private key
+ * of the creator of each file referencing it, and encrypted with the content hash in the blob itself,
+ * so that only someone having the content can reference an existing blob.
+ * The "web" and "thumb" images are always stored under the file ID.
+ *
+ * @author bgamard
+ */
+public class FileStorage {
+    /**
+     * Suffix of the blob names.
+     */
+    public static final String BLOB_SUFFIX = ".blob";
+
+    /**
+     * Suffix of the files being received.
+     */
+    public static final String UPLOAD_SUFFIX = ".upload";
+
+    /**
+     * Storage backend.
+     */
+    private final StorageBackend backend;
+
+    /**
+     * True to store the new files as deduplicated blobs.
+     */
+    private final boolean deduplication;
+
+    /**
+     * Create a file storage.
+     *
+     * @param backend Storage backend
+     * @param deduplication True to store the new files as deduplicated blobs
+     */
+    public FileStorage(StorageBackend backend, boolean deduplication) {
+        this.backend = backend;
+        this.deduplication = deduplication;
+    }
+
+    public StorageBackend getBackend() {
+        return backend;
+    }
+
+    public boolean isDeduplication() {
+        return deduplication;
+    }
+
+    /**
+     * Returns a new local file to receive a file in.
+     *
+     * @return Upload file
+     */
+    public Path createUploadFile() {
+        return DirectoryUtil.getStorageDirectory().resolve(UUID.randomUUID() + UPLOAD_SUFFIX);
+    }
+
+    /**
+     * Returns the key to encrypt a received file with.
+     *
+     * @param privateKey Private key of the file creator
+     * @return Upload key, to give to {@link #store(File, String, Path, String, String)}
+     */
+    public String getUploadKey(String privateKey) {
+        return deduplication ? EncryptionUtil.generatePrivateKey() : privateKey;
+    }
+
+    /**
+     * Store the content of a file, replacing its previous content.
+     * The file is updated with its content hash and its blob in deduplicating mode, and must be saved with {@link FileDao#updateStorage(File)}.
+     * A previous content stored under the file ID is left to the storage cleaning.
+     *
+     * @param file File
+     * @param privateKey Private key of the file creator
+     * @param upload Received file, encrypted with the upload key, consumed
+     * @param uploadKey Upload key given by {@link #getUploadKey(String)}
+     * @param contentHash SHA-256 of the unencrypted content
+     * @throws Exception e
+     */
+    public void store(File file, String privateKey, Path upload, String uploadKey, String contentHash) throws Exception {
+        String previousBlobId = file.getBlobId();
+        file.setContentHash(contentHash);
+        if (deduplication) {
+            FileBlobDao fileBlobDao = new FileBlobDao();
+            String blobId = getBlobId(contentHash);
+            String blobKey;
+            if (fileBlobDao.addReference(blobId)) {
+                // Known content, the received file is not needed
+                FileBlob fileBlob = fileBlobDao.getById(blobId);
+                blobKey = EncryptionUtil.unwrapKey(fileBlob.getKey(), contentHash, false);
+                Files.delete(upload);
+            } else {
+                FileBlob fileBlob = new FileBlob()
+                        .setId(blobId)
+                        .setKey(EncryptionUtil.wrapKey(uploadKey, contentHash, false))
+                        .setSize(Files.size(upload));
+                fileBlobDao.create(fileBlob);
+                backend.put(blobId + BLOB_SUFFIX, upload);
+                blobKey = uploadKey;
+            }
+            file.setBlobId(blobId);
+            file.setBlobKey(EncryptionUtil.wrapKey(blobKey, privateKey, true));
+        } else {
+            backend.put(file.getId(), upload);
+            file.setBlobId(null);
+            file.setBlobKey(null);
+        }
+
+        if (previousBlobId != null) {
+            releaseBlob(previousBlobId);
+        }
+    }
+
+    /**
+     * Encrypt and store the content of a file, replacing its previous content.
+     * The file must be saved with {@link FileDao#updateStorage(File)}.
+     *
+     * @param file File
+     * @param privateKey Private key of the file creator
+     * @param inputStream Unencrypted content
+     * @throws Exception e
+     */
+    public void store(File file, String privateKey, InputStream inputStream) throws Exception {
+        String uploadKey = getUploadKey(privateKey);
+        Path upload = createUploadFile();
+        try {
+            HashingInputStream hashingInputStream = new HashingInputStream(Hashing.sha256(), inputStream);
+            try (OutputStream outputStream = new CipherOutputStream(Files.newOutputStream(upload), EncryptionUtil.getEncryptionCipher(uploadKey))) {
+                ByteStreams.copy(hashingInputStream, outputStream);
+            }
+            store(file, privateKey, upload, uploadKey, hashingInputStream.hash().toString());
+        } finally {
+            Files.deleteIfExists(upload);
+        }
+    }
+
+    /**
+     * Move the content of a file stored under its ID to a deduplicated blob.
+     * The file is updated with its blob, the content stored under its ID must be deleted
+     * once the transaction is committed.
+     *
+     * @param file File
+     * @param privateKey Private key of the file creator
+     * @return True if the file is moved
+     * @throws Exception e
+     */
+    public boolean moveToBlob(File file, String privateKey) throws Exception {
+        if (!deduplication || file.getBlobId() != null || !backend.exists(file.getId())) {
+            return false;
+        }
+        try (InputStream inputStream = open(file, null, privateKey, 0)) {
+            store(file, privateKey, inputStream);
+        }
+        return true;
+    }
+
+    /**
+     * Delete the content and the images of a file, or its reference to a blob.
+     * The file is updated, and must be saved with {@link FileDao#updateStorage(File)}.
+     *
+     * @param file File
+     * @throws IOException e
+     */
+    public void delete(File file) throws IOException {
+        backend.delete(file.getId() + "_web");
+        backend.delete(file.getId() + "_thumb");
+        backend.delete(file.getId());
+        if (file.getBlobId() != null) {
+            releaseBlob(file.getBlobId());
+            file.setBlobId(null);
+            file.setBlobKey(null);
+        }
+    }
+
+    /**
+     * Store an image of a file, encrypted with the private key of the file creator.
+     *
+     * @param fileId File ID
+     * @param size Image size ("web" or "thumb")
+     * @param data Unencrypted image
+     * @param privateKey Private key of the file creator
+     * @throws Exception e
+     */
+    public void storeImage(String fileId, String size, byte[] data, String privateKey) throws Exception {
+        Path upload = createUploadFile();
+        try {
+            try (OutputStream outputStream = new CipherOutputStream(Files.newOutputStream(upload), EncryptionUtil.getEncryptionCipher(privateKey))) {
+                outputStream.write(data);
+            }
+            backend.put(fileId + "_" + size, upload);
+        } finally {
+            Files.deleteIfExists(upload);
+        }
+    }
+
+    /**
+     * Return true if the content or an image of a file is stored.
+     *
+     * @param file File
+     * @param size Image size ("web" or "thumb"), null for the content
+     * @return True if stored
+     */
+    public boolean exists(File file, String size) {
+        return backend.exists(getName(file, size));
+    }
+
+    /**
+     * Returns the size of the content or an image of a file, which is the same encrypted or not.
+     *
+     * @param file File
+     * @param size Image size ("web" or "thumb"), null for the content
+     * @return Size in bytes
+     * @throws IOException e
+     */
+    public long getSize(File file, String size) throws IOException {
+        return backend.size(getName(file, size));
+    }
+
+    /**
+     * Returns the last modification date of the content or an image of a file.
+     *
+     * @param file File
+     * @param size Image size ("web" or "thumb"), null for the content
+     * @return Last modification timestamp
+     * @throws IOException e
+     */
+    public long getLastModified(File file, String size) throws IOException {
+        return backend.getLastModified(getName(file, size));
+    }
+
+    /**
+     * Read the decrypted content or an image of a file.
+     *
+     * @param file File
+     * @param privateKey Private key of the file creator
+     * @return Unencrypted content
+     * @throws Exception e
+     */
+    public InputStream open(File file, String privateKey) throws Exception {
+        return open(file, null, privateKey, 0);
+    }
+
+    /**
+     * Read the decrypted content or an image of a file from an offset.
+     *
+     * @param file File
+     * @param size Image size ("web" or "thumb"), null for the content
+     * @param privateKey Private key of the file creator
+     * @param offset Offset of the first byte to read
+     * @return Unencrypted content from the offset
+     * @throws Exception e
+     */
+    public InputStream open(File file, String size, String privateKey, long offset) throws Exception {
+        String key = privateKey;
+        if (size == null && file.getBlobId() != null) {
+            key = EncryptionUtil.unwrapKey(file.getBlobKey(), privateKey, true);
+        }
+        return EncryptionUtil.decryptInputStream(backend.get(getName(file, size), EncryptionUtil.getBlockStart(offset)), key, offset);
+    }
+
+    /**
+     * Decrypt the content of a file to a temporary file.
+     *
+     * @param file File
+     * @param privateKey Private key of the file creator, null if the file is not encrypted (for unit testing)
+     * @return Unencrypted temporary file, to be deleted by the caller
+     * @throws Exception e
+     */
+    public Path decrypt(File file, String privateKey) throws Exception {
+        Path tmpFile = AppContext.getInstance().getFileService().createTemporaryFile();
+        try (InputStream inputStream = privateKey == null ? backend.get(getName(file, null), 0) : open(file, privateKey)) {
+            Files.copy(inputStream, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return tmpFile;
+    }
+
+    /**
+     * Remove a reference to a blob.
+     * A blob not referenced anymore is left to the storage cleaning, since the transaction
+     * removing its last reference can still be rolled back.
+     *
+     * @param blobId Blob ID
+     */
+    private void releaseBlob(String blobId) {
+        new FileBlobDao().removeReference(blobId);
+    }
+
+    /**
+     * Returns the blob ID of a content, which does not reveal the content hash.
+     *
+     * @param contentHash SHA-256 of the unencrypted content
+     * @return Blob ID
+     */
+    private static String getBlobId(String contentHash) {
+        return Hashing.sha256().hashString("blob|" + contentHash, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * Returns the name of the stored content or image of a file.
+     *
+     * @param file File
+     * @param size Image size ("web" or "thumb"), null for the content
+     * @return Object name
+     */
+    private static String getName(File file, String size) {
+        if (size != null) {
+            return file.getId() + "_" + size;
+        }
+        return file.getBlobId() == null ? file.getId() : file.getBlobId() + BLOB_SUFFIX;
+    }
+}
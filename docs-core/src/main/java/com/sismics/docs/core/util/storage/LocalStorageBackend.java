@@ -0,0 +1,91 @@
+package com.sismics.docs.core.util.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Storage backend on a local directory, an object being a file named after it.
+ *
+ * @author bgamard
+ */
+public class LocalStorageBackend implements StorageBackend {
+    /**
+     * Storage directory.
+     */
+    private final Path directory;
+
+    /**
+     * Create a local storage backend.
+     *
+     * @param directory Storage directory
+     */
+    public LocalStorageBackend(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void put(String name, Path source) throws IOException {
+        Path target = directory.resolve(name);
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // Not on the same file system
+            Path tmpTarget = directory.resolve(name + ".tmp");
+            Files.copy(source, tmpTarget, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpTarget, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(source);
+        }
+    }
+
+    @Override
+    public InputStream get(String name, long offset) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(directory.resolve(name));
+        try {
+            channel.position(offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return Channels.newInputStream(channel);
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return Files.exists(directory.resolve(name));
+    }
+
+    @Override
+    public long size(String name) throws IOException {
+        return Files.size(directory.resolve(name));
+    }
+
+    @Override
+    public long getLastModified(String name) throws IOException {
+        return Files.getLastModifiedTime(directory.resolve(name)).toMillis();
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        Files.deleteIfExists(directory.resolve(name));
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        List<String> nameList = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                nameList.add(path.getFileName().toString());
+            }
+        }
+        return nameList;
+    }
+}
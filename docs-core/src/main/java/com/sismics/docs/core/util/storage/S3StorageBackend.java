@@ -0,0 +1,458 @@
+package com.sismics.docs.core.util.storage;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage backend on an S3-compatible object storage, shared between the nodes.
+ * Objects are addressed in path style, and the requests are signed with AWS Signature Version 4.
+ * Large objects are uploaded in parts, several parts being sent in parallel.
+ *
+ * @author bgamard
+ */
+public class S3StorageBackend implements StorageBackend {
+    /**
+     * Payload hash of the requests, the payloads not being signed.
+     */
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+
+    /**
+     * Format of the request dates.
+     */
+    private static final DateTimeFormatter AMZ_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    /**
+     * OkHttp client.
+     */
+    private final OkHttpClient client = new OkHttpClient.Builder()
+            .readTimeout(5, TimeUnit.MINUTES)
+            .writeTimeout(5, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * Storage URL, without the bucket.
+     */
+    private final HttpUrl endpoint;
+
+    private final String bucket;
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+
+    /**
+     * Size of the uploaded parts, larger objects being uploaded in parts.
+     */
+    private final long partSize;
+
+    /**
+     * Executor uploading the parts.
+     */
+    private final ExecutorService partExecutor;
+
+    /**
+     * Create an S3 storage backend.
+     *
+     * @param endpoint Storage URL, without the bucket
+     * @param bucket Bucket
+     * @param region Region
+     * @param accessKey Access key
+     * @param secretKey Secret key
+     * @param partSize Size in bytes of the uploaded parts (at least 5 MB on S3)
+     * @param partThreads Number of parts uploaded in parallel
+     */
+    public S3StorageBackend(String endpoint, String bucket, String region, String accessKey, String secretKey,
+                            long partSize, int partThreads) {
+        this.endpoint = HttpUrl.get(endpoint);
+        this.bucket = bucket;
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.partSize = partSize;
+        this.partExecutor = Executors.newFixedThreadPool(partThreads,
+                new ThreadFactoryBuilder().setNameFormat("s3-part-%d").setDaemon(true).build());
+    }
+
+    @Override
+    public void put(String name, Path source) throws IOException {
+        long size = Files.size(source);
+        if (size <= partSize) {
+            try (Response response = execute("PUT", name, new TreeMap<>(), new FileRequestBody(source, 0, size))) {
+                checkSuccessful(response, name);
+            }
+        } else {
+            putMultipart(name, source, size);
+        }
+        Files.delete(source);
+    }
+
+    @Override
+    public InputStream get(String name, long offset) throws IOException {
+        Request.Builder builder = newRequest("GET", name, new TreeMap<>(), null);
+        if (offset > 0) {
+            builder.header("Range", "bytes=" + offset + "-");
+        }
+        Response response = client.newCall(builder.build()).execute();
+        if (response.code() == 416) {
+            // Offset at the end of the object
+            response.close();
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        try {
+            checkSuccessful(response, name);
+        } catch (IOException e) {
+            response.close();
+            throw e;
+        }
+        return response.body().byteStream();
+    }
+
+    @Override
+    public boolean exists(String name) {
+        try (Response response = execute("HEAD", name, new TreeMap<>(), null)) {
+            if (response.code() == 404) {
+                return false;
+            }
+            checkSuccessful(response, name);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long size(String name) throws IOException {
+        try (Response response = execute("HEAD", name, new TreeMap<>(), null)) {
+            checkSuccessful(response, name);
+            return Long.parseLong(response.header("Content-Length"));
+        }
+    }
+
+    @Override
+    public long getLastModified(String name) throws IOException {
+        try (Response response = execute("HEAD", name, new TreeMap<>(), null)) {
+            checkSuccessful(response, name);
+            return ZonedDateTime.parse(response.header("Last-Modified"), DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+        }
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        try (Response response = execute("DELETE", name, new TreeMap<>(), null)) {
+            if (response.code() != 404) {
+                checkSuccessful(response, name);
+            }
+        }
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        List<String> nameList = new ArrayList<>();
+        String continuationToken = null;
+        do {
+            Map<String, String> query = new TreeMap<>();
+            query.put("list-type", "2");
+            if (continuationToken != null) {
+                query.put("continuation-token", continuationToken);
+            }
+            Document document;
+            try (Response response = execute("GET", null, query, null)) {
+                checkSuccessful(response, bucket);
+                document = parseXml(response.body());
+            }
+            NodeList keyList = document.getElementsByTagName("Key");
+            for (int i = 0; i < keyList.getLength(); i++) {
+                nameList.add(keyList.item(i).getTextContent());
+            }
+            continuationToken = getText(document, "NextContinuationToken");
+        } while (continuationToken != null);
+        return nameList;
+    }
+
+    /**
+     * Upload an object in parts, sent in parallel.
+     *
+     * @param name Object name
+     * @param source Local file to upload
+     * @param size Size of the local file
+     * @throws IOException e
+     */
+    private void putMultipart(String name, Path source, long size) throws IOException {
+        Map<String, String> query = new TreeMap<>();
+        query.put("uploads", "");
+        String uploadId;
+        try (Response response = execute("POST", name, query, RequestBody.create(new byte[0]))) {
+            checkSuccessful(response, name);
+            uploadId = getText(parseXml(response.body()), "UploadId");
+        }
+
+        try {
+            List<Future<String>> etagList = new ArrayList<>();
+            for (long offset = 0; offset < size; offset += partSize) {
+                int partNumber = etagList.size() + 1;
+                long length = Math.min(partSize, size - offset);
+                long partOffset = offset;
+                etagList.add(partExecutor.submit(() -> {
+                    Map<String, String> partQuery = new TreeMap<>();
+                    partQuery.put("partNumber", Integer.toString(partNumber));
+                    partQuery.put("uploadId", uploadId);
+                    try (Response response = execute("PUT", name, partQuery, new FileRequestBody(source, partOffset, length))) {
+                        checkSuccessful(response, name);
+                        return response.header("ETag");
+                    }
+                }));
+            }
+
+            StringBuilder sb = new StringBuilder("<CompleteMultipartUpload>");
+            for (int i = 0; i < etagList.size(); i++) {
+                sb.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                        .append(etagList.get(i).get()).append("</ETag></Part>");
+            }
+            sb.append("</CompleteMultipartUpload>");
+
+            query = new TreeMap<>();
+            query.put("uploadId", uploadId);
+            try (Response response = execute("POST", name, query, RequestBody.create(sb.toString(), MediaType.get("application/xml")))) {
+                checkSuccessful(response, name);
+                // The completion can fail after a successful status
+                String body = response.body().string();
+                if (body.contains("<Error>")) {
+                    throw new IOException("Error completing the upload of " + name + ": " + body);
+                }
+            }
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            query = new TreeMap<>();
+            query.put("uploadId", uploadId);
+            try (Response response = execute("DELETE", name, query, null)) {
+                // Best effort abort, the incomplete uploads expiring with the bucket policy
+            } catch (IOException e1) {
+                e.addSuppressed(e1);
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw e instanceof IOException ? (IOException) e : new IOException("Error uploading " + name, e);
+        }
+    }
+
+    /**
+     * Execute a signed request.
+     *
+     * @param method HTTP method
+     * @param name Object name, null for the bucket
+     * @param query Query parameters
+     * @param body Request body, null for none
+     * @return Response, to close
+     * @throws IOException e
+     */
+    private Response execute(String method, String name, Map<String, String> query, RequestBody body) throws IOException {
+        return client.newCall(newRequest(method, name, query, body).build()).execute();
+    }
+
+    /**
+     * Build a signed request.
+     *
+     * @param method HTTP method
+     * @param name Object name, null for the bucket
+     * @param query Query parameters
+     * @param body Request body, null for none
+     * @return Request builder
+     */
+    private Request.Builder newRequest(String method, String name, Map<String, String> query, RequestBody body) {
+        String path = endpoint.encodedPath().replaceAll("/$", "")
+                + "/" + uriEncode(bucket, false) + (name == null ? "" : "/" + uriEncode(name, false));
+        String canonicalQuery = getCanonicalQuery(query);
+        HttpUrl url = endpoint.newBuilder()
+                .encodedPath(path)
+                .encodedQuery(canonicalQuery.isEmpty() ? null : canonicalQuery)
+                .build();
+        String host = url.port() == HttpUrl.defaultPort(url.scheme()) ? url.host() : url.host() + ":" + url.port();
+        String amzDate = AMZ_DATE_FORMAT.format(ZonedDateTime.now(ZoneOffset.UTC));
+
+        Map<String, String> headers = new TreeMap<>();
+        headers.put("host", host);
+        headers.put("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+        headers.put("x-amz-date", amzDate);
+        String authorization = sign(method, path, canonicalQuery, headers, UNSIGNED_PAYLOAD, amzDate,
+                region, accessKey, secretKey);
+
+        return new Request.Builder()
+                .url(url)
+                .method(method, body)
+                .header("x-amz-content-sha256", UNSIGNED_PAYLOAD)
+                .header("x-amz-date", amzDate)
+                .header("Authorization", authorization);
+    }
+
+    /**
+     * Returns the Authorization header of a request, signed with AWS Signature Version 4.
+     *
+     * @param method HTTP method
+     * @param path URI-encoded path
+     * @param canonicalQuery Canonical query string
+     * @param headers Signed headers with lowercase names, sorted by name
+     * @param payloadHash Payload SHA-256 or UNSIGNED-PAYLOAD
+     * @param amzDate Request date (yyyyMMdd'T'HHmmss'Z')
+     * @param region Region
+     * @param accessKey Access key
+     * @param secretKey Secret key
+     * @return Authorization header
+     */
+    static String sign(String method, String path, String canonicalQuery, Map<String, String> headers, String payloadHash,
+                       String amzDate, String region, String accessKey, String secretKey) {
+        StringBuilder canonicalHeaders = new StringBuilder();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().trim()).append('\n');
+        }
+        String signedHeaders = String.join(";", headers.keySet());
+        String canonicalRequest = method + "\n" + path + "\n" + canonicalQuery + "\n"
+                + canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
+
+        String date = amzDate.substring(0, 8);
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n"
+                + Hashing.sha256().hashString(canonicalRequest, StandardCharsets.UTF_8);
+
+        byte[] key = ("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8);
+        for (String part : new String[] { date, region, "s3", "aws4_request" }) {
+            key = Hashing.hmacSha256(key).hashString(part, StandardCharsets.UTF_8).asBytes();
+        }
+        String signature = Hashing.hmacSha256(key).hashString(stringToSign, StandardCharsets.UTF_8).toString();
+
+        return "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope
+                + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature;
+    }
+
+    /**
+     * Returns the canonical query string, sorted by parameter name.
+     *
+     * @param query Query parameters
+     * @return Canonical query string
+     */
+    private static String getCanonicalQuery(Map<String, String> query) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> parameter : new TreeMap<>(query).entrySet()) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(uriEncode(parameter.getKey(), true)).append('=').append(uriEncode(parameter.getValue(), true));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * URI-encode a string as specified by AWS Signature Version 4.
+     *
+     * @param value Value
+     * @param encodeSlash True to encode the slashes
+     * @return Encoded value
+     */
+    private static String uriEncode(String value, boolean encodeSlash) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xff);
+            if (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9'
+                    || c == '-' || c == '_' || c == '.' || c == '~' || c == '/' && !encodeSlash) {
+                sb.append(c);
+            } else {
+                sb.append('%').append(String.format("%02X", b & 0xff));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void checkSuccessful(Response response, String name) throws IOException {
+        if (response.code() == 404) {
+            throw new NoSuchFileException(name);
+        }
+        if (!response.isSuccessful()) {
+            ResponseBody body = response.body();
+            throw new IOException("S3 error on " + name + ": " + response.code() + " " + (body == null ? "" : body.string()));
+        }
+    }
+
+    private static Document parseXml(ResponseBody body) throws IOException {
+        try (InputStream inputStream = body.byteStream()) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(inputStream);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Error parsing the S3 response", e);
+        }
+    }
+
+    private static String getText(Document document, String tagName) {
+        NodeList nodeList = document.getElementsByTagName(tagName);
+        return nodeList.getLength() == 0 ? null : nodeList.item(0).getTextContent();
+    }
+
+    /**
+     * Request body streamed from a range of a local file.
+     */
+    private static class FileRequestBody extends RequestBody {
+        private final Path file;
+        private final long offset;
+        private final long length;
+
+        FileRequestBody(Path file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return MediaType.get("application/octet-stream");
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            try (FileChannel channel = FileChannel.open(file)) {
+                channel.position(offset);
+                ByteStreams.copy(ByteStreams.limit(Channels.newInputStream(channel), length), sink.outputStream());
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.sismics.docs.core.util.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Storage backend of the encrypted files, thumbnails and blobs, addressed by name.
+ *
+ * @author bgamard
+ */
+public interface StorageBackend {
+    /**
+     * Store an object, replacing any object with the same name.
+     *
+     * @param name Object name
+     * @param source Local file to store, moved or copied to the storage
+     * @throws IOException e
+     */
+    void put(String name, Path source) throws IOException;
+
+    /**
+     * Read an object from an offset.
+     *
+     * @param name Object name
+     * @param offset Offset of the first byte to read
+     * @return Object content from the offset
+     * @throws IOException e, NoSuchFileException if the object does not exist
+     */
+    InputStream get(String name, long offset) throws IOException;
+
+    /**
+     * Return true if an object exists.
+     *
+     * @param name Object name
+     * @return True if the object exists
+     */
+    boolean exists(String name);
+
+    /**
+     * Returns the size of an object.
+     *
+     * @param name Object name
+     * @return Size in bytes
+     * @throws IOException e
+     */
+    long size(String name) throws IOException;
+
+    /**
+     * Returns the last modification date of an object.
+     *
+     * @param name Object name
+     * @return Last modification timestamp
+     * @throws IOException e
+     */
+    long getLastModified(String name) throws IOException;
+
+    /**
+     * Delete an object, if it exists.
+     *
+     * @param name Object name
+     * @throws IOException e
+     */
+    void delete(String name) throws IOException;
+
+    /**
+     * Returns the names of all stored objects.
+     *
+     * @return Object names
+     * @throws IOException e
+     */
+    List<String> list() throws IOException;
+}
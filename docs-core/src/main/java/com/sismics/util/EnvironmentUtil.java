@@ -1,11 +1,19 @@
 package com.sismics.util;
 
+import com.google.common.base.Strings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * Environment properties utilities.
  *
  * @author jtremeaux
  */
 public class EnvironmentUtil {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(EnvironmentUtil.class);
 
     private static String OS = System.getProperty("os.name").toLowerCase();
 
@@ -94,6 +102,30 @@ public class EnvironmentUtil {
         return TEEDY_HOME;
     }
 
+    /**
+     * Returns a positive number from an environment variable.
+     *
+     * @param name Environment variable name
+     * @param defaultValue Default value if the variable is not set or invalid
+     * @return Value
+     */
+    public static long getEnvLong(String name, long defaultValue) {
+        String envValue = System.getenv(name);
+        if (Strings.isNullOrEmpty(envValue)) {
+            return defaultValue;
+        }
+        try {
+            long value = Long.parseLong(envValue);
+            if (value >= 0) {
+                return value;
+            }
+            log.warn(name + " needs to be a positive number. Falling back to " + defaultValue + ".");
+        } catch (NumberFormatException e) {
+            log.warn(name + " needs to be a number. Falling back to " + defaultValue + ".");
+        }
+        return defaultValue;
+    }
+
     /**
      * Getter of webappContext.
      *
@@ -24,4 +24,74 @@ public class HttpUtil {
     public static String buildExpiresHeader(long futureTime) {
         return EXPIRES_FORMAT.format(new Date().getTime() + futureTime);
     }
+
+    /**
+     * Parse a Range HTTP header, only a single byte range being supported.
+     *
+     * @param range Range header
+     * @param length Length of the resource
+     * @return First and last byte positions (inclusive), an empty array if the range is not satisfiable,
+     * or null to serve the whole resource
+     */
+    public static long[] parseRange(String range, long length) {
+        if (range == null || !range.startsWith("bytes=") || range.contains(",")) {
+            return null;
+        }
+        String[] positions = range.substring("bytes=".length()).trim().split("-", -1);
+        if (positions.length != 2) {
+            return null;
+        }
+
+        try {
+            long first;
+            long last;
+            if (positions[0].isEmpty()) {
+                // Suffix range: the last bytes
+                long suffixLength = Long.parseLong(positions[1]);
+                if (suffixLength <= 0) {
+                    return new long[0];
+                }
+                first = Math.max(length - suffixLength, 0);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(positions[0]);
+                if (positions[1].isEmpty()) {
+                    last = length - 1;
+                } else {
+                    last = Long.parseLong(positions[1]);
+                    if (last < first) {
+                        // Invalid range, ignored
+                        return null;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+            }
+            if (first >= length) {
+                return new long[0];
+            }
+            return new long[] { first, last };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check if an If-None-Match HTTP header matches an entity tag, weak tags included.
+     *
+     * @param ifNoneMatch If-None-Match header
+     * @param entityTag Quoted entity tag
+     * @return True if the header matches the entity tag
+     */
+    public static boolean matchEntityTag(String ifNoneMatch, String entityTag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(entityTag) || tag.equals("W/" + entityTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
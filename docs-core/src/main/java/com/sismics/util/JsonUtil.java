@@ -47,4 +47,17 @@ public class JsonUtil {
         }
         return Json.createObjectBuilder().add("_", value).build().get("_");
     }
+
+    /**
+     * Returns a JsonValue from a Boolean.
+     *
+     * @param value Value
+     * @return JsonValue
+     */
+    public static JsonValue nullable(Boolean value) {
+        if (value == null) {
+            return JsonValue.NULL;
+        }
+        return value ? JsonValue.TRUE : JsonValue.FALSE;
+    }
 }
@@ -28,6 +28,11 @@ public class ThreadLocalContext {
      */
     private List<Object> asyncEventList = Lists.newArrayList();
 
+    /**
+     * List of actions to run after the commit of this request transaction.
+     */
+    private List<Runnable> afterCommitList = Lists.newArrayList();
+
     /**
      * Private constructor.
      */
@@ -99,4 +104,26 @@ public class ThreadLocalContext {
             AppContext.getInstance().getAsyncEventBus().post(asyncEvent);
         }
     }
+
+    /**
+     * Add an action to run after the commit of the current request transaction.
+     * The action is dropped if the transaction is rolled back.
+     *
+     * @param action Action
+     */
+    public void addAfterCommit(Runnable action) {
+        afterCommitList.add(action);
+    }
+
+    /**
+     * Run all pending after commit actions.
+     */
+    public void runAllAfterCommit() {
+        Iterator<Runnable> iterator = afterCommitList.iterator();
+        while (iterator.hasNext()) {
+            Runnable action = iterator.next();
+            iterator.remove();
+            action.run();
+        }
+    }
 }
@@ -0,0 +1,71 @@
+package com.sismics.util.jpa;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of the time spent waiting for a pooled connection.
+ * Registered in HikariCP by {@link HikariConnectionProvider}.
+ *
+ * @author bgamard
+ */
+public class ConnectionPoolMetrics implements MetricsTrackerFactory {
+    /**
+     * Number of connection requests, HikariCP recording the wait of the timed out ones too.
+     */
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * Total wait for a connection (in nanoseconds).
+     */
+    private final AtomicLong totalWaitTime = new AtomicLong();
+
+    /**
+     * Maximum wait for a connection (in nanoseconds).
+     */
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /**
+     * Number of connections not acquired in time.
+     */
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                requestCount.incrementAndGet();
+                totalWaitTime.addAndGet(elapsedAcquiredNanos);
+                maxWaitTime.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeoutCount.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Returns the wait metrics.
+     *
+     * @return Metrics by name
+     */
+    public Map<String, Long> getMetrics() {
+        Map<String, Long> metrics = new HashMap<>();
+        long requests = requestCount.get();
+        long timeouts = timeoutCount.get();
+        metrics.put("acquired", requests - timeouts);
+        metrics.put("wait_time_avg", requests == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitTime.get() / requests));
+        metrics.put("wait_time_max", TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get()));
+        metrics.put("timeouts", timeouts);
+        return metrics;
+    }
+}
@@ -2,7 +2,11 @@ package com.sismics.util.jpa;
 
 import com.google.common.base.Strings;
 import com.sismics.docs.core.util.DirectoryUtil;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hibernate.internal.util.config.ConfigurationHelper;
 import org.hibernate.service.ServiceRegistry;
 import org.slf4j.Logger;
@@ -83,6 +87,22 @@ public final class EMF {
         if(databasePoolSize == null) {
             databasePoolSize = "10";
         }
+        String databasePoolMinSize = System.getenv("DATABASE_POOL_MIN_SIZE");
+        if (databasePoolMinSize == null) {
+            databasePoolMinSize = "1";
+        }
+        String databasePoolTimeout = System.getenv("DATABASE_POOL_TIMEOUT");
+        if (databasePoolTimeout == null) {
+            databasePoolTimeout = "30000";
+        }
+        String databaseLeakDetectionThreshold = System.getenv("DATABASE_LEAK_DETECTION_THRESHOLD");
+        if (databaseLeakDetectionThreshold == null) {
+            databaseLeakDetectionThreshold = "300000";
+        }
+        String databaseStatementCacheSize = System.getenv("DATABASE_STATEMENT_CACHE_SIZE");
+        if (databaseStatementCacheSize == null) {
+            databaseStatementCacheSize = "256";
+        }
 
         log.info("Configuring EntityManager from environment parameters");
         Properties props = new Properties();
@@ -94,21 +114,26 @@ public final class EMF {
             props.put("hibernate.dialect", "org.hibernate.dialect.HSQLDialect");
             props.put("hibernate.connection.url", "jdbc:h2:file:" + dbFile + ";CACHE_SIZE=65536;LOCK_TIMEOUT=10000");
             props.put("hibernate.connection.username", "sa");
+            props.put("hibernate.hikari.dataSource.QUERY_CACHE_SIZE", databaseStatementCacheSize);
         } else {
             props.put("hibernate.connection.driver_class", "org.postgresql.Driver");
             props.put("hibernate.dialect", "org.hibernate.dialect.PostgreSQLDialect");
             props.put("hibernate.connection.url", databaseUrl);
             props.put("hibernate.connection.username", databaseUsername);
             props.put("hibernate.connection.password", databasePassword);
+            props.put("hibernate.hikari.dataSource.preparedStatementCacheQueries", databaseStatementCacheSize);
         }
         props.put("hibernate.hbm2ddl.auto", "");
         props.put("hibernate.show_sql", "false");
         props.put("hibernate.format_sql", "false");
         props.put("hibernate.max_fetch_depth", "5");
         props.put("hibernate.cache.use_second_level_cache", "false");
-        props.put("hibernate.connection.initial_pool_size", "1");
-        props.put("hibernate.connection.pool_size", databasePoolSize);
-        props.put("hibernate.connection.pool_validation_interval", "5");
+        props.put("hibernate.connection.provider_class", HikariConnectionProvider.class.getName());
+        props.put("hibernate.connection.autocommit", "false");
+        props.put("hibernate.hikari.minimumIdle", databasePoolMinSize);
+        props.put("hibernate.hikari.maximumPoolSize", databasePoolSize);
+        props.put("hibernate.hikari.connectionTimeout", databasePoolTimeout);
+        props.put("hibernate.hikari.leakDetectionThreshold", databaseLeakDetectionThreshold);
         return props;
     }
     
@@ -140,4 +165,33 @@ public final class EMF {
     public static String getDriver() {
         return (String) properties.get("hibernate.connection.driver_class");
     }
+
+    /**
+     * Returns the metrics of the connection pool.
+     *
+     * @return Metrics by name, empty if the connections are not pooled by HikariCP
+     */
+    public static Map<String, Long> getConnectionPoolMetrics() {
+        Map<String, Long> metrics = new HashMap<>();
+        ConnectionProvider connectionProvider = emfInstance.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(ConnectionProvider.class);
+        if (connectionProvider == null || !connectionProvider.isUnwrappableAs(HikariDataSource.class)) {
+            return metrics;
+        }
+        HikariDataSource dataSource = connectionProvider.unwrap(HikariDataSource.class);
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        if (pool == null) {
+            return metrics;
+        }
+        metrics.put("active", (long) pool.getActiveConnections());
+        metrics.put("idle", (long) pool.getIdleConnections());
+        metrics.put("total", (long) pool.getTotalConnections());
+        metrics.put("waiting", (long) pool.getThreadsAwaitingConnection());
+        metrics.put("min_size", (long) dataSource.getMinimumIdle());
+        metrics.put("max_size", (long) dataSource.getMaximumPoolSize());
+        if (dataSource.getMetricsTrackerFactory() instanceof ConnectionPoolMetrics) {
+            metrics.putAll(((ConnectionPoolMetrics) dataSource.getMetricsTrackerFactory()).getMetrics());
+        }
+        return metrics;
+    }
 }
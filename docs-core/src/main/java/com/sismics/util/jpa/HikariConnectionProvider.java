@@ -0,0 +1,21 @@
+package com.sismics.util.jpa;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.hibernate.HibernateException;
+import org.hibernate.hikaricp.internal.HikariCPConnectionProvider;
+
+import java.util.Map;
+
+/**
+ * HikariCP connection provider recording the wait for a connection.
+ * The metrics tracker cannot be configured from the Hibernate properties, which are only strings.
+ *
+ * @author bgamard
+ */
+public class HikariConnectionProvider extends HikariCPConnectionProvider {
+    @Override
+    public void configure(Map<String, Object> props) throws HibernateException {
+        super.configure(props);
+        unwrap(HikariDataSource.class).setMetricsTrackerFactory(new ConnectionPoolMetrics());
+    }
+}
@@ -1,9 +1,14 @@
 package com.sismics.util.mime;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
  * Utility to check MIME types.
@@ -11,6 +16,11 @@ import java.nio.file.Path;
  * @author bgamard
  */
 public class MimeTypeUtil {
+    /**
+     * Number of first bytes of a file needed to guess its MIME type.
+     */
+    public static final int HEADER_SIZE = 8192;
+
     /**
      * Try to guess the MIME type of a file.
      * 
@@ -20,19 +30,120 @@ public class MimeTypeUtil {
      * @throws IOException e
      */
     public static String guessMimeType(Path file, String name) throws IOException {
-        String mimeType = Files.probeContentType(file);
+        byte[] header = new byte[HEADER_SIZE];
+        int headerLength = 0;
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            int count;
+            while (headerLength < header.length && (count = inputStream.read(header, headerLength, header.length - headerLength)) != -1) {
+                headerLength += count;
+            }
+        }
+        return guessMimeType(Arrays.copyOf(header, headerLength), name);
+    }
+    
+    /**
+     * Try to guess the MIME type of a file from its first bytes, without the whole file.
+     * The name is only used for the formats without signature, such as text files.
+     *
+     * @param header First bytes of the file (see {@link #HEADER_SIZE})
+     * @param name File name
+     * @return MIME type
+     */
+    public static String guessMimeType(byte[] header, String name) {
+        String nameMimeType = guessMimeTypeFromName(name);
+        if (startsWith(header, 0, "%PDF".getBytes(StandardCharsets.US_ASCII))) {
+            return MimeType.APPLICATION_PDF;
+        }
+        if (startsWith(header, 0, new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF })) {
+            return MimeType.IMAGE_JPEG;
+        }
+        if (startsWith(header, 0, new byte[] { (byte) 0x89, 'P', 'N', 'G' })) {
+            return MimeType.IMAGE_PNG;
+        }
+        if (startsWith(header, 0, "GIF8".getBytes(StandardCharsets.US_ASCII))) {
+            return MimeType.IMAGE_GIF;
+        }
+        if (startsWith(header, 0, new byte[] { 0x1A, 0x45, (byte) 0xDF, (byte) 0xA3 })) {
+            return MimeType.VIDEO_WEBM;
+        }
+        if (startsWith(header, 4, "ftyp".getBytes(StandardCharsets.US_ASCII))) {
+            return MimeType.VIDEO_MP4;
+        }
+        if (startsWith(header, 0, new byte[] { 'P', 'K', 3, 4 })) {
+            // Documents are ZIP files, recognized from their first entries
+            String content = new String(header, StandardCharsets.ISO_8859_1);
+            if (content.startsWith("mimetype" + MimeType.OPEN_DOCUMENT_TEXT, 30)) {
+                return MimeType.OPEN_DOCUMENT_TEXT;
+            }
+            if (!content.contains("[Content_Types].xml") && !content.contains("_rels/.rels")) {
+                return MimeType.APPLICATION_ZIP;
+            }
+            if (content.contains("word/")) {
+                return MimeType.OFFICE_DOCUMENT;
+            }
+            if (content.contains("ppt/")) {
+                return MimeType.OFFICE_PRESENTATION;
+            }
+            if (content.contains("xl/")) {
+                return MimeType.OFFICE_SHEET;
+            }
 
-        if (mimeType == null && name != null) {
-            mimeType = URLConnection.getFileNameMap().getContentTypeFor(name);
+            // An Office document with its parts further, only the name can tell which one
+            if (MimeType.OFFICE_DOCUMENT.equals(nameMimeType) || MimeType.OFFICE_PRESENTATION.equals(nameMimeType)
+                    || MimeType.OFFICE_SHEET.equals(nameMimeType)) {
+                return nameMimeType;
+            }
+            return MimeType.APPLICATION_ZIP;
         }
 
-        if (mimeType == null) {
+        if (nameMimeType == null) {
             return MimeType.DEFAULT;
         }
+        return nameMimeType;
+    }
 
+    /**
+     * Try to guess the MIME type of a file from its name.
+     *
+     * @param name File name
+     * @return MIME type or null if unknown
+     */
+    private static String guessMimeTypeFromName(String name) {
+        if (name == null) {
+            return null;
+        }
+        String mimeType = null;
+        try {
+            mimeType = Files.probeContentType(Paths.get(name));
+        } catch (IOException | InvalidPathException e) {
+            // Unusable as a path, only rely on the extension
+        }
+        if (mimeType == null) {
+            mimeType = URLConnection.getFileNameMap().getContentTypeFor(name);
+        }
         return mimeType;
     }
-    
+
+    /**
+     * Returns true if some data contains a signature at an offset.
+     *
+     * @param data Data
+     * @param offset Offset
+     * @param signature Signature
+     * @return True if the signature is found
+     */
+    private static boolean startsWith(byte[] data, int offset, byte[] signature) {
+        if (data.length < offset + signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (data[offset + i] != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Get a file extension linked to a MIME type.
      * 
@@ -0,0 +1,7 @@
+-- DBUPDATE-032-0.SQL
+
+-- Insert a new setting for Lucene indexed search filters
+insert into T_CONFIG (CFG_ID_C, CFG_VALUE_C) values ('LUCENE_INDEXED_FILTERS', 'true');
+
+-- Update the database version
+update T_CONFIG set CFG_VALUE_C = '32' where CFG_ID_C = 'DB_VERSION';
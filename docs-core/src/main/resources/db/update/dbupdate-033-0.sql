@@ -0,0 +1,7 @@
+-- DBUPDATE-033-0.SQL
+
+-- Insert a new setting for storing the file contents in Lucene
+insert into T_CONFIG (CFG_ID_C, CFG_VALUE_C) values ('LUCENE_STORED_CONTENT', 'false');
+
+-- Update the database version
+update T_CONFIG set CFG_VALUE_C = '33' where CFG_ID_C = 'DB_VERSION';
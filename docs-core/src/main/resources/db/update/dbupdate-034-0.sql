@@ -0,0 +1,9 @@
+-- DBUPDATE-034-0.SQL
+
+-- Deduplicated file contents
+create cached table T_FILE_BLOB ( FBL_ID_C varchar(64) not null, FBL_KEY_C varchar(200) not null, FBL_REFCOUNT_N bigint not null, FBL_SIZE_N bigint not null, FBL_CREATEDATE_D datetime not null, primary key (FBL_ID_C) );
+alter table T_FILE add column FIL_IDBLOB_C varchar(64);
+alter table T_FILE add column FIL_BLOBKEY_C varchar(200);
+
+-- Update the database version
+update T_CONFIG set CFG_VALUE_C = '34' where CFG_ID_C = 'DB_VERSION';
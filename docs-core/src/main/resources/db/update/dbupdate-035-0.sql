@@ -0,0 +1,7 @@
+-- DBUPDATE-035-0.SQL
+
+-- Content hash of the files
+alter table T_FILE add column FIL_CONTENTHASH_C varchar(64);
+
+-- Update the database version
+update T_CONFIG set CFG_VALUE_C = '35' where CFG_ID_C = 'DB_VERSION';
@@ -0,0 +1,9 @@
+-- DBUPDATE-036-0.SQL
+
+-- Ancestors of the groups, including themselves, the parents of the existing groups being linked at startup
+create cached table T_GROUP_ANCESTOR ( GAN_IDGROUP_C varchar(36) not null, GAN_IDANCESTOR_C varchar(36) not null, primary key (GAN_IDGROUP_C, GAN_IDANCESTOR_C) );
+create index IDX_GAN_IDANCESTOR_C on T_GROUP_ANCESTOR (GAN_IDANCESTOR_C);
+insert into T_GROUP_ANCESTOR(GAN_IDGROUP_C, GAN_IDANCESTOR_C) select GRP_ID_C, GRP_ID_C from T_GROUP where GRP_DELETEDATE_D is null;
+
+-- Update the database version
+update T_CONFIG set CFG_VALUE_C = '36' where CFG_ID_C = 'DB_VERSION';
@@ -0,0 +1,7 @@
+-- DBUPDATE-037-0.SQL
+
+-- Configuration version stamp, changed on each configuration update
+insert into T_CONFIG(CFG_ID_C, CFG_VALUE_C) values('CONFIG_VERSION', '0');
+
+-- Update the database version
+update T_CONFIG set CFG_VALUE_C = '37' where CFG_ID_C = 'DB_VERSION';
@@ -0,0 +1,10 @@
+package com.sismics.docs;
+
+/**
+ * Category of the benchmarks, excluded from the build.
+ * Run them with: mvn test -Dtest.groups=com.sismics.docs.Benchmark -Dtest.excludedGroups=
+ *
+ * @author bgamard
+ */
+public interface Benchmark {
+}
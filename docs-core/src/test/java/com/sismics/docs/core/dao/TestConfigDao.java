@@ -0,0 +1,106 @@
+package com.sismics.docs.core.dao;
+
+import com.sismics.docs.BaseTransactionalTest;
+import com.sismics.docs.Benchmark;
+import com.sismics.docs.core.constant.ConfigType;
+import com.sismics.docs.core.util.ConfigUtil;
+import com.sismics.util.context.ThreadLocalContext;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Query;
+
+/**
+ * Test of the configuration parameter DAO.
+ *
+ * @author bgamard
+ */
+public class TestConfigDao extends BaseTransactionalTest {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(TestConfigDao.class);
+
+    /**
+     * Number of parameters read by the benchmark.
+     */
+    private static final int READ_COUNT = 10000;
+
+    @Test
+    public void cacheTest() {
+        ConfigDao.invalidateCache();
+        try {
+            Assert.assertEquals("eng", ConfigUtil.getConfigStringValue(ConfigType.DEFAULT_LANGUAGE));
+
+            // A parameter changed by another node is seen once the version stamp is checked
+            Query q = ThreadLocalContext.get().getEntityManager()
+                    .createNativeQuery("update T_CONFIG set CFG_VALUE_C = :value where CFG_ID_C = :id");
+            q.setParameter("value", "fra");
+            q.setParameter("id", ConfigType.DEFAULT_LANGUAGE.name());
+            q.executeUpdate();
+            Assert.assertEquals("eng", ConfigUtil.getConfigStringValue(ConfigType.DEFAULT_LANGUAGE));
+            q.setParameter("value", "other-node");
+            q.setParameter("id", "CONFIG_VERSION");
+            q.executeUpdate();
+            ThreadLocalContext.get().getEntityManager().clear();
+            ConfigDao.invalidateCache();
+            Assert.assertEquals("fra", ConfigUtil.getConfigStringValue(ConfigType.DEFAULT_LANGUAGE));
+
+            // An updated parameter is seen at once
+            new ConfigDao().update(ConfigType.DEFAULT_LANGUAGE, "deu");
+            Assert.assertEquals("deu", ConfigUtil.getConfigStringValue(ConfigType.DEFAULT_LANGUAGE));
+        } finally {
+            ConfigDao.invalidateCache();
+        }
+    }
+
+    @Test
+    public void rollbackTest() {
+        ConfigDao.invalidateCache();
+        Assert.assertEquals("eng", ConfigUtil.getConfigStringValue(ConfigType.DEFAULT_LANGUAGE));
+
+        // An update rolled back is never cached
+        new ConfigDao().update(ConfigType.DEFAULT_LANGUAGE, "deu");
+        Assert.assertEquals("deu", ConfigUtil.getConfigStringValue(ConfigType.DEFAULT_LANGUAGE));
+        EntityManager rolledBackEm = ThreadLocalContext.get().getEntityManager();
+        EntityManagerFactory emf = rolledBackEm.getEntityManagerFactory();
+        rolledBackEm.getTransaction().rollback();
+        rolledBackEm.close();
+
+        // Continue in a new transaction, rolled back by the tear down
+        EntityManager em = emf.createEntityManager();
+        ThreadLocalContext.get().setEntityManager(em);
+        em.getTransaction().begin();
+        Assert.assertEquals("eng", ConfigUtil.getConfigStringValue(ConfigType.DEFAULT_LANGUAGE));
+    }
+
+    /**
+     * Compare the throughput of the parameters read from the database against the cached parameters.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkConfigRead() {
+        ConfigDao.invalidateCache();
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < READ_COUNT; i++) {
+            ThreadLocalContext.get().getEntityManager().clear();
+            ConfigDao.invalidateCache();
+            Assert.assertEquals("eng", ConfigUtil.getConfigStringValue(ConfigType.DEFAULT_LANGUAGE));
+        }
+        long uncachedTime = System.currentTimeMillis() - startTime;
+
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < READ_COUNT; i++) {
+            Assert.assertEquals("eng", ConfigUtil.getConfigStringValue(ConfigType.DEFAULT_LANGUAGE));
+        }
+        long cachedTime = System.currentTimeMillis() - startTime;
+
+        log.info("Read {} parameters: {} reads/s from the database, {} reads/s cached",
+                READ_COUNT, READ_COUNT * 1000f / Math.max(uncachedTime, 1), READ_COUNT * 1000f / Math.max(cachedTime, 1));
+    }
+}
@@ -0,0 +1,59 @@
+package com.sismics.docs.core.dao;
+
+import com.sismics.docs.BaseTransactionalTest;
+import com.sismics.docs.core.dao.criteria.GroupCriteria;
+import com.sismics.docs.core.dao.dto.GroupDto;
+import com.sismics.docs.core.model.jpa.Group;
+import com.sismics.docs.core.model.jpa.User;
+import com.sismics.docs.core.model.jpa.UserGroup;
+import com.sismics.util.context.ThreadLocalContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Test of the group DAO.
+ *
+ * @author bgamard
+ */
+public class TestGroupDao extends BaseTransactionalTest {
+    @Test
+    public void ancestorsTest() throws Exception {
+        // Create a hierarchy g1 > g11 > g111 and g2
+        GroupDao groupDao = new GroupDao();
+        String g1 = groupDao.create(new Group().setName("g1"), "admin");
+        String g11 = groupDao.create(new Group().setName("g11").setParentId(g1), "admin");
+        String g111 = groupDao.create(new Group().setName("g111").setParentId(g11), "admin");
+        String g2 = groupDao.create(new Group().setName("g2"), "admin");
+        User user = createUser("ancestors");
+        UserGroup userGroup = new UserGroup();
+        userGroup.setGroupId(g111);
+        userGroup.setUserId(user.getId());
+        groupDao.addMember(userGroup);
+        Assert.assertEquals(Set.of(g1, g11, g111), findGroupIds(user.getId()));
+
+        // Move g11 under g2
+        Group group = groupDao.getActiveById(g11);
+        groupDao.update(new Group().setId(g11).setName(group.getName()).setParentId(g2), "admin");
+        Assert.assertEquals(Set.of(g2, g11, g111), findGroupIds(user.getId()));
+        Assert.assertFalse(groupDao.isAncestorsMissing());
+
+        // Rebuild the ancestors from scratch
+        ThreadLocalContext.get().getEntityManager().createNativeQuery("delete from T_GROUP_ANCESTOR").executeUpdate();
+        Assert.assertTrue(groupDao.isAncestorsMissing());
+        groupDao.rebuildAncestors();
+        Assert.assertFalse(groupDao.isAncestorsMissing());
+        Assert.assertEquals(Set.of(g2, g11, g111), findGroupIds(user.getId()));
+
+        // Delete g11, g111 is not a subgroup of g2 anymore
+        groupDao.delete(g11, "admin");
+        Assert.assertEquals(Set.of(g111), findGroupIds(user.getId()));
+    }
+
+    private Set<String> findGroupIds(String userId) {
+        return new GroupDao().findByCriteria(new GroupCriteria().setUserId(userId).setRecursive(true), null)
+                .stream().map(GroupDto::getId).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,88 @@
+package com.sismics.docs.core.service;
+
+import com.google.common.collect.Lists;
+import com.sismics.docs.core.constant.FileProcessingLane;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test of the file processing service.
+ */
+public class TestFileProcessingService {
+    @Test
+    public void testOrder() throws Exception {
+        FileProcessingService fileProcessingService = new FileProcessingService(1, 10, 10);
+        fileProcessingService.startAsync().awaitRunning();
+        List<String> processedList = Collections.synchronizedList(Lists.newArrayList());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            // Keep the only worker busy
+            fileProcessingService.submit(FileProcessingLane.INTERACTIVE, "user1", () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // NOP
+                }
+                processedList.add("user1-1");
+            });
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            // Bulk files wait for the interactive ones, the users are served in turn
+            fileProcessingService.submit(FileProcessingLane.BULK, "admin", () -> processedList.add("admin-1"));
+            fileProcessingService.submit(FileProcessingLane.INTERACTIVE, "user1", () -> processedList.add("user1-2"));
+            fileProcessingService.submit(FileProcessingLane.INTERACTIVE, "user1", () -> processedList.add("user1-3"));
+            fileProcessingService.submit(FileProcessingLane.INTERACTIVE, "user2", () -> processedList.add("user2-1"));
+            Assert.assertEquals(4, fileProcessingService.getQueuedTaskCount());
+            Assert.assertEquals(3L, (long) fileProcessingService.getMetrics().get("interactive_queued"));
+            Assert.assertEquals(1L, (long) fileProcessingService.getMetrics().get("bulk_queued"));
+        } finally {
+            release.countDown();
+            fileProcessingService.stopAsync().awaitTerminated();
+        }
+
+        Assert.assertEquals(Lists.newArrayList("user1-1", "user1-2", "user2-1", "user1-3", "admin-1"), processedList);
+        Assert.assertEquals(0, fileProcessingService.getQueuedTaskCount());
+        Assert.assertEquals(4L, (long) fileProcessingService.getMetrics().get("interactive_completed"));
+        Assert.assertEquals(1L, (long) fileProcessingService.getMetrics().get("bulk_completed"));
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+        FileProcessingService fileProcessingService = new FileProcessingService(1, 1, 1);
+        fileProcessingService.startAsync().awaitRunning();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            fileProcessingService.submit(FileProcessingLane.INTERACTIVE, "user1", () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // NOP
+                }
+            });
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            // A full lane refuses new files, the other lane still accepts them
+            Assert.assertTrue(fileProcessingService.admit(FileProcessingLane.INTERACTIVE));
+            fileProcessingService.submit(FileProcessingLane.INTERACTIVE, "user1", () -> {});
+            Assert.assertFalse(fileProcessingService.admit(FileProcessingLane.INTERACTIVE));
+            Assert.assertTrue(fileProcessingService.admit(FileProcessingLane.BULK));
+            Assert.assertEquals(1L, (long) fileProcessingService.getMetrics().get("interactive_rejected"));
+        } finally {
+            release.countDown();
+        }
+
+        // The lane has room again once processed
+        fileProcessingService.awaitCapacity(FileProcessingLane.INTERACTIVE);
+        fileProcessingService.stopAsync().awaitTerminated();
+        Assert.assertTrue(fileProcessingService.admit(FileProcessingLane.INTERACTIVE));
+    }
+}
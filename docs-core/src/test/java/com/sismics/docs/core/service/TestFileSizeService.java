@@ -1,5 +1,7 @@
 package com.sismics.docs.core.service;
 
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
 import com.sismics.docs.BaseTransactionalTest;
 import com.sismics.docs.core.dao.FileDao;
 import com.sismics.docs.core.model.jpa.File;
@@ -15,8 +17,10 @@ public class TestFileSizeService extends BaseTransactionalTest {
 
         FileDao fileDao = new FileDao();
         File file = createFile(user, File.UNKNOWN_SIZE);
-        FileSizeService fileSizeService = new FileSizeService();
-        fileSizeService.processFile(file);
+        FileSizeService fileSizeService = new FileSizeService(1);
+        Assert.assertTrue(fileSizeService.processFile(file));
         Assert.assertEquals(fileDao.getFile(file.getId()).getSize(), Long.valueOf(FILE_JPG_SIZE));
+        Assert.assertEquals(Resources.asByteSource(getResource(FILE_JPG)).hash(Hashing.sha256()).toString(),
+                fileDao.getFile(file.getId()).getContentHash());
     }
 }
@@ -3,12 +3,22 @@ package com.sismics.docs.core.util;
 import com.google.common.base.Strings;
 import com.google.common.io.ByteStreams;
 import com.sismics.BaseTest;
+import com.sismics.docs.Benchmark;
 import org.junit.Assert;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 
 /**
  * Test of the encryption utilities.
@@ -16,6 +26,16 @@ import java.io.InputStream;
  * @author bgamard
  */
 public class TestEncryptUtil extends BaseTest {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(TestEncryptUtil.class);
+
+    /**
+     * Number of thumbnails decrypted by the benchmark.
+     */
+    private static final int THUMBNAIL_COUNT = 100;
+
     @Test
     public void generatePrivateKeyTest() {
         String key = EncryptionUtil.generatePrivateKey();
@@ -48,4 +68,84 @@ public class TestEncryptUtil extends BaseTest {
         
         Assert.assertEquals(encryptedData.length, assertData.length);
     }
+
+    @Test
+    public void decryptFromOffsetTest() throws Exception {
+        byte[] data = ByteStreams.toByteArray(getSystemResourceAsStream(FILE_PDF));
+        Path encryptedFile = Files.createTempFile("encrypted", ".pdf");
+        try {
+            Files.copy(new CipherInputStream(new ByteArrayInputStream(data), EncryptionUtil.getEncryptionCipher("OnceUponATime")),
+                    encryptedFile, StandardCopyOption.REPLACE_EXISTING);
+            for (long offset : new long[] { 0, 15, 16, 4097, data.length - 1 }) {
+                InputStream encryptedInputStream = Files.newInputStream(encryptedFile);
+                ByteStreams.skipFully(encryptedInputStream, EncryptionUtil.getBlockStart(offset));
+                try (InputStream inputStream = EncryptionUtil.decryptInputStream(encryptedInputStream, "OnceUponATime", offset)) {
+                    Assert.assertArrayEquals(Arrays.copyOfRange(data, (int) offset, data.length), ByteStreams.toByteArray(inputStream));
+                }
+            }
+        } finally {
+            Files.delete(encryptedFile);
+        }
+    }
+
+    @Test
+    public void wrapKeyTest() throws Exception {
+        String key = EncryptionUtil.generatePrivateKey();
+        String wrappedKey = EncryptionUtil.wrapKey(key, "OnceUponATime", true);
+        Assert.assertNotEquals(wrappedKey, EncryptionUtil.wrapKey(key, "OnceUponATime", true));
+        Assert.assertEquals(key, EncryptionUtil.unwrapKey(wrappedKey, "OnceUponATime", true));
+        Assert.assertNotEquals(key, EncryptionUtil.unwrapKey(wrappedKey, "AnotherKey", false));
+    }
+
+    @Test
+    public void invalidateKeyTest() throws Exception {
+        EncryptionUtil.getEncryptionCipher("OnceUponATime");
+        EncryptionUtil.DerivedKey derivedKey = EncryptionUtil.getCachedKey("OnceUponATime");
+        Assert.assertNotNull(derivedKey);
+        Assert.assertSame(derivedKey, EncryptionUtil.getCachedKey("OnceUponATime"));
+
+        // The evicted key is zeroed
+        EncryptionUtil.invalidateKey("OnceUponATime");
+        Assert.assertNull(EncryptionUtil.getCachedKey("OnceUponATime"));
+        Assert.assertTrue(derivedKey.isDestroyed());
+        Assert.assertArrayEquals(new byte[derivedKey.key.length], derivedKey.key);
+
+        // The key is derived again, and still decrypts the existing files
+        InputStream inputStream = EncryptionUtil.decryptInputStream(
+                getSystemResourceAsStream(FILE_PDF_ENCRYPTED), "OnceUponATime");
+        Assert.assertEquals("%PDF-", new String(ByteStreams.toByteArray(inputStream), 0, 5, StandardCharsets.US_ASCII));
+        EncryptionUtil.DerivedKey newDerivedKey = EncryptionUtil.getCachedKey("OnceUponATime");
+        Assert.assertNotNull(newDerivedKey);
+        Assert.assertNotSame(derivedKey, newDerivedKey);
+        Assert.assertFalse(newDerivedKey.isDestroyed());
+    }
+
+    /**
+     * Compare the thumbnail decryption throughput with a key derivation for each thumbnail against cached keys.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkThumbnailDecryption() throws Exception {
+        byte[] thumbnail = ByteStreams.toByteArray(getSystemResourceAsStream(FILE_JPG));
+        byte[] encryptedThumbnail = ByteStreams.toByteArray(new CipherInputStream(
+                new ByteArrayInputStream(thumbnail), EncryptionUtil.getEncryptionCipher("OnceUponATime")));
+
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < THUMBNAIL_COUNT; i++) {
+            EncryptionUtil.invalidateKey("OnceUponATime");
+            Assert.assertArrayEquals(thumbnail, ByteStreams.toByteArray(EncryptionUtil.decryptInputStream(
+                    new ByteArrayInputStream(encryptedThumbnail), "OnceUponATime")));
+        }
+        long derivedTime = System.currentTimeMillis() - startTime;
+
+        startTime = System.currentTimeMillis();
+        for (int i = 0; i < THUMBNAIL_COUNT; i++) {
+            Assert.assertArrayEquals(thumbnail, ByteStreams.toByteArray(EncryptionUtil.decryptInputStream(
+                    new ByteArrayInputStream(encryptedThumbnail), "OnceUponATime")));
+        }
+        long cachedTime = System.currentTimeMillis() - startTime;
+
+        log.info("Decrypted {} thumbnails: {} thumbnails/s with a key derivation each, {} thumbnails/s with cached keys",
+                THUMBNAIL_COUNT, THUMBNAIL_COUNT * 1000f / Math.max(derivedTime, 1), THUMBNAIL_COUNT * 1000f / Math.max(cachedTime, 1));
+    }
 }
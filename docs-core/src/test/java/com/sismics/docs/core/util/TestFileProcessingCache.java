@@ -0,0 +1,68 @@
+package com.sismics.docs.core.util;
+
+import com.sismics.BaseTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+/**
+ * Test of the file processing cache.
+ */
+public class TestFileProcessingCache extends BaseTest {
+    @Test
+    public void testCache() throws Exception {
+        Path directory = Files.createTempDirectory("processing_cache");
+        FileProcessingCache cache = new FileProcessingCache(directory, 1024 * 1024);
+        String contentHash = FileProcessingCache.hash(Paths.get(getResource(FILE_JPG).toURI()));
+
+        // Same file with other parameters, other file
+        String key = cache.getKey(contentHash, "image/jpeg", "eng");
+        Assert.assertEquals(key, cache.getKey(contentHash, "image/jpeg", "eng"));
+        Assert.assertNotEquals(key, cache.getKey(contentHash, "image/jpeg", "fra"));
+        Assert.assertNotEquals(key, cache.getKey(FileProcessingCache.hash(Paths.get(getResource(FILE_PNG).toURI())), "image/jpeg", "eng"));
+
+        // Miss, then hit
+        Assert.assertNull(cache.get(key));
+        cache.put(key, new FileProcessingCache.Entry("Apollo", new byte[] { 1, 2, 3 }, null));
+        FileProcessingCache.Entry entry = cache.get(key);
+        Assert.assertNotNull(entry);
+        Assert.assertEquals("Apollo", entry.getContent());
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, entry.getWeb());
+        Assert.assertNull(entry.getThumbnail());
+        Assert.assertEquals(1L, (long) cache.getMetrics().get("cache_hits"));
+        Assert.assertEquals(1L, (long) cache.getMetrics().get("cache_misses"));
+
+        // The content is encrypted
+        try (Stream<Path> stream = Files.list(directory)) {
+            Path entryFile = stream.findFirst().orElseThrow();
+            Assert.assertFalse(new String(Files.readAllBytes(entryFile)).contains("Apollo"));
+        }
+
+        // Reloaded from the directory
+        cache = new FileProcessingCache(directory, 1024 * 1024);
+        Assert.assertEquals(1L, (long) cache.getMetrics().get("cache_entries"));
+        Assert.assertEquals("Apollo", cache.get(key).getContent());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        Path directory = Files.createTempDirectory("processing_cache");
+        FileProcessingCache cache = new FileProcessingCache(directory, 2500);
+        cache.put("key1", new FileProcessingCache.Entry(null, new byte[1000], null));
+        cache.put("key2", new FileProcessingCache.Entry(null, new byte[1000], null));
+
+        // The least recently used entry is evicted
+        Assert.assertNotNull(cache.get("key1"));
+        cache.put("key3", new FileProcessingCache.Entry(null, new byte[1000], null));
+        Assert.assertNotNull(cache.get("key1"));
+        Assert.assertNull(cache.get("key2"));
+        Assert.assertNotNull(cache.get("key3"));
+        Assert.assertEquals(1L, (long) cache.getMetrics().get("cache_evictions"));
+        Assert.assertEquals(2L, (long) cache.getMetrics().get("cache_entries"));
+        Assert.assertTrue(cache.getMetrics().get("cache_size") <= 2500);
+    }
+}
@@ -0,0 +1,64 @@
+package com.sismics.docs.core.util;
+
+import com.google.common.collect.Sets;
+import com.sismics.util.context.ThreadLocalContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test of the principal cache.
+ *
+ * @author bgamard
+ */
+public class TestPrincipalCache {
+    @Test
+    public void invalidationTest() {
+        PrincipalCache.put("token1", new PrincipalCache.Entry("user1", "alice", null,
+                Sets.newHashSet("group1"), Sets.newHashSet("admin")));
+        PrincipalCache.put("token2", new PrincipalCache.Entry("user1", "alice", null,
+                Sets.newHashSet("group1"), Sets.newHashSet("admin")));
+        PrincipalCache.put("token3", new PrincipalCache.Entry("user2", "bob", "bob@docs.com",
+                Sets.newHashSet(), Sets.newHashSet()));
+        Assert.assertEquals("alice", PrincipalCache.get("token1").getUsername());
+        Assert.assertTrue(PrincipalCache.get("token1").getGroupIdSet().contains("group1"));
+
+        // Logout
+        PrincipalCache.invalidate("token1");
+        Assert.assertNull(PrincipalCache.get("token1"));
+        Assert.assertNotNull(PrincipalCache.get("token2"));
+
+        // User change
+        PrincipalCache.invalidateUser("user1");
+        Assert.assertNull(PrincipalCache.get("token2"));
+        Assert.assertEquals("bob@docs.com", PrincipalCache.get("token3").getEmail());
+
+        // Group hierarchy change
+        PrincipalCache.invalidateAll();
+        Assert.assertNull(PrincipalCache.get("token3"));
+        Assert.assertTrue(PrincipalCache.getMetrics().get("principal_cache_hits") >= 4);
+    }
+
+    @Test
+    public void afterCommitTest() {
+        // Start from a fresh context, without the entity manager of a previous test
+        ThreadLocalContext.cleanup();
+
+        // Invalidated once the change is committed
+        PrincipalCache.put("token4", new PrincipalCache.Entry("user4", "carol", null,
+                Sets.newHashSet(), Sets.newHashSet()));
+        TransactionUtil.handle(() -> {
+            ThreadLocalContext.get().addAfterCommit(() -> PrincipalCache.invalidateUser("user4"));
+            Assert.assertNotNull(PrincipalCache.get("token4"));
+        });
+        Assert.assertNull(PrincipalCache.get("token4"));
+
+        // Kept if the change is rolled back
+        PrincipalCache.put("token5", new PrincipalCache.Entry("user5", "dave", null,
+                Sets.newHashSet(), Sets.newHashSet()));
+        TransactionUtil.handle(() -> {
+            ThreadLocalContext.get().addAfterCommit(() -> PrincipalCache.invalidateUser("user5"));
+            throw new IllegalStateException("Rolled back");
+        });
+        Assert.assertNotNull(PrincipalCache.get("token5"));
+    }
+}
@@ -0,0 +1,208 @@
+package com.sismics.docs.core.util.indexing;
+
+import com.google.common.collect.Lists;
+import com.sismics.docs.Benchmark;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.simple.SimpleQueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Test of the language analyzers.
+ *
+ * @author bgamard
+ */
+public class TestLanguageAnalyzerRegistry {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(TestLanguageAnalyzerRegistry.class);
+
+    /**
+     * Sample text by language: the first article of the Universal Declaration of Human Rights.
+     */
+    private static final Map<String, String> SAMPLE_MAP = new LinkedHashMap<>();
+    static {
+        SAMPLE_MAP.put("eng", "All human beings are born free and equal in dignity and rights. They are endowed "
+                + "with reason and conscience and should act towards one another in a spirit of brotherhood.");
+        SAMPLE_MAP.put("fra", "Tous les êtres humains naissent libres et égaux en dignité et en droits. Ils sont "
+                + "doués de raison et de conscience et doivent agir les uns envers les autres dans un esprit de fraternité.");
+        SAMPLE_MAP.put("deu", "Alle Menschen sind frei und gleich an Würde und Rechten geboren. Sie sind mit "
+                + "Vernunft und Gewissen begabt und sollen einander im Geist der Brüderlichkeit begegnen.");
+        SAMPLE_MAP.put("chi_sim", "人人生而自由，在尊严和权利上一律平等。他们赋有理性和良心，并应以兄弟关系的精神相对待。");
+    }
+
+    /**
+     * Number of documents in the sample corpus of each language.
+     */
+    private static final int DOCUMENT_COUNT = 2000;
+
+    /**
+     * Number of words in each sample document.
+     */
+    private static final int WORD_COUNT = 200;
+
+    /**
+     * Number of queries run on the sample corpus of each language.
+     */
+    private static final int QUERY_COUNT = 500;
+
+    /**
+     * Test that the analyzers are picked by field language.
+     */
+    @Test
+    public void testFieldAnalyzer() throws Exception {
+        try (LanguageAnalyzerRegistry registry = new LanguageAnalyzerRegistry()) {
+            Assert.assertEquals("content.fra", LanguageAnalyzerRegistry.getField("content", "fra"));
+            Assert.assertEquals("content", LanguageAnalyzerRegistry.getField("content", null));
+            Assert.assertEquals("fra", LanguageAnalyzerRegistry.getLanguage("content.fra", "content"));
+            Assert.assertNull(LanguageAnalyzerRegistry.getLanguage("content", "content"));
+            Assert.assertNull(LanguageAnalyzerRegistry.getLanguage("title_sort", "title"));
+
+            Assert.assertEquals(Lists.newArrayList("cheval"), analyze(registry.getFieldAnalyzer(), "content.fra", "chevaux"));
+            Assert.assertEquals(Lists.newArrayList("chevaux"), analyze(registry.getFieldAnalyzer(), "content", "chevaux"));
+            Assert.assertEquals(Lists.newArrayList("chevaux"), analyze(registry.getFieldAnalyzer(), "content.heb", "chevaux"));
+            Assert.assertEquals(Lists.newArrayList("東京", "京都"), analyze(registry.getFieldAnalyzer(), "content.jpn", "東京都"));
+        }
+    }
+
+    /**
+     * Compare the index size and query latency of the standard analyzer and of the language analyzers.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkAnalyzers() throws Exception {
+        try (LanguageAnalyzerRegistry registry = new LanguageAnalyzerRegistry()) {
+            // Warm up
+            benchmark(registry.getAnalyzer(null), getWords("eng", SAMPLE_MAP.get("eng")));
+
+            for (Map.Entry<String, String> entry : SAMPLE_MAP.entrySet()) {
+                String language = entry.getKey();
+                List<String> wordList = getWords(language, entry.getValue());
+                Result standardResult = benchmark(registry.getAnalyzer(null), wordList);
+                Result languageResult = benchmark(registry.getAnalyzer(language), wordList);
+                log.info("{}: standard analyzer {} bytes, {} terms, {}us per query; language analyzer {} bytes, {} terms, {}us per query",
+                        language, standardResult.size, standardResult.termCount, standardResult.queryTime,
+                        languageResult.size, languageResult.termCount, languageResult.queryTime);
+                Assert.assertTrue(languageResult.hitCount > 0);
+            }
+        }
+    }
+
+    /**
+     * Index a sample corpus and search it.
+     *
+     * @param analyzer Analyzer
+     * @param wordList Words of the corpus
+     * @return Benchmark result
+     */
+    private Result benchmark(Analyzer analyzer, List<String> wordList) throws Exception {
+        Result result = new Result();
+        Random random = new Random(42);
+        try (Directory directory = new ByteBuffersDirectory()) {
+            try (IndexWriter indexWriter = new IndexWriter(directory, new IndexWriterConfig(analyzer))) {
+                for (int i = 0; i < DOCUMENT_COUNT; i++) {
+                    StringBuilder content = new StringBuilder();
+                    for (int j = 0; j < WORD_COUNT; j++) {
+                        content.append(wordList.get(random.nextInt(wordList.size()))).append(' ');
+                    }
+                    Document document = new Document();
+                    document.add(new TextField("content", content.toString(), Field.Store.NO));
+                    indexWriter.addDocument(document);
+                }
+                indexWriter.forceMerge(1);
+            }
+            for (String file : directory.listAll()) {
+                result.size += directory.fileLength(file);
+            }
+
+            try (DirectoryReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                result.termCount = reader.leaves().get(0).reader().terms("content").size();
+                SimpleQueryParser queryParser = new SimpleQueryParser(analyzer, "content");
+                long start = System.nanoTime();
+                for (int i = 0; i < QUERY_COUNT; i++) {
+                    result.hitCount += searcher.count(queryParser.parse(wordList.get(random.nextInt(wordList.size()))));
+                }
+                result.queryTime = (System.nanoTime() - start) / QUERY_COUNT / 1000;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Split a sample text in words, or in two ideograms words for Chinese.
+     *
+     * @param language Language
+     * @param text Sample text
+     * @return Words
+     */
+    private List<String> getWords(String language, String text) {
+        List<String> wordList = new ArrayList<>();
+        if (language.startsWith("chi")) {
+            String ideograms = text.replaceAll("\\p{Punct}|，|。", "");
+            for (int i = 0; i < ideograms.length() - 1; i++) {
+                wordList.add(ideograms.substring(i, i + 2));
+            }
+        } else {
+            for (String word : text.split("\\P{L}+")) {
+                if (!word.isEmpty()) {
+                    wordList.add(word);
+                }
+            }
+        }
+        return wordList;
+    }
+
+    /**
+     * Analyze a text.
+     *
+     * @param analyzer Analyzer
+     * @param field Field
+     * @param text Text
+     * @return Terms
+     */
+    private List<String> analyze(Analyzer analyzer, String field, String text) throws IOException {
+        List<String> termList = new ArrayList<>();
+        try (TokenStream tokenStream = analyzer.tokenStream(field, text)) {
+            CharTermAttribute termAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                termList.add(termAttribute.toString());
+            }
+            tokenStream.end();
+        }
+        return termList;
+    }
+
+    /**
+     * Benchmark result.
+     */
+    private static class Result {
+        private long size;
+        private long termCount;
+        private long queryTime;
+        private long hitCount;
+    }
+}
@@ -0,0 +1,584 @@
+package com.sismics.docs.core.util.indexing;
+
+import com.google.common.collect.Lists;
+import com.sismics.docs.BaseTransactionalTest;
+import com.sismics.docs.Benchmark;
+import com.sismics.docs.core.constant.ConfigType;
+import com.sismics.docs.core.dao.ConfigDao;
+import com.sismics.docs.core.dao.DocumentDao;
+import com.sismics.docs.core.dao.FileDao;
+import com.sismics.docs.core.dao.criteria.DocumentCriteria;
+import com.sismics.docs.core.dao.dto.DocumentDto;
+import com.sismics.docs.core.model.jpa.Document;
+import com.sismics.docs.core.model.jpa.File;
+import com.sismics.docs.core.model.jpa.User;
+import com.sismics.docs.core.util.jpa.PaginatedList;
+import com.sismics.docs.core.util.jpa.PaginatedLists;
+import com.sismics.docs.core.util.jpa.SortCriteria;
+import com.sismics.util.context.ThreadLocalContext;
+import com.sismics.util.mime.MimeType;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Test of the Lucene indexing handler.
+ *
+ * @author bgamard
+ */
+public class TestLuceneIndexingHandler extends BaseTransactionalTest {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(TestLuceneIndexingHandler.class);
+
+    /**
+     * Number of documents indexed by the benchmark.
+     */
+    private static final int DOCUMENT_COUNT = 200;
+
+    /**
+     * Compare the indexing throughput of a commit on every write against group commits.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkGroupCommit() throws Exception {
+        User user = createUser("benchmarkGroupCommit");
+        DocumentDao documentDao = new DocumentDao();
+        List<Document> documentList = new ArrayList<>();
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            Document document = new Document();
+            document.setUserId(user.getId());
+            document.setLanguage("eng");
+            document.setTitle("Benchmark document " + i);
+            document.setCreateDate(new Date());
+            documentDao.create(document, user.getId());
+            documentList.add(document);
+        }
+        ThreadLocalContext.get().getEntityManager().flush();
+
+        long commitEveryWriteTime = index(new LuceneIndexingHandler(0, 0), documentList);
+        long groupCommitTime = index(new LuceneIndexingHandler(1000, 1000), documentList);
+        log.info("Indexed {} documents: {}ms with a commit on every write, {}ms with group commits",
+                DOCUMENT_COUNT, commitEveryWriteTime, groupCommitTime);
+    }
+
+    /**
+     * Compare the index size and highlight latency with the file contents stored in the index or not.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkHighlight() throws Exception {
+        User user = createUser("benchmarkHighlight");
+        Document document = new Document();
+        document.setUserId(user.getId());
+        document.setLanguage("eng");
+        document.setTitle("Highlighted document");
+        document.setCreateDate(new Date());
+        new DocumentDao().create(document, user.getId());
+
+        // Long OCR-like contents, matching only on their last page
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            sb.append("Page ").append(i).append(". Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+        }
+        sb.append("The Saturn rocket launched the mission.");
+        FileDao fileDao = new FileDao();
+        List<File> fileList = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            File file = new File();
+            file.setDocumentId(document.getId());
+            file.setUserId(user.getId());
+            file.setVersion(0);
+            file.setMimeType(MimeType.TEXT_PLAIN);
+            file.setLatestVersion(true);
+            file.setSize(File.UNKNOWN_SIZE);
+            file.setContent(sb.toString());
+            fileDao.create(file, user.getId());
+            fileList.add(file);
+        }
+        ThreadLocalContext.get().getEntityManager().flush();
+
+        ConfigDao configDao = new ConfigDao();
+        String storedHighlight = null;
+        for (boolean storedContent : new boolean[] { true, false }) {
+            configDao.update(ConfigType.LUCENE_STORED_CONTENT, Boolean.toString(storedContent));
+            LuceneIndexingHandler handler = new LuceneIndexingHandler(1000, 1000);
+            handler.startUp();
+            try {
+                handler.clearIndex();
+                handler.createDocument(document);
+                handler.createFiles(fileList);
+                Assert.assertTrue(handler.waitForCommit(handler.getGeneration(), 10000));
+
+                DocumentCriteria criteria = new DocumentCriteria();
+                criteria.setTargetIdList(Lists.newArrayList("admin"));
+                criteria.setSimpleSearch("");
+                criteria.setFullSearch("saturn");
+                String highlight = null;
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < 20; i++) {
+                    PaginatedList<DocumentDto> paginatedList = PaginatedLists.create(10, 0);
+                    handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, new SortCriteria(1, true));
+                    Assert.assertEquals(1, paginatedList.getResultCount());
+                    highlight = paginatedList.getResultList().get(0).getHighlight();
+                }
+                long time = System.currentTimeMillis() - start;
+                Assert.assertTrue(highlight.contains("<strong>Saturn</strong>"));
+                if (storedContent) {
+                    storedHighlight = highlight;
+                } else {
+                    // Same highlight from the database
+                    Assert.assertEquals(storedHighlight, highlight);
+                }
+                log.info("Content stored: {}, index size: {} bytes, 20 highlighted searches: {}ms",
+                        storedContent, handler.getMetrics().get("index_size"), time);
+            } finally {
+                handler.shutDown();
+            }
+        }
+    }
+
+    /**
+     * Test that file hits are collapsed onto their document and only the page is highlighted.
+     */
+    @Test
+    public void testSearchPage() throws Exception {
+        User user = createUser("testSearchPage");
+        DocumentDao documentDao = new DocumentDao();
+        FileDao fileDao = new FileDao();
+        LuceneIndexingHandler handler = new LuceneIndexingHandler(1000, 1000);
+        handler.startUp();
+        try {
+            handler.clearIndex();
+            for (int i = 0; i < 15; i++) {
+                Document document = new Document();
+                document.setUserId(user.getId());
+                document.setLanguage("eng");
+                document.setTitle("Page document " + i);
+                document.setDescription(String.format("Description %02d", i));
+                document.setCreateDate(new Date());
+                documentDao.create(document, user.getId());
+                handler.createDocument(document);
+
+                // Two matching files per document, highlighted from the database
+                for (int j = 0; j < 2; j++) {
+                    File file = new File();
+                    file.setDocumentId(document.getId());
+                    file.setUserId(user.getId());
+                    file.setVersion(0);
+                    file.setMimeType(MimeType.TEXT_PLAIN);
+                    file.setLatestVersion(true);
+                    file.setSize(File.UNKNOWN_SIZE);
+                    file.setContent("Apollo mission " + i + " file " + j);
+                    fileDao.create(file, user.getId());
+                    handler.createFile(file);
+                }
+            }
+            ThreadLocalContext.get().getEntityManager().flush();
+
+            DocumentCriteria criteria = new DocumentCriteria();
+            criteria.setTargetIdList(Lists.newArrayList("admin"));
+            criteria.setSimpleSearch("");
+            criteria.setFullSearch("apollo");
+
+            // Sorted in the database
+            PaginatedList<DocumentDto> paginatedList = PaginatedLists.create(10, 10);
+            handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, new SortCriteria(2, true));
+            Assert.assertEquals(15, paginatedList.getResultCount());
+            Assert.assertEquals(5, paginatedList.getResultList().size());
+            Assert.assertEquals("Description 10", paginatedList.getResultList().get(0).getDescription());
+            for (DocumentDto documentDto : paginatedList.getResultList()) {
+                Assert.assertTrue(documentDto.getHighlight().contains("<strong>Apollo</strong>"));
+            }
+
+            // Sorted in the index
+            paginatedList = PaginatedLists.create(10, 0);
+            handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, new SortCriteria(1, true));
+            Assert.assertEquals(15, paginatedList.getResultCount());
+            Assert.assertEquals(10, paginatedList.getResultList().size());
+            Assert.assertEquals("Page document 0", paginatedList.getResultList().get(0).getTitle());
+            for (DocumentDto documentDto : paginatedList.getResultList()) {
+                Assert.assertTrue(documentDto.getHighlight().contains("<strong>Apollo</strong>"));
+            }
+        } finally {
+            handler.shutDown();
+        }
+    }
+
+    /**
+     * Test the facets counted along with the search results.
+     */
+    @Test
+    public void testFacets() throws Exception {
+        User user = createUser("testFacets");
+        DocumentDao documentDao = new DocumentDao();
+        List<Document> documentList = new ArrayList<>();
+        for (String language : Lists.newArrayList("eng", "fra", "fra")) {
+            Document document = new Document();
+            document.setUserId(user.getId());
+            document.setLanguage(language);
+            document.setTitle("Faceted document");
+            document.setCreateDate(new Date());
+            documentDao.create(document, user.getId());
+            documentList.add(document);
+        }
+        ThreadLocalContext.get().getEntityManager().flush();
+
+        LuceneIndexingHandler handler = new LuceneIndexingHandler(1000, 1000);
+        handler.startUp();
+        try {
+            handler.clearIndex();
+            handler.createDocuments(documentList);
+
+            // With a fulltext search
+            DocumentCriteria criteria = new DocumentCriteria();
+            criteria.setTargetIdList(Lists.newArrayList("admin"));
+            criteria.setSimpleSearch("faceted");
+            criteria.setFullSearch("");
+            Map<String, Map<String, Integer>> facetMap = new HashMap<>();
+            PaginatedList<DocumentDto> paginatedList = PaginatedLists.create(1, 0);
+            handler.findByCriteria(paginatedList, new ArrayList<>(), facetMap, criteria, new SortCriteria(3, true));
+            Assert.assertEquals(3, paginatedList.getResultCount());
+            Assert.assertEquals(1, paginatedList.getResultList().size());
+            Assert.assertEquals(Lists.newArrayList("fra", "eng"), new ArrayList<>(facetMap.get("language").keySet()));
+            Assert.assertEquals(2, (int) facetMap.get("language").get("fra"));
+            Assert.assertEquals(3, (int) facetMap.get("creator").get(user.getId()));
+            Assert.assertEquals(1, facetMap.get("year").size());
+            Assert.assertTrue(facetMap.get("tag").isEmpty());
+
+            // Without fulltext search, filtered
+            criteria.setSimpleSearch("");
+            criteria.setLanguage("fra");
+            facetMap = new HashMap<>();
+            paginatedList = PaginatedLists.create(10, 0);
+            handler.findByCriteria(paginatedList, new ArrayList<>(), facetMap, criteria, new SortCriteria(3, true));
+            Assert.assertEquals(2, paginatedList.getResultCount());
+            Assert.assertEquals(Collections.singletonMap("fra", 2), facetMap.get("language"));
+
+            // Only the readable documents are counted
+            criteria.setTargetIdList(Lists.newArrayList("nobody"));
+            facetMap = new HashMap<>();
+            paginatedList = PaginatedLists.create(10, 0);
+            handler.findByCriteria(paginatedList, new ArrayList<>(), facetMap, criteria, new SortCriteria(3, true));
+            Assert.assertEquals(0, paginatedList.getResultCount());
+            Assert.assertTrue(facetMap.get("language").isEmpty());
+        } finally {
+            handler.shutDown();
+        }
+    }
+
+    /**
+     * Test the suggestions on document titles.
+     */
+    @Test
+    public void testSuggestions() throws Exception {
+        User user = createUser("testSuggestions");
+        DocumentDao documentDao = new DocumentDao();
+        LuceneIndexingHandler handler = new LuceneIndexingHandler(1000, 1000);
+        handler.startUp();
+        try {
+            handler.clearIndex();
+            Document document = new Document();
+            document.setUserId(user.getId());
+            document.setLanguage("eng");
+            document.setTitle("Suggested title");
+            document.setCreateDate(new Date());
+            documentDao.create(document, user.getId());
+            handler.createDocument(document);
+
+            // Rebuild the suggester now instead of after the index changes settle
+            handler.rebuildSuggester();
+            DocumentCriteria criteria = new DocumentCriteria();
+            criteria.setTargetIdList(Lists.newArrayList("admin"));
+            criteria.setSimpleSearch("");
+            criteria.setFullSearch("sugest");
+            List<String> suggestionList = new ArrayList<>();
+            handler.findByCriteria(PaginatedLists.create(10, 0), suggestionList, criteria, null);
+            Assert.assertEquals(Lists.newArrayList("suggested"), suggestionList);
+            Assert.assertTrue(handler.getMetrics().get("suggester_staleness") < 5000);
+            Assert.assertNotNull(handler.getMetrics().get("suggester_rebuild_time"));
+        } finally {
+            handler.shutDown();
+        }
+    }
+
+    /**
+     * Test that documents and files are searched in their language.
+     */
+    @Test
+    public void testLanguages() throws Exception {
+        User user = createUser("testLanguages");
+        LuceneIndexingHandler handler = new LuceneIndexingHandler(1000, 1000);
+        handler.startUp();
+        try {
+            handler.clearIndex();
+            Document document = new Document();
+            document.setUserId(user.getId());
+            document.setLanguage("fra");
+            document.setTitle("Factures des fournisseurs");
+            document.setCreateDate(new Date());
+            new DocumentDao().create(document, user.getId());
+            ThreadLocalContext.get().getEntityManager().flush();
+            handler.createDocument(document);
+
+            // Highlighted from the database
+            File file = new File();
+            file.setDocumentId(document.getId());
+            file.setUserId(user.getId());
+            file.setVersion(0);
+            file.setMimeType(MimeType.TEXT_PLAIN);
+            file.setLatestVersion(true);
+            file.setSize(File.UNKNOWN_SIZE);
+            file.setContent("Les chevaux mangent dans les prés");
+            new FileDao().create(file, user.getId());
+            ThreadLocalContext.get().getEntityManager().flush();
+            handler.createFile(file);
+
+            // Stemmed in French
+            DocumentCriteria criteria = new DocumentCriteria();
+            criteria.setTargetIdList(Lists.newArrayList("admin"));
+            criteria.setSimpleSearch("facture");
+            criteria.setFullSearch("");
+            PaginatedList<DocumentDto> paginatedList = PaginatedLists.create(10, 0);
+            handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, new SortCriteria(2, true));
+            Assert.assertEquals(1, paginatedList.getResultCount());
+
+            criteria.setSimpleSearch("");
+            criteria.setFullSearch("cheval");
+            paginatedList = PaginatedLists.create(10, 0);
+            handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, new SortCriteria(1, true));
+            Assert.assertEquals(1, paginatedList.getResultCount());
+            Assert.assertEquals("Les <strong>chevaux</strong> mangent dans les prés", paginatedList.getResultList().get(0).getHighlight());
+
+            // Not in other languages
+            criteria.setLanguage("eng");
+            paginatedList = PaginatedLists.create(10, 0);
+            handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, new SortCriteria(2, true));
+            Assert.assertEquals(0, paginatedList.getResultCount());
+        } finally {
+            handler.shutDown();
+        }
+    }
+
+    /**
+     * Test an interrupted index rebuild, resumed and swapped in.
+     */
+    @Test
+    public void testRebuild() throws Exception {
+        User user = createUser("testRebuild");
+        DocumentDao documentDao = new DocumentDao();
+        List<Document> documentList = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Document document = new Document();
+            document.setUserId(user.getId());
+            document.setLanguage("eng");
+            document.setTitle("Rebuild document " + i);
+            document.setCreateDate(new Date());
+            documentDao.create(document, user.getId());
+            documentList.add(document);
+        }
+        ThreadLocalContext.get().getEntityManager().flush();
+
+        LuceneIndexingHandler handler = new LuceneIndexingHandler(1000, 1000);
+        handler.startUp();
+        try {
+            handler.clearIndex();
+            handler.createDocument(documentList.get(0));
+
+            // Rebuild interrupted after a checkpoint
+            Assert.assertTrue(handler.startRebuild().isEmpty());
+            handler.rebuildDocuments(documentList.subList(1, 2));
+            handler.checkpointRebuild(Collections.singletonMap("last_id", documentList.get(1).getId()));
+            handler.rebuildDocuments(documentList.subList(2, 3));
+            handler.abortRebuild();
+            Assert.assertEquals(Lists.newArrayList(documentList.get(0).getTitle()), search(handler));
+
+            // Resume the rebuild, changes are written in both indexes
+            Assert.assertEquals(Collections.singletonMap("last_id", documentList.get(1).getId()), handler.startRebuild());
+            handler.rebuildDocuments(documentList.subList(2, 3));
+            handler.createDocument(documentList.get(3));
+            Assert.assertEquals(Lists.newArrayList(documentList.get(0).getTitle(), documentList.get(3).getTitle()), search(handler));
+
+            // Swap the rebuilt index in
+            handler.finishRebuild();
+            Assert.assertEquals(Lists.newArrayList(documentList.get(1).getTitle(), documentList.get(2).getTitle(),
+                    documentList.get(3).getTitle()), search(handler));
+            Assert.assertTrue(handler.startRebuild().isEmpty());
+            handler.abortRebuild();
+        } finally {
+            handler.shutDown();
+        }
+    }
+
+    /**
+     * Test that searches running while the rebuilt index is swapped in never see a partial index.
+     */
+    @Test
+    public void testRebuildSwap() throws Exception {
+        User user = createUser("testRebuildSwap");
+        DocumentDao documentDao = new DocumentDao();
+        List<Document> documentList = new ArrayList<>();
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            Document document = new Document();
+            document.setUserId(user.getId());
+            document.setLanguage("eng");
+            document.setTitle("Swapped document " + i);
+            document.setCreateDate(new Date());
+            documentDao.create(document, user.getId());
+            documentList.add(document);
+        }
+        ThreadLocalContext.get().getEntityManager().flush();
+
+        LuceneIndexingHandler handler = new LuceneIndexingHandler(1000, 1000);
+        handler.startUp();
+        try {
+            handler.clearIndex();
+            handler.createDocuments(documentList);
+            handler.startRebuild();
+            handler.rebuildDocuments(documentList);
+
+            DocumentCriteria criteria = new DocumentCriteria();
+            criteria.setSimpleSearch("swapped");
+            criteria.setFullSearch("");
+            Assert.assertEquals(DOCUMENT_COUNT, handler.search(criteria).size());
+
+            // Search in a loop while the index is swapped
+            AtomicBoolean finished = new AtomicBoolean();
+            AtomicInteger minCount = new AtomicInteger(Integer.MAX_VALUE);
+            AtomicInteger searchCount = new AtomicInteger();
+            Thread searchThread = new Thread(() -> {
+                try {
+                    while (!finished.get()) {
+                        minCount.accumulateAndGet(handler.search(criteria).size(), Math::min);
+                        searchCount.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    minCount.set(-1);
+                }
+            });
+            searchThread.start();
+            while (searchCount.get() == 0) {
+                Thread.sleep(1);
+            }
+            handler.finishRebuild();
+            finished.set(true);
+            searchThread.join();
+
+            Assert.assertEquals(DOCUMENT_COUNT, minCount.get());
+            Assert.assertEquals(DOCUMENT_COUNT, handler.search(criteria).size());
+        } finally {
+            handler.shutDown();
+        }
+    }
+
+    /**
+     * Test that the index is kept when switching between storages.
+     */
+    @Test
+    public void testStorageMigration() throws Exception {
+        User user = createUser("testStorageMigration");
+        Document document = new Document();
+        document.setUserId(user.getId());
+        document.setLanguage("eng");
+        document.setTitle("Rebuild document migrated");
+        document.setCreateDate(new Date());
+        new DocumentDao().create(document, user.getId());
+        ThreadLocalContext.get().getEntityManager().flush();
+
+        ConfigDao configDao = new ConfigDao();
+        configDao.update(ConfigType.LUCENE_DIRECTORY_STORAGE, "MMAP");
+        LuceneIndexingHandler handler = new LuceneIndexingHandler(1000, 1000);
+        handler.startUp();
+        try {
+            handler.clearIndex();
+            handler.createDocument(document);
+        } finally {
+            handler.shutDown();
+        }
+
+        // From the file storage to memory, and back
+        for (String storage : Lists.newArrayList("BYTEBUFFERS", "FILE", "BYTEBUFFERS", "MMAP")) {
+            configDao.update(ConfigType.LUCENE_DIRECTORY_STORAGE, storage);
+            handler = new LuceneIndexingHandler(1000, 1000);
+            handler.startUp();
+            try {
+                Assert.assertEquals(Lists.newArrayList(document.getTitle()), search(handler));
+            } finally {
+                handler.shutDown();
+            }
+        }
+
+        handler = new LuceneIndexingHandler(1000, 1000);
+        handler.startUp();
+        try {
+            handler.clearIndex();
+        } finally {
+            handler.shutDown();
+        }
+    }
+
+    /**
+     * Search the rebuild test documents.
+     *
+     * @param handler Indexing handler
+     * @return Titles of the documents found
+     */
+    private List<String> search(LuceneIndexingHandler handler) throws Exception {
+        DocumentCriteria criteria = new DocumentCriteria();
+        criteria.setTargetIdList(Lists.newArrayList("admin"));
+        criteria.setSimpleSearch("rebuild");
+        criteria.setFullSearch("");
+        PaginatedList<DocumentDto> paginatedList = PaginatedLists.create(10, 0);
+        handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, new SortCriteria(1, true));
+        return paginatedList.getResultList().stream().map(DocumentDto::getTitle).collect(Collectors.toList());
+    }
+
+    /**
+     * Index documents one by one and check that they are searchable and committed.
+     *
+     * @param handler Indexing handler
+     * @param documentList Documents to index
+     * @return Indexing time in milliseconds
+     */
+    private long index(LuceneIndexingHandler handler, List<Document> documentList) throws Exception {
+        handler.startUp();
+        try {
+            handler.clearIndex();
+
+            long start = System.currentTimeMillis();
+            for (Document document : documentList) {
+                handler.createDocument(document);
+            }
+            long time = System.currentTimeMillis() - start;
+
+            // Writes are visible to searches right away
+            DocumentCriteria criteria = new DocumentCriteria();
+            criteria.setTargetIdList(Lists.newArrayList("admin"));
+            criteria.setSimpleSearch("benchmark");
+            criteria.setFullSearch("");
+            PaginatedList<DocumentDto> paginatedList = PaginatedLists.create(10, 0);
+            handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, null);
+            Assert.assertEquals(DOCUMENT_COUNT, paginatedList.getResultCount());
+            Assert.assertEquals(10, paginatedList.getResultList().size());
+
+            // And durable once committed
+            Assert.assertTrue(handler.waitForCommit(handler.getGeneration(), 10000));
+            return time;
+        } finally {
+            handler.shutDown();
+        }
+    }
+}
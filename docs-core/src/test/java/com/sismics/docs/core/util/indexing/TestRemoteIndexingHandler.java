@@ -0,0 +1,296 @@
+package com.sismics.docs.core.util.indexing;
+
+import com.google.common.collect.Lists;
+import com.sismics.docs.BaseTransactionalTest;
+import com.sismics.docs.Benchmark;
+import com.sismics.docs.core.constant.Constants;
+import com.sismics.docs.core.dao.DocumentDao;
+import com.sismics.docs.core.dao.criteria.DocumentCriteria;
+import com.sismics.docs.core.dao.dto.DocumentDto;
+import com.sismics.docs.core.model.jpa.Document;
+import com.sismics.docs.core.model.jpa.File;
+import com.sismics.docs.core.model.jpa.User;
+import com.sismics.docs.core.util.jpa.PaginatedList;
+import com.sismics.docs.core.util.jpa.PaginatedLists;
+import com.sismics.docs.core.util.jpa.SortCriteria;
+import com.sismics.util.context.ThreadLocalContext;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Test of the remote indexing handler, with an index server in another process.
+ *
+ * @author bgamard
+ */
+public class TestRemoteIndexingHandler extends BaseTransactionalTest {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(TestRemoteIndexingHandler.class);
+
+    /**
+     * Number of documents indexed by the benchmark.
+     */
+    private static final int DOCUMENT_COUNT = 1000;
+
+    /**
+     * Secret shared with the index server.
+     */
+    private static final String SECRET = "index-secret";
+
+    /**
+     * Index server process.
+     */
+    private Process serverProcess;
+
+    /**
+     * Handler connected to the index server.
+     */
+    private RemoteIndexingHandler handler;
+
+    /**
+     * Index server port.
+     */
+    private int port;
+
+    @Before
+    public void startServer() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder processBuilder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                IndexServer.class.getName(), Integer.toString(port))
+                .inheritIO();
+        processBuilder.environment().put(Constants.INDEX_SERVER_SECRET_ENV, SECRET);
+        serverProcess = processBuilder.start();
+        handler = new RemoteIndexingHandler("localhost:" + port, SECRET);
+        handler.startUp();
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        handler.shutDown();
+        serverProcess.destroy();
+        serverProcess.waitFor(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Test the search, highlights and suggestions through the index server.
+     */
+    @Test
+    public void testSearch() throws Exception {
+        User user = createUser("testRemoteSearch");
+        DocumentDao documentDao = new DocumentDao();
+        Document document = new Document();
+        document.setUserId(user.getId());
+        document.setLanguage("fra");
+        document.setTitle("Factures des fournisseurs");
+        document.setCreateDate(new Date());
+        documentDao.create(document, user.getId());
+        ThreadLocalContext.get().getEntityManager().flush();
+        handler.createDocument(document);
+
+        File file = new File();
+        file.setId(UUID.randomUUID().toString());
+        file.setDocumentId(document.getId());
+        file.setContent("Les chevaux mangent dans les prés");
+        handler.createFile(file);
+
+        // Search in the documents
+        DocumentCriteria criteria = new DocumentCriteria();
+        criteria.setTargetIdList(Lists.newArrayList("admin"));
+        criteria.setSimpleSearch("facture");
+        criteria.setFullSearch("");
+        PaginatedList<DocumentDto> paginatedList = PaginatedLists.create(10, 0);
+        handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, new SortCriteria(2, true));
+        Assert.assertEquals(1, paginatedList.getResultCount());
+
+        // Search in the files, with highlights and suggestions once the server has rebuilt its suggester
+        criteria.setSimpleSearch("");
+        criteria.setFullSearch("cheval fournisseur");
+        List<String> suggestionList = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 30000;
+        while (suggestionList.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+            paginatedList = PaginatedLists.create(10, 0);
+            handler.findByCriteria(paginatedList, suggestionList, criteria, new SortCriteria(2, true));
+            Assert.assertEquals(0, paginatedList.getResultCount());
+        }
+        Assert.assertEquals(Lists.newArrayList("fournisseurs"), suggestionList);
+        criteria.setFullSearch("cheval");
+        paginatedList = PaginatedLists.create(10, 0);
+        handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, new SortCriteria(2, true));
+        Assert.assertEquals(1, paginatedList.getResultCount());
+        Assert.assertEquals("Les <strong>chevaux</strong> mangent dans les prés", paginatedList.getResultList().get(0).getHighlight());
+
+        // Delete the file
+        handler.deleteDocument(file.getId());
+        paginatedList = PaginatedLists.create(10, 0);
+        handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, new SortCriteria(2, true));
+        Assert.assertEquals(0, paginatedList.getResultCount());
+
+        // Durable once committed
+        Assert.assertTrue(handler.waitForCommit(handler.getGeneration(), 10000));
+        Assert.assertEquals(1L, (long) handler.getMetrics().get("index_entries"));
+        Assert.assertEquals(0L, (long) handler.getMetrics().get("index_pending_writes"));
+    }
+
+    /**
+     * Test an interrupted index rebuild, resumed and swapped in on the index server.
+     */
+    @Test
+    public void testRebuild() throws Exception {
+        User user = createUser("testRemoteRebuild");
+        DocumentDao documentDao = new DocumentDao();
+        List<Document> documentList = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Document document = new Document();
+            document.setUserId(user.getId());
+            document.setLanguage("eng");
+            document.setTitle("Rebuild document " + i);
+            document.setCreateDate(new Date());
+            documentDao.create(document, user.getId());
+            documentList.add(document);
+        }
+        ThreadLocalContext.get().getEntityManager().flush();
+        handler.createDocument(documentList.get(0));
+        Assert.assertTrue(handler.waitForCommit(handler.getGeneration(), 10000));
+
+        // Rebuild interrupted after a checkpoint
+        Assert.assertTrue(handler.startRebuild().isEmpty());
+        handler.rebuildDocuments(documentList.subList(1, 2));
+        handler.checkpointRebuild(Collections.singletonMap("last_id", documentList.get(1).getId()));
+        handler.rebuildDocuments(documentList.subList(2, 3));
+        handler.abortRebuild();
+        Assert.assertEquals(Lists.newArrayList(documentList.get(0).getTitle()), search());
+
+        // Resume the rebuild, changes are written in both indexes
+        Assert.assertEquals(Collections.singletonMap("last_id", documentList.get(1).getId()), handler.startRebuild());
+        handler.rebuildDocuments(documentList.subList(2, 3));
+        handler.createDocument(documentList.get(3));
+        Assert.assertEquals(Lists.newArrayList(documentList.get(0).getTitle(), documentList.get(3).getTitle()), search());
+
+        // Swap the rebuilt index in, after the queued writes
+        Assert.assertTrue(handler.waitForCommit(handler.getGeneration(), 10000));
+        handler.finishRebuild();
+        Assert.assertEquals(Lists.newArrayList(documentList.get(1).getTitle(), documentList.get(2).getTitle(),
+                documentList.get(3).getTitle()), search());
+    }
+
+    /**
+     * Test that the index server only serves authenticated clients, with bounded requests.
+     */
+    @Test
+    public void testSecurity() throws Exception {
+        // Wrong secret
+        RemoteIndexingHandler intruder = new RemoteIndexingHandler("localhost:" + port, "wrong-secret");
+        try {
+            intruder.startUp();
+            Assert.fail();
+        } catch (Exception e) {
+            // OK
+        } finally {
+            intruder.shutDown();
+        }
+
+        // Request frame larger than allowed
+        try (Socket socket = new Socket("localhost", port)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            byte[] challenge = new byte[IndexProtocol.CHALLENGE_LENGTH];
+            in.readFully(challenge);
+            out.write(IndexProtocol.sign(SECRET, challenge));
+            out.flush();
+            Assert.assertEquals(IndexProtocol.STATUS_OK, in.readByte());
+
+            out.writeByte(IndexProtocol.OP_SEARCH);
+            out.writeInt(IndexProtocol.MAX_FRAME_SIZE + 1);
+            out.flush();
+            try {
+                in.readByte();
+                Assert.fail();
+            } catch (EOFException e) {
+                // Connection closed by the server
+            }
+        }
+
+        // The server still serves the other clients
+        Assert.assertTrue(handler.waitForCommit(handler.getGeneration(), 10000));
+    }
+
+    /**
+     * Measure the indexing throughput of bulk writes through the index server.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkBulk() throws Exception {
+        User user = createUser("benchmarkRemoteBulk");
+        DocumentDao documentDao = new DocumentDao();
+        List<Document> documentList = new ArrayList<>();
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            Document document = new Document();
+            document.setUserId(user.getId());
+            document.setLanguage("eng");
+            document.setTitle("Benchmark document " + i);
+            document.setCreateDate(new Date());
+            documentDao.create(document, user.getId());
+            documentList.add(document);
+        }
+        ThreadLocalContext.get().getEntityManager().flush();
+
+        long start = System.currentTimeMillis();
+        for (Document document : documentList) {
+            handler.createDocument(document);
+        }
+        Assert.assertTrue(handler.waitForCommit(handler.getGeneration(), 60000));
+        long time = System.currentTimeMillis() - start;
+        log.info("Indexed {} documents through the index server in {}ms, {} bulk requests", DOCUMENT_COUNT, time,
+                handler.getMetrics().get("index_bulk_count"));
+
+        DocumentCriteria criteria = new DocumentCriteria();
+        criteria.setTargetIdList(Lists.newArrayList("admin"));
+        criteria.setSimpleSearch("benchmark");
+        criteria.setFullSearch("");
+        PaginatedList<DocumentDto> paginatedList = PaginatedLists.create(10, 0);
+        handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, null);
+        Assert.assertEquals(DOCUMENT_COUNT, paginatedList.getResultCount());
+    }
+
+    /**
+     * Search the rebuild test documents.
+     *
+     * @return Titles of the documents found
+     */
+    private List<String> search() throws Exception {
+        DocumentCriteria criteria = new DocumentCriteria();
+        criteria.setTargetIdList(Lists.newArrayList("admin"));
+        criteria.setSimpleSearch("rebuild");
+        criteria.setFullSearch("");
+        PaginatedList<DocumentDto> paginatedList = PaginatedLists.create(10, 0);
+        handler.findByCriteria(paginatedList, new ArrayList<>(), criteria, new SortCriteria(1, true));
+        return paginatedList.getResultList().stream()
+                .map(DocumentDto::getTitle)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,161 @@
+package com.sismics.docs.core.util.ocr;
+
+import com.google.common.collect.Lists;
+import com.sismics.BaseTest;
+import com.sismics.docs.Benchmark;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test of the OCR engines.
+ */
+public class TestOcrEngine extends BaseTest {
+    /**
+     * Logger.
+     */
+    private static final Logger log = LoggerFactory.getLogger(TestOcrEngine.class);
+
+    /**
+     * Number of pages OCR-ized by the benchmark.
+     */
+    private static final int PAGE_COUNT = 16;
+
+    /**
+     * Test that images OCR-ized in a batch get their own content.
+     */
+    @Test
+    public void testBatchOcrEngine() throws Exception {
+        List<String> wordList = Lists.newArrayList("Apollo", "Saturn", "Gemini", "Mercury");
+        Path directory = Files.createTempDirectory("ocr");
+        List<Path> pageList = new ArrayList<>();
+        for (String word : wordList) {
+            Path page = directory.resolve(word + ".tiff");
+            ImageIO.write(renderWord(word), "tiff", page.toFile());
+            pageList.add(page);
+        }
+
+        // A single worker, the images waiting for it are batched
+        BatchOcrEngine batchOcrEngine = new BatchOcrEngine(1, 8);
+        try {
+            List<String> contentList = new ArrayList<>();
+            ocr(batchOcrEngine, pageList, contentList);
+            Assert.assertEquals(wordList.size(), contentList.size());
+            for (int i = 0; i < wordList.size(); i++) {
+                Assert.assertTrue(contentList.get(i), contentList.get(i).contains(wordList.get(i)));
+                Assert.assertFalse(contentList.get(i).contains("\f"));
+            }
+        } finally {
+            batchOcrEngine.shutDown();
+        }
+    }
+
+    /**
+     * Compare the OCR throughput of a process for each page against processes shared between pages.
+     */
+    @Test
+    @Category(Benchmark.class)
+    public void benchmarkOcrEngine() throws Exception {
+        // Render a scanned page
+        BufferedImage image;
+        try (InputStream inputStream = getSystemResourceAsStream(FILE_PDF_SCANNED);
+             PDDocument pdfDocument = PDDocument.load(inputStream)) {
+            image = new PDFRenderer(pdfDocument).renderImageWithDPI(0, 300, ImageType.GRAY);
+        }
+        Path directory = Files.createTempDirectory("ocr");
+        List<Path> pageList = new ArrayList<>();
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            Path page = directory.resolve("page" + i + ".tiff");
+            ImageIO.write(image, "tiff", page.toFile());
+            pageList.add(page);
+        }
+
+        ProcessOcrEngine processOcrEngine = new ProcessOcrEngine(2);
+        BatchOcrEngine batchOcrEngine = new BatchOcrEngine(2, 8);
+        try {
+            List<String> processContentList = new ArrayList<>();
+            long processTime = ocr(processOcrEngine, pageList, processContentList);
+            List<String> batchContentList = new ArrayList<>();
+            long batchTime = ocr(batchOcrEngine, pageList, batchContentList);
+
+            // A content for each page, without the page separators
+            Assert.assertEquals(PAGE_COUNT, batchContentList.size());
+            for (int i = 0; i < PAGE_COUNT; i++) {
+                Assert.assertFalse(processContentList.get(i).trim().isEmpty());
+                Assert.assertFalse(batchContentList.get(i).trim().isEmpty());
+                Assert.assertFalse(batchContentList.get(i).contains("\f"));
+            }
+            log.info("OCR-ized {} pages: {} pages/s with a process per page, {} pages/s with shared processes",
+                    PAGE_COUNT, PAGE_COUNT * 1000f / processTime, PAGE_COUNT * 1000f / batchTime);
+        } finally {
+            batchOcrEngine.shutDown();
+            processOcrEngine.shutDown();
+        }
+    }
+
+    /**
+     * Render a word in a scanned-like page image.
+     *
+     * @param word Word
+     * @return Page image
+     */
+    private BufferedImage renderWord(String word) {
+        BufferedImage image = new BufferedImage(1275, 1650, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+            graphics.setColor(Color.BLACK);
+            graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 96));
+            graphics.drawString(word, 100, 300);
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
+
+    /**
+     * OCR pages from as many threads as pages.
+     *
+     * @param ocrEngine OCR engine
+     * @param pageList Pages
+     * @param contentList Contents of the pages (updated by side effects)
+     * @return Time in milliseconds
+     * @throws Exception e
+     */
+    private long ocr(OcrEngine ocrEngine, List<Path> pageList, List<String> contentList) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(pageList.size());
+        try {
+            long startTime = System.currentTimeMillis();
+            List<Future<String>> futureList = new ArrayList<>();
+            for (Path page : pageList) {
+                futureList.add(executor.submit(() -> ocrEngine.ocr("eng", page)));
+            }
+            for (Future<String> future : futureList) {
+                contentList.add(future.get());
+            }
+            return System.currentTimeMillis() - startTime;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
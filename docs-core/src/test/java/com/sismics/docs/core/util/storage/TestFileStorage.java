@@ -0,0 +1,109 @@
+package com.sismics.docs.core.util.storage;
+
+import com.google.common.io.ByteStreams;
+import com.sismics.docs.BaseTransactionalTest;
+import com.sismics.docs.core.dao.FileBlobDao;
+import com.sismics.docs.core.dao.FileDao;
+import com.sismics.docs.core.model.jpa.File;
+import com.sismics.docs.core.model.jpa.FileBlob;
+import com.sismics.docs.core.model.jpa.User;
+import com.sismics.util.context.ThreadLocalContext;
+import com.sismics.util.mime.MimeType;
+import jakarta.persistence.EntityManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Test of the file storage.
+ *
+ * @author bgamard
+ */
+public class TestFileStorage extends BaseTransactionalTest {
+    @Test
+    public void deduplicationTest() throws Exception {
+        FileStorage fileStorage = new FileStorage(new LocalStorageBackend(Files.createTempDirectory("file_storage")), true);
+        StorageBackend backend = fileStorage.getBackend();
+        FileBlobDao fileBlobDao = new FileBlobDao();
+        EntityManager em = ThreadLocalContext.get().getEntityManager();
+        User user1 = createUser("deduplication1");
+        User user2 = createUser("deduplication2");
+        byte[] content = "Apollo 11 flight plan".getBytes(StandardCharsets.UTF_8);
+
+        // The same content stored by two users is stored once
+        File file1 = createFile(user1);
+        File file2 = createFile(user2);
+        fileStorage.store(file1, user1.getPrivateKey(), new ByteArrayInputStream(content));
+        fileStorage.store(file2, user2.getPrivateKey(), new ByteArrayInputStream(content));
+        Assert.assertNotNull(file1.getBlobId());
+        Assert.assertEquals(file1.getBlobId(), file2.getBlobId());
+        Assert.assertNotEquals(file1.getBlobKey(), file2.getBlobKey());
+        Assert.assertEquals(1, backend.list().size());
+        em.flush();
+        em.clear();
+        FileBlob fileBlob = fileBlobDao.getById(file1.getBlobId());
+        Assert.assertEquals(2L, (long) fileBlob.getReferenceCount());
+        Assert.assertEquals(content.length, fileStorage.getSize(file1, null));
+
+        // Each user reads it with their own key, from any offset
+        try (InputStream inputStream = fileStorage.open(file2, user2.getPrivateKey())) {
+            Assert.assertArrayEquals(content, ByteStreams.toByteArray(inputStream));
+        }
+        try (InputStream inputStream = fileStorage.open(file1, null, user1.getPrivateKey(), 7)) {
+            Assert.assertEquals("11 flight plan", new String(ByteStreams.toByteArray(inputStream), StandardCharsets.UTF_8));
+        }
+
+        // The blob is kept until the storage cleaning, even without references
+        String blobId = file1.getBlobId();
+        fileStorage.delete(file1);
+        fileStorage.delete(file2);
+        Assert.assertTrue(backend.exists(blobId + FileStorage.BLOB_SUFFIX));
+        em.flush();
+        em.clear();
+        Assert.assertEquals(0L, (long) fileBlobDao.getById(blobId).getReferenceCount());
+
+        // Referenced again before the storage cleaning
+        File file3 = createFile(user1);
+        fileStorage.store(file3, user1.getPrivateKey(), new ByteArrayInputStream(content));
+        Assert.assertEquals(blobId, file3.getBlobId());
+        Assert.assertEquals(0, fileBlobDao.deleteUnreferenced());
+        fileStorage.delete(file3);
+        Assert.assertEquals(1, fileBlobDao.deleteUnreferenced());
+        em.clear();
+        Assert.assertNull(fileBlobDao.getById(blobId));
+    }
+
+    @Test
+    public void moveToBlobTest() throws Exception {
+        FileStorage legacyFileStorage = new FileStorage(new LocalStorageBackend(Files.createTempDirectory("file_storage")), false);
+        FileStorage fileStorage = new FileStorage(legacyFileStorage.getBackend(), true);
+        User user = createUser("moveToBlob");
+        byte[] content = "Apollo 13 flight plan".getBytes(StandardCharsets.UTF_8);
+
+        // A file stored under its ID is moved to a blob
+        File file = createFile(user);
+        legacyFileStorage.store(file, user.getPrivateKey(), new ByteArrayInputStream(content));
+        Assert.assertNull(file.getBlobId());
+        Assert.assertTrue(fileStorage.getBackend().exists(file.getId()));
+        Assert.assertTrue(fileStorage.moveToBlob(file, user.getPrivateKey()));
+        Assert.assertNotNull(file.getBlobId());
+        Assert.assertFalse(fileStorage.moveToBlob(file, user.getPrivateKey()));
+        try (InputStream inputStream = fileStorage.open(file, user.getPrivateKey())) {
+            Assert.assertArrayEquals(content, ByteStreams.toByteArray(inputStream));
+        }
+    }
+
+    private File createFile(User user) {
+        File file = new File();
+        file.setUserId(user.getId());
+        file.setVersion(0);
+        file.setMimeType(MimeType.DEFAULT);
+        file.setSize(File.UNKNOWN_SIZE);
+        new FileDao().create(file, user.getId());
+        return file;
+    }
+}
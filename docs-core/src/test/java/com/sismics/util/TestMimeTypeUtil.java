@@ -1,13 +1,18 @@
 package com.sismics.util;
 
+import com.google.common.collect.Lists;
 import com.sismics.BaseTest;
 import com.sismics.util.mime.MimeType;
 import com.sismics.util.mime.MimeTypeUtil;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
  * Test of the utilities to check MIME types.
@@ -69,4 +74,40 @@ public class TestMimeTypeUtil extends BaseTest {
         path = Paths.get(getResource(FILE_MP4).toURI());
         Assert.assertEquals(MimeType.VIDEO_MP4, MimeTypeUtil.guessMimeType(path, FILE_MP4));
     }
+
+    @Test
+    public void testHeader() throws Exception {
+        // Detect from the first bytes, as the Path overload
+        for (String file : Lists.newArrayList(FILE_ODT, FILE_DOCX, FILE_PPTX, FILE_XLSX, FILE_TXT, FILE_CSV, FILE_PDF,
+                FILE_JPG, FILE_GIF, FILE_PNG, FILE_ZIP, FILE_WEBM, FILE_MP4)) {
+            Path path = Paths.get(getResource(file).toURI());
+            Assert.assertEquals(file, MimeTypeUtil.guessMimeType(path, file), MimeTypeUtil.guessMimeType(readHeader(path), file));
+        }
+
+        // The content wins over the name
+        Path path = Paths.get(getResource(FILE_PNG).toURI());
+        Assert.assertEquals(MimeType.IMAGE_PNG, MimeTypeUtil.guessMimeType(readHeader(path), "image.txt"));
+        path = Paths.get(getResource(FILE_DOCX).toURI());
+        Assert.assertEquals(MimeType.OFFICE_DOCUMENT, MimeTypeUtil.guessMimeType(readHeader(path), "document.xlsx"));
+
+        // A ZIP file is not an Office document because of its name
+        path = Paths.get(getResource(FILE_ZIP).toURI());
+        Assert.assertEquals(MimeType.APPLICATION_ZIP, MimeTypeUtil.guessMimeType(readHeader(path), "document.docx"));
+
+        // Only the name is known
+        Assert.assertEquals(MimeType.TEXT_CSV, MimeTypeUtil.guessMimeType("a,b\n1,2\n".getBytes(StandardCharsets.UTF_8), "document.csv"));
+        Assert.assertEquals(MimeType.DEFAULT, MimeTypeUtil.guessMimeType(new byte[0], null));
+    }
+
+    /**
+     * Read the first bytes of a file.
+     *
+     * @param path File
+     * @return First bytes
+     * @throws IOException e
+     */
+    private byte[] readHeader(Path path) throws IOException {
+        byte[] data = Files.readAllBytes(path);
+        return Arrays.copyOf(data, Math.min(data.length, MimeTypeUtil.HEADER_SIZE));
+    }
 }
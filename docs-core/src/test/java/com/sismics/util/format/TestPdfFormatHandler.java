@@ -2,9 +2,21 @@ package com.sismics.util.format;
 
 import com.sismics.BaseTest;
 import com.sismics.docs.core.util.format.PdfFormatHandler;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 
 /**
@@ -25,4 +37,68 @@ public class TestPdfFormatHandler extends BaseTest {
         Assert.assertTrue(content.contains("Grundumsatzmessungen"));
         Assert.assertTrue(content.contains("ermitteln"));
     }
+
+    /**
+     * Test that the pages OCR-ized in parallel are reassembled in order.
+     */
+    @Test
+    public void testOcrPagesOrder() throws Exception {
+        // The first page takes longer to OCR than the next ones
+        String[][] pageLineList = {
+                { "Apollo lunar mission", "Apollo lunar mission", "Apollo lunar mission", "Apollo lunar mission",
+                        "Apollo lunar mission", "Apollo lunar mission", "Apollo lunar mission", "Apollo lunar mission" },
+                { "Saturn" },
+                { "Gemini" },
+                { "Mercury" }
+        };
+        Path file = Files.createTempFile("scanned", ".pdf");
+        try {
+            try (PDDocument pdfDocument = new PDDocument()) {
+                for (String[] lineList : pageLineList) {
+                    PDPage page = new PDPage(PDRectangle.LETTER);
+                    pdfDocument.addPage(page);
+                    PDImageXObject image = LosslessFactory.createFromImage(pdfDocument, renderPage(lineList));
+                    try (PDPageContentStream contentStream = new PDPageContentStream(pdfDocument, page)) {
+                        contentStream.drawImage(image, 0, 0, PDRectangle.LETTER.getWidth(), PDRectangle.LETTER.getHeight());
+                    }
+                }
+                pdfDocument.save(file.toFile());
+            }
+
+            String content = new PdfFormatHandler().ocrPages("eng", file, 3);
+            int apolloIndex = content.indexOf("Apollo");
+            int saturnIndex = content.indexOf("Saturn");
+            int geminiIndex = content.indexOf("Gemini");
+            int mercuryIndex = content.indexOf("Mercury");
+            Assert.assertTrue(content, apolloIndex >= 0);
+            Assert.assertTrue(content, apolloIndex < saturnIndex);
+            Assert.assertTrue(content, saturnIndex < geminiIndex);
+            Assert.assertTrue(content, geminiIndex < mercuryIndex);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Render lines of text in a scanned-like page image.
+     *
+     * @param lineList Lines of text
+     * @return Page image
+     */
+    private BufferedImage renderPage(String[] lineList) {
+        BufferedImage image = new BufferedImage(1275, 1650, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+            graphics.setColor(Color.BLACK);
+            graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 48));
+            for (int i = 0; i < lineList.length; i++) {
+                graphics.drawString(lineList[i], 100, 150 + i * 100);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return image;
+    }
 }
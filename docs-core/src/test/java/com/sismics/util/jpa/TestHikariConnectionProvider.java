@@ -0,0 +1,61 @@
+package com.sismics.util.jpa;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.hibernate.cfg.AvailableSettings;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLTransientConnectionException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test of the JDBC connection pool.
+ *
+ * @author bgamard
+ */
+public class TestHikariConnectionProvider {
+    @Test
+    public void poolTest() throws Exception {
+        Map<String, Object> configurationValues = new HashMap<>();
+        configurationValues.put(AvailableSettings.DRIVER, "org.h2.Driver");
+        configurationValues.put(AvailableSettings.URL, "jdbc:h2:mem:pool");
+        configurationValues.put(AvailableSettings.USER, "sa");
+        configurationValues.put(AvailableSettings.AUTOCOMMIT, "false");
+        configurationValues.put("hibernate.hikari.minimumIdle", "1");
+        configurationValues.put("hibernate.hikari.maximumPoolSize", "2");
+        configurationValues.put("hibernate.hikari.connectionTimeout", "250");
+        HikariConnectionProvider provider = new HikariConnectionProvider();
+        provider.configure(configurationValues);
+        try {
+            ConnectionPoolMetrics connectionPoolMetrics = (ConnectionPoolMetrics) provider.unwrap(HikariDataSource.class).getMetricsTrackerFactory();
+            Assert.assertEquals(0L, (long) connectionPoolMetrics.getMetrics().get("acquired"));
+            Assert.assertEquals(0L, (long) connectionPoolMetrics.getMetrics().get("wait_time_avg"));
+
+            Connection connection1 = provider.getConnection();
+            Connection connection2 = provider.getConnection();
+            Assert.assertEquals(2L, (long) connectionPoolMetrics.getMetrics().get("acquired"));
+            Assert.assertFalse(connection1.getAutoCommit());
+
+            // No connection available in time
+            try {
+                provider.getConnection();
+                Assert.fail();
+            } catch (SQLTransientConnectionException e) {
+                // OK
+            }
+            Map<String, Long> metrics = connectionPoolMetrics.getMetrics();
+            Assert.assertEquals(1L, (long) metrics.get("timeouts"));
+            Assert.assertTrue(metrics.get("wait_time_max") >= metrics.get("wait_time_avg"));
+
+            // A returned connection is given to the next user
+            provider.closeConnection(connection1);
+            provider.closeConnection(provider.getConnection());
+            provider.closeConnection(connection2);
+            Assert.assertEquals(3L, (long) connectionPoolMetrics.getMetrics().get("acquired"));
+        } finally {
+            provider.stop();
+        }
+    }
+}
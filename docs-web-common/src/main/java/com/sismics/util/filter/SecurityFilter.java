@@ -7,6 +7,7 @@ import com.sismics.docs.core.dao.RoleBaseFunctionDao;
 import com.sismics.docs.core.dao.criteria.GroupCriteria;
 import com.sismics.docs.core.dao.dto.GroupDto;
 import com.sismics.docs.core.model.jpa.User;
+import com.sismics.docs.core.util.PrincipalCache;
 import com.sismics.security.AnonymousPrincipal;
 import com.sismics.security.UserPrincipal;
 import org.joda.time.DateTimeZone;
@@ -50,29 +51,22 @@ public abstract class SecurityFilter implements Filter {
     }
 
     /**
-     * Injects the given user into the request, with the appropriate authentication state.
+     * Returns true if the user is still valid.
      *
-     * @param request HTTP request
-     * @param user nullable User to inject
+     * @param user nullable User
+     * @return True if the user can be authenticated
      */
-    private void injectUser(HttpServletRequest request, User user) {
-        // Check if the user is still valid
-        if (user != null && user.getDeleteDate() == null && user.getDisableDate() == null) {
-            injectAuthenticatedUser(request, user);
-        } else {
-            injectAnonymousUser(request);
-        }
+    private boolean isActiveUser(User user) {
+        return user != null && user.getDeleteDate() == null && user.getDisableDate() == null;
     }
 
     /**
-     * Inject an authenticated user into the request attributes.
+     * Resolves the groups and base functions of an user.
      *
-     * @param request HTTP request
-     * @param user User to inject
+     * @param user User
+     * @return Resolved principal
      */
-    private void injectAuthenticatedUser(HttpServletRequest request, User user) {
-        UserPrincipal userPrincipal = new UserPrincipal(user.getId(), user.getUsername());
-
+    private PrincipalCache.Entry resolvePrincipal(User user) {
         // Add groups
         GroupDao groupDao = new GroupDao();
         Set<String> groupRoleIdSet = new HashSet<>();
@@ -86,16 +80,26 @@ public abstract class SecurityFilter implements Filter {
                 groupRoleIdSet.add(groupDto.getRoleId());
             }
         }
-        userPrincipal.setGroupIdSet(groupIdSet);
 
         // Add base functions
         groupRoleIdSet.add(user.getRoleId());
         RoleBaseFunctionDao userBaseFunction = new RoleBaseFunctionDao();
         Set<String> baseFunctionSet = userBaseFunction.findByRoleId(groupRoleIdSet);
-        userPrincipal.setBaseFunctionSet(baseFunctionSet);
 
-        // Add email
-        userPrincipal.setEmail(user.getEmail());
+        return new PrincipalCache.Entry(user.getId(), user.getUsername(), user.getEmail(), groupIdSet, baseFunctionSet);
+    }
+
+    /**
+     * Inject an authenticated user into the request attributes.
+     *
+     * @param request HTTP request
+     * @param principal Resolved principal to inject
+     */
+    private void injectAuthenticatedUser(HttpServletRequest request, PrincipalCache.Entry principal) {
+        UserPrincipal userPrincipal = new UserPrincipal(principal.getUserId(), principal.getUsername());
+        userPrincipal.setGroupIdSet(principal.getGroupIdSet());
+        userPrincipal.setBaseFunctionSet(principal.getBaseFunctionSet());
+        userPrincipal.setEmail(principal.getEmail());
 
         request.setAttribute(PRINCIPAL_ATTRIBUTE, userPrincipal);
     }
@@ -127,8 +131,23 @@ public abstract class SecurityFilter implements Filter {
         HttpServletRequest request = (HttpServletRequest) req;
 
         if (!hasIdentifiedUser(request)) {
-            User user = authenticate(request);
-            injectUser(request, user);
+            String cacheKey = getPrincipalCacheKey(request);
+            PrincipalCache.Entry principal = cacheKey == null ? null : PrincipalCache.get(cacheKey);
+            if (principal == null) {
+                User user = authenticate(request);
+                if (isActiveUser(user)) {
+                    principal = resolvePrincipal(user);
+                    if (cacheKey != null) {
+                        PrincipalCache.put(cacheKey, principal);
+                    }
+                }
+            }
+
+            if (principal != null) {
+                injectAuthenticatedUser(request, principal);
+            } else {
+                injectAnonymousUser(request);
+            }
         }
 
         filterChain.doFilter(request, response);
@@ -142,4 +161,14 @@ public abstract class SecurityFilter implements Filter {
      */
     protected abstract User authenticate(HttpServletRequest request);
 
+    /**
+     * Returns the key under which the principal authenticated from the given request can be cached.
+     *
+     * @param request HTTP request
+     * @return nullable cache key, the principal being resolved for each request if null
+     */
+    protected String getPrincipalCacheKey(HttpServletRequest request) {
+        return null;
+    }
+
 }
\ No newline at end of file
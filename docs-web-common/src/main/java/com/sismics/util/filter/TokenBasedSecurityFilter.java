@@ -84,6 +84,11 @@ public class TokenBasedSecurityFilter extends SecurityFilter {
         }
     }
 
+    @Override
+    protected String getPrincipalCacheKey(HttpServletRequest request) {
+        return extractAuthToken(request.getCookies());
+    }
+
     @Override
     protected User authenticate(HttpServletRequest request) {
         // Get the value of the client authentication token
@@ -5,17 +5,22 @@ import com.sismics.docs.core.constant.ConfigType;
 import com.sismics.docs.core.constant.Constants;
 import com.sismics.docs.core.dao.ConfigDao;
 import com.sismics.docs.core.dao.DocumentDao;
+import com.sismics.docs.core.dao.FileBlobDao;
 import com.sismics.docs.core.dao.FileDao;
 import com.sismics.docs.core.dao.UserDao;
+import com.sismics.docs.core.event.DeduplicateStorageAsyncEvent;
 import com.sismics.docs.core.event.RebuildIndexAsyncEvent;
 import com.sismics.docs.core.model.context.AppContext;
 import com.sismics.docs.core.model.jpa.Config;
 import com.sismics.docs.core.model.jpa.File;
 import com.sismics.docs.core.service.InboxService;
 import com.sismics.docs.core.util.ConfigUtil;
-import com.sismics.docs.core.util.DirectoryUtil;
+import com.sismics.docs.core.util.PrincipalCache;
+import com.sismics.docs.core.util.indexing.IndexRebuildProgress;
 import com.sismics.docs.core.util.jpa.PaginatedList;
 import com.sismics.docs.core.util.jpa.PaginatedLists;
+import com.sismics.docs.core.util.storage.FileStorage;
+import com.sismics.docs.core.util.storage.StorageBackend;
 import com.sismics.docs.rest.constant.BaseFunction;
 import com.sismics.rest.exception.ClientException;
 import com.sismics.rest.exception.ForbiddenClientException;
@@ -23,6 +28,7 @@ import com.sismics.rest.exception.ServerException;
 import com.sismics.rest.util.ValidationUtil;
 import com.sismics.util.JsonUtil;
 import com.sismics.util.context.ThreadLocalContext;
+import com.sismics.util.jpa.EMF;
 import com.sismics.util.log4j.LogCriteria;
 import com.sismics.util.log4j.LogEntry;
 import com.sismics.util.log4j.MemoryAppender;
@@ -40,8 +46,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.text.MessageFormat;
 import java.util.*;
 
@@ -74,6 +78,9 @@ public class AppResource extends BaseResource {
      * @apiSuccess {String} active_user_count Number of active users
      * @apiSuccess {String} global_storage_current Global storage currently used (in bytes)
      * @apiSuccess {String} global_storage_quota Maximum global storage (in bytes)
+     * @apiSuccess {Object} file_processing_metrics File processing metrics by lane (queued, running, completed and rejected files, wait and processing times in milliseconds) processing cache metrics (hits, misses, evictions, entries and size in bytes) and progress of the file size and content hash backfill (total, processed and failed files)
+     * @apiSuccess {Object} indexing_metrics Indexing metrics (suggester rebuild time and staleness in milliseconds)
+     * @apiSuccess {Object} security_metrics Security metrics (principal cache hits, misses, hit rate in percent, evictions and entries)
      * @apiPermission none
      * @apiVersion 1.5.0
      *
@@ -110,6 +117,27 @@ public class AppResource extends BaseResource {
         if (globalQuota > 0) {
             response.add("global_storage_quota", globalQuota);
         }
+        JsonObjectBuilder indexingMetrics = Json.createObjectBuilder();
+        for (Map.Entry<String, Long> metric : AppContext.getInstance().getIndexingHandler().getMetrics().entrySet()) {
+            indexingMetrics.add(metric.getKey(), metric.getValue());
+        }
+        response.add("indexing_metrics", indexingMetrics);
+        JsonObjectBuilder fileProcessingMetrics = Json.createObjectBuilder();
+        for (Map.Entry<String, Long> metric : AppContext.getInstance().getFileProcessingService().getMetrics().entrySet()) {
+            fileProcessingMetrics.add(metric.getKey(), metric.getValue());
+        }
+        for (Map.Entry<String, Long> metric : AppContext.getInstance().getFileProcessingCache().getMetrics().entrySet()) {
+            fileProcessingMetrics.add(metric.getKey(), metric.getValue());
+        }
+        for (Map.Entry<String, Long> metric : AppContext.getInstance().getFileSizeService().getMetrics().entrySet()) {
+            fileProcessingMetrics.add(metric.getKey(), metric.getValue());
+        }
+        response.add("file_processing_metrics", fileProcessingMetrics);
+        JsonObjectBuilder securityMetrics = Json.createObjectBuilder();
+        for (Map.Entry<String, Long> metric : PrincipalCache.getMetrics().entrySet()) {
+            securityMetrics.add(metric.getKey(), metric.getValue());
+        }
+        response.add("security_metrics", securityMetrics);
 
         return Response.ok().entity(response.build()).build();
     }
@@ -527,6 +555,43 @@ public class AppResource extends BaseResource {
                 .build()).build();
     }
 
+    /**
+     * Returns the metrics of the database connection pool.
+     *
+     * @api {get} /app/database_pool Get the database connection pool metrics
+     * @apiName GetAppDatabasePool
+     * @apiGroup App
+     * @apiSuccess {Number} active Number of connections in use
+     * @apiSuccess {Number} idle Number of idle connections
+     * @apiSuccess {Number} total Number of open connections
+     * @apiSuccess {Number} waiting Number of threads waiting for a connection
+     * @apiSuccess {Number} min_size Minimum number of idle connections
+     * @apiSuccess {Number} max_size Maximum number of connections
+     * @apiSuccess {Number} acquired Number of connections acquired
+     * @apiSuccess {Number} wait_time_avg Average wait for a connection (in milliseconds)
+     * @apiSuccess {Number} wait_time_max Maximum wait for a connection (in milliseconds)
+     * @apiSuccess {Number} timeouts Number of connections not acquired in time
+     * @apiError (client) ForbiddenError Access denied
+     * @apiPermission admin
+     * @apiVersion 1.5.0
+     *
+     * @return Response
+     */
+    @GET
+    @Path("database_pool")
+    public Response databasePool() {
+        if (!authenticate()) {
+            throw new ForbiddenClientException();
+        }
+        checkBaseFunction(BaseFunction.ADMIN);
+
+        JsonObjectBuilder response = Json.createObjectBuilder();
+        for (Map.Entry<String, Long> metric : EMF.getConnectionPoolMetrics().entrySet()) {
+            response.add(metric.getKey(), metric.getValue());
+        }
+        return Response.ok().entity(response.build()).build();
+    }
+
     /**
      * Retrieve the application logs.
      *
@@ -632,10 +697,92 @@ public class AppResource extends BaseResource {
         return Response.ok().entity(response.build()).build();
     }
 
+    /**
+     * Returns the progress of the search index rebuild.
+     *
+     * @api {get} /app/batch/reindex Get the progress of the search index rebuild
+     * @apiName GetAppBatchReindex
+     * @apiGroup App
+     * @apiSuccess {Boolean} running True if the index is being rebuilt
+     * @apiSuccess {String} phase Current phase (documents, files, swap)
+     * @apiSuccess {Boolean} resumed True if the rebuild resumed an interrupted one
+     * @apiSuccess {Boolean} success True if the last rebuild succeeded
+     * @apiSuccess {Number} start_date Start date of the last rebuild (timestamp)
+     * @apiSuccess {Number} end_date End date of the last rebuild (timestamp)
+     * @apiSuccess {Number} document_count Number of documents indexed
+     * @apiSuccess {Number} document_total Number of documents to index
+     * @apiSuccess {Number} file_count Number of files indexed
+     * @apiSuccess {Number} file_total Number of files to index
+     * @apiError (client) ForbiddenError Access denied
+     * @apiPermission admin
+     * @apiVersion 1.5.0
+     *
+     * @return Response
+     */
+    @GET
+    @Path("batch/reindex")
+    public Response batchReindexProgress() {
+        if (!authenticate()) {
+            throw new ForbiddenClientException();
+        }
+        checkBaseFunction(BaseFunction.ADMIN);
+
+        IndexRebuildProgress progress = AppContext.getInstance().getIndexRebuildProgress();
+        JsonObjectBuilder response = Json.createObjectBuilder()
+                .add("running", progress.isRunning())
+                .add("phase", JsonUtil.nullable(progress.getPhase()))
+                .add("resumed", progress.isResumed())
+                .add("success", JsonUtil.nullable(progress.getSuccess()))
+                .add("start_date", JsonUtil.nullable(progress.getStartDate()))
+                .add("end_date", JsonUtil.nullable(progress.getEndDate()))
+                .add("document_count", progress.getDocumentCount())
+                .add("document_total", progress.getDocumentTotal())
+                .add("file_count", progress.getFileCount())
+                .add("file_total", progress.getFileTotal());
+        return Response.ok().entity(response.build()).build();
+    }
+
+    /**
+     * Move the files stored before the storage deduplication to deduplicated blobs.
+     *
+     * @api {post} /app/batch/deduplicate_storage Deduplicate the existing files
+     * @apiName PostAppBatchDeduplicateStorage
+     * @apiGroup App
+     * @apiSuccess {String} status Status OK
+     * @apiError (client) ForbiddenError Access denied
+     * @apiError (client) DeduplicationDisabled The storage deduplication is not enabled
+     * @apiPermission admin
+     * @apiVersion 1.5.0
+     *
+     * @return Response
+     */
+    @POST
+    @Path("batch/deduplicate_storage")
+    public Response batchDeduplicateStorage() {
+        if (!authenticate()) {
+            throw new ForbiddenClientException();
+        }
+        checkBaseFunction(BaseFunction.ADMIN);
+
+        if (!AppContext.getInstance().getFileStorage().isDeduplication()) {
+            throw new ClientException("DeduplicationDisabled", "The storage deduplication is not enabled");
+        }
+
+        DeduplicateStorageAsyncEvent deduplicateStorageAsyncEvent = new DeduplicateStorageAsyncEvent();
+        ThreadLocalContext.get().addAsyncEvent(deduplicateStorageAsyncEvent);
+
+        // Always return OK
+        JsonObjectBuilder response = Json.createObjectBuilder()
+                .add("status", "ok");
+        return Response.ok().entity(response.build()).build();
+    }
+
     /**
      * Clean storage.
      *
      * @api {post} /app/batch/clean_storage Clean the file and DB storage
+     * @apiDescription Orphan files and blobs are deleted, as well as the blobs not referenced anymore,
+     * the content of the files moved to blobs and the uploads interrupted for more than a day.
      * @apiName PostAppBatchCleanStorage
      * @apiGroup App
      * @apiSuccess {String} status Status OK
@@ -664,13 +811,32 @@ public class AppResource extends BaseResource {
         log.info("Checking {} files", fileMap.size());
 
         // Check if each stored file is valid
-        try (DirectoryStream<java.nio.file.Path> storedFileList = Files.newDirectoryStream(DirectoryUtil.getStorageDirectory())) {
-            for (java.nio.file.Path storedFile : storedFileList) {
-                String fileName = storedFile.getFileName().toString();
-                String[] fileNameArray = fileName.split("_");
-                if (!fileMap.containsKey(fileNameArray[0])) {
-                    log.info("Deleting orphan files at this location: {}", storedFile);
-                    Files.delete(storedFile);
+        StorageBackend storageBackend = AppContext.getInstance().getFileStorage().getBackend();
+        // The content of the blobs not referenced anymore is deleted by the next cleaning,
+        // once the deletion of the blobs is committed
+        FileBlobDao fileBlobDao = new FileBlobDao();
+        Set<String> blobIdSet = new HashSet<>(fileBlobDao.findAllIds());
+        log.info("Deleting {} unreferenced blobs", fileBlobDao.deleteUnreferenced());
+        long uploadExpiration = System.currentTimeMillis() - 24L * 3_600_000L;
+        long blobExpiration = System.currentTimeMillis() - 3_600_000L;
+        try {
+            for (String name : storageBackend.list()) {
+                boolean orphan;
+                if (name.endsWith(FileStorage.UPLOAD_SUFFIX) || name.endsWith(".tmp")) {
+                    // Received files are consumed immediately, unless the upload failed
+                    orphan = storageBackend.getLastModified(name) < uploadExpiration;
+                } else if (name.endsWith(FileStorage.BLOB_SUFFIX)) {
+                    // A blob is stored before its creation is committed
+                    orphan = !blobIdSet.contains(name.substring(0, name.length() - FileStorage.BLOB_SUFFIX.length()))
+                            && storageBackend.getLastModified(name) < blobExpiration;
+                } else {
+                    // The content of a file moved to a blob is not needed anymore
+                    File file = fileMap.get(name.split("_")[0]);
+                    orphan = file == null || name.equals(file.getId()) && file.getBlobId() != null;
+                }
+                if (orphan) {
+                    log.info("Deleting orphan files at this location: {}", name);
+                    storageBackend.delete(name);
                 }
             }
         } catch (IOException e) {
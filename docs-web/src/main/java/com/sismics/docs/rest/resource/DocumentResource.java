@@ -1,6 +1,8 @@
 package com.sismics.docs.rest.resource;
 
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Multimaps;
 import com.sismics.docs.core.constant.AclType;
 import com.sismics.docs.core.constant.ConfigType;
 import com.sismics.docs.core.constant.Constants;
@@ -82,9 +84,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
@@ -369,6 +373,7 @@ public class DocumentResource extends BaseResource {
      * @apiParam {Boolean} [asc] If <code>true</code> sorts in ascending order
      * @apiParam {String} [search] Search query (see "Document search syntax" on the top of the page for explanations) when the input is entered by a human.
      * @apiParam {Boolean} [files] If <code>true</code> includes files information
+     * @apiParam {Boolean} [facets] If <code>true</code> counts the matching documents by tag, MIME type, language, creator and create year
      *
      * @apiParam {String} [search[after]] The document must have been created after or at the value moment, accepted format is <code>yyyy-MM-dd</code>
      * @apiParam {String} [search[before]] The document must have been created before or at the value moment, accepted format is <code>yyyy-MM-dd</code>
@@ -410,6 +415,15 @@ public class DocumentResource extends BaseResource {
      * @apiSuccess {String} documents.files.mimetype MIME type
      * @apiSuccess {String} documents.files.create_date Create date (timestamp)
      * @apiSuccess {String[]} suggestions List of search suggestions
+     * @apiSuccess {Object} facets Facets (if requested and supported by the search), by facet name (tag, mime_type, language, creator, year)
+     * @apiSuccess {Object[]} facets.tag Tags of the matching documents
+     * @apiSuccess {String} facets.tag.id ID
+     * @apiSuccess {String} facets.tag.name Name
+     * @apiSuccess {String} facets.tag.color Color
+     * @apiSuccess {Number} facets.tag.count Number of matching documents
+     * @apiSuccess {Object[]} facets.mime_type Values of the other facets (the creator is a username)
+     * @apiSuccess {String} facets.mime_type.value Value
+     * @apiSuccess {Number} facets.mime_type.count Number of matching documents
      *
      * @apiError (client) ForbiddenError Access denied
      * @apiError (server) SearchError Error searching in documents
@@ -422,6 +436,7 @@ public class DocumentResource extends BaseResource {
      * @param asc Sorting
      * @param search Search query
      * @param files Files list
+     * @param facets Facets counts
      * @return Response
      */
     @GET
@@ -433,6 +448,7 @@ public class DocumentResource extends BaseResource {
             @QueryParam("asc") Boolean asc,
             @QueryParam("search") String search,
             @QueryParam("files") Boolean files,
+            @QueryParam("facets") Boolean facets,
 
             @QueryParam("search[after]") String searchCreatedAfter,
             @QueryParam("search[before]") String searchCreatedBefore,
@@ -459,6 +475,7 @@ public class DocumentResource extends BaseResource {
         TagDao tagDao = new TagDao();
         PaginatedList<DocumentDto> paginatedList = PaginatedLists.create(limit, offset);
         List<String> suggestionList = Lists.newArrayList();
+        Map<String, Map<String, Integer>> facetMap = Boolean.TRUE == facets ? new HashMap<>() : null;
         SortCriteria sortCriteria = new SortCriteria(sortColumn, asc);
 
         List<TagDto> allTagDtoList = tagDao.findByCriteria(new TagCriteria().setTargetIdList(getTargetIdList(null)), null);
@@ -484,33 +501,32 @@ public class DocumentResource extends BaseResource {
 
         documentCriteria.setTargetIdList(getTargetIdList(null));
         try {
-            AppContext.getInstance().getIndexingHandler().findByCriteria(paginatedList, suggestionList, documentCriteria, sortCriteria);
+            AppContext.getInstance().getIndexingHandler().findByCriteria(paginatedList, suggestionList, facetMap, documentCriteria, sortCriteria);
         } catch (Exception e) {
             throw new ServerException("SearchError", "Error searching in documents", e);
         }
 
         // Find the files of the documents
-        Iterable<String> documentsIds = CollectionUtils.collect(paginatedList.getResultList(), DocumentDto::getId);
+        List<String> documentsIds = new ArrayList<>(CollectionUtils.collect(paginatedList.getResultList(), DocumentDto::getId));
         FileDao fileDao = new FileDao();
-        List<File> filesList = null;
+        ListMultimap<String, File> filesByDocument = null;
         Map<String, Long> filesCountByDocument = null;
         if (Boolean.TRUE == files) {
-            filesList = fileDao.getByDocumentsIds(documentsIds);
+            filesByDocument = Multimaps.index(fileDao.getByDocumentsIds(documentsIds), File::getDocumentId);
         } else {
             filesCountByDocument = fileDao.countByDocumentsIds(documentsIds);
         }
 
+        // Find the tags accessible by the current user on the documents
+        Map<String, List<TagDto>> tagsByDocument = tagDao.getByDocumentsIds(documentsIds, getTargetIdList(null));
+
         for (DocumentDto documentDto : paginatedList.getResultList()) {
-            // Get tags accessible by the current user on this document
-            List<TagDto> tagDtoList = tagDao.findByCriteria(new TagCriteria()
-                    .setTargetIdList(getTargetIdList(null))
-                    .setDocumentId(documentDto.getId()), new SortCriteria(1, true));
+            List<TagDto> tagDtoList = tagsByDocument.getOrDefault(documentDto.getId(), Collections.emptyList());
 
             Long filesCount;
             Collection<File> filesOfDocument = null;
             if (Boolean.TRUE == files) {
-                // Find files matching the document
-                filesOfDocument = CollectionUtils.select(filesList, file -> file.getDocumentId().equals(documentDto.getId()));
+                filesOfDocument = filesByDocument.get(documentDto.getId());
                 filesCount = (long) filesOfDocument.size();
             } else {
                 filesCount = filesCountByDocument.getOrDefault(documentDto.getId(), 0L);
@@ -541,10 +557,63 @@ public class DocumentResource extends BaseResource {
         response.add("total", paginatedList.getResultCount())
                 .add("documents", documents)
                 .add("suggestions", suggestions);
+        if (facetMap != null && !facetMap.isEmpty()) {
+            response.add("facets", createFacetsObjectBuilder(facetMap, allTagDtoList));
+        }
 
         return Response.ok().entity(response.build()).build();
     }
 
+    /**
+     * Create a JSON object of the facets counts.
+     * Only the tags visible to the current user are returned.
+     *
+     * @param facetMap Count of documents by value, by facet
+     * @param allTagDtoList Tags visible to the current user
+     * @return JSON object builder
+     */
+    private JsonObjectBuilder createFacetsObjectBuilder(Map<String, Map<String, Integer>> facetMap, List<TagDto> allTagDtoList) {
+        Map<String, TagDto> tagDtoMap = new HashMap<>();
+        for (TagDto tagDto : allTagDtoList) {
+            tagDtoMap.put(tagDto.getId(), tagDto);
+        }
+
+        // Usernames of all the creators in one query
+        Map<String, Integer> creatorFacet = facetMap.get("creator");
+        Map<String, String> usernameMap = creatorFacet == null ?
+                Collections.emptyMap() : new UserDao().getUsernamesByIds(creatorFacet.keySet());
+
+        JsonObjectBuilder facets = Json.createObjectBuilder();
+        for (Map.Entry<String, Map<String, Integer>> facet : facetMap.entrySet()) {
+            JsonArrayBuilder values = Json.createArrayBuilder();
+            for (Map.Entry<String, Integer> count : facet.getValue().entrySet()) {
+                if ("tag".equals(facet.getKey())) {
+                    TagDto tagDto = tagDtoMap.get(count.getKey());
+                    if (tagDto != null) {
+                        values.add(Json.createObjectBuilder()
+                                .add("id", tagDto.getId())
+                                .add("name", tagDto.getName())
+                                .add("color", tagDto.getColor())
+                                .add("count", count.getValue()));
+                    }
+                } else if ("creator".equals(facet.getKey())) {
+                    String username = usernameMap.get(count.getKey());
+                    if (username != null) {
+                        values.add(Json.createObjectBuilder()
+                                .add("value", username)
+                                .add("count", count.getValue()));
+                    }
+                } else {
+                    values.add(Json.createObjectBuilder()
+                            .add("value", count.getKey())
+                            .add("count", count.getValue()));
+                }
+            }
+            facets.add(facet.getKey(), values);
+        }
+        return facets;
+    }
+
     /**
      * Returns all documents.
      *
@@ -560,6 +629,7 @@ public class DocumentResource extends BaseResource {
      * @param asc        Sorting
      * @param search     Search query
      * @param files      Files list
+     * @param facets     Facets counts
      * @return Response
      */
     @POST
@@ -571,6 +641,7 @@ public class DocumentResource extends BaseResource {
             @FormParam("asc") Boolean asc,
             @FormParam("search") String search,
             @FormParam("files") Boolean files,
+            @FormParam("facets") Boolean facets,
             @FormParam("search[after]") String searchCreatedAfter,
             @FormParam("search[before]") String searchCreatedBefore,
             @FormParam("search[by]") String searchBy,
@@ -593,6 +664,7 @@ public class DocumentResource extends BaseResource {
                 asc,
                 search,
                 files,
+                facets,
                 searchCreatedAfter,
                 searchCreatedBefore,
                 searchBy,
@@ -831,6 +903,7 @@ public class DocumentResource extends BaseResource {
         }
 
         // Update the document
+        boolean languageChanged = !Objects.equals(document.getLanguage(), language);
         document.setTitle(title);
         document.setDescription(description);
         document.setSubject(subject);
@@ -867,6 +940,7 @@ public class DocumentResource extends BaseResource {
         DocumentUpdatedAsyncEvent documentUpdatedAsyncEvent = new DocumentUpdatedAsyncEvent();
         documentUpdatedAsyncEvent.setUserId(principal.getId());
         documentUpdatedAsyncEvent.setDocumentId(id);
+        documentUpdatedAsyncEvent.setLanguageChanged(languageChanged);
         ThreadLocalContext.get().addAsyncEvent(documentUpdatedAsyncEvent);
 
         JsonObjectBuilder response = Json.createObjectBuilder()
@@ -886,6 +960,7 @@ public class DocumentResource extends BaseResource {
      * @apiError (server) StreamError Error reading the input file
      * @apiError (server) ErrorGuessMime Error guessing mime type
      * @apiError (client) QuotaReached Quota limit reached
+     * @apiError (client) ProcessingQueueFull Too many files waiting to be processed, retry later
      * @apiError (server) FileError Error adding a file
      * @apiPermission user
      * @apiVersion 1.5.0
@@ -3,6 +3,7 @@ package com.sismics.docs.rest.resource;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
+import com.sismics.docs.core.constant.FileProcessingLane;
 import com.sismics.docs.core.constant.PermType;
 import com.sismics.docs.core.dao.AclDao;
 import com.sismics.docs.core.dao.DocumentDao;
@@ -15,9 +16,8 @@ import com.sismics.docs.core.event.FileUpdatedAsyncEvent;
 import com.sismics.docs.core.model.context.AppContext;
 import com.sismics.docs.core.model.jpa.File;
 import com.sismics.docs.core.model.jpa.User;
-import com.sismics.docs.core.util.DirectoryUtil;
-import com.sismics.docs.core.util.EncryptionUtil;
 import com.sismics.docs.core.util.FileUtil;
+import com.sismics.docs.core.util.storage.FileStorage;
 import com.sismics.rest.exception.ClientException;
 import com.sismics.rest.exception.ForbiddenClientException;
 import com.sismics.rest.exception.ServerException;
@@ -40,8 +40,6 @@ import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 import jakarta.ws.rs.core.StreamingOutput;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
@@ -79,9 +77,9 @@ public class FileResource extends BaseResource {
      * @apiError (client) ForbiddenError Access denied
      * @apiError (client) ValidationError Validation error
      * @apiError (client) NotFound Document not found
-     * @apiError (server) StreamError Error reading the input file
-     * @apiError (server) ErrorGuessMime Error guessing mime type
+     * @apiError (client) StreamError Error reading the input file
      * @apiError (client) QuotaReached Quota limit reached
+     * @apiError (client) ProcessingQueueFull Too many files waiting to be processed, retry later
      * @apiError (server) FileError Error adding a file
      * @apiPermission user
      * @apiVersion 1.5.0
@@ -115,22 +113,13 @@ public class FileResource extends BaseResource {
             }
         }
         
-        // Keep unencrypted data temporary on disk
+        // Encrypt the data to the storage while receiving it
         String name = fileBodyPart.getContentDisposition() != null ?
                 URLDecoder.decode(fileBodyPart.getContentDisposition().getFileName(), StandardCharsets.UTF_8) : null;
-        java.nio.file.Path unencryptedFile;
-        long fileSize;
-        try {
-            unencryptedFile = AppContext.getInstance().getFileService().createTemporaryFile(name);
-            Files.copy(fileBodyPart.getValueAs(InputStream.class), unencryptedFile, StandardCopyOption.REPLACE_EXISTING);
-            fileSize = Files.size(unencryptedFile);
-        } catch (IOException e) {
-            throw new ServerException("StreamError", "Error reading the input file", e);
-        }
-
-        try {
-            String fileId = FileUtil.createFile(name, previousFileId, unencryptedFile, fileSize, documentDto == null ?
-                    null : documentDto.getLanguage(), principal.getId(), documentId);
+        try (InputStream inputStream = fileBodyPart.getValueAs(InputStream.class)) {
+            String fileId = FileUtil.createFile(name, previousFileId, inputStream, documentDto == null ?
+                    null : documentDto.getLanguage(), principal.getId(), documentId, FileProcessingLane.INTERACTIVE);
+            long fileSize = new FileDao().getFile(fileId).getSize();
 
             // Always return OK
             JsonObjectBuilder response = Json.createObjectBuilder()
@@ -176,10 +165,6 @@ public class FileResource extends BaseResource {
         // Validate input data
         ValidationUtil.validateRequired(documentId, "documentId");
         
-        // Get the current user
-        UserDao userDao = new UserDao();
-        User user = userDao.getById(principal.getId());
-        
         // Get the document and the file
         DocumentDao documentDao = new DocumentDao();
         FileDao fileDao = new FileDao();
@@ -201,14 +186,11 @@ public class FileResource extends BaseResource {
         
         // Raise a new file updated event and document updated event (it wasn't sent during file creation)
         try {
-            java.nio.file.Path storedFile = DirectoryUtil.getStorageDirectory().resolve(id);
-            java.nio.file.Path unencryptedFile = EncryptionUtil.decryptFile(storedFile, user.getPrivateKey());
             FileUtil.startProcessingFile(id);
             FileUpdatedAsyncEvent fileUpdatedAsyncEvent = new FileUpdatedAsyncEvent();
             fileUpdatedAsyncEvent.setUserId(principal.getId());
             fileUpdatedAsyncEvent.setLanguage(documentDto.getLanguage());
             fileUpdatedAsyncEvent.setFileId(file.getId());
-            fileUpdatedAsyncEvent.setUnencryptedFile(unencryptedFile);
             ThreadLocalContext.get().addAsyncEvent(fileUpdatedAsyncEvent);
             
             DocumentUpdatedAsyncEvent documentUpdatedAsyncEvent = new DocumentUpdatedAsyncEvent();
@@ -303,20 +285,14 @@ public class FileResource extends BaseResource {
             throw new NotFoundException();
         }
 
-        // Get the creating user
-        UserDao userDao = new UserDao();
-        User user = userDao.getById(file.getUserId());
-
         // Start the processing asynchronously
         try {
-            java.nio.file.Path storedFile = DirectoryUtil.getStorageDirectory().resolve(id);
-            java.nio.file.Path unencryptedFile = EncryptionUtil.decryptFile(storedFile, user.getPrivateKey());
             FileUtil.startProcessingFile(id);
             FileUpdatedAsyncEvent event = new FileUpdatedAsyncEvent();
             event.setUserId(principal.getId());
             event.setLanguage(documentDto.getLanguage());
             event.setFileId(file.getId());
-            event.setUnencryptedFile(unencryptedFile);
+            event.setLane(FileProcessingLane.BULK);
             ThreadLocalContext.get().addAsyncEvent(event);
         } catch (Exception e) {
             throw new ServerException("ProcessingError", "Error processing this file", e);
@@ -554,10 +530,14 @@ public class FileResource extends BaseResource {
      * @apiParam {String} id File ID
      * @apiParam {String} share Share ID
      * @apiParam {String="web","thumb","content"} [size] Size variation
+     * @apiHeader {String} [Range] Single byte range to return, with a 206 status
+     * @apiHeader {String} [If-Range] Entity tag the range is conditioned by
+     * @apiHeader {String} [If-None-Match] Entity tags of the cached versions, a 304 status being returned if one matches
      * @apiSuccess {Object} file The file data is the whole response
      * @apiError (client) SizeError Size must be web or thumb
      * @apiError (client) ForbiddenError Access denied or document not visible
      * @apiError (client) NotFound File not found
+     * @apiError (client) RangeNotSatisfiable The range starts after the end of the file
      * @apiError (server) ServiceUnavailable Error reading the file
      * @apiPermission none
      * @apiVersion 1.5.0
@@ -583,7 +563,8 @@ public class FileResource extends BaseResource {
 
         // Get the stored file
         UserDao userDao = new UserDao();
-        java.nio.file.Path storedFile;
+        FileStorage fileStorage = AppContext.getInstance().getFileStorage();
+        java.nio.file.Path placeholderFile = null;
         String mimeType;
         boolean decrypt;
         if (size != null) {
@@ -593,12 +574,11 @@ public class FileResource extends BaseResource {
                         .build();
             }
 
-            storedFile = DirectoryUtil.getStorageDirectory().resolve(fileId + "_" + size);
             mimeType = MimeType.IMAGE_JPEG; // Thumbnails are JPEG
             decrypt = true; // Thumbnails are encrypted
-            if (!Files.exists(storedFile)) {
+            if (!fileStorage.exists(file, size)) {
                 try {
-                    storedFile = Paths.get(getClass().getResource("/image/file-" + size + ".png").toURI());
+                    placeholderFile = Paths.get(getClass().getResource("/image/file-" + size + ".png").toURI());
                 } catch (URISyntaxException e) {
                     // Ignore
                 }
@@ -606,22 +586,59 @@ public class FileResource extends BaseResource {
                 decrypt = false;
             }
         } else {
-            storedFile = DirectoryUtil.getStorageDirectory().resolve(fileId);
             mimeType = file.getMimeType();
             decrypt = true; // Original files are encrypted
         }
         
-        // Stream the output and decrypt it if necessary
-        StreamingOutput stream;
-        
         // A file is always encrypted by the creator of it
         User user = userDao.getById(file.getUserId());
+
+        // Strong entity tag, the data of a file version never changing except the regenerated thumbnails
+        String entityTag = null;
+        long length = 0;
+        long[] byteRange = null;
+        if (decrypt) {
+            try {
+                length = fileStorage.getSize(file, size);
+                entityTag = "\"" + fileId + "-" + file.getVersion()
+                        + (size == null ? "" : "-" + size + "-" + fileStorage.getLastModified(file, size)) + "\"";
+            } catch (IOException e) {
+                return Response.status(Status.SERVICE_UNAVAILABLE).build();
+            }
+
+            if (HttpUtil.matchEntityTag(request.getHeader(HttpHeaders.IF_NONE_MATCH), entityTag)) {
+                return Response.notModified()
+                        .header(HttpHeaders.ETAG, entityTag)
+                        .header(HttpHeaders.CACHE_CONTROL, "private")
+                        .build();
+            }
+
+            // Serve a byte range, unless it is conditioned by an outdated version
+            String ifRange = request.getHeader("If-Range");
+            if (ifRange == null || ifRange.equals(entityTag)) {
+                byteRange = HttpUtil.parseRange(request.getHeader("Range"), length);
+            }
+            if (byteRange != null && byteRange.length == 0) {
+                return Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header("Content-Range", "bytes */" + length)
+                        .build();
+            }
+        }
+
+        // Stream the output and decrypt it if necessary
+        StreamingOutput stream;
         
-        // Write the decrypted file to the output
+        // Write the decrypted file to the output, starting directly at the requested range
         try {
-            InputStream fileInputStream = Files.newInputStream(storedFile);
-            final InputStream responseInputStream = decrypt ?
-                    EncryptionUtil.decryptInputStream(fileInputStream, user.getPrivateKey()) : fileInputStream;
+            final InputStream responseInputStream;
+            if (decrypt) {
+                long offset = byteRange == null ? 0 : byteRange[0];
+                long count = byteRange == null ? length : byteRange[1] - byteRange[0] + 1;
+                responseInputStream = ByteStreams.limit(
+                        fileStorage.open(file, size, user.getPrivateKey(), offset), count);
+            } else {
+                responseInputStream = Files.newInputStream(placeholderFile);
+            }
                     
             stream = outputStream -> {
                 try {
@@ -645,7 +662,16 @@ public class FileResource extends BaseResource {
         if (decrypt) {
             // Cache real files
             builder.header(HttpHeaders.CACHE_CONTROL, "private")
-                    .header(HttpHeaders.EXPIRES, HttpUtil.buildExpiresHeader(3_600_000L * 24L * 365L));
+                    .header(HttpHeaders.EXPIRES, HttpUtil.buildExpiresHeader(3_600_000L * 24L * 365L))
+                    .header(HttpHeaders.ETAG, entityTag)
+                    .header("Accept-Ranges", "bytes");
+            if (byteRange == null) {
+                builder.header(HttpHeaders.CONTENT_LENGTH, length);
+            } else {
+                builder.status(Status.PARTIAL_CONTENT)
+                        .header("Content-Range", "bytes " + byteRange[0] + "-" + byteRange[1] + "/" + length)
+                        .header(HttpHeaders.CONTENT_LENGTH, byteRange[1] - byteRange[0] + 1);
+            }
         } else {
             // Do not cache the temporary thumbnail
             builder.header(HttpHeaders.CACHE_CONTROL, "no-store, must-revalidate")
@@ -732,13 +758,10 @@ public class FileResource extends BaseResource {
                 // Add each file to the ZIP stream
                 int index = 0;
                 for (File file : fileList) {
-                    java.nio.file.Path storedfile = DirectoryUtil.getStorageDirectory().resolve(file.getId());
-                    InputStream fileInputStream = Files.newInputStream(storedfile);
-
                     // Add the decrypted file to the ZIP stream
                     // Files are encrypted by the creator of them
                     User user = userDao.getById(file.getUserId());
-                    try (InputStream decryptedStream = EncryptionUtil.decryptInputStream(fileInputStream, user.getPrivateKey())) {
+                    try (InputStream decryptedStream = AppContext.getInstance().getFileStorage().open(file, user.getPrivateKey())) {
                         ZipEntry zipEntry = new ZipEntry(index + "-" + file.getFullName(Integer.toString(index)));
                         zipOutputStream.putNextEntry(zipEntry);
                         ByteStreams.copy(decryptedStream, zipOutputStream);
@@ -863,18 +886,14 @@ public class FileResource extends BaseResource {
 
         try {
             // Save the file
-            Cipher cipher = EncryptionUtil.getEncryptionCipher(user.getPrivateKey());
-            java.nio.file.Path path = DirectoryUtil.getStorageDirectory().resolve(file.getId());
             try (InputStream inputStream = Files.newInputStream(unencryptedFile)) {
-                try (CipherInputStream cipherInputStream = new CipherInputStream(inputStream, cipher)) {
-                    Files.copy(cipherInputStream, path, StandardCopyOption.REPLACE_EXISTING);
-                }
+                AppContext.getInstance().getFileStorage().store(file, user.getPrivateKey(), inputStream);
             }
 
-            // Update the file size
+            // Update the file size, content hash and blob
             FileDao fileDao = new FileDao();
             file.setSize(fileSize);
-            fileDao.update(file);
+            fileDao.updateStorage(file);
 
             // Update the user quota
             user.setStorageCurrent(user.getStorageCurrent() + fileSize);
@@ -62,6 +62,12 @@ public class TestAppResource extends BaseJerseyTest {
         Assert.assertEquals("eng", json.getString("default_language"));
         Assert.assertTrue(json.containsKey("global_storage_current"));
         Assert.assertTrue(json.getJsonNumber("active_user_count").longValue() > 0);
+        JsonObject indexingMetrics = json.getJsonObject("indexing_metrics");
+        Assert.assertTrue(indexingMetrics.getJsonNumber("suggester_rebuild_time").longValue() >= 0);
+        Assert.assertTrue(indexingMetrics.getJsonNumber("suggester_staleness").longValue() >= 0);
+        JsonObject fileProcessingMetrics = json.getJsonObject("file_processing_metrics");
+        Assert.assertEquals(0, fileProcessingMetrics.getJsonNumber("interactive_queued").intValue());
+        Assert.assertEquals(0, fileProcessingMetrics.getJsonNumber("bulk_queued").intValue());
 
         // Rebuild Lucene index
         Response response = target().path("/app/batch/reindex").request()
@@ -69,12 +75,42 @@ public class TestAppResource extends BaseJerseyTest {
                 .post(Entity.form(new Form()));
         Assert.assertEquals(Status.OK, Status.fromStatusCode(response.getStatus()));
 
+        // Check the rebuild progress
+        json = target().path("/app/batch/reindex").request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, adminToken)
+                .get(JsonObject.class);
+        Assert.assertFalse(json.getBoolean("running"));
+        Assert.assertTrue(json.getBoolean("success"));
+        Assert.assertEquals("swap", json.getString("phase"));
+        Assert.assertEquals(json.getJsonNumber("document_total").longValue(), json.getJsonNumber("document_count").longValue());
+        Assert.assertEquals(json.getJsonNumber("file_total").longValue(), json.getJsonNumber("file_count").longValue());
+
         // Clean storage
         response = target().path("/app/batch/clean_storage").request()
                 .cookie(TokenBasedSecurityFilter.COOKIE_NAME, adminToken)
                 .post(Entity.form(new Form()));
         Assert.assertEquals(Status.OK, Status.fromStatusCode(response.getStatus()));
 
+        // Check the database connection pool metrics
+        json = target().path("/app/database_pool").request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, adminToken)
+                .get(JsonObject.class);
+        Assert.assertEquals(10, json.getJsonNumber("max_size").intValue());
+        Assert.assertTrue(json.getJsonNumber("active").intValue() >= 1);
+        Assert.assertTrue(json.getJsonNumber("total").intValue() >= json.getJsonNumber("active").intValue());
+        Assert.assertEquals(0, json.getJsonNumber("waiting").intValue());
+        Assert.assertTrue(json.getJsonNumber("acquired").longValue() > 0);
+        Assert.assertTrue(json.getJsonNumber("wait_time_max").longValue() >= json.getJsonNumber("wait_time_avg").longValue());
+        Assert.assertEquals(0, json.getJsonNumber("timeouts").intValue());
+
+        // The admin principal is resolved from the cache
+        json = target().path("/app").request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, adminToken)
+                .get(JsonObject.class);
+        JsonObject securityMetrics = json.getJsonObject("security_metrics");
+        Assert.assertTrue(securityMetrics.getJsonNumber("principal_cache_hits").longValue() > 0);
+        Assert.assertTrue(securityMetrics.getJsonNumber("principal_cache_hit_rate").intValue() > 0);
+
         // Change the default language
         response = target().path("/app/config").request()
                 .cookie(TokenBasedSecurityFilter.COOKIE_NAME, adminToken)
@@ -3,6 +3,7 @@ package com.sismics.docs.rest;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
 import com.sismics.docs.core.util.DirectoryUtil;
+import com.sismics.docs.rest.util.StatementCounter;
 import com.sismics.util.filter.TokenBasedSecurityFilter;
 import org.glassfish.jersey.media.multipart.FormDataMultiPart;
 import org.glassfish.jersey.media.multipart.MultiPartFeature;
@@ -180,14 +181,52 @@ public class TestDocumentResource extends BaseJerseyTest {
         String highlight = json.getJsonArray("documents").getJsonObject(0).getString("highlight");
         Assert.assertTrue(highlight.contains("<strong>"));
 
-        // Check suggestions
+        // Check suggestions, once the suggester is rebuilt in the background
+        long suggestionDeadline = System.currentTimeMillis() + 30000;
+        do {
+            json = target().path("/document/list")
+                    .queryParam("search", "docu")
+                    .request()
+                    .cookie(TokenBasedSecurityFilter.COOKIE_NAME, document1Token)
+                    .get(JsonObject.class);
+            if (!json.getJsonArray("suggestions").isEmpty()) {
+                break;
+            }
+            Thread.sleep(200);
+        } while (System.currentTimeMillis() < suggestionDeadline);
+        String suggestion = json.getJsonArray("suggestions").getString(0);
+        Assert.assertEquals("document", suggestion);
+
+        // Check facets
         json = target().path("/document/list")
-                .queryParam("search", "docu")
+                .queryParam("search", "title")
+                .queryParam("facets", true)
                 .request()
                 .cookie(TokenBasedSecurityFilter.COOKIE_NAME, document1Token)
                 .get(JsonObject.class);
-        String suggestion = json.getJsonArray("suggestions").getString(0);
-        Assert.assertEquals("document", suggestion);
+        Assert.assertEquals(2, json.getInt("total"));
+        JsonObject facets = json.getJsonObject("facets");
+        JsonArray tagFacets = facets.getJsonArray("tag");
+        Assert.assertEquals(2, tagFacets.size());
+        Assert.assertEquals("HR", tagFacets.getJsonObject(0).getString("name"));
+        Assert.assertEquals(2, tagFacets.getJsonObject(0).getInt("count"));
+        Assert.assertEquals("SuperTag", tagFacets.getJsonObject(1).getString("name"));
+        Assert.assertEquals(1, tagFacets.getJsonObject(1).getInt("count"));
+        Assert.assertEquals("image/png", facets.getJsonArray("mime_type").getJsonObject(0).getString("value"));
+        Assert.assertEquals("eng", facets.getJsonArray("language").getJsonObject(0).getString("value"));
+        Assert.assertEquals(2, facets.getJsonArray("language").getJsonObject(0).getInt("count"));
+        Assert.assertEquals("document1", facets.getJsonArray("creator").getJsonObject(0).getString("value"));
+        Assert.assertEquals(1, facets.getJsonArray("year").size());
+
+        // Facets without fulltext search
+        json = target().path("/document/list")
+                .queryParam("search", "tag:super")
+                .queryParam("facets", true)
+                .request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, document1Token)
+                .get(JsonObject.class);
+        Assert.assertEquals(1, json.getInt("total"));
+        Assert.assertEquals(2, json.getJsonObject("facets").getJsonArray("tag").size());
 
         // Search documents
         Assert.assertEquals(1, searchDocuments("full:uranium full:einstein", document1Token));
@@ -226,6 +265,12 @@ public class TestDocumentResource extends BaseJerseyTest {
         Assert.assertEquals(1, searchDocuments("after:2010 before:2040-08 tag:super shared:yes lang:eng simple:title simple:description full:uranium", document1Token));
         Assert.assertEquals(1, searchDocuments("title:My_super_title_document_3", document3Token));
         Assert.assertEquals(2, searchDocuments("title:My_super_title_document_3 title:My_super_title_document_4", document3Token));
+        Assert.assertEquals(1, searchDocuments("title tag:super", document1Token));
+        Assert.assertEquals(1, searchDocuments("title !tag:super", document1Token));
+        Assert.assertEquals(2, searchDocuments("title tag:hr lang:eng by:document1", document1Token));
+        Assert.assertEquals(1, searchDocuments("title mime:image/png", document1Token));
+        Assert.assertEquals(2, searchDocuments("title after:2010 before:2040-08", document1Token));
+        Assert.assertEquals(1, searchDocuments("super", document3Token));
 
         // Search documents (nothing)
         Assert.assertEquals(0, searchDocuments("random", document1Token));
@@ -432,6 +477,72 @@ public class TestDocumentResource extends BaseJerseyTest {
         Assert.assertEquals(Status.NOT_FOUND, Status.fromStatusCode(response.getStatus()));
     }
     
+    /**
+     * Test that listing documents costs the same number of queries whatever the page size.
+     */
+    @Test
+    public void testDocumentListQueryCount() {
+        // Login document_list
+        clientUtil.createUser("document_list");
+        String documentListToken = clientUtil.login("document_list");
+
+        // Create 4 documents with a tag each
+        for (int i = 0; i < 4; i++) {
+            JsonObject json = target().path("/tag").request()
+                    .cookie(TokenBasedSecurityFilter.COOKIE_NAME, documentListToken)
+                    .put(Entity.form(new Form()
+                            .param("name", "ListTag" + i)
+                            .param("color", "#ff0000")), JsonObject.class);
+            String tagId = json.getString("id");
+            target().path("/document").request()
+                    .cookie(TokenBasedSecurityFilter.COOKIE_NAME, documentListToken)
+                    .put(Entity.form(new Form()
+                            .param("title", "List document " + i)
+                            .param("language", "eng")
+                            .param("tags", tagId)), JsonObject.class);
+        }
+
+        for (boolean files : new boolean[] { false, true }) {
+            // List a page of 1 document
+            long count = StatementCounter.getCount();
+            JsonObject json = listDocuments(1, files, documentListToken);
+            Assert.assertEquals(1, json.getJsonArray("documents").size());
+            long onePageCount = StatementCounter.getCount() - count;
+
+            // List a page of 4 documents
+            count = StatementCounter.getCount();
+            json = listDocuments(4, files, documentListToken);
+            long fourPageCount = StatementCounter.getCount() - count;
+            JsonArray documents = json.getJsonArray("documents");
+            Assert.assertEquals(4, documents.size());
+            for (int i = 0; i < 4; i++) {
+                JsonArray tags = documents.getJsonObject(i).getJsonArray("tags");
+                Assert.assertEquals(1, tags.size());
+                Assert.assertEquals("ListTag" + i, tags.getJsonObject(0).getString("name"));
+            }
+            Assert.assertEquals(onePageCount, fourPageCount);
+        }
+    }
+
+    /**
+     * List the documents sorted by title.
+     *
+     * @param limit Page size
+     * @param files True to return the files
+     * @param token Authentication token
+     * @return Documents
+     */
+    private JsonObject listDocuments(int limit, boolean files, String token) {
+        return target().path("/document/list")
+                .queryParam("limit", limit)
+                .queryParam("files", files)
+                .queryParam("sort_column", 1)
+                .queryParam("asc", true)
+                .request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, token)
+                .get(JsonObject.class);
+    }
+
     /**
      * Search documents and returns the number found.
      * 
@@ -623,6 +734,14 @@ public class TestDocumentResource extends BaseJerseyTest {
                 .get(JsonObject.class);
         Assert.assertEquals(1, json.getJsonArray("documents").size());
 
+        // Change the document language, its file is searched in the new language
+        target().path("/document/" + document1Id).request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, documentPlainToken)
+                .post(Entity.form(new Form()
+                        .param("title", "Document Title")
+                        .param("language", "fra")), JsonObject.class);
+        Assert.assertEquals(1, searchDocuments("full:love lang:fra", documentPlainToken));
+
         // Get the file thumbnail data
         Response response = target().path("/file/" + file1Id + "/data")
                 .queryParam("size", "thumb")
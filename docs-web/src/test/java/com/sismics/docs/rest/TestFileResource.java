@@ -16,12 +16,14 @@ import jakarta.json.JsonArray;
 import jakarta.json.JsonObject;
 import jakarta.ws.rs.client.Entity;
 import jakarta.ws.rs.core.Form;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.zip.ZipInputStream;
 
@@ -58,6 +60,50 @@ public class TestFileResource extends BaseJerseyTest {
         InputStream is = (InputStream) response.getEntity();
         byte[] fileBytes = ByteStreams.toByteArray(is);
         Assert.assertTrue(fileBytes.length > 0);
+        Assert.assertEquals("bytes", response.getHeaderString("Accept-Ranges"));
+        String entityTag = response.getHeaderString(HttpHeaders.ETAG);
+        Assert.assertNotNull(entityTag);
+
+        // Get the file data (not modified)
+        response = target().path("/file/" + file1Id + "/data").request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, file1Token)
+                .header(HttpHeaders.IF_NONE_MATCH, entityTag)
+                .get();
+        Assert.assertEquals(Status.NOT_MODIFIED, Status.fromStatusCode(response.getStatus()));
+
+        // Get a range of the file data, not aligned on the cipher blocks
+        response = target().path("/file/" + file1Id + "/data").request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, file1Token)
+                .header("Range", "bytes=100-1236")
+                .get();
+        Assert.assertEquals(Status.PARTIAL_CONTENT, Status.fromStatusCode(response.getStatus()));
+        Assert.assertEquals("bytes 100-1236/" + fileBytes.length, response.getHeaderString("Content-Range"));
+        Assert.assertArrayEquals(Arrays.copyOfRange(fileBytes, 100, 1237), ByteStreams.toByteArray((InputStream) response.getEntity()));
+
+        // Get the last bytes of the file data
+        response = target().path("/file/" + file1Id + "/data").request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, file1Token)
+                .header("Range", "bytes=-10")
+                .get();
+        Assert.assertEquals(Status.PARTIAL_CONTENT, Status.fromStatusCode(response.getStatus()));
+        Assert.assertArrayEquals(Arrays.copyOfRange(fileBytes, fileBytes.length - 10, fileBytes.length),
+                ByteStreams.toByteArray((InputStream) response.getEntity()));
+
+        // Get a range of the file data conditioned by another version
+        response = target().path("/file/" + file1Id + "/data").request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, file1Token)
+                .header("Range", "bytes=100-1236")
+                .header("If-Range", "\"outdated\"")
+                .get();
+        Assert.assertEquals(Status.OK, Status.fromStatusCode(response.getStatus()));
+        Assert.assertArrayEquals(fileBytes, ByteStreams.toByteArray((InputStream) response.getEntity()));
+
+        // Get a range after the end of the file data
+        response = target().path("/file/" + file1Id + "/data").request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, file1Token)
+                .header("Range", "bytes=" + fileBytes.length + "-")
+                .get();
+        Assert.assertEquals(Status.REQUESTED_RANGE_NOT_SATISFIABLE, Status.fromStatusCode(response.getStatus()));
         
         // Get the thumbnail data
         response = target().path("/file/" + file1Id + "/data")
@@ -332,6 +378,54 @@ public class TestFileResource extends BaseJerseyTest {
         clientUtil.addFileToDocument(FILE_WIKIPEDIA_ZIP, fileZipToken, document1Id);
     }
 
+    /**
+     * Test a file received as a stream: stored as received, its type detected from its first bytes.
+     *
+     * @throws Exception e
+     */
+    @Test
+    public void testStreamingUpload() throws Exception {
+        // Login file_streaming
+        clientUtil.createUser("file_streaming");
+        String fileStreamingToken = clientUtil.login("file_streaming");
+
+        // Create a document
+        String document1Id = clientUtil.createDocument(fileStreamingToken);
+
+        // Add a JPEG file with a misleading name
+        byte[] sourceBytes = Resources.toByteArray(Resources.getResource(FILE_PIA_00452_JPG));
+        String file1Id;
+        try (InputStream is = Resources.getResource(FILE_PIA_00452_JPG).openStream();
+             FormDataMultiPart multiPart = new FormDataMultiPart()) {
+            JsonObject json = target()
+                    .register(MultiPartFeature.class)
+                    .path("/file").request()
+                    .cookie(TokenBasedSecurityFilter.COOKIE_NAME, fileStreamingToken)
+                    .put(Entity.entity(multiPart.field("id", document1Id)
+                                    .bodyPart(new StreamDataBodyPart("file", is, "scan.txt")),
+                            MediaType.MULTIPART_FORM_DATA_TYPE), JsonObject.class);
+            file1Id = json.getString("id");
+            Assert.assertEquals(sourceBytes.length, json.getJsonNumber("size").longValue());
+        }
+
+        // The data is stored as received
+        Response response = target().path("/file/" + file1Id + "/data").request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, fileStreamingToken)
+                .get();
+        Assert.assertArrayEquals(sourceBytes, ByteStreams.toByteArray((InputStream) response.getEntity()));
+
+        // The type comes from the content, not from the name
+        JsonObject json = target().path("/file/list")
+                .queryParam("id", document1Id)
+                .request()
+                .cookie(TokenBasedSecurityFilter.COOKIE_NAME, fileStreamingToken)
+                .get(JsonObject.class);
+        JsonObject file = json.getJsonArray("files").getJsonObject(0);
+        Assert.assertEquals("scan.txt", file.getString("name"));
+        Assert.assertEquals(MimeType.IMAGE_JPEG, file.getString("mimetype"));
+        Assert.assertEquals(sourceBytes.length, file.getJsonNumber("size").longValue());
+    }
+
     /**
      * Test orphan files (without linked document).
      * 
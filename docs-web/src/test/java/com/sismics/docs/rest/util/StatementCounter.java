@@ -0,0 +1,35 @@
+package com.sismics.docs.rest.util;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the SQL statements reading or writing the tags and the files, to detect N+1 queries.
+ *
+ * @author bgamard
+ */
+public class StatementCounter implements StatementInspector {
+    /**
+     * Number of statements on the tags and the files.
+     */
+    private static final AtomicLong count = new AtomicLong();
+
+    @Override
+    public String inspect(String sql) {
+        String upperSql = sql.toUpperCase();
+        if (upperSql.contains("T_TAG") || upperSql.contains("T_DOCUMENT_TAG") || upperSql.contains("T_FILE")) {
+            count.incrementAndGet();
+        }
+        return sql;
+    }
+
+    /**
+     * Returns the number of statements on the tags and the files.
+     *
+     * @return Number of statements
+     */
+    public static long getCount() {
+        return count.get();
+    }
+}